@@ -0,0 +1,68 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerNormalizer;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * 回答をそろえてから比較するまでの時間と割り当て量を測ります。ASCII の回答では gc.alloc.rate.norm が
+ * ほぼ 0 になるはずです。ハッシュ済みの行は PBKDF2 の時間がほとんどを占めるので、反復回数を
+ * 小さくして比較の部分が見えるようにしています。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnswerVerificationBenchmark {
+
+    private static final int ITERATIONS = 1000;
+
+    private final SecretQuestionCredentialData plaintextData =
+            new SecretQuestionCredentialData("What is your mom's first name?");
+    private final SecretQuestionSecretData plaintextSecret =
+            new SecretQuestionSecretData(LoginState.ANSWER);
+
+    private SecretQuestionCredentialData hashedData;
+    private SecretQuestionSecretData hashedSecret;
+
+    @Setup
+    public void setUp() {
+        hashedData = new SecretQuestionCredentialData(
+                Collections.singletonList("What is your mom's first name?"),
+                SecretQuestionAnswerHasher.ALGORITHM, ITERATIONS,
+                SecretQuestionAnswerNormalizer.FORM);
+        hashedSecret = SecretQuestionAnswerHasher.hash(LoginState.ANSWER, ITERATIONS);
+    }
+
+    @Benchmark
+    public boolean verifyPlaintextAscii() {
+        return SecretQuestionAnswerHasher.verify(plaintextData, plaintextSecret, " hanako ");
+    }
+
+    // 全角の回答は NFKC を通すので、Normalizer の分だけ割り当てが発生する
+    @Benchmark
+    public boolean verifyPlaintextFullWidth() {
+        return SecretQuestionAnswerHasher.verify(plaintextData, plaintextSecret,
+                "\uff28\uff41\uff4e\uff41\uff4b\uff4f");
+    }
+
+    @Benchmark
+    public boolean verifyHashed() {
+        return SecretQuestionAnswerHasher.verify(hashedData, hashedSecret, "HANAKO");
+    }
+}
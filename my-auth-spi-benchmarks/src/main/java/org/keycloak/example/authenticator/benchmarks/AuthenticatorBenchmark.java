@@ -0,0 +1,107 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.util.Time;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticator;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorConfig;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.cookie.SecretQuestionCookieSigner;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * SecretQuestionAuthenticator の Cookie まわり（hasCookie / setCookie / addCookie）の計測。
+ *
+ * hasCookie は署名付きトークンの検証（HMAC の計算）を含みます。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticatorBenchmark {
+
+    // hasCookie() / setCookie() は protected なので、サブクラス経由で呼び出す（設定は既定値）
+    static class BenchmarkAuthenticator extends SecretQuestionAuthenticator {
+        BenchmarkAuthenticator() {
+            super(null, SecretQuestionMetrics.DISABLED, SecretQuestionAuditLog.DISABLED, null,
+                    null);
+        }
+
+        boolean checkCookie(AuthenticationFlowContext context) {
+            return hasCookie(context, SecretQuestionAuthenticatorConfig.DEFAULTS);
+        }
+
+        void issueCookie(AuthenticationFlowContext context) {
+            setCookie(context, SecretQuestionAuthenticatorConfig.DEFAULTS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WithCookie extends LoginState {
+        final BenchmarkAuthenticator authenticator = new BenchmarkAuthenticator();
+
+        @Override
+        protected void prepare() {
+            String token = SecretQuestionCookieSigner.sign(flow.getSession(), realm, user,
+                    Time.currentTime() + 60 * 60);
+            flow.getRequest().getStubHeaders().setCookie("SECRET_QUESTION_ANSWERED", token);
+        }
+    }
+
+    // 署名が一致しない（改ざんされた）クッキー
+    @State(Scope.Thread)
+    public static class WithForgedCookie extends LoginState {
+        final BenchmarkAuthenticator authenticator = new BenchmarkAuthenticator();
+
+        @Override
+        protected void prepare() {
+            String token = SecretQuestionCookieSigner.sign(flow.getSession(), realm, user,
+                    Time.currentTime() + 60 * 60);
+            String forged = token.substring(0, token.length() - 4) + "AAAA";
+            flow.getRequest().getStubHeaders().setCookie("SECRET_QUESTION_ANSWERED", forged);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WithoutCookie extends LoginState {
+        final BenchmarkAuthenticator authenticator = new BenchmarkAuthenticator();
+    }
+
+    @Benchmark
+    public boolean hasCookieBypass(WithCookie state) {
+        return state.authenticator.checkCookie(state.flow.getContext());
+    }
+
+    @Benchmark
+    public boolean hasCookieForged(WithForgedCookie state) {
+        return state.authenticator.checkCookie(state.flow.getContext());
+    }
+
+    @Benchmark
+    public boolean hasCookieMissing(WithoutCookie state) {
+        return state.authenticator.checkCookie(state.flow.getContext());
+    }
+
+    @Benchmark
+    public void setCookie(WithoutCookie state) {
+        state.flow.getResponse().clear();
+        state.authenticator.issueCookie(state.flow.getContext());
+    }
+
+    @Benchmark
+    public void addCookie(WithoutCookie state) {
+        state.flow.getResponse().clear();
+        state.authenticator.addCookie(state.flow.getContext(), "SECRET_QUESTION_ANSWERED", "true",
+                "/auth/realms/benchmark", null, null, 60 * 60 * 24 * 30, false, true);
+    }
+}
@@ -0,0 +1,31 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.io.IOException;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * benchmarks.jar のエントリポイント。
+ *
+ * 引数は org.openjdk.jmh.Main と同じですが、スループットに加えて GC の割り当て量
+ * （gc.alloc.rate / gc.alloc.rate.norm）が必ず出るよう、GC プロファイラを常に有効にしています。
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args)
+            throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Options options =
+                new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,83 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialCodec;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * credential_data / secret_data のエンコード・デコードについて、DTO を直接 JsonSerialization で読み書きする
+ * 場合と、"v" の確認や ID の intern() を加えた SecretQuestionCredentialCodec を比較します。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CredentialCodecBenchmark {
+
+    private SecretQuestionCredentialData credentialData;
+    private SecretQuestionSecretData secretData;
+
+    private String legacyCredentialJson;
+    private String legacySecretJson;
+    private String codecCredentialJson;
+    private String codecSecretJson;
+
+    @Setup
+    public void setUp() throws IOException {
+        credentialData = new SecretQuestionCredentialData("What is your mom's first name?");
+        secretData = new SecretQuestionSecretData("Hanako");
+
+        legacyCredentialJson = JsonSerialization.writeValueAsString(credentialData);
+        legacySecretJson = JsonSerialization.writeValueAsString(secretData);
+        codecCredentialJson = SecretQuestionCredentialCodec.writeCredentialData(credentialData);
+        codecSecretJson = SecretQuestionCredentialCodec.writeSecretData(secretData);
+    }
+
+    @Benchmark
+    public void decodeJsonSerialization(Blackhole bh) throws IOException {
+        bh.consume(
+                JsonSerialization.readValue(legacyCredentialJson, SecretQuestionCredentialData.class));
+        bh.consume(JsonSerialization.readValue(legacySecretJson, SecretQuestionSecretData.class));
+    }
+
+    @Benchmark
+    public void decodeCodec(Blackhole bh) throws IOException {
+        bh.consume(SecretQuestionCredentialCodec.readCredentialData(codecCredentialJson));
+        bh.consume(SecretQuestionCredentialCodec.readSecretData(codecSecretJson));
+    }
+
+    // 既存の行（"v" なし）をコーデックで読む場合
+    @Benchmark
+    public void decodeCodecLegacyRow(Blackhole bh) throws IOException {
+        bh.consume(SecretQuestionCredentialCodec.readCredentialData(legacyCredentialJson));
+        bh.consume(SecretQuestionCredentialCodec.readSecretData(legacySecretJson));
+    }
+
+    @Benchmark
+    public void encodeJsonSerialization(Blackhole bh) throws IOException {
+        bh.consume(JsonSerialization.writeValueAsString(credentialData));
+        bh.consume(JsonSerialization.writeValueAsString(secretData));
+    }
+
+    @Benchmark
+    public void encodeCodec(Blackhole bh) {
+        bh.consume(SecretQuestionCredentialCodec.writeCredentialData(credentialData));
+        bh.consume(SecretQuestionCredentialCodec.writeSecretData(secretData));
+    }
+}
@@ -0,0 +1,52 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * SecretQuestionCredentialModel の生成（登録時）と、保存済み CredentialModel からの復元（検証時）の計測。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CredentialModelBenchmark {
+
+    private CredentialModel stored;
+
+    @Setup
+    public void setUp() {
+        SecretQuestionCredentialModel created = SecretQuestionCredentialModel
+                .createSecretQuestion("What is your mom's first name?", LoginState.ANSWER);
+        stored = new CredentialModel();
+        stored.setId("credential-id");
+        stored.setType(created.getType());
+        stored.setCreatedDate(created.getCreatedDate());
+        stored.setCredentialData(created.getCredentialData());
+        stored.setSecretData(created.getSecretData());
+    }
+
+    @Benchmark
+    public SecretQuestionCredentialModel createFromCredentialModel() {
+        return SecretQuestionCredentialModel.createFromCredentialModel(stored);
+    }
+
+    @Benchmark
+    public SecretQuestionCredentialModel createSecretQuestion() {
+        return SecretQuestionCredentialModel.createSecretQuestion("What is your mom's first name?",
+                LoginState.ANSWER);
+    }
+}
@@ -0,0 +1,87 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.models.UserCredentialModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * SecretQuestionCredentialProvider.isValid() の計測。
+ *
+ * クレデンシャルの取得はメモリ上のストアからのコピーなので、DB ではなくデコードとハッシュ検証のコストを
+ * 見ています。ほぼすべてが PBKDF2 の計算なので、スループットは秒単位で出力します。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialProviderBenchmark {
+
+    @State(Scope.Thread)
+    public static class ProviderState extends LoginState {
+        SecretQuestionCredentialProvider provider;
+        UserCredentialModel correct;
+        UserCredentialModel wrong;
+
+        @Override
+        protected void prepare() {
+            provider = (SecretQuestionCredentialProvider) flow.getSession().getProvider(
+                    CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+            correct = new UserCredentialModel(credentialId, SecretQuestionCredentialModel.TYPE,
+                    ANSWER);
+            wrong = new UserCredentialModel(credentialId, SecretQuestionCredentialModel.TYPE,
+                    "Taro");
+        }
+    }
+
+    // デコード結果のキャッシュを無効にした場合（毎回 JSON をデコードする）
+    @State(Scope.Thread)
+    public static class UncachedProviderState extends ProviderState {
+        @Override
+        protected MapConfigScope config() {
+            return new MapConfigScope().put("modelCacheMaxEntries", 0);
+        }
+    }
+
+    // 検証プールを使わず、呼び出し元のスレッドで計算した場合（プールへの受け渡しのコストとの比較用）
+    @State(Scope.Thread)
+    public static class InlineProviderState extends ProviderState {
+        @Override
+        protected MapConfigScope config() {
+            return new MapConfigScope().put("verificationThreads", 0);
+        }
+    }
+
+    @Benchmark
+    public boolean isValidCorrectAnswer(ProviderState state) {
+        return state.provider.isValid(state.realm, state.user, state.correct);
+    }
+
+    @Benchmark
+    public boolean isValidWrongAnswer(ProviderState state) {
+        return state.provider.isValid(state.realm, state.user, state.wrong);
+    }
+
+    @Benchmark
+    public boolean isValidWithoutModelCache(UncachedProviderState state) {
+        return state.provider.isValid(state.realm, state.user, state.correct);
+    }
+
+    @Benchmark
+    public boolean isValidWithoutVerificationPool(InlineProviderState state) {
+        return state.provider.isValid(state.realm, state.user, state.correct);
+    }
+}
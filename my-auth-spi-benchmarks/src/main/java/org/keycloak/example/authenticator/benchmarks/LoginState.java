@@ -0,0 +1,74 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubLoginFlow;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * 秘密の質問を登録済みのユーザ 1 人と、そのユーザのログインリクエスト 1 回分のスタブ。
+ *
+ * クレデンシャルストアはメモリ上なので、計測値に DB の往復は含まれません。SPI 側のコード
+ * （デコード、ハッシュ検証、Cookie の組み立てなど）のコストだけを見るためのものです。
+ */
+@State(Scope.Thread)
+public class LoginState {
+
+    public static final String ANSWER = "Hanako";
+
+    RealmModel realm;
+    StubUserModel user;
+    SecretQuestionCredentialProviderFactory factory;
+    StubLoginFlow flow;
+    String credentialId;
+
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(config());
+        realm = StubRealm.create("realm-id", "benchmark");
+        user = new StubUserModel("user-id", "alice");
+        flow = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        // プロバイダ経由で登録し、本番と同じくハッシュ化された行にする
+        credentialId = factory.create(flow.getSession())
+                .createCredential(realm, user, SecretQuestionCredentialModel
+                        .createSecretQuestion("What is your mom's first name?", ANSWER))
+                .getId();
+        prepare();
+
+        // hasCookie() は System.out に書き込むので、端末への出力コストを計測に含めないよう捨てる
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+        factory.close();
+    }
+
+    protected MapConfigScope config() {
+        return new MapConfigScope();
+    }
+
+    // JMH はサブクラスと親クラスの @Setup の実行順を保証しないので、追加の準備はここで行う
+    protected void prepare() {}
+}
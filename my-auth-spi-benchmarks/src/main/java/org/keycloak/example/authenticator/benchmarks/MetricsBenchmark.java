@@ -0,0 +1,59 @@
+package org.keycloak.example.authenticator.benchmarks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Outcome;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Phase;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * SecretQuestionMetrics の記録 1 回分のコスト。gc.alloc.rate.norm が 0 に近いこと
+ * （記録のたびに Tags や Meter.Id を作っていないこと）を確認するためのものです。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private SecretQuestionMetrics metrics;
+    private RealmModel realm;
+
+    @Setup
+    public void setUp() {
+        metrics = new SecretQuestionMetrics(new SimpleMeterRegistry(), 100, false);
+        realm = StubRealm.create("realm-id", "test");
+    }
+
+    @Benchmark
+    public void record() {
+        metrics.record(realm, Phase.ACTION, Outcome.SUCCESS, metrics.start());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        metrics.record(realm, Phase.ACTION, Outcome.SUCCESS, metrics.start());
+    }
+
+    @Benchmark
+    public void recordDisabled() {
+        SecretQuestionMetrics.DISABLED.record(realm, Phase.ACTION, Outcome.SUCCESS,
+                SecretQuestionMetrics.DISABLED.start());
+    }
+}
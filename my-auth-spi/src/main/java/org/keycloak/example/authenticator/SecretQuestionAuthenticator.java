@@ -1,20 +1,45 @@
 package org.keycloak.example.authenticator;
 
 import java.net.URI;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.CredentialValidator;
 import org.keycloak.common.util.ServerCookie;
 import org.keycloak.common.util.ServerCookie.SameSiteAttributeValue;
+import org.keycloak.common.util.Time;
+import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorConfig.QuestionSelection;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorConfig.SameSite;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditEvent;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.example.authenticator.cookie.SecretQuestionCookieSigner;
+import org.keycloak.example.authenticator.device.SecretQuestionDeviceRegistry;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialSnapshot;
+import org.keycloak.example.authenticator.credential.SecretQuestionVerificationRejectedException;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Outcome;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Phase;
+import org.keycloak.example.authenticator.throttle.SecretQuestionAttemptThrottle;
+import org.keycloak.example.authenticator.throttle.SecretQuestionConcurrencyLimiter;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.http.HttpResponse;
 import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
 import jakarta.ws.rs.core.Cookie;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
@@ -23,6 +48,55 @@ import javax.ws.rs.core.HttpHeaders;
 public class SecretQuestionAuthenticator
         implements CredentialValidator<SecretQuestionCredentialProvider>, Authenticator {
 
+    private static final Logger logger = Logger.getLogger(SecretQuestionAuthenticator.class);
+
+    static final String ANSWERED_COOKIE = "SECRET_QUESTION_ANSWERED";
+    static final String TEMPLATE = "secret-question.ftl";
+    // secret-question.ftl に渡す、出題する質問の文言
+    static final String QUESTION_ATTRIBUTE = "secretQuestion";
+
+    // validateAnswer() の結果
+    protected enum AnswerResult {
+        VALID,
+        INVALID,
+        // この認証セッションでまだ質問を出していないので、回答を検証しなかった
+        NOT_ASKED
+    }
+
+    // 質問の選び方を推測されないよう、出題する質問は SecureRandom で選ぶ
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // 認証フローの実行ステップごとの設定なので、ノードあたりの数は多くない
+    private static final int CONFIG_CACHE_MAX_ENTRIES = 1000;
+
+    // null の場合は試行回数を制限しない
+    private final SecretQuestionAttemptThrottle throttle;
+    private final SecretQuestionMetrics metrics;
+    private final SecretQuestionAuditLog audit;
+    // null の場合はクッキーの署名と有効期限だけを確かめ、端末ごとの失効はできない
+    private final SecretQuestionDeviceRegistry devices;
+    // null の場合は同時に検証する数を制限しない
+    private final SecretQuestionConcurrencyLimiter limiter;
+    // AuthenticatorConfigModel の ID ごとに解釈済みの設定を持つ。内容が変わったら作り直す
+    private final LocalCache<String, SecretQuestionAuthenticatorConfig> configs =
+            new LocalCache<>(CONFIG_CACHE_MAX_ENTRIES, 0);
+    // 設定で試行回数の上限を変えた場合の throttle。同じ上限の設定どうしでカウンタを共有する
+    private final Map<String, SecretQuestionAttemptThrottle> configuredThrottles =
+            new ConcurrentHashMap<>();
+
+    /*
+     * 依存はすべて SecretQuestionAuthenticatorFactory#init で組み立てて渡します。
+     * 使わない機能は null か、各クラスの DISABLED を渡します。
+     */
+    public SecretQuestionAuthenticator(SecretQuestionAttemptThrottle throttle,
+            SecretQuestionMetrics metrics, SecretQuestionAuditLog audit,
+            SecretQuestionDeviceRegistry devices, SecretQuestionConcurrencyLimiter limiter) {
+        this.throttle = throttle;
+        this.metrics = metrics;
+        this.audit = audit;
+        this.devices = devices;
+        this.limiter = limiter;
+    }
+
     // implements CredentialValidator<SecretQuestionCredentialProvider>
     @Override
     public SecretQuestionCredentialProvider getCredentialProvider(KeycloakSession session) {
@@ -67,8 +141,12 @@ public class SecretQuestionAuthenticator
      */
     @Override
     public void authenticate(AuthenticationFlowContext context) {
-        if (hasCookie(context)) {
+        long start = metrics.start();
+        SecretQuestionAuthenticatorConfig config = resolveConfig(context);
+        if (hasCookie(context, config)) {
             context.success();
+            metrics.record(context.getRealm(), Phase.AUTHENTICATE, Outcome.COOKIE_BYPASS, start);
+            audit(context, SecretQuestionAuditEvent.Type.COOKIE_BYPASS);
             return;
         }
         // AuthenticationFlowContext の form() メソッドが
@@ -80,33 +158,226 @@ public class SecretQuestionAuthenticator
         // setAttribute
         // を使ってテンプレート内で使用する変数を設定できるテンプレートファイル (例: secret-question.ftl) はカスタムテーマの
         // templates ディレクトリに配置する必要がある
-        LoginFormsProvider loginFormsProvider = context.form();
+        // 試行回数の上限に達している間はクレデンシャルを読まずにフォームだけ返す
+        SecretQuestionAttemptThrottle throttle = throttleFor(config);
+        if (throttle != null && throttle.isLimited(context.getRealm(), context.getUser(),
+                getRemoteAddr(context))) {
+            context.challenge(tooManyAttempts(context));
+            metrics.record(context.getRealm(), Phase.AUTHENTICATE, Outcome.THROTTLED, start);
+            audit(context, SecretQuestionAuditEvent.Type.THROTTLED);
+            return;
+        }
+        // 検証に使うクレデンシャルはここで 1 回だけ読み、認証セッションに写しを保存しておく。
+        // 質問が複数ある場合は、この認証セッションで出す質問もここで選んで保存する。
+        // DB を読むので、action() の検証と同じレルムの同時実行数の上限に数える
+        SecretQuestionCredentialProvider provider = getCredentialProvider(context.getSession());
+        try (SecretQuestionConcurrencyLimiter.Permit permit = acquirePermit(context)) {
+            resolveQuestionIndex(context, provider, resolveCredential(context, provider, null),
+                    config);
+        } catch (SecretQuestionVerificationRejectedException e) {
+            context.challenge(challengePage(context, "secretQuestionBusy"));
+            metrics.record(context.getRealm(), Phase.AUTHENTICATE, Outcome.BUSY, start);
+            audit(context, SecretQuestionAuditEvent.Type.BUSY);
+            return;
+        }
         // loginFormsProvider.setAttribute("username", context.getUser().getUsername());
-        Response challenge = loginFormsProvider.createForm("secret-question.ftl");
+        Response challenge = challengePage(context, null);
         context.challenge(challenge);
+        metrics.record(context.getRealm(), Phase.AUTHENTICATE, Outcome.CHALLENGE, start);
+        audit(context, SecretQuestionAuditEvent.Type.CHALLENGE);
     }
 
-    protected boolean hasCookie(AuthenticationFlowContext context) {
+    /*
+     * クッキーがあるだけでは信用せず、署名・有効期限・ユーザとレルムの一致を検証します。
+     * 検証はレルムの鍵と HMAC の計算だけで完結し、DB には問い合わせません。
+     *
+     * 信頼済み端末の登録簿を使う場合は、トークンの端末 ID が失効していないことも確かめます。
+     * 登録簿のニアキャッシュに当たれば、これもノード内で完結します。
+     */
+    protected boolean hasCookie(AuthenticationFlowContext context,
+            SecretQuestionAuthenticatorConfig config) {
         Cookie cookie = context.getHttpRequest().getHttpHeaders().getCookies()
-                .get("SECRET_QUESTION_ANSWERED");
-        boolean result = cookie != null;
-        if (result) {
-            System.out.println("Bypassing secret question because cookie is set");
+                .get(config.getCookieName());
+        if (cookie == null || !SecretQuestionCookieSigner.verify(context.getSession(),
+                context.getRealm(), context.getUser(), cookie.getValue(), Time.currentTime())) {
+            return false;
         }
-        return result;
+        if (devices == null) {
+            return true;
+        }
+        // 端末 ID のない（登録簿を使う前に発行した）クッキーは失効させられないので受け付けない
+        String deviceId = SecretQuestionCookieSigner.deviceId(cookie.getValue());
+        return deviceId != null && devices.isTrusted(context.getRealm().getId(),
+                context.getUser().getId(), deviceId, Time.currentTimeMillis());
     }
 
+    /*
+     * 検証プールが混み合っていて回答を検証できなかった場合や、レルムで同時に検証している数が
+     * SecretQuestionConcurrencyLimiter の上限に達している場合は、失敗回数に数えずに同じフォームを
+     * 「しばらくしてから再試行」のメッセージ付きで返します。上限に達している場合は待たずに断るので、
+     * クレデンシャルも読まず、ハッシュも計算しません。authenticate() が同じ理由で断られて質問を
+     * 選んでいない場合は、ここで質問を選んで出すだけで、回答は検証しません。
+     *
+     * 試行回数の上限を超えた場合も、クレデンシャルを読む前、ハッシュを計算する前に同じように断ります。
+     * 上限を超えた試行は失敗回数に数えません（数えるとロックアウトが延び続けるため）。
+     */
     @Override
     public void action(AuthenticationFlowContext context) {
-        boolean validated = validateAnswer(context);
-        if (!validated) {
-            Response challenge =
-                    context.form().setError("badSecret").createForm("secret-question.ftl");
+        long start = metrics.start();
+        SecretQuestionAuthenticatorConfig config = resolveConfig(context);
+        SecretQuestionAttemptThrottle throttle = throttleFor(config);
+        String remoteAddr = getRemoteAddr(context);
+        if (throttle != null && !throttle.tryAcquire(context.getSession(), context.getRealm(),
+                context.getUser(), remoteAddr)) {
+            context.challenge(tooManyAttempts(context));
+            metrics.record(context.getRealm(), Phase.ACTION, Outcome.THROTTLED, start);
+            audit(context, SecretQuestionAuditEvent.Type.THROTTLED);
+            return;
+        }
+        AnswerResult result;
+        try (SecretQuestionConcurrencyLimiter.Permit permit = acquirePermit(context)) {
+            try {
+                result = validateAnswer(context, config);
+            } catch (SecretQuestionVerificationRejectedException e) {
+                permit.dropped();
+                throw e;
+            }
+        } catch (SecretQuestionVerificationRejectedException e) {
+            context.challenge(challengePage(context, "secretQuestionBusy"));
+            metrics.record(context.getRealm(), Phase.ACTION, Outcome.BUSY, start);
+            audit(context, SecretQuestionAuditEvent.Type.BUSY);
+            return;
+        }
+        if (result == AnswerResult.NOT_ASKED) {
+            context.challenge(challengePage(context, null));
+            metrics.record(context.getRealm(), Phase.ACTION, Outcome.CHALLENGE, start);
+            audit(context, SecretQuestionAuditEvent.Type.CHALLENGE);
+            return;
+        }
+        if (result == AnswerResult.INVALID) {
+            if (throttle != null) {
+                throttle.recordFailure(context.getSession(), context.getRealm(),
+                        context.getUser(), remoteAddr);
+            }
+            Response challenge = challengePage(context, "badSecret");
             context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
+            metrics.record(context.getRealm(), Phase.ACTION, Outcome.FAILURE, start);
+            audit(context, SecretQuestionAuditEvent.Type.FAILURE);
             return;
         }
-        setCookie(context);
+        if (throttle != null) {
+            throttle.recordSuccess(context.getSession(), context.getRealm(), context.getUser());
+        }
+        SecretQuestionCredentialSnapshot.clear(context.getAuthenticationSession());
+        setCookie(context, config);
         context.success();
+        metrics.record(context.getRealm(), Phase.ACTION, Outcome.SUCCESS, start);
+        audit(context, SecretQuestionAuditEvent.Type.SUCCESS);
+    }
+
+    private void audit(AuthenticationFlowContext context, SecretQuestionAuditEvent.Type type) {
+        audit.record(type, context.getRealm(), context.getUser(), getRemoteAddr(context));
+    }
+
+    private Response tooManyAttempts(AuthenticationFlowContext context) {
+        return challengePage(context, "secretQuestionTooManyAttempts");
+    }
+
+    // secret-question.ftl を描画する。error はメッセージのキーで、null の場合はエラーなし
+    private Response challengePage(AuthenticationFlowContext context, String error) {
+        String question = currentQuestion(context);
+        Map<String, String> attributes = question == null ? Collections.emptyMap()
+                : Collections.singletonMap(QUESTION_ATTRIBUTE, question);
+        LoginFormsProvider form = context.form();
+        attributes.forEach(form::setAttribute);
+        if (error != null) {
+            form.setError(error);
+        }
+        return form.createForm(TEMPLATE);
+    }
+
+    /*
+     * この認証セッションで出している質問の文言を、ユーザのロケールで返します。質問カタログの ID で
+     * 登録されたクレデンシャルでは、保存した ID でレルムのカタログから文言を引くので、クレデンシャルを
+     * 読みません。文言で登録されたクレデンシャルでは、認証セッションに保存した ID でこのノードの
+     * キャッシュから行を引き、なければストアから読みます。まだ選んでいない場合は null を返します。
+     */
+    private String currentQuestion(AuthenticationFlowContext context) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        SecretQuestionCredentialSnapshot snapshot =
+                SecretQuestionCredentialSnapshot.load(authSession, context.getUser());
+        if (snapshot == null) {
+            return null;
+        }
+        int index = SecretQuestionCredentialSnapshot.loadQuestionIndex(authSession,
+                snapshot.getCredentialId());
+        if (index < 0) {
+            return null;
+        }
+        SecretQuestionCredentialProvider provider = getCredentialProvider(context.getSession());
+        Locale locale = context.getSession().getContext().resolveLocale(context.getUser());
+        String questionId =
+                SecretQuestionCredentialSnapshot.loadQuestionId(authSession, context.getUser());
+        if (questionId != null) {
+            return provider.getQuestionText(context.getRealm(), questionId, locale);
+        }
+        CredentialModel credential = provider.getCachedCredential(snapshot.getCredentialId());
+        if (credential == null) {
+            credential = context.getUser().credentialManager()
+                    .getStoredCredentialById(snapshot.getCredentialId());
+        }
+        if (credential == null) {
+            return null;
+        }
+        return provider.getQuestionText(context.getRealm(), provider.getCredentialData(credential),
+                index, locale);
+    }
+
+    /*
+     * この実行ステップの設定を返します。設定の ID ごとにキャッシュし、管理コンソールで内容が
+     * 変わったときだけ解釈し直します。ログインのたびに文字列を解釈することはありません。
+     *
+     * Keycloak 22 には保存時に AuthenticatorFactory が設定を検証する仕組みがないため、検証は解釈するとき
+     * （設定が変わって最初に使われたとき）に行います。不正な値はその項目だけ既定値にして警告を出し、
+     * ログインは止めません。
+     */
+    SecretQuestionAuthenticatorConfig resolveConfig(AuthenticationFlowContext context) {
+        AuthenticatorConfigModel model = context.getAuthenticatorConfig();
+        if (model == null || model.getConfig() == null || model.getConfig().isEmpty()) {
+            return SecretQuestionAuthenticatorConfig.DEFAULTS;
+        }
+        Map<String, String> values = model.getConfig();
+        if (model.getId() != null) {
+            SecretQuestionAuthenticatorConfig cached =
+                    configs.get(model.getId(), config -> config.isParsedFrom(values));
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<String> errors = new ArrayList<>();
+        SecretQuestionAuthenticatorConfig parsed =
+                SecretQuestionAuthenticatorConfig.parse(values, errors);
+        if (!errors.isEmpty()) {
+            logger.warnf("Using defaults for invalid values in authenticator config %s: %s",
+                    model.getAlias(), String.join(", ", errors));
+        }
+        if (model.getId() != null) {
+            configs.put(model.getId(), parsed);
+        }
+        return parsed;
+    }
+
+    private SecretQuestionAttemptThrottle throttleFor(SecretQuestionAuthenticatorConfig config) {
+        if (throttle == null || !config.overridesAttempts()) {
+            return throttle;
+        }
+        return configuredThrottles.computeIfAbsent(
+                config.getUserAttempts() + "/" + config.getIpAttempts(),
+                key -> throttle.withAttempts(config.getUserAttempts(), config.getIpAttempts()));
+    }
+
+    private static String getRemoteAddr(AuthenticationFlowContext context) {
+        return context.getConnection() != null ? context.getConnection().getRemoteAddr() : null;
     }
 
     /**
@@ -127,26 +398,57 @@ public class SecretQuestionAuthenticator
      * 
      * 3. このメソッドでは、AuthenticatorConfigModel を使用して管理コンソールから設定された値を取得し、 クッキーの有効期限に反映します。
      * 
+     * クッキーの値はユーザ・レルム・有効期限に紐づけて署名したトークンです（SecretQuestionCookieSigner）。
+     * レルムに有効な HMAC 鍵がない場合はクッキーを設定しません。
+     * 信頼済み端末の登録簿を使う場合は、端末を登録してその ID をトークンに含めます。
+     *
+     * 設定値は resolveConfig() で解釈済みのもの（SecretQuestionAuthenticatorConfig）を使うので、
+     * ここでは文字列を解釈しません。
      */
-    protected void setCookie(AuthenticationFlowContext context) {
-        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        int maxCookieAge = 60 * 60 * 24 * 30; // 30 days
-        if (config != null) {
-            maxCookieAge = Integer.valueOf(config.getConfig().get("cookie.max.age"));
-
+    protected void setCookie(AuthenticationFlowContext context,
+            SecretQuestionAuthenticatorConfig config) {
+        long start = metrics.start();
+        int maxCookieAge = config.getCookieMaxAge();
+        long expiresAt = (long) Time.currentTime() + maxCookieAge;
+        String deviceId = null;
+        if (devices != null) {
+            deviceId = devices.register(context.getRealm().getId(), context.getUser().getId(),
+                    expiresAt * 1000L);
+            if (deviceId == null) {
+                metrics.record(context.getRealm(), Phase.ADD_COOKIE, Outcome.SKIPPED, start);
+                return;
+            }
+        }
+        String token = SecretQuestionCookieSigner.sign(context.getSession(), context.getRealm(),
+                context.getUser(), expiresAt, deviceId);
+        if (token == null) {
+            metrics.record(context.getRealm(), Phase.ADD_COOKIE, Outcome.SKIPPED, start);
+            return;
         }
         URI uri = context.getUriInfo().getBaseUriBuilder().path("realms")
                 .path(context.getRealm().getName()).build();
-        addCookie(context, "SECRET_QUESTION_ANSWERED", "true", uri.getRawPath(), null, null,
-                maxCookieAge, false, true);
+        addCookie(context, config.getCookieName(), token, uri.getRawPath(), null, null,
+                maxCookieAge, config.isCookieSecure(), true, config.getSameSite());
+        metrics.record(context.getRealm(), Phase.ADD_COOKIE, Outcome.SUCCESS, start);
     }
 
     public void addCookie(AuthenticationFlowContext context, String name, String value, String path,
             String domain, String comment, int maxAge, boolean secure, boolean httpOnly) {
+        addCookie(context, name, value, path, domain, comment, maxAge, secure, httpOnly,
+                SameSite.NONE);
+    }
+
+    // Keycloak 22 の SameSiteAttributeValue は NONE しかないので、Lax / Strict は自分で付ける
+    public void addCookie(AuthenticationFlowContext context, String name, String value, String path,
+            String domain, String comment, int maxAge, boolean secure, boolean httpOnly,
+            SameSite sameSite) {
         HttpResponse response = context.getSession().getContext().getHttpResponse();
         StringBuilder cookieBuilder = new StringBuilder();
         ServerCookie.appendCookieValue(cookieBuilder, 1, name, value, path, domain, comment, maxAge,
-                secure, httpOnly, SameSiteAttributeValue.NONE);
+                secure, httpOnly, sameSite == SameSite.NONE ? SameSiteAttributeValue.NONE : null);
+        if (sameSite != SameSite.NONE) {
+            cookieBuilder.append("; SameSite=").append(sameSite);
+        }
         String cookie = cookieBuilder.toString();
 
         // https://github.com/keycloak/keycloak/blob/47a7d9c12eac55980b083d7dc2da16643ef3dd32/services/src/test/java/org/keycloak/services/resteasy/HttpResponseImpl.java#L46-L47
@@ -154,6 +456,12 @@ public class SecretQuestionAuthenticator
         response.addHeader(HttpHeaders.SET_COOKIE, cookie);
     }
 
+    private SecretQuestionConcurrencyLimiter.Permit acquirePermit(
+            AuthenticationFlowContext context) {
+        return limiter == null ? SecretQuestionConcurrencyLimiter.Permit.NONE
+                : limiter.acquire(context.getRealm());
+    }
+
     /**
      * ユーザが入力した秘密の質問の回答を検証するメソッド。
      * 
@@ -164,27 +472,129 @@ public class SecretQuestionAuthenticator
      * 
      * 1. フォームからユーザの入力データ（回答と資格情報ID）を取得します。
      * 
-     * 2. 資格情報IDが指定されていない場合は、デフォルトの資格情報IDを取得します。
+     * 2. 資格情報IDが指定されていない場合は、デフォルトの資格情報を使用します。authenticate() で認証セッションに
+     * 保存した写しがあればそれを使い、資格情報を読み直しません。
+     * 
+     * 3. 質問が複数あり、この認証セッションでまだ質問を選んでいない（authenticate() が混雑で断られた）
+     * 場合は、どの質問への回答か分からないので、ここで質問を選ぶだけで検証しません。
      * 
-     * 3. ユーザの入力を資格情報モデルに設定し、登録された資格情報と比較して一致するかを検証します。
+     * 4. ユーザの入力を登録された資格情報と比較して一致するかを検証します。
      * 
      * @param context 認証フローのコンテキスト。ユーザやセッション、リクエストの情報が含まれる。
-     * @return 回答が正しい場合は true、不正な場合は false を返す。
+     * @return 回答が正しい場合は VALID、不正な場合は INVALID、質問をまだ出していない場合は NOT_ASKED。
      */
-    protected boolean validateAnswer(AuthenticationFlowContext context) {
+    protected AnswerResult validateAnswer(AuthenticationFlowContext context,
+            SecretQuestionAuthenticatorConfig config) {
+        SecretQuestionCredentialProvider provider = getCredentialProvider(context.getSession());
         MultivaluedMap<String, String> formData =
                 context.getHttpRequest().getDecodedFormParameters();
         String secret = formData.getFirst("secret_answer");
         String credentialId = formData.getFirst("credentialId");
-        if (credentialId == null || credentialId.isEmpty()) {
-            credentialId = getCredentialProvider(context.getSession()).getDefaultCredential(
-                    context.getSession(), context.getRealm(), context.getUser()).getId();
+        if (credentialId != null && credentialId.isEmpty()) {
+            credentialId = null;
+        }
+
+        long start = metrics.start();
+        boolean valid;
+        try {
+            CredentialModel credential = resolveCredential(context, provider, credentialId);
+            if (!isQuestionChosen(context, provider, credential, config)) {
+                resolveQuestionIndex(context, provider, credential, config);
+                return AnswerResult.NOT_ASKED;
+            }
+            int questionIndex = resolveQuestionIndex(context, provider, credential, config);
+            valid = provider.isValid(context.getRealm(), context.getUser(), credential,
+                    questionIndex, secret);
+        } catch (SecretQuestionVerificationRejectedException e) {
+            metrics.record(context.getRealm(), Phase.VALIDATE_ANSWER, Outcome.BUSY, start);
+            throw e;
+        }
+        metrics.record(context.getRealm(), Phase.VALIDATE_ANSWER,
+                valid ? Outcome.SUCCESS : Outcome.FAILURE, start);
+        return valid ? AnswerResult.VALID : AnswerResult.INVALID;
+    }
+
+    /*
+     * 検証に使うクレデンシャルを返します。認証セッションに同じユーザの写しがあり、credentialId が
+     * 指定されていないか写しと同じであれば、写しの ID でこのノードのキャッシュから行を引き、ストアを
+     * 読みません。それ以外の場合と、キャッシュにない場合はストアから読み、写しを保存し直します。
+     * ストアにクレデンシャルがなければ、登録状態のキャッシュを無効化します。
+     * ストアから読んだ時間は、同時に検証する数の上限の調整に使います。
+     */
+    protected CredentialModel resolveCredential(AuthenticationFlowContext context,
+            SecretQuestionCredentialProvider provider, String credentialId) {
+        long start = metrics.start();
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        UserModel user = context.getUser();
+        SecretQuestionCredentialSnapshot snapshot =
+                SecretQuestionCredentialSnapshot.load(authSession, user);
+        if (snapshot != null
+                && (credentialId == null || credentialId.equals(snapshot.getCredentialId()))) {
+            CredentialModel credential = provider.getCachedCredential(snapshot.getCredentialId());
+            if (credential != null) {
+                metrics.record(context.getRealm(), Phase.CREDENTIAL_FETCH, Outcome.SNAPSHOT,
+                        start);
+                return credential;
+            }
         }
+        long fetchStart = System.nanoTime();
+        CredentialModel credential = credentialId == null
+                ? provider.getDefaultCredential(context.getSession(), context.getRealm(), user)
+                : user.credentialManager().getStoredCredentialById(credentialId);
+        if (limiter != null) {
+            limiter.onFetch(context.getRealm(), System.nanoTime() - fetchStart);
+        }
+        if (credential != null && provider.getType().equals(credential.getType())) {
+            SecretQuestionCredentialSnapshot.save(authSession, user, credential);
+            // action() で写しの ID からこのノードのキャッシュを引けるよう、デコード結果を載せておく
+            provider.getCredentialData(credential);
+        } else if (credentialId == null) {
+            // 登録済みとキャッシュされていたのに行がない（管理コンソールなどで削除された）
+            provider.invalidateEnrollment(user);
+        }
+        metrics.record(context.getRealm(), Phase.CREDENTIAL_FETCH, Outcome.STORE, start);
+        return credential;
+    }
+
+    // 質問が複数あり、この認証セッションで出す質問をまだ選んでいなければ false
+    private boolean isQuestionChosen(AuthenticationFlowContext context,
+            SecretQuestionCredentialProvider provider, CredentialModel credential,
+            SecretQuestionAuthenticatorConfig config) {
+        if (credential == null || !provider.getType().equals(credential.getType())
+                || config.getQuestionSelection() != QuestionSelection.RANDOM
+                || provider.getCredentialData(credential).getQuestionCount() <= 1) {
+            return true;
+        }
+        return SecretQuestionCredentialSnapshot.loadQuestionIndex(
+                context.getAuthenticationSession(), credential.getId()) >= 0;
+    }
 
-        UserCredentialModel input =
-                new UserCredentialModel(credentialId, getType(context.getSession()), secret);
-        return getCredentialProvider(context.getSession()).isValid(context.getRealm(),
-                context.getUser(), input);
+    /*
+     * 出題する質問の位置を返します。この認証セッションで同じクレデンシャルについて選んだ位置があれば
+     * それを使い、なければランダムに選んで認証セッションに保存します。リトライしても同じ質問が出るので、
+     * 質問を切り替えながら当て直すことはできません。設定（question.selection）が first の場合は
+     * 常に最初の質問です。
+     */
+    protected int resolveQuestionIndex(AuthenticationFlowContext context,
+            SecretQuestionCredentialProvider provider, CredentialModel credential,
+            SecretQuestionAuthenticatorConfig config) {
+        if (credential == null || !provider.getType().equals(credential.getType())) {
+            return 0;
+        }
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        SecretQuestionCredentialData credentialData = provider.getCredentialData(credential);
+        int count = credentialData.getQuestionCount();
+        int index = SecretQuestionCredentialSnapshot.loadQuestionIndex(authSession,
+                credential.getId());
+        if (index >= 0 && index < count) {
+            return index;
+        }
+        index = count > 1 && config.getQuestionSelection() == QuestionSelection.RANDOM
+                ? RANDOM.nextInt(count)
+                : 0;
+        SecretQuestionCredentialSnapshot.saveQuestionIndex(authSession, credential.getId(), index,
+                credentialData.getQuestionId(index));
+        return index;
     }
 
     @Override
@@ -0,0 +1,256 @@
+package org.keycloak.example.authenticator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 認証フローの実行ステップに設定された AuthenticatorConfigModel を、型付きで検証済みの値にしたもの。
+ *
+ * 管理コンソールで保存された文字列のマップを一度だけ解釈し、ログインのたびに Map を引いたり数値を
+ * 解釈したりしないで済むようにします。インスタンスは不変で、解釈した元のマップの写しを持ちます。
+ * SecretQuestionAuthenticator は設定の ID ごとにこれをキャッシュし、元のマップと内容が変わったときだけ
+ * 作り直します（isParsedFrom）。
+ *
+ * - cookie.max.age: クッキーの有効期間（秒、0 以上）。既定 30 日
+ *
+ * - cookie.name: クッキーの名前（RFC 6265 の token）。既定 SECRET_QUESTION_ANSWERED
+ *
+ * - cookie.same.site: None / Lax / Strict。既定 Lax。None はブラウザが Secure なしでは受け付けないので、
+ * cookie.secure=true と組み合わせる必要がある
+ *
+ * - cookie.secure: Secure 属性を付けるか。既定 false
+ *
+ * - lockout.user.attempts / lockout.ip.attempts: 回答の試行回数の上限（ユーザごと / 接続元 IP ごと）。
+ * 空の場合は SPI の設定（throttleUserAttempts / throttleIpAttempts）に従う
+ *
+ * - question.selection: 質問が複数ある場合の出題のしかた。random（既定）または first
+ */
+public final class SecretQuestionAuthenticatorConfig {
+
+    public static final String COOKIE_MAX_AGE = "cookie.max.age";
+    public static final String COOKIE_NAME = "cookie.name";
+    public static final String COOKIE_SAME_SITE = "cookie.same.site";
+    public static final String COOKIE_SECURE = "cookie.secure";
+    public static final String LOCKOUT_USER_ATTEMPTS = "lockout.user.attempts";
+    public static final String LOCKOUT_IP_ATTEMPTS = "lockout.ip.attempts";
+    public static final String QUESTION_SELECTION = "question.selection";
+
+    static final int DEFAULT_COOKIE_MAX_AGE = 60 * 60 * 24 * 30; // 30 days
+    // 試行回数の上限を設定で上書きしない
+    public static final int INHERIT = -1;
+
+    public enum SameSite {
+        NONE("None"), LAX("Lax"), STRICT("Strict");
+
+        private final String value;
+
+        SameSite(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    public enum QuestionSelection {
+        // 認証セッションごとにランダムに選ぶ
+        RANDOM,
+        // 常に最初の質問を出す
+        FIRST;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static final SecretQuestionAuthenticatorConfig DEFAULTS =
+            new SecretQuestionAuthenticatorConfig(Collections.emptyMap(), DEFAULT_COOKIE_MAX_AGE,
+                    SecretQuestionAuthenticator.ANSWERED_COOKIE, SameSite.LAX, false, INHERIT,
+                    INHERIT, QuestionSelection.RANDOM);
+
+    private final Map<String, String> source;
+    private final int cookieMaxAge;
+    private final String cookieName;
+    private final SameSite sameSite;
+    private final boolean cookieSecure;
+    private final int userAttempts;
+    private final int ipAttempts;
+    private final QuestionSelection questionSelection;
+
+    private SecretQuestionAuthenticatorConfig(Map<String, String> source, int cookieMaxAge,
+            String cookieName, SameSite sameSite, boolean cookieSecure, int userAttempts,
+            int ipAttempts, QuestionSelection questionSelection) {
+        this.source = source;
+        this.cookieMaxAge = cookieMaxAge;
+        this.cookieName = cookieName;
+        this.sameSite = sameSite;
+        this.cookieSecure = cookieSecure;
+        this.userAttempts = userAttempts;
+        this.ipAttempts = ipAttempts;
+        this.questionSelection = questionSelection;
+    }
+
+    /**
+     * 設定を検証して解釈します。不正な値が 1 つでもあれば、すべての項目の問題をまとめた
+     * IllegalArgumentException を投げます。
+     */
+    public static SecretQuestionAuthenticatorConfig parse(Map<String, String> config) {
+        List<String> errors = new ArrayList<>();
+        SecretQuestionAuthenticatorConfig parsed = parse(config, errors);
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid secret question authenticator config: "
+                    + String.join(", ", errors));
+        }
+        return parsed;
+    }
+
+    /**
+     * 設定を解釈します。不正な値はその項目だけ既定値にし、問題を errors に追加します。
+     * 保存済みの設定が不正でもログインを止めないために使います。
+     */
+    public static SecretQuestionAuthenticatorConfig parse(Map<String, String> config,
+            List<String> errors) {
+        if (config == null || config.isEmpty()) {
+            return DEFAULTS;
+        }
+        int cookieMaxAge = parseInt(config, COOKIE_MAX_AGE, DEFAULTS.cookieMaxAge, errors);
+        String cookieName = trimToNull(config.get(COOKIE_NAME));
+        if (cookieName == null) {
+            cookieName = DEFAULTS.cookieName;
+        } else if (!isToken(cookieName)) {
+            errors.add(COOKIE_NAME + " is not a valid cookie name: " + cookieName);
+            cookieName = DEFAULTS.cookieName;
+        }
+        SameSite sameSite = parseEnum(config, COOKIE_SAME_SITE, SameSite.class, DEFAULTS.sameSite,
+                errors);
+        boolean cookieSecure = DEFAULTS.cookieSecure;
+        String secure = trimToNull(config.get(COOKIE_SECURE));
+        if ("true".equalsIgnoreCase(secure)) {
+            cookieSecure = true;
+        } else if (secure != null && !"false".equalsIgnoreCase(secure)) {
+            errors.add(COOKIE_SECURE + " must be true or false: " + secure);
+        }
+        // SameSite=None で Secure のないクッキーはブラウザに捨てられ、毎回質問されてしまう
+        if (sameSite == SameSite.NONE && !cookieSecure) {
+            errors.add(COOKIE_SAME_SITE + "=None requires " + COOKIE_SECURE + "=true");
+            sameSite = DEFAULTS.sameSite;
+        }
+        int userAttempts = parseInt(config, LOCKOUT_USER_ATTEMPTS, INHERIT, errors);
+        int ipAttempts = parseInt(config, LOCKOUT_IP_ATTEMPTS, INHERIT, errors);
+        QuestionSelection questionSelection = parseEnum(config, QUESTION_SELECTION,
+                QuestionSelection.class, DEFAULTS.questionSelection, errors);
+        return new SecretQuestionAuthenticatorConfig(
+                Collections.unmodifiableMap(new HashMap<>(config)), cookieMaxAge, cookieName,
+                sameSite, cookieSecure, userAttempts, ipAttempts, questionSelection);
+    }
+
+    // 空の値は未設定として扱う。数値はどれも 0 以上
+    private static int parseInt(Map<String, String> config, String key, int defaultValue,
+            List<String> errors) {
+        String value = trimToNull(config.get(key));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // 下でまとめて報告する
+        }
+        errors.add(key + " must be a non-negative integer: " + value);
+        return defaultValue;
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Map<String, String> config, String key,
+            Class<E> type, E defaultValue, List<String> errors) {
+        String value = trimToNull(config.get(key));
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        errors.add(key + " must be one of " + Arrays.toString(type.getEnumConstants())
+                + ": " + value);
+        return defaultValue;
+    }
+
+    private static String trimToNull(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    // RFC 6265 の cookie-name（token）: 制御文字・空白・区切り文字を含まない
+    private static boolean isToken(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= 0x20 || c >= 0x7f || "()<>@,;:\\\"/[]?={}".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * この値が config を解釈したものかどうかを返します。管理コンソールで設定が変更されると
+     * 内容が変わるので、キャッシュしていた値を作り直す判断に使います。
+     */
+    public boolean isParsedFrom(Map<String, String> config) {
+        return config == null || config.isEmpty() ? source.isEmpty() : source.equals(config);
+    }
+
+    public int getCookieMaxAge() {
+        return cookieMaxAge;
+    }
+
+    public String getCookieName() {
+        return cookieName;
+    }
+
+    public SameSite getSameSite() {
+        return sameSite;
+    }
+
+    public boolean isCookieSecure() {
+        return cookieSecure;
+    }
+
+    // INHERIT の場合は SPI の設定に従う
+    public int getUserAttempts() {
+        return userAttempts;
+    }
+
+    public int getIpAttempts() {
+        return ipAttempts;
+    }
+
+    public boolean overridesAttempts() {
+        return userAttempts != INHERIT || ipAttempts != INHERIT;
+    }
+
+    public QuestionSelection getQuestionSelection() {
+        return questionSelection;
+    }
+
+    @Override
+    public String toString() {
+        return "cookieMaxAge=" + cookieMaxAge + ", cookieName=" + cookieName + ", sameSite="
+                + sameSite + ", cookieSecure=" + cookieSecure + ", userAttempts=" + userAttempts
+                + ", ipAttempts=" + ipAttempts + ", questionSelection=" + questionSelection;
+    }
+}
@@ -1,15 +1,33 @@
 package org.keycloak.example.authenticator;
 
+import org.infinispan.Cache;
+import org.infinispan.commons.CacheConfigurationException;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.cookie.SecretQuestionCookieSigner;
+import org.keycloak.example.authenticator.device.InfinispanSecretQuestionDeviceStore;
+import org.keycloak.example.authenticator.device.LocalSecretQuestionDeviceStore;
+import org.keycloak.example.authenticator.device.SecretQuestionDeviceRegistry;
+import org.keycloak.example.authenticator.device.SecretQuestionTrustedDevices;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.throttle.SecretQuestionAttemptThrottle;
+import org.keycloak.example.authenticator.throttle.SecretQuestionConcurrencyLimiter;
+import org.keycloak.example.authenticator.warmup.SecretQuestionWarmup;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * SecretQuestionAuthenticatorFactory クラスは、AuthenticatorFactory を実装しています。
@@ -20,8 +38,28 @@ import java.util.List;
  */
 public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory {
 
+    private static final Logger logger = Logger.getLogger(SecretQuestionAuthenticatorFactory.class);
+
     public static final String PROVIDER_ID = "secret-question-authenticator";
-    private static final SecretQuestionAuthenticator SINGLETON = new SecretQuestionAuthenticator();
+
+    private static final int DEFAULT_THROTTLE_USER_ATTEMPTS = 5;
+    private static final int DEFAULT_THROTTLE_IP_ATTEMPTS = 20;
+    private static final int DEFAULT_THROTTLE_PERIOD_SECONDS = 60;
+    private static final int DEFAULT_THROTTLE_MAX_ENTRIES = 100000;
+    private static final int DEFAULT_DEVICES_NEAR_CACHE_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_DEVICES_NEAR_CACHE_TTL_SECONDS = 60;
+    private static final int DEFAULT_DEVICES_MAX_PER_USER = 10;
+
+    private SecretQuestionAttemptThrottle throttle;
+    private SecretQuestionMetrics metrics = SecretQuestionMetrics.DISABLED;
+    private SecretQuestionAuditLog audit = SecretQuestionAuditLog.DISABLED;
+    private SecretQuestionDeviceRegistry devices;
+    private boolean devicesLocalStore;
+    private SecretQuestionWarmup warmup = SecretQuestionWarmup.DISABLED;
+    private SecretQuestionConcurrencyLimiter limiter;
+    private SecretQuestionAuthenticator singleton =
+            new SecretQuestionAuthenticator(null, SecretQuestionMetrics.DISABLED,
+                    SecretQuestionAuditLog.DISABLED, null, null);
 
     @Override
     public String getId() {
@@ -30,7 +68,7 @@ public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return SINGLETON;
+        return singleton;
     }
 
     private static AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES =
@@ -85,14 +123,67 @@ public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory
     // defines if it is a String, Boolean, or other type(defines in ProviderConfigProperty).
     // この例だとAuthenticatorConfigModelはSecretQuestionAuthenticator.javaのsetCookie(AuthenticationFlowContext
     // context)メソッドで使用される
+    // 値は SecretQuestionAuthenticatorConfig が検証して解釈する。選択肢が決まっているものは
+    // LIST / BOOLEAN にして、管理コンソールで不正な値を入力できないようにしている
     static {
         ProviderConfigProperty property;
         property = new ProviderConfigProperty();
-        property.setName("cookie.max.age");
+        property.setName(SecretQuestionAuthenticatorConfig.COOKIE_MAX_AGE);
         property.setLabel("Cookie Max Age");
         property.setType(ProviderConfigProperty.STRING_TYPE);
         property.setHelpText("Max age in seconds of the SECRET_QUESTION_COOKIE.");
         configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionAuthenticatorConfig.COOKIE_NAME);
+        property.setLabel("Cookie Name");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setDefaultValue(SecretQuestionAuthenticator.ANSWERED_COOKIE);
+        property.setHelpText("Name of the cookie that skips the secret question.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionAuthenticatorConfig.COOKIE_SAME_SITE);
+        property.setLabel("Cookie SameSite");
+        property.setType(ProviderConfigProperty.LIST_TYPE);
+        property.setOptions(Arrays.asList("None", "Lax", "Strict"));
+        property.setDefaultValue("Lax");
+        property.setHelpText("SameSite attribute of the cookie. None requires Secure Cookie.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionAuthenticatorConfig.COOKIE_SECURE);
+        property.setLabel("Secure Cookie");
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue("false");
+        property.setHelpText("Only send the cookie over HTTPS.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionAuthenticatorConfig.LOCKOUT_USER_ATTEMPTS);
+        property.setLabel("Attempts per User");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Answer attempts allowed per user and throttle period."
+                + " Leave empty to use the server setting; 0 disables the limit.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionAuthenticatorConfig.LOCKOUT_IP_ATTEMPTS);
+        property.setLabel("Attempts per IP Address");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Answer attempts allowed per client IP address and throttle period."
+                + " Leave empty to use the server setting; 0 disables the limit.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionAuthenticatorConfig.QUESTION_SELECTION);
+        property.setLabel("Question Selection");
+        property.setType(ProviderConfigProperty.LIST_TYPE);
+        property.setOptions(Arrays.asList("random", "first"));
+        property.setDefaultValue("random");
+        property.setHelpText("Which question to ask when a user has several:"
+                + " a random one per login, or always the first.");
+        configProperties.add(property);
     }
 
     // the methods are for the Admin Console. getHelpText() is the tooltip text that will be shown
@@ -116,18 +207,144 @@ public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory
         return "Secret Question";
     }
 
+    /*
+     * 秘密の質問への回答の試行回数の制限は SPI の設定で変更できます（例:
+     * --spi-authenticator-secret-question-authenticator-throttle-user-attempts=5）。
+     *
+     * - throttleEnabled: 制限を有効にするか（既定 true）
+     * - throttleUserAttempts / throttleUserPeriod: ユーザごとに throttleUserPeriod 秒あたり何回まで
+     * - throttleIpAttempts / throttleIpPeriod: 接続元 IP ごとに throttleIpPeriod 秒あたり何回まで
+     * - throttleMaxEntries: ノードが保持するカウンタの数の上限。一杯の間は新しいユーザや IP の試行を断る
+     * - throttleLoginFailures: ユーザごとの失敗回数を loginFailures キャッシュにも反映し、
+     * クラスタ全体で制限するか（既定 false）。レルムのブルートフォース検知が有効な場合は使わず、
+     * その設定に任せる
+     * - metricsEnabled / metricsMaxRealms / metricsHistogram: SecretQuestionMetrics を参照
+     * - auditEnabled / auditQueueSize / auditBatchSize: 監査イベントの書き出し
+     * （SecretQuestionAuditLog）。キューが一杯の間のイベントは捨てる
+     * - trustedDevicesEnabled: クッキーを発行した端末を登録簿に記録し、管理 API で失効できるようにするか
+     * （既定 false。SecretQuestionDeviceRegistry）。有効にすると、端末 ID を含まない以前のクッキーは
+     * 受け付けない。登録簿には分散キャッシュ secretQuestionDevices が必要で、定義がなければ起動を止める
+     * - trustedDevicesLocalStore: secretQuestionDevices がなくてもノードローカルの登録簿で起動するか
+     * （既定 false）。start-dev や 1 ノードでの確認用で、クラスタでは別のノードで登録した端末を
+     * 信頼済みと見なせない
+     * - trustedDevicesNearCacheMaxEntries / trustedDevicesNearCacheTtl: ノードが手元に持つユーザの数と秒数
+     * - trustedDevicesMaxPerUser: ユーザごとに記録する端末の数の上限。超えたら期限の近いものから消す
+     * - warmupEnabled / warmupIterations / warmupMaxRealms: 起動時に postInit() でクッキーの署名と
+     * チャレンジ画面のテーマを読み込んでおく（既定 false。SecretQuestionWarmup）
+     * - concurrencyLimitEnabled: レルムごとに同時に検証する数を、クレデンシャルの取得時間から調整した
+     * 上限までに抑えるか（既定 false）。concurrencyLimitInitial / concurrencyLimitMin /
+     * concurrencyLimitMax / concurrencyLimitTolerance / concurrencyLimitMaxRealms は
+     * SecretQuestionConcurrencyLimiter を参照
+     */
     @Override
     public void init(Config.Scope config) {
-
+        metrics = SecretQuestionMetrics.fromConfig(config);
+        audit = SecretQuestionAuditLog.fromConfig(config);
+        warmup = SecretQuestionWarmup.fromConfig(config);
+        if (config.getBoolean("throttleEnabled", true)) {
+            throttle = new SecretQuestionAttemptThrottle(
+                    config.getInt("throttleUserAttempts", DEFAULT_THROTTLE_USER_ATTEMPTS),
+                    config.getInt("throttleUserPeriod", DEFAULT_THROTTLE_PERIOD_SECONDS) * 1000L,
+                    config.getInt("throttleIpAttempts", DEFAULT_THROTTLE_IP_ATTEMPTS),
+                    config.getInt("throttleIpPeriod", DEFAULT_THROTTLE_PERIOD_SECONDS) * 1000L,
+                    config.getInt("throttleMaxEntries", DEFAULT_THROTTLE_MAX_ENTRIES),
+                    config.getBoolean("throttleLoginFailures", false));
+        }
+        if (config.getBoolean("trustedDevicesEnabled", false)) {
+            devicesLocalStore = config.getBoolean("trustedDevicesLocalStore", false);
+            devices = new SecretQuestionDeviceRegistry(new LocalSecretQuestionDeviceStore(),
+                    config.getInt("trustedDevicesNearCacheMaxEntries",
+                            DEFAULT_DEVICES_NEAR_CACHE_MAX_ENTRIES),
+                    config.getInt("trustedDevicesNearCacheTtl",
+                            DEFAULT_DEVICES_NEAR_CACHE_TTL_SECONDS) * 1000L,
+                    config.getInt("trustedDevicesMaxPerUser", DEFAULT_DEVICES_MAX_PER_USER));
+        }
+        limiter = SecretQuestionConcurrencyLimiter.fromConfig(config, metrics);
+        singleton = new SecretQuestionAuthenticator(throttle, metrics, audit, devices, limiter);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        if (devices != null) {
+            registerDeviceRegistry(factory);
+        }
+        warmUp(factory);
+    }
+
+    // ClusterProvider は Keycloak 22 で非推奨だが、ノード間に無効化を送る代わりの API がまだない
+    @SuppressWarnings("deprecation")
+    private void registerDeviceRegistry(KeycloakSessionFactory factory) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            org.keycloak.cluster.ClusterProvider cluster =
+                    session.getProvider(org.keycloak.cluster.ClusterProvider.class);
+            if (cluster != null) {
+                cluster.registerListener(SecretQuestionDeviceRegistry.INVALIDATION_TASK_KEY,
+                        devices);
+            }
+            Cache<String, SecretQuestionTrustedDevices> cache = getDeviceCache(session);
+            if (cache != null) {
+                devices.setStore(new InfinispanSecretQuestionDeviceStore(cache));
+            } else if (devicesLocalStore) {
+                logger.warnf("Cache %s is not defined; trusted devices are kept per node",
+                        InfinispanSecretQuestionDeviceStore.CACHE_NAME);
+            } else {
+                // ノードごとの登録簿のままだと、別のノードで登録した端末のクッキーを断ってしまう
+                throw new IllegalStateException("Trusted devices require the Infinispan cache "
+                        + InfinispanSecretQuestionDeviceStore.CACHE_NAME
+                        + "; define it or set trustedDevicesLocalStore=true");
+            }
+        });
+    }
+
+    // 定義のないキャッシュを getCache() で指定すると CacheConfigurationException になる
+    private static Cache<String, SecretQuestionTrustedDevices> getDeviceCache(KeycloakSession session) {
+        InfinispanConnectionProvider infinispan =
+                session.getProvider(InfinispanConnectionProvider.class);
+        if (infinispan == null) {
+            return null;
+        }
+        try {
+            return infinispan.getCache(InfinispanSecretQuestionDeviceStore.CACHE_NAME);
+        } catch (CacheConfigurationException e) {
+            return null;
+        }
+    }
 
+    // クッキーの署名と検証、チャレンジ画面のテーマを、最初のログインより前に読み込んでおく
+    private void warmUp(KeycloakSessionFactory factory) {
+        if (!warmup.isEnabled()) {
+            return;
+        }
+        Map<String, SecretQuestionWarmup.Step> steps = new LinkedHashMap<>();
+        steps.put("cookie", SecretQuestionCookieSigner::warmUp);
+        steps.put("templates", iterations -> KeycloakModelUtils.runJobInTransaction(factory,
+                session -> warmup.loadTemplates(session, SecretQuestionAuthenticator.TEMPLATE)));
+        warmup.run(PROVIDER_ID, metrics, steps);
     }
 
     @Override
     public void close() {
+        if (throttle != null) {
+            logger.debugf("Secret question attempt throttle statistics: %s", throttle);
+        }
+        if (devices != null) {
+            logger.debugf("Secret question trusted device registry statistics: %s", devices);
+        }
+        if (limiter != null) {
+            logger.debugf("Secret question concurrency limiter statistics: %s", limiter);
+        }
+        if (audit.isEnabled()) {
+            audit.close();
+            logger.debugf("Secret question audit log statistics: %s", audit);
+        }
+    }
+
+    public SecretQuestionAttemptThrottle getThrottle() {
+        return throttle;
+    }
 
+    // trustedDevicesEnabled が false の場合は null
+    public SecretQuestionDeviceRegistry getDeviceRegistry() {
+        return devices;
     }
 }
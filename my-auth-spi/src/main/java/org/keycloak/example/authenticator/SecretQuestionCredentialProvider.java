@@ -1,5 +1,9 @@
 package org.keycloak.example.authenticator;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import org.jboss.logging.Logger;
 import org.keycloak.common.util.Time;
 import org.keycloak.credential.CredentialInput;
@@ -8,7 +12,21 @@ import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.CredentialProvider;
 import org.keycloak.credential.CredentialTypeMetadata;
 import org.keycloak.credential.CredentialTypeMetadataContext;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalog;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalogRegistry;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerNormalizer;
 import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModelCache;
+import org.keycloak.example.authenticator.credential.SecretQuestionEnrollmentCache;
+import org.keycloak.example.authenticator.credential.SecretQuestionEnrollmentInvalidationEvent;
+import org.keycloak.example.authenticator.credential.SecretQuestionVerificationPool;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Outcome;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Phase;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.SubjectCredentialManager;
@@ -19,10 +37,41 @@ public class SecretQuestionCredentialProvider
         implements CredentialProvider<SecretQuestionCredentialModel>, CredentialInputValidator {
     private static final Logger logger = Logger.getLogger(SecretQuestionCredentialProvider.class);
 
+    // レルムごとにハッシュの反復回数を変えたい場合はこのレルム属性で上書きする
+    public static final String REALM_HASH_ITERATIONS_ATTRIBUTE = "secretQuestionHashIterations";
+
     protected KeycloakSession session;
+    private final SecretQuestionCredentialModelCache modelCache;
+    private final SecretQuestionEnrollmentCache enrollmentCache;
+    private final SecretQuestionVerificationPool verificationPool;
+    private final SecretQuestionCatalogRegistry catalogs;
+    private final int defaultHashIterations;
+    private final SecretQuestionMetrics metrics;
 
     public SecretQuestionCredentialProvider(KeycloakSession session) {
+        this(session, null);
+    }
+
+    // キャッシュと検証プールはファクトリが所有するノード共通のインスタンス。factory が null の場合は
+    // 毎回 JSON をデコードし（質問カタログも毎回解釈し）、ハッシュ計算も呼び出し元のスレッドで行う
+    public SecretQuestionCredentialProvider(KeycloakSession session,
+            SecretQuestionCredentialProviderFactory factory) {
         this.session = session;
+        if (factory == null) {
+            this.modelCache = null;
+            this.enrollmentCache = null;
+            this.verificationPool = new SecretQuestionVerificationPool(0, 0, 0);
+            this.catalogs = new SecretQuestionCatalogRegistry(0);
+            this.defaultHashIterations = SecretQuestionAnswerHasher.DEFAULT_ITERATIONS;
+            this.metrics = SecretQuestionMetrics.DISABLED;
+        } else {
+            this.modelCache = factory.getModelCache();
+            this.enrollmentCache = factory.getEnrollmentCache();
+            this.verificationPool = factory.getVerificationPool();
+            this.catalogs = factory.getCatalogs();
+            this.defaultHashIterations = factory.getHashIterations();
+            this.metrics = factory.getMetrics();
+        }
     }
 
     /*
@@ -45,26 +94,167 @@ public class SecretQuestionCredentialProvider
         return SecretQuestionCredentialModel.TYPE;
     }
 
+    // 最初の質問の回答だけをデコードしたモデルを返す。質問が 1 つだけのクレデンシャルではその回答
     @Override
     public SecretQuestionCredentialModel getCredentialFromModel(CredentialModel model) {
-        return SecretQuestionCredentialModel.createFromCredentialModel(model);
+        return getCredentialFromModel(model, 0);
+    }
+
+    public SecretQuestionCredentialModel getCredentialFromModel(CredentialModel model,
+            int questionIndex) {
+        if (modelCache == null) {
+            return SecretQuestionCredentialModel.createFromCredentialModel(model, questionIndex);
+        }
+        return modelCache.get(model, questionIndex);
+    }
+
+    // 登録されている質問の一覧（カタログの ID か文言）。回答はデコードしない
+    public SecretQuestionCredentialData getCredentialData(CredentialModel model) {
+        return modelCache == null
+                ? SecretQuestionCredentialModel.readCredentialData(model.getCredentialData())
+                : modelCache.getCredentialData(model);
+    }
+
+    /*
+     * このノードのキャッシュにある credentialId の行を返します。キャッシュがない、または追い出された
+     * 場合は null を返すので、呼び出し側でストアから読みます（SecretQuestionCredentialModelCache）。
+     */
+    public CredentialModel getCachedCredential(String credentialId) {
+        return modelCache == null ? null : modelCache.getCredentialModel(credentialId);
+    }
+
+    // レルムの質問カタログ。レルム属性で指定していない場合は null
+    public SecretQuestionCatalog getCatalog(RealmModel realm) {
+        return catalogs.get(realm);
+    }
+
+    /*
+     * カタログの ID で登録された質問の文言を locale で返します。レルムのカタログ、組み込みのカタログ
+     * （SecretQuestionCatalog.DEFAULT）の順に引きます。どちらにもない（カタログから消された）場合は、
+     * 出題できないよりはよいので ID をそのまま返します。
+     */
+    public String getQuestionText(RealmModel realm, String questionId, Locale locale) {
+        SecretQuestionCatalog catalog = getCatalog(realm);
+        String text = catalog != null ? catalog.getText(questionId, locale) : null;
+        if (text == null) {
+            text = SecretQuestionCatalog.DEFAULT.getText(questionId, locale);
+        }
+        return text != null ? text : questionId;
+    }
+
+    // index 番目の質問の文言。文言で登録したクレデンシャルでは保存されている文言をそのまま返す
+    public String getQuestionText(RealmModel realm, SecretQuestionCredentialData credentialData,
+            int index, Locale locale) {
+        if (credentialData.isCatalogued()) {
+            String questionId = credentialData.getQuestionId(index);
+            return questionId != null ? getQuestionText(realm, questionId, locale) : null;
+        }
+        List<String> questions = credentialData.getQuestions();
+        return index >= 0 && index < questions.size() ? questions.get(index) : null;
     }
 
+    /*
+     * 回答が平文のまま渡された場合は、保存する前に検証プール上でハッシュ化します。質問が複数ある場合は
+     * すべての回答をまとめて 1 つのタスクでハッシュ化します。
+     */
     @Override
     public CredentialModel createCredential(RealmModel realm, UserModel user,
             SecretQuestionCredentialModel credentialModel) {
-        if (credentialModel.getCreatedDate() == null) {
-            credentialModel.setCreatedDate(Time.currentTimeMillis());
+        return createCredential(realm, user, credentialModel, true);
+    }
+
+    /*
+     * createCredential と同じく登録しますが、平文の回答は呼び出し元のスレッドでハッシュ化します。
+     * 管理 API の一括登録（SecretQuestionCredentialImporter）から呼ばれます。reencode と同じく、
+     * ログインが使う検証プールをバッチで埋めないためです。
+     */
+    public CredentialModel importCredential(RealmModel realm, UserModel user,
+            SecretQuestionCredentialModel credentialModel) {
+        return createCredential(realm, user, credentialModel, false);
+    }
+
+    private CredentialModel createCredential(RealmModel realm, UserModel user,
+            SecretQuestionCredentialModel credentialModel, boolean pooled) {
+        SecretQuestionCredentialModel toStore = credentialModel;
+        List<SecretQuestionSecretData> entries = credentialModel.getSecretQuestionSecretEntries();
+        if (entries == null) {
+            entries = SecretQuestionCredentialModel.createFromCredentialModel(credentialModel)
+                    .getSecretQuestionSecretEntries();
         }
-        return user.credentialManager().createStoredCredential(credentialModel);
+        if (entries.stream().anyMatch(entry -> !entry.isHashed())) {
+            List<String> answers = new ArrayList<>(entries.size());
+            for (SecretQuestionSecretData entry : entries) {
+                if (entry.isHashed()) {
+                    throw new IllegalArgumentException(
+                            "Cannot mix hashed and plaintext secret question answers");
+                }
+                answers.add(entry.getAnswer());
+            }
+            toStore = hashAnswers(realm, credentialModel, answers, pooled);
+        }
+        if (toStore.getCreatedDate() == null) {
+            toStore.setCreatedDate(Time.currentTimeMillis());
+        }
+        CredentialModel created = user.credentialManager().createStoredCredential(toStore);
+        invalidateEnrollment(user);
+        return created;
     }
 
     @Override
     public boolean deleteCredential(RealmModel realm, UserModel user, String credentialId) {
-        return user.credentialManager().removeStoredCredentialById(credentialId);
+        if (modelCache != null) {
+            modelCache.invalidate(credentialId);
+        }
+        boolean removed = user.credentialManager().removeStoredCredentialById(credentialId);
+        invalidateEnrollment(user);
+        return removed;
     }
 
-    // 指定されたrealm内の指定されたユーザーに対してクレデンシャルが有効かどうかをテストする
+    /*
+     * このノードの登録状態のキャッシュをすぐに消し、トランザクションの完了後にもう一度消してから
+     * 他のノードへ無効化イベントを送ります。コミット前に別のリクエストが古い状態を読み込んで
+     * キャッシュに戻すことがあるため、完了後にも消しています。
+     *
+     * 管理コンソールからの削除のように、このプロバイダを経由せずにクレデンシャルが消えた場合は
+     * イベントが出ないため、認証時にクレデンシャルが見つからなかった Authenticator からも呼ばれます。
+     */
+    // ClusterProvider は Keycloak 22 で非推奨だが、ノード間に無効化を送る代わりの API がまだない
+    @SuppressWarnings("deprecation")
+    public void invalidateEnrollment(UserModel user) {
+        if (enrollmentCache == null) {
+            return;
+        }
+        String userId = user.getId();
+        enrollmentCache.invalidate(userId);
+        org.keycloak.cluster.ClusterProvider cluster =
+                session.getProvider(org.keycloak.cluster.ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                enrollmentCache.invalidate(userId);
+                cluster.notify(SecretQuestionEnrollmentCache.INVALIDATION_TASK_KEY,
+                        new SecretQuestionEnrollmentInvalidationEvent(userId), true,
+                        org.keycloak.cluster.ClusterProvider.DCNotify.ALL_DCS);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                enrollmentCache.invalidate(userId);
+            }
+        });
+    }
+
+    /*
+     * 指定されたrealm内の指定されたユーザーに対してクレデンシャルが有効かどうかをテストする
+     *
+     * ハッシュの計算は検証プール上で行います。プールが満杯の場合は
+     * SecretQuestionVerificationRejectedException がそのまま呼び出し元に伝わります。
+     * 回答が正しく、保存されている行が平文、回答をそろえずにハッシュ化した行、またはレルムの設定より
+     * 少ない反復回数の場合は、その場で現在の設定でハッシュし直して保存します。
+     */
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
         if (!(input instanceof UserCredentialModel)) {
@@ -82,9 +272,187 @@ public class SecretQuestionCredentialProvider
         // https://github.com/keycloak/keycloak/blob/47a7d9c12eac55980b083d7dc2da16643ef3dd32/services/src/main/java/org/keycloak/credential/OTPCredentialProvider.java#L96-L97
         CredentialModel credentialModel =
                 getCredentialStore(user).getStoredCredentialById(input.getCredentialId());
+        return isValid(realm, user, credentialModel, challengeResponse);
+    }
 
-        SecretQuestionCredentialModel sqcm = getCredentialFromModel(credentialModel);
-        return sqcm.getSecretQuestionSecretData().getAnswer().equals(challengeResponse);
+    /*
+     * 読み込み済みのクレデンシャルに対して回答を検証します。認証セッションに保存した写し
+     * （SecretQuestionCredentialSnapshot）から検証する場合に、ストアを読み直さずに済みます。
+     * 質問が複数ある場合は最初の質問の回答として検証します。
+     */
+    public boolean isValid(RealmModel realm, UserModel user, CredentialModel credentialModel,
+            String challengeResponse) {
+        return isValid(realm, user, credentialModel, 0, challengeResponse);
+    }
+
+    /*
+     * questionIndex 番目の質問の回答として検証します。デコードするのはその質問の回答だけです。
+     */
+    public boolean isValid(RealmModel realm, UserModel user, CredentialModel credentialModel,
+            int questionIndex, String challengeResponse) {
+        if (challengeResponse == null || credentialModel == null
+                || !getType().equals(credentialModel.getType())) {
+            return false;
+        }
+
+        SecretQuestionCredentialModel sqcm = decode(realm, credentialModel, questionIndex);
+        SecretQuestionCredentialData credentialData = sqcm.getSecretQuestionCredentialData();
+        SecretQuestionSecretData secretData = sqcm.getSecretQuestionSecretData();
+        boolean valid = verificationPool.execute(() -> SecretQuestionAnswerHasher
+                .verify(credentialData, secretData, challengeResponse));
+        if (valid && needsRehash(realm, credentialData, secretData)) {
+            rehash(realm, user, sqcm, challengeResponse);
+        }
+        return valid;
+    }
+
+    // キャッシュにヒットした場合も含めた、CredentialModel から DTO を得るまでの時間を記録する
+    private SecretQuestionCredentialModel decode(RealmModel realm, CredentialModel model,
+            int questionIndex) {
+        long start = metrics.start();
+        SecretQuestionCredentialModel decoded;
+        try {
+            decoded = getCredentialFromModel(model, questionIndex);
+        } catch (RuntimeException e) {
+            metrics.record(realm, Phase.DECODE, Outcome.FAILURE, start);
+            throw e;
+        }
+        metrics.record(realm, Phase.DECODE, Outcome.SUCCESS, start);
+        return decoded;
+    }
+
+    public int getHashIterations(RealmModel realm) {
+        Integer iterations = realm.getAttribute(REALM_HASH_ITERATIONS_ATTRIBUTE, (Integer) null);
+        if (iterations == null) {
+            return defaultHashIterations;
+        }
+        return SecretQuestionAnswerHasher.clampIterations(iterations);
+    }
+
+    // 反復回数は上げる方向にだけ追従する。ノードごとにキャリブレーション結果が違っても、
+    // ログインのたびに行が書き換わり続けないようにするため。
+    // 質問が複数ある行は、1 問の回答だけでは残りをハッシュし直せないので、登録し直すまでそのままにする
+    private boolean needsRehash(RealmModel realm, SecretQuestionCredentialData credentialData,
+            SecretQuestionSecretData secretData) {
+        if (credentialData.getQuestionCount() != 1) {
+            return false;
+        }
+        return !secretData.isHashed()
+                || !SecretQuestionAnswerHasher.ALGORITHM.equals(credentialData.getAlgorithm())
+                || !SecretQuestionAnswerNormalizer.FORM.equals(credentialData.getNormalization())
+                || credentialData.getHashIterations() < getHashIterations(realm);
+    }
+
+    private void rehash(RealmModel realm, UserModel user, SecretQuestionCredentialModel current,
+            String answer) {
+        SecretQuestionCredentialModel upgraded =
+                hashAnswers(realm, current, Collections.singletonList(answer), true);
+        upgraded.setId(current.getId());
+        getCredentialStore(user).updateStoredCredential(upgraded);
+        if (modelCache != null) {
+            modelCache.invalidate(current.getId());
+        }
+        logger.debugf("Upgraded secret question hash of credential %s to %d iterations",
+                current.getId(), upgraded.getSecretQuestionCredentialData().getHashIterations());
+    }
+
+    /*
+     * 保存されている行を現在の形式で書き直します。バックグラウンドの再エンコード
+     * （SecretQuestionReencodeJob）から呼ばれます。
+     *
+     * 平文の回答はレルムの反復回数でハッシュ化し、古いバージョンの JSON は現在のバージョンで書き直します。
+     * 文言で登録された質問は、すべての文言がレルムの質問カタログ（なければ組み込みのカタログ）の
+     * どれかの文言と一致すれば、カタログの ID に置き換えます。
+     * ハッシュ済みの行の反復回数と回答のそろえ方は回答がないと変えられないので、ログイン時の rehash に
+     * 任せます。
+     * ハッシュ計算は呼び出し元のスレッドで行います。ログインが使う検証プールをバッチで埋めないためです。
+     * 書き直す必要がなかった場合は false を返し、何も書き込みません。
+     */
+    public boolean reencode(RealmModel realm, UserModel user, CredentialModel credentialModel) {
+        if (credentialModel == null || !getType().equals(credentialModel.getType())) {
+            return false;
+        }
+        SecretQuestionCredentialModel current =
+                SecretQuestionCredentialModel.createFromCredentialModel(credentialModel);
+        SecretQuestionCredentialData credentialData =
+                toCatalogIds(realm, current.getSecretQuestionCredentialData());
+        List<SecretQuestionSecretData> entries = current.getSecretQuestionSecretEntries();
+        SecretQuestionCredentialModel rewritten;
+        if (entries.stream().noneMatch(SecretQuestionSecretData::isHashed)) {
+            int iterations = getHashIterations(realm);
+            List<String> answers = new ArrayList<>(entries.size());
+            for (SecretQuestionSecretData entry : entries) {
+                answers.add(entry.getAnswer());
+            }
+            rewritten = SecretQuestionCredentialModel.createSecretQuestions(credentialData,
+                    hashAll(answers, iterations), iterations, SecretQuestionAnswerNormalizer.FORM);
+        } else if (entries.stream().allMatch(SecretQuestionSecretData::isHashed)
+                && SecretQuestionAnswerHasher.ALGORITHM.equals(credentialData.getAlgorithm())) {
+            rewritten = SecretQuestionCredentialModel.createSecretQuestions(credentialData,
+                    entries, credentialData.getHashIterations(), credentialData.getNormalization());
+            if (rewritten.getCredentialData().equals(credentialModel.getCredentialData())
+                    && rewritten.getSecretData().equals(credentialModel.getSecretData())) {
+                return false;
+            }
+        } else {
+            // 知らないアルゴリズムの行は書き直すと検証できなくなるので触らない
+            return false;
+        }
+        rewritten.setId(current.getId());
+        rewritten.setUserLabel(current.getUserLabel());
+        rewritten.setCreatedDate(current.getCreatedDate());
+        getCredentialStore(user).updateStoredCredential(rewritten);
+        if (modelCache != null) {
+            modelCache.invalidate(current.getId());
+        }
+        return true;
+    }
+
+    // 文言をカタログの ID に置き換えた credentialData を返す。1 つでも一致しない文言があればそのまま返す
+    private SecretQuestionCredentialData toCatalogIds(RealmModel realm,
+            SecretQuestionCredentialData credentialData) {
+        if (credentialData.isCatalogued()) {
+            return credentialData;
+        }
+        SecretQuestionCatalog catalog = getCatalog(realm);
+        if (catalog == null) {
+            catalog = SecretQuestionCatalog.DEFAULT;
+        }
+        List<String> questionIds = new ArrayList<>(credentialData.getQuestionCount());
+        for (String question : credentialData.getQuestions()) {
+            String questionId = catalog.findId(question);
+            if (questionId == null) {
+                return credentialData;
+            }
+            questionIds.add(questionId);
+        }
+        return new SecretQuestionCredentialData(Collections.emptyList(), questionIds,
+                credentialData.getAlgorithm(), credentialData.getHashIterations(),
+                credentialData.getNormalization());
+    }
+
+    // 回答を source と同じ順番の質問に対してハッシュ化する。pooled の場合は検証プール上で、
+    // タスクを 1 つにまとめて計算する。そうでなければ呼び出し元のスレッドで計算する
+    private SecretQuestionCredentialModel hashAnswers(RealmModel realm,
+            SecretQuestionCredentialModel source, List<String> answers, boolean pooled) {
+        int iterations = getHashIterations(realm);
+        List<SecretQuestionSecretData> hashed = pooled
+                ? verificationPool.execute(() -> hashAll(answers, iterations))
+                : hashAll(answers, iterations);
+        SecretQuestionCredentialModel hashedModel = SecretQuestionCredentialModel
+                .createSecretQuestions(source.getSecretQuestionCredentialData(), hashed,
+                        iterations, SecretQuestionAnswerNormalizer.FORM);
+        hashedModel.setUserLabel(source.getUserLabel());
+        hashedModel.setCreatedDate(source.getCreatedDate());
+        return hashedModel;
+    }
+
+    private static List<SecretQuestionSecretData> hashAll(List<String> answers, int iterations) {
+        List<SecretQuestionSecretData> result = new ArrayList<>(answers.size());
+        for (String answer : answers) {
+            result.add(SecretQuestionAnswerHasher.hash(answer, iterations));
+        }
+        return result;
     }
 
     /*
@@ -117,6 +485,21 @@ public class SecretQuestionCredentialProvider
          * return !getCredentialStore().getStoredCredentialsByType(realm, user, credentialType)
          * .isEmpty();
          */
+        // 登録済みかどうかはノードローカルにキャッシュし、登録/削除の際にクラスタ全体で無効化する
+        if (enrollmentCache == null) {
+            return hasStoredCredential(user, credentialType);
+        }
+        Boolean cached = enrollmentCache.get(user.getId());
+        if (cached != null) {
+            return cached;
+        }
+        long loadStamp = enrollmentCache.beginLoad();
+        boolean enrolled = hasStoredCredential(user, credentialType);
+        enrollmentCache.put(user.getId(), enrolled, loadStamp);
+        return enrolled;
+    }
+
+    private boolean hasStoredCredential(UserModel user, String credentialType) {
         return !user.credentialManager().getStoredCredentialsByTypeStream(credentialType).findAny()
                 .isEmpty();
     }
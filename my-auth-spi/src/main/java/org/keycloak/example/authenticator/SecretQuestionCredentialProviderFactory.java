@@ -1,15 +1,86 @@
 package org.keycloak.example.authenticator;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.credential.CredentialProvider;
 import org.keycloak.credential.CredentialProviderFactory;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalog;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalogRegistry;
+import org.keycloak.example.authenticator.admin.SecretQuestionTransactionRunner;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionCredentialRow;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionEnrollmentStats;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerNormalizer;
 import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModelCache;
+import org.keycloak.example.authenticator.credential.SecretQuestionEnrollmentCache;
+import org.keycloak.example.authenticator.credential.SecretQuestionHashCalibrator;
+import org.keycloak.example.authenticator.credential.SecretQuestionVerificationPool;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.example.authenticator.job.JpaSecretQuestionCredentialKeyset;
+import org.keycloak.example.authenticator.job.SecretQuestionReencodeJob;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.warmup.SecretQuestionWarmup;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+import org.keycloak.util.JsonSerialization;
 
 // The CredentialProvider interface takes a generic parameter that extends a CredentialModel.
 public class SecretQuestionCredentialProviderFactory
         implements CredentialProviderFactory<SecretQuestionCredentialProvider> {
+    private static final Logger logger =
+            Logger.getLogger(SecretQuestionCredentialProviderFactory.class);
+
     public static final String PROVIDER_ID = "secret-question";
 
+    private static final int DEFAULT_MODEL_CACHE_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_MODEL_CACHE_TTL_SECONDS = 300;
+    private static final int DEFAULT_ENROLLMENT_CACHE_MAX_ENTRIES = 100000;
+    private static final int DEFAULT_ENROLLMENT_CACHE_TTL_SECONDS = 600;
+    private static final int DEFAULT_VERIFICATION_QUEUE_PER_THREAD = 16;
+    private static final int DEFAULT_VERIFICATION_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_HASH_TARGET_P99_MILLIS = 50;
+    private static final int DEFAULT_REENCODE_INTERVAL_SECONDS = 300;
+    private static final int DEFAULT_REENCODE_BATCH_SIZE = 100;
+    private static final int DEFAULT_REENCODE_ROWS_PER_SECOND = 50;
+    private static final int DEFAULT_REENCODE_DB_LOAD_PERCENT = 25;
+    private static final int DEFAULT_REENCODE_CHECKPOINT_INTERVAL_SECONDS = 30;
+    private static final int DEFAULT_CATALOG_MAX_REALMS = 1000;
+
+    private static final String REENCODE_TASK_NAME = "secret-question-reencode";
+
+    // isValid のたびに JSON をデコードし直さないよう、ノード内の全セッションで共有する
+    private SecretQuestionCredentialModelCache modelCache;
+    // configuredFor のたびにクレデンシャルを問い合わせないよう、登録済みかどうかを保持する
+    private SecretQuestionEnrollmentCache enrollmentCache;
+    // ハッシュ計算をリクエストワーカーから切り離すための、ノード内で共有するプール
+    private SecretQuestionVerificationPool verificationPool;
+    // レルムごとの質問カタログ。レルム属性が変わったときだけ解釈し直す
+    private SecretQuestionCatalogRegistry catalogs = new SecretQuestionCatalogRegistry(0);
+    private int verificationThreads;
+    private volatile int hashIterations = SecretQuestionAnswerHasher.DEFAULT_ITERATIONS;
+    private boolean hashCalibrate;
+    private int hashTargetP99Millis;
+    private SecretQuestionMetrics metrics = SecretQuestionMetrics.DISABLED;
+    private boolean reencodeEnabled;
+    private long reencodeIntervalMillis;
+    private int reencodeBatchSize;
+    private int reencodeRowsPerSecond;
+    private int reencodeDbLoadPercent;
+    private long reencodeCheckpointIntervalMillis;
+    private SecretQuestionWarmup warmup = SecretQuestionWarmup.DISABLED;
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -17,6 +88,262 @@ public class SecretQuestionCredentialProviderFactory
 
     @Override
     public CredentialProvider<SecretQuestionCredentialModel> create(KeycloakSession session) {
-        return new SecretQuestionCredentialProvider(session);
+        return new SecretQuestionCredentialProvider(session, this);
+    }
+
+    /*
+     * 設定は Keycloak の SPI 設定から読み込みます。例:
+     *
+     * --spi-credential-secret-question-model-cache-max-entries=10000
+     *
+     * --spi-credential-secret-question-model-cache-ttl=300
+     *
+     * --spi-credential-secret-question-enrollment-cache-max-entries=100000
+     *
+     * --spi-credential-secret-question-enrollment-cache-ttl=600
+     *
+     * --spi-credential-secret-question-hash-iterations=600000
+     *
+     * --spi-credential-secret-question-hash-calibrate=true
+     *
+     * --spi-credential-secret-question-hash-target-p99=50 (ミリ秒)
+     *
+     * --spi-credential-secret-question-verification-threads=4
+     *
+     * --spi-credential-secret-question-verification-queue-size=64
+     *
+     * --spi-credential-secret-question-verification-timeout=2000 (ミリ秒)
+     *
+     * verification-threads を 0 にすると、ハッシュ計算をリクエストワーカー上で直接行います。
+     *
+     * --spi-credential-secret-question-metrics-enabled=true
+     *
+     * --spi-credential-secret-question-metrics-max-realms=100
+     *
+     * --spi-credential-secret-question-metrics-histogram=false
+     *
+     * --spi-credential-secret-question-reencode-enabled=false
+     *
+     * --spi-credential-secret-question-reencode-interval=300 (秒)
+     *
+     * --spi-credential-secret-question-reencode-batch-size=100
+     *
+     * --spi-credential-secret-question-reencode-rows-per-second=50
+     *
+     * --spi-credential-secret-question-reencode-db-load-percent=25
+     *
+     * --spi-credential-secret-question-reencode-checkpoint-interval=30 (秒)
+     *
+     * --spi-credential-secret-question-warmup-enabled=false
+     *
+     * --spi-credential-secret-question-warmup-iterations=1000
+     *
+     * --spi-credential-secret-question-catalog-max-realms=1000
+     *
+     * catalog-max-realms は、解釈した質問カタログ（レルム属性 secretQuestionCatalog）を保持する
+     * レルムの数です。
+     */
+    @Override
+    public void init(Config.Scope config) {
+        int maxEntries = config.getInt("modelCacheMaxEntries", DEFAULT_MODEL_CACHE_MAX_ENTRIES);
+        int ttlSeconds = config.getInt("modelCacheTtl", DEFAULT_MODEL_CACHE_TTL_SECONDS);
+        modelCache = new SecretQuestionCredentialModelCache(maxEntries, ttlSeconds * 1000L);
+        enrollmentCache = new SecretQuestionEnrollmentCache(
+                config.getInt("enrollmentCacheMaxEntries", DEFAULT_ENROLLMENT_CACHE_MAX_ENTRIES),
+                config.getInt("enrollmentCacheTtl", DEFAULT_ENROLLMENT_CACHE_TTL_SECONDS) * 1000L);
+
+        hashIterations = SecretQuestionAnswerHasher.clampIterations(
+                config.getInt("hashIterations", SecretQuestionAnswerHasher.DEFAULT_ITERATIONS));
+        hashCalibrate = config.getBoolean("hashCalibrate", false);
+        hashTargetP99Millis = config.getInt("hashTargetP99", DEFAULT_HASH_TARGET_P99_MILLIS);
+
+        verificationThreads = config.getInt("verificationThreads",
+                Runtime.getRuntime().availableProcessors());
+        int queueSize = config.getInt("verificationQueueSize",
+                Math.max(1, verificationThreads) * DEFAULT_VERIFICATION_QUEUE_PER_THREAD);
+        int timeoutMillis =
+                config.getInt("verificationTimeout", DEFAULT_VERIFICATION_TIMEOUT_MILLIS);
+        verificationPool =
+                new SecretQuestionVerificationPool(verificationThreads, queueSize, timeoutMillis);
+
+        metrics = SecretQuestionMetrics.fromConfig(config);
+
+        reencodeEnabled = config.getBoolean("reencodeEnabled", false);
+        reencodeIntervalMillis = Math.max(1,
+                config.getInt("reencodeInterval", DEFAULT_REENCODE_INTERVAL_SECONDS)) * 1000L;
+        reencodeBatchSize = config.getInt("reencodeBatchSize", DEFAULT_REENCODE_BATCH_SIZE);
+        reencodeRowsPerSecond =
+                config.getInt("reencodeRowsPerSecond", DEFAULT_REENCODE_ROWS_PER_SECOND);
+        reencodeDbLoadPercent =
+                config.getInt("reencodeDbLoadPercent", DEFAULT_REENCODE_DB_LOAD_PERCENT);
+        reencodeCheckpointIntervalMillis = config.getInt("reencodeCheckpointInterval",
+                DEFAULT_REENCODE_CHECKPOINT_INTERVAL_SECONDS) * 1000L;
+
+        warmup = SecretQuestionWarmup.fromConfig(config);
+
+        catalogs = new SecretQuestionCatalogRegistry(
+                config.getInt("catalogMaxRealms", DEFAULT_CATALOG_MAX_REALMS));
+    }
+
+    /*
+     * 他のノードから届く登録状態の無効化イベントを受け取れるよう、ClusterProvider にリスナーを登録します。
+     *
+     * hashCalibrate が有効な場合、このノードのハードウェアで検証の p99 が hashTargetP99 に収まる
+     * 反復回数を測って既定値にします。レルム属性で反復回数を指定しているレルムには影響しません。
+     *
+     * reencodeEnabled が有効な場合、保存済みの行を書き直す SecretQuestionReencodeJob を登録します。
+     * タイマーはどのノードでも動きますが、ClusterAwareScheduledTaskRunner が work キャッシュ上のロックを
+     * 取れたノードだけが実行します。
+     *
+     * warmupEnabled が有効な場合、合成したクレデンシャルでデコードと検証を行い、最初のログインで
+     * 払うコストを起動中に済ませます（SecretQuestionWarmup）。
+     */
+    // ClusterProvider は Keycloak 22 で非推奨だが、リスナーを登録する代わりの API がまだない
+    @Override
+    @SuppressWarnings("deprecation")
+    public void postInit(KeycloakSessionFactory factory) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            org.keycloak.cluster.ClusterProvider cluster =
+                    session.getProvider(org.keycloak.cluster.ClusterProvider.class);
+            if (cluster != null) {
+                cluster.registerListener(SecretQuestionEnrollmentCache.INVALIDATION_TASK_KEY,
+                        enrollmentCache);
+            }
+        });
+        if (hashCalibrate) {
+            calibrateHashIterations();
+        }
+        if (reencodeEnabled) {
+            scheduleReencode(factory);
+        }
+        if (warmup.isEnabled()) {
+            warmUp();
+        }
+    }
+
+    // 反復回数の調整のあとに行い、ログインと同じ反復回数でハッシュを計算する
+    List<String> warmUp() {
+        Map<String, SecretQuestionWarmup.Step> steps = new LinkedHashMap<>();
+        steps.put("codec", this::warmUpCodec);
+        steps.put("json", SecretQuestionCredentialProviderFactory::warmUpJson);
+        steps.put("verification", iterations -> warmUpVerification());
+        return warmup.run(PROVIDER_ID, metrics, steps);
+    }
+
+    // credential_data / secret_data のエンコードと、全問/1 問だけのデコード。質問はログインと同じく
+    // カタログの ID で持たせる
+    private void warmUpCodec(int iterations) {
+        List<String> questionIds = SecretQuestionCatalog.DEFAULT.getIds();
+        List<SecretQuestionSecretData> answers = new ArrayList<>(questionIds.size());
+        for (int i = 0; i < questionIds.size(); i++) {
+            answers.add(new SecretQuestionSecretData(new byte[16], new byte[32]));
+        }
+        for (int i = 0; i < iterations; i++) {
+            SecretQuestionCredentialModel stored =
+                    SecretQuestionCredentialModel.createCataloguedQuestions(questionIds, answers,
+                            hashIterations, SecretQuestionAnswerNormalizer.FORM);
+            SecretQuestionCredentialModel.createFromCredentialModel(stored);
+            SecretQuestionCredentialModel.createFromCredentialModel(stored,
+                    i % questionIds.size());
+        }
+    }
+
+    // 管理 API（エクスポート/インポート、登録状況の集計）の DTO について、Jackson のシリアライザと
+    // デシリアライザを解決しておく
+    private static void warmUpJson(int iterations) throws IOException {
+        SecretQuestionCredentialRow row = new SecretQuestionCredentialRow("user-id", "username",
+                "question", null, SecretQuestionAnswerHasher.ALGORITHM,
+                SecretQuestionAnswerHasher.DEFAULT_ITERATIONS, SecretQuestionAnswerNormalizer.FORM,
+                new byte[16], new byte[32], null, 0L, null);
+        SecretQuestionEnrollmentStats stats = new SecretQuestionEnrollmentStats(0L, 1L, 1L, 1L,
+                0L, 0L, Collections.singletonList(new SecretQuestionEnrollmentStats.AgeBucket(null,
+                        1L)), 0L, Collections.singletonList(
+                        new SecretQuestionEnrollmentStats.QuestionCount("question", 1L)));
+        for (int i = 0; i < iterations; i++) {
+            JsonSerialization.readValue(JsonSerialization.writeValueAsString(row),
+                    SecretQuestionCredentialRow.class);
+            JsonSerialization.writeValueAsString(stats);
+        }
+    }
+
+    // 検証プールのスレッドは最初のタスクで起動する。スレッドの数だけ順に渡すと、ThreadPoolExecutor は
+    // 空いたスレッドがあってもコアスレッドの数まで新しいスレッドを起動するので、全スレッドの作業領域と
+    // PBKDF2 の JIT が済む
+    private void warmUpVerification() {
+        SecretQuestionCredentialData credentialData = new SecretQuestionCredentialData(
+                Collections.singletonList("warm-up question"), SecretQuestionAnswerHasher.ALGORITHM,
+                hashIterations, SecretQuestionAnswerNormalizer.FORM);
+        for (int i = 0; i < Math.max(1, verificationThreads); i++) {
+            boolean valid = verificationPool.execute(() -> SecretQuestionAnswerHasher.verify(
+                    credentialData, SecretQuestionAnswerHasher.hash("warm-up", hashIterations),
+                    "Warm-up"));
+            if (!valid) {
+                throw new IllegalStateException("Secret question verification warm-up mismatch");
+            }
+        }
+    }
+
+    // ロックは実行間隔のあいだ保持されるので、1 回の実行はその 9 割で打ち切る
+    private void scheduleReencode(KeycloakSessionFactory factory) {
+        SecretQuestionReencodeJob job = new SecretQuestionReencodeJob(
+                SecretQuestionTransactionRunner.of(factory),
+                new JpaSecretQuestionCredentialKeyset(), reencodeBatchSize, reencodeRowsPerSecond,
+                reencodeDbLoadPercent, reencodeIntervalMillis * 9 / 10,
+                reencodeCheckpointIntervalMillis);
+        KeycloakModelUtils.runJobInTransaction(factory, session -> session
+                .getProvider(TimerProvider.class).schedule(new ClusterAwareScheduledTaskRunner(
+                        factory, job, reencodeIntervalMillis), reencodeIntervalMillis,
+                        REENCODE_TASK_NAME));
+        logger.infof("Scheduled secret question re-encode every %d s",
+                reencodeIntervalMillis / 1000);
+    }
+
+    private void calibrateHashIterations() {
+        long start = System.nanoTime();
+        int calibrated = SecretQuestionHashCalibrator.calibrate(hashIterations,
+                hashTargetP99Millis, verificationThreads);
+        logger.infof("Calibrated secret question hash iterations: %d -> %d"
+                + " (target p99 %d ms, took %d ms)", hashIterations, calibrated,
+                hashTargetP99Millis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        hashIterations = calibrated;
+    }
+
+    @Override
+    public void close() {
+        if (modelCache != null) {
+            logger.debugf("Secret question model cache statistics: %s", modelCache);
+        }
+        if (enrollmentCache != null) {
+            logger.debugf("Secret question enrollment cache statistics: %s", enrollmentCache);
+        }
+        if (verificationPool != null) {
+            logger.debugf("Secret question verification pool statistics: %s", verificationPool);
+            verificationPool.shutdown();
+        }
+    }
+
+    public SecretQuestionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SecretQuestionCredentialModelCache getModelCache() {
+        return modelCache;
+    }
+
+    public SecretQuestionEnrollmentCache getEnrollmentCache() {
+        return enrollmentCache;
+    }
+
+    public SecretQuestionVerificationPool getVerificationPool() {
+        return verificationPool;
+    }
+
+    public SecretQuestionCatalogRegistry getCatalogs() {
+        return catalogs;
+    }
+
+    // レルム属性で上書きされていない場合に使う、このノードの反復回数
+    public int getHashIterations() {
+        return hashIterations;
     }
 }
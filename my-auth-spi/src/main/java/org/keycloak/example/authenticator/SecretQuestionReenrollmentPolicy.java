@@ -0,0 +1,80 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.Config;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialSnapshot;
+import org.keycloak.models.RealmModel;
+
+/*
+ * 秘密の質問を登録し直させる条件。必須アクションの evaluateTriggers() がログインのたびに使います。
+ *
+ * - maxAnswerAgeDays: 登録（created_date）からこの日数が過ぎた回答は登録し直させる。0 は無期限
+ * - minFormatVersion: credential_data の形式のバージョンがこれより古い行は登録し直させる。0 は条件なし
+ *
+ * サーバ全体の既定値は SPI の設定で、レルムごとの値はレルム属性（REALM_MAX_ANSWER_AGE_DAYS_ATTRIBUTE /
+ * REALM_MIN_FORMAT_VERSION_ATTRIBUTE）で上書きします。レルム属性はレルムのキャッシュにあるので、
+ * 判定で DB には問い合わせません。
+ *
+ * 判定に使うのは認証セッションに保存したメタデータ（SecretQuestionCredentialSnapshot.Metadata）だけで、
+ * secret_data は読みません。登録日時のない古い行は経過日数を判断できないので、経過日数では
+ * 登録し直させません。
+ */
+public final class SecretQuestionReenrollmentPolicy {
+
+    public static final String REALM_MAX_ANSWER_AGE_DAYS_ATTRIBUTE =
+            "secretQuestionMaxAnswerAgeDays";
+    public static final String REALM_MIN_FORMAT_VERSION_ATTRIBUTE =
+            "secretQuestionMinFormatVersion";
+
+    public static final SecretQuestionReenrollmentPolicy DISABLED =
+            new SecretQuestionReenrollmentPolicy(0, 0);
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final int maxAnswerAgeDays;
+    private final int minFormatVersion;
+
+    public SecretQuestionReenrollmentPolicy(int maxAnswerAgeDays, int minFormatVersion) {
+        this.maxAnswerAgeDays = Math.max(0, maxAnswerAgeDays);
+        this.minFormatVersion = Math.max(0, minFormatVersion);
+    }
+
+    public static SecretQuestionReenrollmentPolicy fromConfig(Config.Scope config) {
+        return new SecretQuestionReenrollmentPolicy(config.getInt("reenrollMaxAnswerAgeDays", 0),
+                config.getInt("reenrollMinFormatVersion", 0));
+    }
+
+    /**
+     * @param now 経過日数の基準にする時刻（エポックミリ秒）
+     */
+    public boolean requiresReenrollment(RealmModel realm,
+            SecretQuestionCredentialSnapshot.Metadata metadata, long now) {
+        int minVersion = realmValue(realm, REALM_MIN_FORMAT_VERSION_ATTRIBUTE, minFormatVersion);
+        // 形式が読めなかった行（-1）は、ここで登録し直させるより再エンコードに任せる
+        if (minVersion > 0 && metadata.getFormatVersion() >= 0
+                && metadata.getFormatVersion() < minVersion) {
+            return true;
+        }
+        int maxAgeDays = realmValue(realm, REALM_MAX_ANSWER_AGE_DAYS_ATTRIBUTE, maxAnswerAgeDays);
+        Long createdDate = metadata.getCreatedDate();
+        return maxAgeDays > 0 && createdDate != null
+                && now - createdDate >= maxAgeDays * DAY_MILLIS;
+    }
+
+    private static int realmValue(RealmModel realm, String attribute, int defaultValue) {
+        Integer value;
+        try {
+            value = realm.getAttribute(attribute, (Integer) null);
+        } catch (NumberFormatException e) {
+            value = null;
+        }
+        return value != null ? Math.max(0, value) : defaultValue;
+    }
+
+    public int getMaxAnswerAgeDays() {
+        return maxAnswerAgeDays;
+    }
+
+    public int getMinFormatVersion() {
+        return minFormatVersion;
+    }
+}
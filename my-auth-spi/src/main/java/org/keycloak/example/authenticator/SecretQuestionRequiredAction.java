@@ -1,13 +1,82 @@
 package org.keycloak.example.authenticator;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
 import org.keycloak.authentication.CredentialRegistrator;
 import org.keycloak.authentication.RequiredActionContext;
 import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.common.util.Time;
 import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditEvent;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalog;
 import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialSnapshot;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import jakarta.ws.rs.core.Response;
 
+/*
+ * 秘密の質問を登録する必須アクション。
+ *
+ * 設定画面には質問をすべて並べ、ユーザはそれぞれに回答します。回答はまとめて 1 つの
+ * クレデンシャルとして保存し、すでに登録されているクレデンシャルは置き換えます。ユーザごとの
+ * クレデンシャルの行は常に 1 つで、ログイン時にはそのうち 1 問が出題されます。
+ *
+ * 質問は次の順に決めます。
+ *
+ * 1. レルムの質問カタログ（レルム属性 secretQuestionCatalog、SecretQuestionCatalog）
+ *
+ * 2. SPI の設定で指定した questions の文言
+ *
+ * 3. 組み込みのカタログ（SecretQuestionCatalog.DEFAULT）
+ *
+ * カタログの質問は ID で保存し、画面にはユーザのロケールの文言を出します。questions の文言は、
+ * これまでどおり文言のまま保存します。
+ *
+ * 登録から時間が経った回答や古い形式の行は、SecretQuestionReenrollmentPolicy に従ってログイン時に
+ * 登録し直させます（evaluateTriggers()）。
+ */
 public class SecretQuestionRequiredAction implements RequiredActionProvider, CredentialRegistrator {
+    static final String TEMPLATE = "secret-question-config.ftl";
+    // secret-question-config.ftl に渡す、登録する質問の一覧
+    static final String QUESTIONS_ATTRIBUTE = "secretQuestions";
+    static final String ANSWER_PARAM = "secret_answer";
+
+    public static final List<String> DEFAULT_QUESTIONS =
+            SecretQuestionCatalog.DEFAULT.getTexts(Locale.ENGLISH);
+
+    // SPI の設定で指定した文言。null の場合はレルムのカタログがなければ組み込みのカタログを使う
+    private final List<String> questions;
+    private final SecretQuestionAuditLog audit;
+    private final SecretQuestionReenrollmentPolicy policy;
+
+    public SecretQuestionRequiredAction() {
+        this(null);
+    }
+
+    public SecretQuestionRequiredAction(List<String> questions) {
+        this(questions, SecretQuestionAuditLog.DISABLED);
+    }
+
+    public SecretQuestionRequiredAction(List<String> questions, SecretQuestionAuditLog audit) {
+        this(questions, audit, SecretQuestionReenrollmentPolicy.DISABLED);
+    }
+
+    public SecretQuestionRequiredAction(List<String> questions, SecretQuestionAuditLog audit,
+            SecretQuestionReenrollmentPolicy policy) {
+        this.questions =
+                questions != null ? Collections.unmodifiableList(new ArrayList<>(questions)) : null;
+        this.audit = audit;
+        this.policy = policy;
+    }
+
     // RequiredActionProvider.requiredActionChallenge() is the initial call by the
     // flow manager into
     // the required action. This method is responsible for rendering the HTML form
@@ -15,32 +84,98 @@ public class SecretQuestionRequiredAction implements RequiredActionProvider, Cre
     // the required action.
     @Override
     public void requiredActionChallenge(RequiredActionContext context) {
-        Response challenge = context.form().createForm("secret-question-config.ftl");
+        Response challenge = challengePage(context, null);
         // The challenge() method notifies the flow manager that a required action must
         // be executed.
         context.challenge(challenge);
 
     }
 
+    private Response challengePage(RequiredActionContext context, String error) {
+        SecretQuestionCatalog catalog = catalogFor(context);
+        List<String> texts = catalog != null
+                ? catalog.getTexts(context.getSession().getContext()
+                        .resolveLocale(context.getUser()))
+                : questions;
+        Map<String, List<String>> attributes =
+                Collections.singletonMap(QUESTIONS_ATTRIBUTE, texts);
+        LoginFormsProvider form = context.form();
+        attributes.forEach(form::setAttribute);
+        if (error != null) {
+            form.setError(error);
+        }
+        return form.createForm(TEMPLATE);
+    }
+
     // responsible for processing input from the HTML form of the required action.
     // The action URL of
     // the form will be routed to the RequiredActionProvider.processAction() method
+    // 回答は質問と同じ順番で secret_answer に並ぶ。1 つでも空の回答があれば登録せずに画面を出し直す。
+    // 画面を出したあとでカタログの質問の数が変わった場合も、数が合わないので出し直す
     @Override
     public void processAction(RequiredActionContext context) {
-        String answer =
-                (context.getHttpRequest().getDecodedFormParameters().getFirst("secret_answer"));
-        SecretQuestionCredentialProvider sqcp = (SecretQuestionCredentialProvider) context
-                .getSession().getProvider(CredentialProvider.class, "secret-question");
-        sqcp.createCredential(context.getRealm(), context.getUser(), SecretQuestionCredentialModel
-                .createSecretQuestion("What is your mom's first name?", answer));
+        SecretQuestionCatalog catalog = catalogFor(context);
+        int count = catalog != null ? catalog.getIds().size() : questions.size();
+        List<String> answers =
+                context.getHttpRequest().getDecodedFormParameters().get(ANSWER_PARAM);
+        if (answers == null || answers.size() != count
+                || answers.stream().anyMatch(answer -> answer == null || answer.trim().isEmpty())) {
+            context.challenge(challengePage(context, "secretQuestionAnswerRequired"));
+            return;
+        }
+        SecretQuestionCredentialProvider sqcp = getCredentialProvider(context);
+        RealmModel realm = context.getRealm();
+        UserModel user = context.getUser();
+        List<String> existing = user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                .map(CredentialModel::getId).collect(Collectors.toList());
+        for (String credentialId : existing) {
+            sqcp.deleteCredential(realm, user, credentialId);
+        }
+        CredentialModel created = sqcp.createCredential(realm, user, catalog != null
+                ? SecretQuestionCredentialModel.createCataloguedQuestions(catalog.getIds(), answers)
+                : SecretQuestionCredentialModel.createSecretQuestions(questions, answers));
+        SecretQuestionCredentialSnapshot.replace(context.getAuthenticationSession(), user, created);
         context.success();
+        audit.record(SecretQuestionAuditEvent.Type.ENROLLMENT, realm, user,
+                context.getConnection() != null ? context.getConnection().getRemoteAddr() : null);
+    }
+
+    private static SecretQuestionCredentialProvider getCredentialProvider(
+            RequiredActionContext context) {
+        return (SecretQuestionCredentialProvider) context.getSession().getProvider(
+                CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+    }
+
+    // 登録させる質問のカタログ。SPI の設定の文言を使う場合は null
+    private SecretQuestionCatalog catalogFor(RequiredActionContext context) {
+        SecretQuestionCatalog catalog =
+                getCredentialProvider(context).getCatalog(context.getRealm());
+        if (catalog == null && questions == null) {
+            return SecretQuestionCatalog.DEFAULT;
+        }
+        return catalog;
     }
 
     public static final String PROVIDER_ID = "secret_question_config";
 
+    /*
+     * ログインのたびに呼ばれるので、クレデンシャルは読みません。この認証で秘密の質問の認証器が
+     * 認証セッションに保存したメタデータ（登録日時と形式のバージョン）だけで判断します。クッキーや
+     * 信頼するネットワークで秘密の質問を省略したログインではメタデータがないので、次に出題したときに
+     * 判断します。
+     */
     @Override
     public void evaluateTriggers(RequiredActionContext context) {
-
+        if (policy == SecretQuestionReenrollmentPolicy.DISABLED || context.getUser() == null) {
+            return;
+        }
+        SecretQuestionCredentialSnapshot.Metadata metadata = SecretQuestionCredentialSnapshot
+                .loadMetadata(context.getAuthenticationSession(), context.getUser());
+        if (metadata != null && policy.requiresReenrollment(context.getRealm(), metadata,
+                Time.currentTimeMillis())) {
+            context.getUser().addRequiredAction(PROVIDER_ID);
+        }
     }
 
     @Override
@@ -1,23 +1,33 @@
 package org.keycloak.example.authenticator;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 import org.keycloak.Config;
 import org.keycloak.authentication.RequiredActionFactory;
 import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.warmup.SecretQuestionWarmup;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 // this is just responsible for creating the required action provider instance.
 public class SecretQuestionRequiredActionFactory implements RequiredActionFactory {
 
-    private static final SecretQuestionRequiredAction SINGLETON =
-            new SecretQuestionRequiredAction();
+    private SecretQuestionAuditLog audit = SecretQuestionAuditLog.DISABLED;
+    private SecretQuestionWarmup warmup = SecretQuestionWarmup.DISABLED;
+    private SecretQuestionMetrics metrics = SecretQuestionMetrics.DISABLED;
+    private SecretQuestionRequiredAction singleton = new SecretQuestionRequiredAction();
 
     @Override
     public RequiredActionProvider create(KeycloakSession session) {
-        return SINGLETON;
+        return singleton;
     }
 
-
     @Override
     public String getId() {
         return SecretQuestionRequiredAction.PROVIDER_ID;
@@ -30,19 +40,60 @@ public class SecretQuestionRequiredActionFactory implements RequiredActionFactor
         return "Secret Question";
     }
 
+    /*
+     * 登録させる質問は、レルムの質問カタログ（レルム属性 secretQuestionCatalog）で指定するか、
+     * questions にカンマ区切りで指定します（例:
+     * --spi-required-action-secret_question_config-questions="Your first pet?,Your first car?"）。
+     * questions の質問は文言のまま保存され、翻訳もできないので、カタログを使ってください。
+     * どちらもない場合は組み込みのカタログ（SecretQuestionCatalog.DEFAULT）です。
+     *
+     * 登録の監査イベントは、認証器と同じ auditEnabled / auditQueueSize / auditBatchSize で調整します。
+     *
+     * 登録し直させる条件（SecretQuestionReenrollmentPolicy）の既定値は reenrollMaxAnswerAgeDays（回答の
+     * 有効日数）と reenrollMinFormatVersion（credential_data の形式の最小バージョン）で指定します（例:
+     * --spi-required-action-secret_question_config-reenroll-max-answer-age-days=365）。どちらも 0 は
+     * 条件なしで、レルム属性で上書きできます。
+     *
+     * warmupEnabled を true にすると、postInit() で設定画面のテーマを読み込んでおきます
+     * （SecretQuestionWarmup）。所要時間は metricsEnabled が有効ならメトリクスにも記録します。
+     */
     @Override
     public void init(Config.Scope config) {
+        audit = SecretQuestionAuditLog.fromConfig(config);
+        warmup = SecretQuestionWarmup.fromConfig(config);
+        if (warmup.isEnabled()) {
+            metrics = SecretQuestionMetrics.fromConfig(config);
+        }
+        singleton = new SecretQuestionRequiredAction(getQuestions(config), audit,
+                SecretQuestionReenrollmentPolicy.fromConfig(config));
+    }
 
+    // questions を指定していない場合は null（カタログを使う）
+    static List<String> getQuestions(Config.Scope config) {
+        String[] configured = config.getArray("questions");
+        if (configured == null) {
+            return null;
+        }
+        List<String> questions = Arrays.stream(configured).map(String::trim)
+                .filter(question -> !question.isEmpty()).collect(Collectors.toList());
+        return questions.isEmpty() ? null : questions;
     }
 
+    // 設定画面のテーマを、最初の登録より前に読み込んでおく
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-
+        if (!warmup.isEnabled()) {
+            return;
+        }
+        Map<String, SecretQuestionWarmup.Step> steps = new LinkedHashMap<>();
+        steps.put("templates", iterations -> KeycloakModelUtils.runJobInTransaction(factory,
+                session -> warmup.loadTemplates(session, SecretQuestionRequiredAction.TEMPLATE)));
+        warmup.run(SecretQuestionRequiredAction.PROVIDER_ID, metrics, steps);
     }
 
     @Override
     public void close() {
-
+        audit.close();
     }
 
 }
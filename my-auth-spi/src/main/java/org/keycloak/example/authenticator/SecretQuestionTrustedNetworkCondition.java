@@ -0,0 +1,94 @@
+package org.keycloak.example.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.authenticators.conditional.ConditionalAuthenticator;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.example.authenticator.network.TrustedNetworkIndex;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/*
+ * 接続元 IP が信頼するネットワークに含まれるかどうかの条件。
+ *
+ * 条件付きサブフローに「この条件（not を有効にしたもの）」と SecretQuestionAuthenticator を並べると、
+ * 社内ネットワークなどの信頼する接続元からのログインでは秘密の質問を出さずに先へ進みます。判定は
+ * 接続元 IP とメモリ上のインデックスだけで行い、ユーザもクレデンシャルも読みません。
+ *
+ * 信頼するネットワークはこの条件の設定（レルムの認証フローの一部）に CIDR で指定します。設定の ID
+ * ごとに TrustedNetworkIndex を作ってキャッシュし、管理コンソールで設定が変わったら作り直して
+ * 差し替えます。不正な CIDR はその項目だけ無視して警告を出します。
+ *
+ * リバースプロキシの後ろで動かす場合は、Keycloak の proxy 設定で X-Forwarded-For を信頼させて
+ * おかないと、プロキシのアドレスで判定することになります。
+ */
+public class SecretQuestionTrustedNetworkCondition implements ConditionalAuthenticator {
+
+    private static final Logger logger =
+            Logger.getLogger(SecretQuestionTrustedNetworkCondition.class);
+
+    public static final String TRUSTED_NETWORKS = "trusted.networks";
+    public static final String NOT = "not";
+
+    // 認証フローの実行ステップごとの設定なので、ノードあたりの数は多くない
+    private static final int INDEX_CACHE_MAX_ENTRIES = 1000;
+
+    private final LocalCache<String, TrustedNetworkIndex> indexes =
+            new LocalCache<>(INDEX_CACHE_MAX_ENTRIES, 0);
+
+    @Override
+    public boolean matchCondition(AuthenticationFlowContext context) {
+        AuthenticatorConfigModel model = context.getAuthenticatorConfig();
+        if (model == null || model.getConfig() == null) {
+            return false;
+        }
+        boolean negate = Boolean.parseBoolean(model.getConfig().get(NOT));
+        String remoteAddr =
+                context.getConnection() != null ? context.getConnection().getRemoteAddr() : null;
+        return resolveIndex(model).contains(remoteAddr) != negate;
+    }
+
+    // 設定の文字列が変わっていなければキャッシュしたインデックスをそのまま使う
+    TrustedNetworkIndex resolveIndex(AuthenticatorConfigModel model) {
+        String source = model.getConfig().get(TRUSTED_NETWORKS);
+        TrustedNetworkIndex index = model.getId() != null ? indexes.get(model.getId()) : null;
+        if (index != null && index.isCompiledFrom(source)) {
+            return index;
+        }
+        List<String> errors = new ArrayList<>();
+        index = TrustedNetworkIndex.compile(source, errors);
+        if (!errors.isEmpty()) {
+            logger.warnf("Ignoring invalid trusted networks in condition config %s: %s",
+                    model.getAlias(), String.join(", ", errors));
+        }
+        if (model.getId() != null) {
+            indexes.put(model.getId(), index);
+        }
+        return index;
+    }
+
+    // 接続元 IP だけで判定するので、ユーザが特定されていなくてもよい
+    @Override
+    public boolean requiresUser() {
+        return false;
+    }
+
+    @Override
+    public void action(AuthenticationFlowContext context) {
+        // 条件はフォームを出さない
+    }
+
+    @Override
+    public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user) {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,107 @@
+package org.keycloak.example.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.keycloak.Config;
+import org.keycloak.authentication.authenticators.conditional.ConditionalAuthenticator;
+import org.keycloak.authentication.authenticators.conditional.ConditionalAuthenticatorFactory;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+
+/*
+ * SecretQuestionTrustedNetworkCondition を条件付きサブフローの条件として登録するファクトリ。
+ *
+ * Keycloak の組み込みの条件（Condition - user attribute など）と同じく、要件は REQUIRED と DISABLED
+ * だけを選べます。
+ */
+public class SecretQuestionTrustedNetworkConditionFactory
+        implements ConditionalAuthenticatorFactory {
+
+    public static final String PROVIDER_ID = "conditional-secret-question-trusted-network";
+
+    private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES =
+            {AuthenticationExecutionModel.Requirement.REQUIRED,
+                    AuthenticationExecutionModel.Requirement.DISABLED};
+
+    private static final List<ProviderConfigProperty> configProperties =
+            new ArrayList<ProviderConfigProperty>();
+
+    static {
+        ProviderConfigProperty property;
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionTrustedNetworkCondition.TRUSTED_NETWORKS);
+        property.setLabel("Trusted Networks");
+        property.setType(ProviderConfigProperty.MULTIVALUED_STRING_TYPE);
+        property.setHelpText("Client networks in CIDR notation, e.g. 192.0.2.0/24 or"
+                + " 2001:db8::/32. A bare address matches only itself.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(SecretQuestionTrustedNetworkCondition.NOT);
+        property.setLabel("Not");
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue("false");
+        property.setHelpText("Match when the client is NOT in a trusted network. Enable this"
+                + " to ask the secret question only outside the trusted networks.");
+        configProperties.add(property);
+    }
+
+    private final SecretQuestionTrustedNetworkCondition singleton =
+            new SecretQuestionTrustedNetworkCondition();
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public ConditionalAuthenticator getSingleton() {
+        return singleton;
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "Condition - trusted network";
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Flow is executed only if the client IP address is in one of the trusted networks.";
+    }
+
+    @Override
+    public boolean isConfigurable() {
+        return true;
+    }
+
+    @Override
+    public AuthenticationExecutionModel.Requirement[] getRequirementChoices() {
+        return REQUIREMENT_CHOICES;
+    }
+
+    @Override
+    public boolean isUserSetupAllowed() {
+        return false;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,60 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.util.Collections;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+
+/*
+ * 管理 API による秘密の質問と信頼済み端末の変更を、Keycloak の管理イベントとして記録します。
+ *
+ * 一括登録はリクエストとは別のセッションでバッチをコミットするので、イベントも渡されたセッションで
+ * 送ります（AdminEventBuilder#clone）。ロールバックしたバッチのイベントは残りません。
+ * 表現（representation）には回答もハッシュも含めません。
+ */
+public interface SecretQuestionAdminEvents {
+
+    // 記録しないインスタンス
+    SecretQuestionAdminEvents DISABLED = new SecretQuestionAdminEvents() {
+        @Override
+        public void credentialImported(KeycloakSession session, UserModel user,
+                CredentialModel credential, boolean overwritten) {}
+
+        @Override
+        public void devicesRevoked(KeycloakSession session, UserModel user, int revoked) {}
+    };
+
+    /*
+     * 一括登録で 1 ユーザ分を登録しました。登録済みの秘密の質問を置き換えた場合は overwritten が true です。
+     */
+    void credentialImported(KeycloakSession session, UserModel user, CredentialModel credential,
+            boolean overwritten);
+
+    void devicesRevoked(KeycloakSession session, UserModel user, int revoked);
+
+    static SecretQuestionAdminEvents of(AdminEventBuilder adminEvent) {
+        return new SecretQuestionAdminEvents() {
+            @Override
+            public void credentialImported(KeycloakSession session, UserModel user,
+                    CredentialModel credential, boolean overwritten) {
+                adminEvent.clone(session)
+                        .operation(overwritten ? OperationType.UPDATE : OperationType.CREATE)
+                        .resource(ResourceType.USER)
+                        .resourcePath("users", user.getId(), "credentials", credential.getId())
+                        .representation(Collections.singletonMap("type", credential.getType()))
+                        .success();
+            }
+
+            @Override
+            public void devicesRevoked(KeycloakSession session, UserModel user, int revoked) {
+                adminEvent.clone(session).operation(OperationType.DELETE)
+                        .resource(ResourceType.USER)
+                        .resourcePath(session.getContext().getUri())
+                        .representation(Collections.singletonMap("revoked", revoked)).success();
+            }
+        };
+    }
+}
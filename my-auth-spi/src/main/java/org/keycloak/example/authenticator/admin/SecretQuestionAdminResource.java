@@ -0,0 +1,168 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionEnrollmentStats;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.example.authenticator.device.SecretQuestionDeviceRegistry;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/*
+ * /admin/realms/{realm}/secret-question 以下の管理用エンドポイント。
+ *
+ * - POST credentials/import: NDJSON（1 行に 1 ユーザ分）で秘密の質問をまとめて登録します。
+ * レスポンスも NDJSON で、取り込めなかった行（error）とバッチごとの途中経過（progress）を
+ * 処理しながら返し、最後に結果（summary）を返します。
+ *
+ * - GET credentials/export: レルムの秘密の質問を NDJSON で書き出します。
+ *
+ * - GET credentials/stats: 登録したユーザ数、登録からの経過日数ごとの件数、質問ごとの登録数を
+ * 返します（SecretQuestionEnrollmentStatistics）。結果はレルムごとに短い間キャッシュします。
+ * ユーザの閲覧権限（view-users）で使えます。
+ *
+ * - DELETE users/{userId}/devices: ユーザの信頼済み端末（SecretQuestionDeviceRegistry）を
+ * すべて失効させ、失効させた端末の数を返します。以後、それらの端末のクッキーでは秘密の質問を省略できません。
+ *
+ * 登録と端末の失効は管理イベント（SecretQuestionAdminEvents）として記録します。
+ *
+ * それ以外はユーザの管理権限（manage-users）が必要です。エクスポートにはハッシュ化された回答が
+ * 含まれるので、閲覧権限だけでは使えません。
+ */
+public class SecretQuestionAdminResource {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final SecretQuestionTransactionRunner runner;
+    private final SecretQuestionAdminEvents events;
+    // 信頼済み端末の登録簿を無効にしている場合は null
+    private final SecretQuestionDeviceRegistry devices;
+    // 集計結果のキャッシュ。null の場合は毎回集計する
+    private final LocalCache<String, SecretQuestionEnrollmentStats> statistics;
+    private final int defaultBatchSize;
+    private final int exportPageSize;
+
+    public SecretQuestionAdminResource(KeycloakSession session, RealmModel realm,
+            AdminPermissionEvaluator auth, SecretQuestionTransactionRunner runner,
+            SecretQuestionAdminEvents events, SecretQuestionDeviceRegistry devices,
+            LocalCache<String, SecretQuestionEnrollmentStats> statistics, int defaultBatchSize,
+            int exportPageSize) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.runner = runner;
+        this.events = events;
+        this.devices = devices;
+        this.statistics = statistics;
+        this.defaultBatchSize = defaultBatchSize;
+        this.exportPageSize = exportPageSize;
+    }
+
+    /*
+     * 処理はレスポンスを書き出しながら行います。各バッチはリクエストのセッションとは別の
+     * トランザクションでコミットされるので、途中で接続が切れた場合もそれまでのバッチは登録済みです。
+     */
+    @POST
+    @Path("credentials/import")
+    @Consumes({NDJSON, MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces(NDJSON)
+    public Response importCredentials(@QueryParam("batchSize") Integer batchSize,
+            @QueryParam("overwrite") boolean overwrite, InputStream body) {
+        auth.users().requireManage();
+        int size = batchSize != null ? Math.min(Math.max(1, batchSize), MAX_BATCH_SIZE)
+                : defaultBatchSize;
+        SecretQuestionCredentialImporter importer =
+                new SecretQuestionCredentialImporter(runner, realm.getId(), size, overwrite,
+                        events);
+        StreamingOutput output = out -> {
+            BufferedReader in =
+                    new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            importer.importFrom(in, writer);
+        };
+        return Response.ok(output, NDJSON).build();
+    }
+
+    @GET
+    @Path("credentials/export")
+    @Produces(NDJSON)
+    public Response exportCredentials() {
+        auth.users().requireManage();
+        SecretQuestionCredentialExporter exporter =
+                new SecretQuestionCredentialExporter(runner, realm.getId(), exportPageSize);
+        StreamingOutput output = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            exporter.exportTo(writer);
+        };
+        return Response.ok(output, NDJSON).build();
+    }
+
+    /*
+     * ダッシュボードから定期的に呼ばれる想定なので、キャッシュが有効な間は DB に問い合わせません。
+     * 同時に期限が切れた場合は、それぞれのリクエストが集計します。
+     */
+    @GET
+    @Path("credentials/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public SecretQuestionEnrollmentStats getStatistics() {
+        auth.users().requireView();
+        SecretQuestionEnrollmentStats stats =
+                statistics != null ? statistics.get(realm.getId()) : null;
+        if (stats == null) {
+            stats = SecretQuestionEnrollmentStatistics.compute(
+                    session.getProvider(JpaConnectionProvider.class).getEntityManager(),
+                    realm.getId(), session.users().getUsersCount(realm),
+                    Time.currentTimeMillis());
+            if (statistics != null) {
+                statistics.put(realm.getId(), stats);
+            }
+        }
+        return stats;
+    }
+
+    @DELETE
+    @Path("users/{userId}/devices")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response revokeDevices(@PathParam("userId") String userId) {
+        UserModel user = session.users().getUserById(realm, userId);
+        if (user == null) {
+            // ユーザの有無で権限の有無が分からないよう、先に一覧の権限を確かめる
+            auth.users().requireQuery();
+            throw new NotFoundException("User not found");
+        }
+        auth.users().requireManage(user);
+        if (devices == null) {
+            throw new NotFoundException("Trusted devices are disabled");
+        }
+        int revoked = devices.revokeAll(session, realm.getId(), user.getId());
+        events.devicesRevoked(session, user, revoked);
+        return Response.ok(Collections.singletonMap("revoked", revoked)).build();
+    }
+}
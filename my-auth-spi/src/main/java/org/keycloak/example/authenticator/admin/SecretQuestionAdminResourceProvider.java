@@ -0,0 +1,48 @@
+package org.keycloak.example.authenticator.admin;
+
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorFactory;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionEnrollmentStats;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.example.authenticator.device.SecretQuestionDeviceRegistry;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+public class SecretQuestionAdminResourceProvider implements AdminRealmResourceProvider {
+
+    private final int importBatchSize;
+    private final int exportPageSize;
+    private final LocalCache<String, SecretQuestionEnrollmentStats> statistics;
+
+    public SecretQuestionAdminResourceProvider(int importBatchSize, int exportPageSize,
+            LocalCache<String, SecretQuestionEnrollmentStats> statistics) {
+        this.importBatchSize = importBatchSize;
+        this.exportPageSize = exportPageSize;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm,
+            AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new SecretQuestionAdminResource(session, realm, auth,
+                SecretQuestionTransactionRunner.of(session.getKeycloakSessionFactory()),
+                SecretQuestionAdminEvents.of(adminEvent), deviceRegistry(session), statistics,
+                importBatchSize, exportPageSize);
+    }
+
+    // 信頼済み端末の登録簿は認証器のファクトリが持っている
+    private static SecretQuestionDeviceRegistry deviceRegistry(KeycloakSession session) {
+        SecretQuestionAuthenticatorFactory factory = (SecretQuestionAuthenticatorFactory) session
+                .getKeycloakSessionFactory().getProviderFactory(Authenticator.class,
+                        SecretQuestionAuthenticatorFactory.PROVIDER_ID);
+        return factory != null ? factory.getDeviceRegistry() : null;
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,68 @@
+package org.keycloak.example.authenticator.admin;
+
+import org.keycloak.Config;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionEnrollmentStats;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+
+/*
+ * 秘密の質問の一括インポート/エクスポートと信頼済み端末の失効用の管理エンドポイント（SecretQuestionAdminResource）を
+ * /admin/realms/{realm}/secret-question に登録します。
+ *
+ * --spi-admin-realm-restapi-extension-secret-question-import-batch-size=100
+ *
+ * --spi-admin-realm-restapi-extension-secret-question-export-page-size=500
+ *
+ * 登録状況の集計結果（credentials/stats）をキャッシュする秒数。0 にすると毎回集計します。
+ *
+ * --spi-admin-realm-restapi-extension-secret-question-stats-cache-ttl=30
+ */
+public class SecretQuestionAdminResourceProviderFactory
+        implements AdminRealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "secret-question";
+
+    private static final int DEFAULT_IMPORT_BATCH_SIZE = 100;
+    private static final int DEFAULT_EXPORT_PAGE_SIZE = 500;
+    private static final int DEFAULT_STATS_CACHE_TTL_SECONDS = 30;
+    // 集計結果はレルムごとに 1 件
+    private static final int STATS_CACHE_MAX_ENTRIES = 1000;
+
+    private int importBatchSize = DEFAULT_IMPORT_BATCH_SIZE;
+    private int exportPageSize = DEFAULT_EXPORT_PAGE_SIZE;
+    private LocalCache<String, SecretQuestionEnrollmentStats> statistics;
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return new SecretQuestionAdminResourceProvider(importBatchSize, exportPageSize,
+                statistics);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        importBatchSize = config.getInt("importBatchSize", DEFAULT_IMPORT_BATCH_SIZE);
+        exportPageSize = config.getInt("exportPageSize", DEFAULT_EXPORT_PAGE_SIZE);
+        int statsCacheTtl = config.getInt("statsCacheTtl", DEFAULT_STATS_CACHE_TTL_SECONDS);
+        statistics = statsCacheTtl > 0
+                ? new LocalCache<>(STATS_CACHE_MAX_ENTRIES, statsCacheTtl * 1000L)
+                : null;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,143 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProvider;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionCredentialRow;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerNormalizer;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+
+/*
+ * レルムの秘密の質問を NDJSON で書き出します。出力は SecretQuestionCredentialImporter でそのまま
+ * 取り込める形式です。
+ *
+ * ユーザは pageSize 件ずつ、ページごとに新しいトランザクションで読み、ページ分の行を書き出してから
+ * 次のページに進みます。全ユーザをメモリに載せることはありません。書き出しはトランザクションの外で
+ * 行うので、遅いクライアントがトランザクションを開いたままにすることもありません。
+ *
+ * 回答はハッシュの形でだけ出力します。まだ平文のまま保存されている行は、書き出す前にハッシュ化します
+ * （保存されている行は変更しません）。
+ */
+public class SecretQuestionCredentialExporter {
+
+    // すべてのユーザを対象にする検索条件（管理コンソールのユーザ一覧と同じ）
+    private static final Map<String, String> ALL_USERS =
+            Collections.singletonMap(UserModel.SEARCH, "*");
+
+    private final SecretQuestionTransactionRunner runner;
+    private final String realmId;
+    private final int pageSize;
+
+    public SecretQuestionCredentialExporter(SecretQuestionTransactionRunner runner,
+            String realmId, int pageSize) {
+        this.runner = runner;
+        this.realmId = realmId;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * @return 書き出した行数
+     */
+    public long exportTo(Writer out) throws IOException {
+        long exported = 0;
+        int first = 0;
+        while (true) {
+            List<String> lines = new ArrayList<>();
+            int[] users = new int[1];
+            int offset = first;
+            runner.run(session -> users[0] = readPage(session, offset, lines));
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+            out.flush();
+            exported += lines.size();
+            if (users[0] < pageSize) {
+                return exported;
+            }
+            first += pageSize;
+        }
+    }
+
+    private int readPage(KeycloakSession session, int first, List<String> lines) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            throw new ModelException("Realm not found: " + realmId);
+        }
+        session.getContext().setRealm(realm);
+        SecretQuestionCredentialProvider provider =
+                SecretQuestionCredentialImporter.getProvider(session);
+        List<UserModel> page = session.users()
+                .searchForUserStream(realm, ALL_USERS, first, pageSize)
+                .collect(Collectors.toList());
+        for (UserModel user : page) {
+            user.credentialManager()
+                    .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                    .forEach(credential -> lines
+                            .add(toLine(realm, provider, user, credential)));
+        }
+        return page.size();
+    }
+
+    private static String toLine(RealmModel realm, SecretQuestionCredentialProvider provider,
+            UserModel user, CredentialModel credential) {
+        // すべての質問の回答を書き出すので、キャッシュを通さずに行全体をデコードする
+        SecretQuestionCredentialModel model =
+                SecretQuestionCredentialModel.createFromCredentialModel(credential);
+        SecretQuestionCredentialData credentialData = model.getSecretQuestionCredentialData();
+        List<SecretQuestionSecretData> entries = model.getSecretQuestionSecretEntries();
+        String algorithm = credentialData.getAlgorithm();
+        int iterations = credentialData.getHashIterations();
+        String normalization = credentialData.getNormalization();
+        if (entries.stream().noneMatch(SecretQuestionSecretData::isHashed)) {
+            int realmIterations = provider.getHashIterations(realm);
+            entries = entries.stream()
+                    .map(entry -> SecretQuestionAnswerHasher.hash(entry.getAnswer(),
+                            realmIterations))
+                    .collect(Collectors.toList());
+            iterations = realmIterations;
+            algorithm = SecretQuestionAnswerHasher.ALGORITHM;
+            normalization = SecretQuestionAnswerNormalizer.FORM;
+        }
+        SecretQuestionCredentialRow row;
+        if (entries.size() == 1) {
+            SecretQuestionSecretData secretData = entries.get(0);
+            row = new SecretQuestionCredentialRow(user.getId(), user.getUsername(),
+                    credentialData.getQuestion(), credentialData.getQuestionId(0), null,
+                    algorithm, iterations, normalization, secretData.getSalt(),
+                    secretData.getValue(), credential.getUserLabel(), credential.getCreatedDate(),
+                    null);
+        } else {
+            List<SecretQuestionCredentialRow.Question> questions = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                questions.add(new SecretQuestionCredentialRow.Question(
+                        credentialData.isCatalogued() ? null : credentialData.getQuestions().get(i),
+                        credentialData.getQuestionId(i), null, entries.get(i).getSalt(),
+                        entries.get(i).getValue()));
+            }
+            row = new SecretQuestionCredentialRow(user.getId(), user.getUsername(), null, null,
+                    algorithm, iterations, normalization, null, null, credential.getUserLabel(),
+                    credential.getCreatedDate(), questions);
+        }
+        try {
+            return JsonSerialization.writeValueAsString(row);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionCredentialRow;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionImportStatus;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalog;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerNormalizer;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+
+/*
+ * NDJSON で渡された秘密の質問をまとめて登録します。
+ *
+ * 入力は 1 行ずつ読み、batchSize 行ごとに 1 トランザクションでコミットします。ファイル全体を
+ * メモリに載せることはなく、保持するのは 1 バッチ分の行だけです。登録は
+ * SecretQuestionCredentialProvider.importCredential を通すので、平文の回答はハッシュ化され、
+ * 登録状態のキャッシュもクラスタ全体で無効化されます。ハッシュは検証プールではなく、取り込みを
+ * 処理しているスレッドで計算するので、大きなファイルでもログインの検証を待たせません。
+ *
+ * 登録した行ごとに、置き換えたかどうかに応じて CREATE / UPDATE の管理イベントを記録します。
+ *
+ * 取り込めなかった行はその都度 error として、バッチをコミットするたびに progress として出力します。
+ * コミットに失敗したバッチは 1 行ずつのトランザクションでやり直し、原因の行だけを失敗として報告します。
+ */
+public class SecretQuestionCredentialImporter {
+    private static final Logger logger = Logger.getLogger(SecretQuestionCredentialImporter.class);
+
+    private final SecretQuestionTransactionRunner runner;
+    private final String realmId;
+    private final int batchSize;
+    private final boolean overwrite;
+    private final SecretQuestionAdminEvents events;
+
+    private long processed;
+    private long created;
+    private long failed;
+
+    /**
+     * @param overwrite 登録済みのユーザの秘密の質問を置き換えるか。false の場合はその行を失敗にする。
+     * @param events 登録した行ごとに管理イベントを記録する先。
+     */
+    public SecretQuestionCredentialImporter(SecretQuestionTransactionRunner runner,
+            String realmId, int batchSize, boolean overwrite, SecretQuestionAdminEvents events) {
+        this.runner = runner;
+        this.realmId = realmId;
+        this.batchSize = Math.max(1, batchSize);
+        this.overwrite = overwrite;
+        this.events = events;
+    }
+
+    public SecretQuestionImportStatus importFrom(BufferedReader in, Writer out)
+            throws IOException {
+        List<PendingRow> batch = new ArrayList<>(batchSize);
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            processed++;
+            SecretQuestionCredentialRow row;
+            try {
+                row = JsonSerialization.readValue(line, SecretQuestionCredentialRow.class);
+            } catch (IOException e) {
+                failed++;
+                write(out, SecretQuestionImportStatus.error(lineNumber, null, "Invalid JSON"));
+                continue;
+            }
+            batch.add(new PendingRow(lineNumber, row));
+            if (batch.size() >= batchSize) {
+                importBatch(batch, out);
+            }
+        }
+        if (!batch.isEmpty()) {
+            importBatch(batch, out);
+        }
+        SecretQuestionImportStatus summary =
+                SecretQuestionImportStatus.summary(processed, created, failed);
+        write(out, summary);
+        out.flush();
+        return summary;
+    }
+
+    private void importBatch(List<PendingRow> batch, Writer out) throws IOException {
+        List<SecretQuestionImportStatus> errors = new ArrayList<>();
+        try {
+            runner.run(session -> {
+                errors.clear();
+                RealmModel realm = getRealm(session);
+                for (PendingRow pending : batch) {
+                    String error = importRow(session, realm, pending.row);
+                    if (error != null) {
+                        errors.add(pending.error(error));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.debugf(e, "Secret question import batch ending at line %d was rolled back",
+                    batch.get(batch.size() - 1).line);
+            errors.clear();
+            for (PendingRow pending : batch) {
+                SecretQuestionImportStatus error = importAlone(pending);
+                if (error != null) {
+                    errors.add(error);
+                }
+            }
+        }
+        created += batch.size() - errors.size();
+        failed += errors.size();
+        for (SecretQuestionImportStatus error : errors) {
+            write(out, error);
+        }
+        write(out, SecretQuestionImportStatus.progress(processed, created, failed));
+        out.flush();
+        batch.clear();
+    }
+
+    private SecretQuestionImportStatus importAlone(PendingRow pending) {
+        String[] error = new String[1];
+        try {
+            runner.run(session -> error[0] = importRow(session, getRealm(session), pending.row));
+        } catch (RuntimeException e) {
+            return pending.error(e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        return error[0] != null ? pending.error(error[0]) : null;
+    }
+
+    /*
+     * 1 行分を登録します。入力の誤りはメッセージを返し、ストアの失敗などは例外のまま投げて
+     * バッチをロールバックさせます。
+     */
+    private String importRow(KeycloakSession session, RealmModel realm,
+            SecretQuestionCredentialRow row) {
+        // 入力だけで判断できる誤りは、ユーザを探す前に返す
+        SecretQuestionCredentialProvider provider = getProvider(session);
+        SecretQuestionCatalog catalog = provider.getCatalog(realm);
+        if (catalog == null) {
+            catalog = SecretQuestionCatalog.DEFAULT;
+        }
+        SecretQuestionCredentialModel model;
+        try {
+            model = row.getQuestions() != null ? toMultiQuestionModel(row, catalog)
+                    : toModel(row, catalog);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        if (row.getUserId() == null && row.getUsername() == null) {
+            return "userId or username is required";
+        }
+        // 別のレルムからエクスポートした行は ID が一致しないので、ID で見つからなければユーザ名で探す
+        UserModel user = null;
+        if (row.getUserId() != null) {
+            user = session.users().getUserById(realm, row.getUserId());
+        }
+        if (user == null && row.getUsername() != null) {
+            user = session.users().getUserByUsername(realm, row.getUsername());
+        }
+        if (user == null) {
+            return "User not found";
+        }
+        model.setUserLabel(row.getUserLabel());
+        if (row.getCreatedDate() != null) {
+            model.setCreatedDate(row.getCreatedDate());
+        }
+
+        List<CredentialModel> existing = new ArrayList<>();
+        user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                .forEach(existing::add);
+        if (!existing.isEmpty()) {
+            if (!overwrite) {
+                return "Secret question is already configured";
+            }
+            for (CredentialModel credential : existing) {
+                provider.deleteCredential(realm, user, credential.getId());
+            }
+        }
+        CredentialModel created = provider.importCredential(realm, user, model);
+        events.credentialImported(session, user, created, !existing.isEmpty());
+        return null;
+    }
+
+    // 入力の誤りは IllegalArgumentException のメッセージとして返す
+    private static SecretQuestionCredentialModel toModel(SecretQuestionCredentialRow row,
+            SecretQuestionCatalog catalog) {
+        String question = requireQuestion(row.getQuestion(), row.getQuestionId(), catalog);
+        boolean catalogued = row.getQuestionId() != null;
+        if (row.isHashed()) {
+            int iterations = requireHashParameters(row, row.getSalt());
+            return create(catalogued, Collections.singletonList(question), null,
+                    Collections.singletonList(
+                            new SecretQuestionSecretData(row.getSalt(), row.getValue())),
+                    iterations, row.getNormalization());
+        }
+        if (row.getAnswer() != null && !row.getAnswer().isEmpty()) {
+            return create(catalogued, Collections.singletonList(question),
+                    Collections.singletonList(row.getAnswer()), null, 0, null);
+        }
+        throw new IllegalArgumentException("answer or value is required");
+    }
+
+    // 質問ごとの回答は、すべてハッシュかすべて平文のどちらかに、質問はすべて ID かすべて文言のどちらかに
+    // そろえる
+    private static SecretQuestionCredentialModel toMultiQuestionModel(
+            SecretQuestionCredentialRow row, SecretQuestionCatalog catalog) {
+        List<SecretQuestionCredentialRow.Question> entries = row.getQuestions();
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("questions must not be empty");
+        }
+        boolean hashed = entries.get(0).isHashed();
+        boolean catalogued = entries.get(0).getQuestionId() != null;
+        List<String> questions = new ArrayList<>(entries.size());
+        List<String> answers = new ArrayList<>(entries.size());
+        List<SecretQuestionSecretData> hashedAnswers = new ArrayList<>(entries.size());
+        for (SecretQuestionCredentialRow.Question entry : entries) {
+            String question = requireQuestion(entry.getQuestion(), entry.getQuestionId(), catalog);
+            if (entry.isHashed() != hashed) {
+                throw new IllegalArgumentException(
+                        "questions must be either all hashed or all plaintext");
+            }
+            if ((entry.getQuestionId() != null) != catalogued) {
+                throw new IllegalArgumentException(
+                        "questions must be either all questionId or all question");
+            }
+            questions.add(question);
+            if (hashed) {
+                requireHashParameters(row, entry.getSalt());
+                hashedAnswers.add(new SecretQuestionSecretData(entry.getSalt(), entry.getValue()));
+            } else if (entry.getAnswer() != null && !entry.getAnswer().isEmpty()) {
+                answers.add(entry.getAnswer());
+            } else {
+                throw new IllegalArgumentException("answer or value is required");
+            }
+        }
+        return hashed
+                ? create(catalogued, questions, null, hashedAnswers, row.getHashIterations(),
+                        row.getNormalization())
+                : create(catalogued, questions, answers, null, 0, null);
+    }
+
+    // answers（平文）か hashedAnswers のどちらかを渡す。questions は catalogued ならカタログの ID
+    private static SecretQuestionCredentialModel create(boolean catalogued, List<String> questions,
+            List<String> answers, List<SecretQuestionSecretData> hashedAnswers,
+            int hashIterations, String normalization) {
+        if (hashedAnswers != null) {
+            return catalogued
+                    ? SecretQuestionCredentialModel.createCataloguedQuestions(questions,
+                            hashedAnswers, hashIterations, normalization)
+                    : SecretQuestionCredentialModel.createSecretQuestions(questions,
+                            hashedAnswers, hashIterations, normalization);
+        }
+        return catalogued
+                ? SecretQuestionCredentialModel.createCataloguedQuestions(questions, answers)
+                : SecretQuestionCredentialModel.createSecretQuestions(questions, answers);
+    }
+
+    // questionId があればカタログの ID、なければ question の文言を返す
+    private static String requireQuestion(String question, String questionId,
+            SecretQuestionCatalog catalog) {
+        if (questionId != null) {
+            if (!catalog.contains(questionId)) {
+                throw new IllegalArgumentException("Unknown questionId: " + questionId);
+            }
+            return questionId;
+        }
+        if (question == null || question.trim().isEmpty()) {
+            throw new IllegalArgumentException("question is required");
+        }
+        return question;
+    }
+
+    private static int requireHashParameters(SecretQuestionCredentialRow row, byte[] salt) {
+        if (!SecretQuestionAnswerHasher.ALGORITHM.equals(row.getAlgorithm())) {
+            throw new IllegalArgumentException("Unsupported algorithm: " + row.getAlgorithm());
+        }
+        if (row.getNormalization() != null
+                && !SecretQuestionAnswerNormalizer.FORM.equals(row.getNormalization())) {
+            throw new IllegalArgumentException(
+                    "Unsupported normalization: " + row.getNormalization());
+        }
+        if (salt == null || row.getHashIterations() == null) {
+            throw new IllegalArgumentException(
+                    "salt and hashIterations are required with value");
+        }
+        // 極端な反復回数の行は、ログインのたびに検証プールを占有したり総当たりを容易にしたりするので断る
+        int iterations = row.getHashIterations();
+        if (iterations < SecretQuestionAnswerHasher.MIN_ITERATIONS
+                || iterations > SecretQuestionAnswerHasher.MAX_ITERATIONS) {
+            throw new IllegalArgumentException("hashIterations must be between "
+                    + SecretQuestionAnswerHasher.MIN_ITERATIONS + " and "
+                    + SecretQuestionAnswerHasher.MAX_ITERATIONS);
+        }
+        return iterations;
+    }
+
+    private RealmModel getRealm(KeycloakSession session) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            throw new ModelException("Realm not found: " + realmId);
+        }
+        session.getContext().setRealm(realm);
+        return realm;
+    }
+
+    static SecretQuestionCredentialProvider getProvider(KeycloakSession session) {
+        return (SecretQuestionCredentialProvider) session.getProvider(CredentialProvider.class,
+                SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+    }
+
+    static void write(Writer out, Object status) throws IOException {
+        out.write(JsonSerialization.writeValueAsString(status));
+        out.write('\n');
+    }
+
+    private static final class PendingRow {
+        private final int line;
+        private final SecretQuestionCredentialRow row;
+
+        private PendingRow(int line, SecretQuestionCredentialRow row) {
+            this.line = line;
+            this.row = row;
+        }
+
+        private SecretQuestionImportStatus error(String message) {
+            return SecretQuestionImportStatus.error(line,
+                    row.getUserId() != null ? row.getUserId() : row.getUsername(), message);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.keycloak.example.authenticator.admin;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.jboss.logging.Logger;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionEnrollmentStats;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialCodec;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+
+/*
+ * CREDENTIAL テーブルを直接集計して、レルムの秘密の質問の登録状況を求めます。
+ *
+ * ユーザごとに isConfiguredFor() を呼ぶとユーザ数だけクエリが発行されるので、件数・登録日時の最小/最大・
+ * 経過日数ごとの件数は 1 回の集計クエリで求めます。質問は credential_data（CLOB）の JSON の中に
+ * あります。ソルトは secret_data 側にあるので、同じ質問で登録した行の credential_data は同じ値に
+ * なります。そこで credential_data を文字列に変換して GROUP BY し、データベースが返す異なる値と
+ * 件数だけをデコードします。質問は必須アクションの設定で決まるので、異なる値はわずかです。
+ *
+ * CLOB のままでは GROUP BY できないデータベースがあるので、変換するのは GROUPED_MAX_LENGTH 文字
+ * 以下の行だけです。それより長い行（長い文言で多くの質問を登録した行）は別のクエリで流し読みして
+ * 数えます。secret_data（回答のハッシュ）は読みません。質問カタログで登録した質問は、文言ではなく
+ * カタログの ID ごとに数えます。
+ *
+ * JpaSecretQuestionCredentialKeyset と同じく、ユーザフェデレーション側に保存されたクレデンシャルは
+ * 対象外です。
+ */
+public final class SecretQuestionEnrollmentStatistics {
+    private static final Logger logger = Logger.getLogger(SecretQuestionEnrollmentStatistics.class);
+
+    // 経過日数の区切り。それぞれ「この日数未満」の区間で、最後の区間はそれ以上
+    static final int[] AGE_BUCKET_DAYS = {1, 7, 30, 90, 365};
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final String FROM = " from CredentialEntity c join c.user u"
+            + " where u.realmId = :realmId and c.type = :type";
+    private static final String TOTALS_QUERY = totalsQuery();
+    // 文字列に変換して GROUP BY する credential_data の長さの上限。UTF-8 で 4000 バイトに収まる
+    static final int GROUPED_MAX_LENGTH = 1000;
+
+    private static final String GROUPED_CREDENTIAL_DATA =
+            "cast(substring(c.credentialData, 1, " + GROUPED_MAX_LENGTH + ") as String)";
+    private static final String GROUPED_QUERY = "select " + GROUPED_CREDENTIAL_DATA + ", count(c)"
+            + FROM + " and length(c.credentialData) <= " + GROUPED_MAX_LENGTH + " group by "
+            + GROUPED_CREDENTIAL_DATA;
+    private static final String OVERSIZED_QUERY = "select c.credentialData" + FROM
+            + " and length(c.credentialData) > " + GROUPED_MAX_LENGTH;
+
+    private SecretQuestionEnrollmentStatistics() {}
+
+    // 区切りごとに「その時刻以降に登録された件数」を数え、区間の件数は隣どうしの差で求める
+    private static String totalsQuery() {
+        StringBuilder query = new StringBuilder("select count(c), count(distinct u.id),"
+                + " min(c.createdDate), max(c.createdDate), count(c.createdDate)");
+        for (int i = 0; i < AGE_BUCKET_DAYS.length; i++) {
+            query.append(", sum(case when c.createdDate >= :since").append(i)
+                    .append(" then 1 else 0 end)");
+        }
+        return query.append(FROM).toString();
+    }
+
+    /**
+     * @param users レルムのユーザ数（UserProvider#getUsersCount）
+     * @param now 経過日数の基準にする時刻（エポックミリ秒）
+     */
+    public static SecretQuestionEnrollmentStats compute(EntityManager entityManager,
+            String realmId, long users, long now) {
+        TypedQuery<Object[]> totalsQuery = entityManager.createQuery(TOTALS_QUERY, Object[].class)
+                .setParameter("realmId", realmId)
+                .setParameter("type", SecretQuestionCredentialModel.TYPE);
+        for (int i = 0; i < AGE_BUCKET_DAYS.length; i++) {
+            totalsQuery.setParameter("since" + i, now - AGE_BUCKET_DAYS[i] * DAY_MILLIS);
+        }
+        Object[] totals = totalsQuery.getSingleResult();
+        long credentials = toLong(totals[0]);
+        long dated = toLong(totals[4]);
+        List<SecretQuestionEnrollmentStats.AgeBucket> histogram = new ArrayList<>();
+        long younger = 0;
+        for (int i = 0; i < AGE_BUCKET_DAYS.length; i++) {
+            long since = toLong(totals[5 + i]);
+            histogram.add(new SecretQuestionEnrollmentStats.AgeBucket(AGE_BUCKET_DAYS[i],
+                    since - younger));
+            younger = since;
+        }
+        histogram.add(new SecretQuestionEnrollmentStats.AgeBucket(null, dated - younger));
+        return new SecretQuestionEnrollmentStats(now, users, toLong(totals[1]), credentials,
+                (Long) totals[2], (Long) totals[3], histogram, credentials - dated,
+                countQuestions(entityManager, realmId));
+    }
+
+    private static List<SecretQuestionEnrollmentStats.QuestionCount> countQuestions(
+            EntityManager entityManager, String realmId) {
+        Map<String, Long> rows = new HashMap<>();
+        for (Object[] row : entityManager.createQuery(GROUPED_QUERY, Object[].class)
+                .setParameter("realmId", realmId)
+                .setParameter("type", SecretQuestionCredentialModel.TYPE).getResultList()) {
+            rows.merge((String) row[0], toLong(row[1]), Long::sum);
+        }
+        try (Stream<String> oversized = entityManager.createQuery(OVERSIZED_QUERY, String.class)
+                .setParameter("realmId", realmId)
+                .setParameter("type", SecretQuestionCredentialModel.TYPE).getResultStream()) {
+            oversized.forEach(json -> rows.merge(json, 1L, Long::sum));
+        }
+        Map<String, Long> questions = new HashMap<>();
+        for (Map.Entry<String, Long> row : rows.entrySet()) {
+            try {
+                SecretQuestionCredentialData data =
+                        SecretQuestionCredentialCodec.readCredentialData(row.getKey());
+                for (String question : data.isCatalogued() ? data.getQuestionIds()
+                        : data.getQuestions()) {
+                    if (question != null) {
+                        questions.merge(question, row.getValue(), Long::sum);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debugf(e, "Skipping unreadable credential_data in realm %s", realmId);
+            }
+        }
+        List<SecretQuestionEnrollmentStats.QuestionCount> counts = new ArrayList<>();
+        questions.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .forEach(entry -> counts.add(new SecretQuestionEnrollmentStats.QuestionCount(
+                        entry.getKey(), entry.getValue())));
+        return counts;
+    }
+
+    // 行がない場合、sum() は null を返す
+    private static long toLong(Object value) {
+        return value != null ? ((Number) value).longValue() : 0L;
+    }
+}
@@ -0,0 +1,28 @@
+package org.keycloak.example.authenticator.admin;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/*
+ * 一括処理の 1 バッチ分を、新しいセッションとトランザクションで実行します。
+ *
+ * バッチごとにセッションを作り直すので、JPA の永続化コンテキストが件数に比例して膨らむことはありません。
+ * タスクが例外を投げた場合やロールバックのみにマークされた場合は、ロールバックしたうえで例外を投げます
+ * （runJobInTransaction はロールバックのみの場合に黙ってロールバックするため）。
+ */
+@FunctionalInterface
+public interface SecretQuestionTransactionRunner {
+
+    void run(KeycloakSessionTask task);
+
+    static SecretQuestionTransactionRunner of(KeycloakSessionFactory sessionFactory) {
+        return task -> KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            task.run(session);
+            if (session.getTransactionManager().getRollbackOnly()) {
+                throw new ModelException("Transaction was marked for rollback");
+            }
+        });
+    }
+}
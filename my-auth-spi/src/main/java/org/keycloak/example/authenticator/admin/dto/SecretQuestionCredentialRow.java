@@ -0,0 +1,184 @@
+package org.keycloak.example.authenticator.admin.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+
+/*
+ * 一括インポート/エクスポートの NDJSON の 1 行分。
+ *
+ * ユーザは userId か username のどちらかで指定します。回答は平文の answer か、エクスポートした
+ * ハッシュ（algorithm / hashIterations / normalization / salt / value。salt と value は base64）の
+ * どちらかで渡します。エクスポートは常にハッシュの形で出力し、平文の回答は出力しません。normalization は
+ * ハッシュ化の前に回答をそろえた形で、ないものはそろえずにハッシュ化した古いハッシュとして扱います。
+ *
+ * 質問が複数あるクレデンシャルは、question / answer / salt / value の代わりに questions に質問ごとの
+ * 組を並べます（algorithm / hashIterations / normalization はトップレベルのまま、すべての質問で
+ * 共通です）。
+ *
+ * 質問カタログ（SecretQuestionCatalog）で登録したクレデンシャルの質問は、question の代わりに
+ * questionId で表します。インポートするレルムのカタログにない ID は受け付けません。
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SecretQuestionCredentialRow {
+    private final String userId;
+    private final String username;
+    private final String question;
+    private final String questionId;
+    private final String answer;
+    private final String algorithm;
+    private final Integer hashIterations;
+    private final String normalization;
+    private final byte[] salt;
+    private final byte[] value;
+    private final String userLabel;
+    private final Long createdDate;
+    private final List<Question> questions;
+
+    public SecretQuestionCredentialRow(String userId, String username, String question,
+            String answer, String algorithm, Integer hashIterations, String normalization,
+            byte[] salt, byte[] value, String userLabel, Long createdDate,
+            List<Question> questions) {
+        this(userId, username, question, null, answer, algorithm, hashIterations, normalization,
+                salt, value, userLabel, createdDate, questions);
+    }
+
+    @JsonCreator
+    public SecretQuestionCredentialRow(@JsonProperty("userId") String userId,
+            @JsonProperty("username") String username, @JsonProperty("question") String question,
+            @JsonProperty("questionId") String questionId,
+            @JsonProperty("answer") String answer, @JsonProperty("algorithm") String algorithm,
+            @JsonProperty("hashIterations") Integer hashIterations,
+            @JsonProperty("normalization") String normalization,
+            @JsonProperty("salt") byte[] salt, @JsonProperty("value") byte[] value,
+            @JsonProperty("userLabel") String userLabel,
+            @JsonProperty("createdDate") Long createdDate,
+            @JsonProperty("questions") List<Question> questions) {
+        this.userId = userId;
+        this.username = username;
+        this.question = question;
+        this.questionId = questionId;
+        this.answer = answer;
+        this.algorithm = algorithm;
+        this.hashIterations = hashIterations;
+        this.normalization = normalization;
+        this.salt = salt;
+        this.value = value;
+        this.userLabel = userLabel;
+        this.createdDate = createdDate;
+        this.questions = questions;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getQuestion() {
+        return question;
+    }
+
+    public String getQuestionId() {
+        return questionId;
+    }
+
+    public String getAnswer() {
+        return answer;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public Integer getHashIterations() {
+        return hashIterations;
+    }
+
+    public String getNormalization() {
+        return normalization;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public String getUserLabel() {
+        return userLabel;
+    }
+
+    public Long getCreatedDate() {
+        return createdDate;
+    }
+
+    // 質問が複数ある場合の質問ごとの組。1 問だけの行では null
+    public List<Question> getQuestions() {
+        return questions;
+    }
+
+    @JsonIgnore
+    public boolean isHashed() {
+        return value != null;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Question {
+        private final String question;
+        private final String questionId;
+        private final String answer;
+        private final byte[] salt;
+        private final byte[] value;
+
+        public Question(String question, String answer, byte[] salt, byte[] value) {
+            this(question, null, answer, salt, value);
+        }
+
+        @JsonCreator
+        public Question(@JsonProperty("question") String question,
+                @JsonProperty("questionId") String questionId,
+                @JsonProperty("answer") String answer, @JsonProperty("salt") byte[] salt,
+                @JsonProperty("value") byte[] value) {
+            this.question = question;
+            this.questionId = questionId;
+            this.answer = answer;
+            this.salt = salt;
+            this.value = value;
+        }
+
+        public String getQuestion() {
+            return question;
+        }
+
+        public String getQuestionId() {
+            return questionId;
+        }
+
+        public String getAnswer() {
+            return answer;
+        }
+
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        @JsonIgnore
+        public boolean isHashed() {
+            return value != null;
+        }
+    }
+}
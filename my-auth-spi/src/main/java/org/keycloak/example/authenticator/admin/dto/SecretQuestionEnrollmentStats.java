@@ -0,0 +1,119 @@
+package org.keycloak.example.authenticator.admin.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * レルムの秘密の質問の登録状況（GET credentials/stats のレスポンス）。
+ *
+ * - users / enrolledUsers / credentials: レルムのユーザ数、秘密の質問を登録したユーザ数とクレデンシャル数
+ *
+ * - oldestCreatedDate / newestCreatedDate: 登録日時（エポックミリ秒）の最小と最大。登録がなければ null
+ *
+ * - ageHistogram: 登録からの経過日数ごとのクレデンシャル数。maxAgeDays 日未満の区間を短い順に並べ、
+ * 最後の区間（maxAgeDays が null）はそれ以上。登録日時のない古い行は unknownAge に数える
+ *
+ * - questions: 質問ごとの登録数。多い順
+ *
+ * computedAt は集計した時刻です。レスポンスは短い間キャッシュするので、現在時刻より古いことがあります。
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SecretQuestionEnrollmentStats {
+    private final long computedAt;
+    private final long users;
+    private final long enrolledUsers;
+    private final long credentials;
+    private final Long oldestCreatedDate;
+    private final Long newestCreatedDate;
+    private final List<AgeBucket> ageHistogram;
+    private final long unknownAge;
+    private final List<QuestionCount> questions;
+
+    public SecretQuestionEnrollmentStats(long computedAt, long users, long enrolledUsers,
+            long credentials, Long oldestCreatedDate, Long newestCreatedDate,
+            List<AgeBucket> ageHistogram, long unknownAge, List<QuestionCount> questions) {
+        this.computedAt = computedAt;
+        this.users = users;
+        this.enrolledUsers = enrolledUsers;
+        this.credentials = credentials;
+        this.oldestCreatedDate = oldestCreatedDate;
+        this.newestCreatedDate = newestCreatedDate;
+        this.ageHistogram = Collections.unmodifiableList(ageHistogram);
+        this.unknownAge = unknownAge;
+        this.questions = Collections.unmodifiableList(questions);
+    }
+
+    public long getComputedAt() {
+        return computedAt;
+    }
+
+    public long getUsers() {
+        return users;
+    }
+
+    public long getEnrolledUsers() {
+        return enrolledUsers;
+    }
+
+    public long getCredentials() {
+        return credentials;
+    }
+
+    public Long getOldestCreatedDate() {
+        return oldestCreatedDate;
+    }
+
+    public Long getNewestCreatedDate() {
+        return newestCreatedDate;
+    }
+
+    public List<AgeBucket> getAgeHistogram() {
+        return ageHistogram;
+    }
+
+    public long getUnknownAge() {
+        return unknownAge;
+    }
+
+    public List<QuestionCount> getQuestions() {
+        return questions;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class AgeBucket {
+        private final Integer maxAgeDays;
+        private final long count;
+
+        public AgeBucket(Integer maxAgeDays, long count) {
+            this.maxAgeDays = maxAgeDays;
+            this.count = count;
+        }
+
+        public Integer getMaxAgeDays() {
+            return maxAgeDays;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static class QuestionCount {
+        private final String question;
+        private final long count;
+
+        public QuestionCount(String question, long count) {
+            this.question = question;
+            this.count = count;
+        }
+
+        public String getQuestion() {
+            return question;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.keycloak.example.authenticator.admin.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/*
+ * 一括インポートのレスポンス（NDJSON）の 1 行分。
+ *
+ * - error: 取り込めなかった行。line は入力の行番号（1 始まり）
+ *
+ * - progress: バッチをコミットするたびに出力する途中経過
+ *
+ * - summary: 最後に 1 行だけ出力する結果
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SecretQuestionImportStatus {
+    public static final String ERROR = "error";
+    public static final String PROGRESS = "progress";
+    public static final String SUMMARY = "summary";
+
+    private final String type;
+    private final Integer line;
+    private final String user;
+    private final String message;
+    private final Long processed;
+    private final Long created;
+    private final Long failed;
+
+    private SecretQuestionImportStatus(String type, Integer line, String user, String message,
+            Long processed, Long created, Long failed) {
+        this.type = type;
+        this.line = line;
+        this.user = user;
+        this.message = message;
+        this.processed = processed;
+        this.created = created;
+        this.failed = failed;
+    }
+
+    public static SecretQuestionImportStatus error(int line, String user, String message) {
+        return new SecretQuestionImportStatus(ERROR, line, user, message, null, null, null);
+    }
+
+    public static SecretQuestionImportStatus progress(long processed, long created, long failed) {
+        return new SecretQuestionImportStatus(PROGRESS, null, null, null, processed, created,
+                failed);
+    }
+
+    public static SecretQuestionImportStatus summary(long processed, long created, long failed) {
+        return new SecretQuestionImportStatus(SUMMARY, null, null, null, processed, created,
+                failed);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Integer getLine() {
+        return line;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Long getProcessed() {
+        return processed;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public Long getFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,66 @@
+package org.keycloak.example.authenticator.audit;
+
+/*
+ * 秘密の質問の監査イベント。リクエストスレッドで作って SecretQuestionAuditLog のキューに入れ、
+ * 書き出しスレッドが読むので不変にしています。RealmModel や UserModel はリクエストの外では使えないので、
+ * ID だけを持ちます。
+ */
+public final class SecretQuestionAuditEvent {
+
+    public enum Type {
+        // 署名付きクッキーで出題を省略した
+        COOKIE_BYPASS,
+        // 質問を出題した
+        CHALLENGE,
+        SUCCESS,
+        FAILURE,
+        // 試行回数の上限で断った
+        THROTTLED,
+        // 検証プールの混雑、またはレルムの同時実行数の上限で断った
+        BUSY,
+        // 必須アクションで秘密の質問を登録した
+        ENROLLMENT
+    }
+
+    private final Type type;
+    private final long time;
+    private final String realmId;
+    private final String userId;
+    private final String ipAddress;
+
+    public SecretQuestionAuditEvent(Type type, long time, String realmId, String userId,
+            String ipAddress) {
+        this.type = type;
+        this.time = time;
+        this.realmId = realmId;
+        this.userId = userId;
+        this.ipAddress = ipAddress;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // イベントが起きた時刻（エポックミリ秒）。書き出した時刻ではない
+    public long getTime() {
+        return time;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    @Override
+    public String toString() {
+        return "type=" + type + ", time=" + time + ", realmId=" + realmId + ", userId=" + userId
+                + ", ipAddress=" + ipAddress;
+    }
+}
@@ -0,0 +1,188 @@
+package org.keycloak.example.authenticator.audit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.common.util.Time;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditEvent.Type;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/*
+ * 秘密の質問の監査イベントを、リクエストスレッドから切り離して書き出すログ。
+ *
+ * record() はイベントを固定長のキュー（ArrayBlockingQueue のリングバッファ）に offer するだけで、
+ * 待つことはありません。キューが一杯の場合はイベントを捨てて数え（getDroppedCount）、ログインを
+ * 止めません。書き出し用のデーモンスレッドが 1 つあり、キューにたまった分を最大 batchSize 件ずつ
+ * まとめて取り出して sink に渡します。混んでいるときほど 1 回に書き出す件数が増えます。
+ *
+ * 既定の sink は LOG_CATEGORY のロガーに 1 件 1 行の INFO で出力します。書き出しに失敗したバッチは
+ * 警告を出して捨て、書き出しスレッドは止めません。
+ *
+ * Keycloak のイベント（EventBuilder）を使わないのは、イベントの種類が EventType の列挙に固定されている
+ * ことと、イベントの保存が有効なレルムではリクエストのトランザクションで DB に書き込むためです。
+ */
+public final class SecretQuestionAuditLog {
+    private static final Logger logger = Logger.getLogger(SecretQuestionAuditLog.class);
+
+    public static final String LOG_CATEGORY = "org.keycloak.example.authenticator.audit";
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    // close() で残りを書き出すのを待つ時間の上限
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+    private static final AtomicInteger WRITERS = new AtomicInteger();
+
+    public static final Consumer<List<SecretQuestionAuditEvent>> LOG_SINK = new LogSink();
+
+    // 記録しないインスタンス。record() は何もしない
+    public static final SecretQuestionAuditLog DISABLED = new SecretQuestionAuditLog();
+
+    private final ArrayBlockingQueue<SecretQuestionAuditEvent> queue;
+    private final int batchSize;
+    private final Consumer<List<SecretQuestionAuditEvent>> sink;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private SecretQuestionAuditLog() {
+        this.queue = null;
+        this.batchSize = 0;
+        this.sink = null;
+        this.writer = null;
+    }
+
+    /**
+     * @param queueSize 書き出しを待つイベントの数の上限。超えた分は捨てる。
+     * @param batchSize 1 回に sink へ渡すイベントの数の上限。
+     * @param sink イベントの書き出し先。書き出しスレッドからだけ呼ばれる。
+     */
+    public SecretQuestionAuditLog(int queueSize, int batchSize,
+            Consumer<List<SecretQuestionAuditEvent>> sink) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.sink = sink;
+        this.writer = new Thread(this::drain,
+                "secret-question-audit-" + WRITERS.incrementAndGet());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * SPI の設定（auditEnabled / auditQueueSize / auditBatchSize）から作ります。
+     */
+    public static SecretQuestionAuditLog fromConfig(Config.Scope config) {
+        if (!config.getBoolean("auditEnabled", true)) {
+            return DISABLED;
+        }
+        return new SecretQuestionAuditLog(config.getInt("auditQueueSize", DEFAULT_QUEUE_SIZE),
+                config.getInt("auditBatchSize", DEFAULT_BATCH_SIZE), LOG_SINK);
+    }
+
+    public void record(Type type, RealmModel realm, UserModel user, String ipAddress) {
+        if (queue == null) {
+            return;
+        }
+        SecretQuestionAuditEvent event = new SecretQuestionAuditEvent(type,
+                Time.currentTimeMillis(), realm != null ? realm.getId() : null,
+                user != null ? user.getId() : null, ipAddress);
+        if (closed || !queue.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    private void drain() {
+        List<SecretQuestionAuditEvent> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                SecretQuestionAuditEvent first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                // close() から起こされた。キューに残っている分を書き出してから終わる
+                continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<SecretQuestionAuditEvent> batch) {
+        try {
+            sink.accept(batch);
+            written.add(batch.size());
+        } catch (RuntimeException e) {
+            failed.add(batch.size());
+            logger.warnf(e, "Failed to write %d secret question audit events", batch.size());
+        }
+    }
+
+    /**
+     * 新しいイベントの受け付けを止め、キューに残っているイベントを書き出してから書き出しスレッドを
+     * 終わらせます。書き出しが CLOSE_TIMEOUT_MILLIS 以内に終わらない場合は待たずに戻ります。
+     */
+    public void close() {
+        if (writer == null || closed) {
+            return;
+        }
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return queue != null;
+    }
+
+    public int getQueueSize() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "queued=" + getQueueSize() + ", written=" + getWrittenCount() + ", dropped="
+                + getDroppedCount() + ", failed=" + getFailedCount();
+    }
+
+    private static final class LogSink implements Consumer<List<SecretQuestionAuditEvent>> {
+        private final Logger audit = Logger.getLogger(LOG_CATEGORY);
+
+        @Override
+        public void accept(List<SecretQuestionAuditEvent> events) {
+            if (!audit.isInfoEnabled()) {
+                return;
+            }
+            for (SecretQuestionAuditEvent event : events) {
+                audit.info(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.keycloak.example.authenticator.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import org.keycloak.common.util.Time;
+
+/**
+ * ノードローカルで使う、件数上限と TTL を持つシンプルなキャッシュ。
+ *
+ * 読み取りは ConcurrentHashMap のロックフリーな get のみで完結します。上限を超えたときだけ put
+ * 側で掃除を行い、期限切れのエントリを先に、それでも足りなければ任意のエントリを追い出します。
+ * 厳密な LRU ではありませんが、ログインのホットパスでロックを取らないことを優先しています。
+ *
+ * ヒット/ミス/追い出しの件数はメトリクスやログ用に参照できます。
+ */
+public final class LocalCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries 保持するエントリ数の上限。0 以下の場合はキャッシュしない。
+     * @param ttlMillis エントリの有効期間（ミリ秒）。0 以下の場合は期限なし。
+     */
+    public LocalCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public V get(K key) {
+        return get(key, null);
+    }
+
+    /**
+     * キーに対応する値を返します。期限切れ、または isCurrent が false を返した場合はエントリを破棄して
+     * ミスとして扱います。
+     */
+    public V get(K key, Predicate<? super V> isCurrent) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.isExpired(Time.currentTimeMillis())) {
+            if (entries.remove(key, entry)) {
+                evictions.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        if (isCurrent != null && !isCurrent.test(entry.value)) {
+            entries.remove(key, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        long expiresAt = ttlMillis > 0 ? Time.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        if (entries.put(key, new Entry<>(value, expiresAt)) == null
+                && entries.size() > maxEntries) {
+            shrink();
+        }
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    // 上限に達するたびに全件を走査しないよう、1 割ほど余裕を持たせて削る
+    private void shrink() {
+        int target = maxEntries - Math.max(1, maxEntries / 10);
+        long now = Time.currentTimeMillis();
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+                evictions.increment();
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (entries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount();
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
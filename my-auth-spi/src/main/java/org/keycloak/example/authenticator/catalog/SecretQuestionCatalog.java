@@ -0,0 +1,204 @@
+package org.keycloak.example.authenticator.catalog;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * レルムで出題する秘密の質問の一覧（質問カタログ）。質問ごとに変わらない ID と、ロケールごとの文言を
+ * 持ちます。
+ *
+ * クレデンシャルには文言ではなく質問の ID を保存します（credential_data のバージョン 1 の
+ * questionIds）。行が短くなり、デコードしたクレデンシャルがユーザごとに同じ文言を持つこともなくなります。
+ * 文言はノードにつきレルムごとに 1 つ、このカタログだけが持ちます。
+ *
+ * レルム属性 secretQuestionCatalog に JSON で指定します。キーが質問の ID で、値はロケール（言語タグ）
+ * ごとの文言か、すべてのロケールで使う 1 つの文言です。質問は書いた順に並びます。
+ *
+ * {"first-pet": {"en": "What was the name of your first pet?", "ja": "最初に飼ったペットの名前は？"},
+ * "birth-city": "In what city were you born?"}
+ *
+ * 文言は、ロケールの言語タグ（ja-JP）、言語（ja）、最初に書いた文言の順に探します。
+ *
+ * 不変の構造です。属性が変わった場合は新しいインスタンスを作って参照ごと差し替えるので
+ * （SecretQuestionCatalogRegistry）、読み取り側が作りかけのカタログを見ることはありません。
+ */
+public final class SecretQuestionCatalog {
+
+    private static final TypeReference<LinkedHashMap<String, Object>> JSON_TYPE =
+            new TypeReference<LinkedHashMap<String, Object>>() {};
+
+    public static final SecretQuestionCatalog EMPTY =
+            new SecretQuestionCatalog("", new LinkedHashMap<>());
+
+    /*
+     * レルムにカタログがなく、必須アクションの設定（questions）でも質問を指定していない場合に使う
+     * 組み込みのカタログ。ID は登録済みのクレデンシャルから参照されるので変えないこと。
+     */
+    public static final SecretQuestionCatalog DEFAULT = builtIn(
+            new String[] {"mothers-first-name", "What is your mom's first name?",
+                    "お母さんの名前は？"},
+            new String[] {"first-pet", "What was the name of your first pet?",
+                    "最初に飼ったペットの名前は？"},
+            new String[] {"birth-city", "In what city were you born?",
+                    "生まれた街はどこですか？"});
+
+    private final String source;
+    private final List<String> ids;
+    private final Map<String, Question> questions;
+    // 文言から ID を引くための表。古い行の文言を ID に置き換えるときに使う
+    private final Map<String, String> idsByText;
+
+    private SecretQuestionCatalog(String source, LinkedHashMap<String, Question> questions) {
+        this.source = source;
+        this.ids = Collections.unmodifiableList(new ArrayList<>(questions.keySet()));
+        this.questions = Collections.unmodifiableMap(questions);
+        Map<String, String> idsByText = new HashMap<>();
+        for (Question question : questions.values()) {
+            for (String text : question.texts.values()) {
+                idsByText.putIfAbsent(text, question.id);
+            }
+        }
+        this.idsByText = idsByText;
+    }
+
+    private static SecretQuestionCatalog builtIn(String[]... entries) {
+        LinkedHashMap<String, Question> questions = new LinkedHashMap<>();
+        for (String[] entry : entries) {
+            LinkedHashMap<String, String> texts = new LinkedHashMap<>();
+            texts.put("en", entry[1]);
+            texts.put("ja", entry[2]);
+            questions.put(entry[0], new Question(entry[0], texts));
+        }
+        return new SecretQuestionCatalog("", questions);
+    }
+
+    /**
+     * JSON から作ります。不正な質問は飛ばし、問題を errors に追加します。JSON として読めない場合は
+     * 空のカタログを返します。
+     */
+    public static SecretQuestionCatalog compile(String source, List<String> errors) {
+        String normalized = source == null ? "" : source;
+        if (normalized.trim().isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, Object> entries;
+        try {
+            entries = JsonSerialization.readValue(normalized, JSON_TYPE);
+        } catch (IOException e) {
+            errors.add("not a JSON object (" + e.getMessage() + ")");
+            return new SecretQuestionCatalog(normalized, new LinkedHashMap<>());
+        }
+        LinkedHashMap<String, Question> questions = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            String id = entry.getKey();
+            if (id.trim().isEmpty() || !id.equals(id.trim())) {
+                errors.add("invalid id '" + id + "'");
+                continue;
+            }
+            LinkedHashMap<String, String> texts = readTexts(entry.getValue());
+            if (texts.isEmpty()) {
+                errors.add("no text for '" + id + "'");
+                continue;
+            }
+            questions.put(id, new Question(id, texts));
+        }
+        return new SecretQuestionCatalog(normalized, questions);
+    }
+
+    // 1 つの文言か、言語タグごとの文言のオブジェクト。空の文言は無視する
+    private static LinkedHashMap<String, String> readTexts(Object value) {
+        LinkedHashMap<String, String> texts = new LinkedHashMap<>();
+        if (value instanceof String) {
+            if (!((String) value).trim().isEmpty()) {
+                texts.put("", (String) value);
+            }
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> text : ((Map<?, ?>) value).entrySet()) {
+                if (text.getValue() instanceof String
+                        && !((String) text.getValue()).trim().isEmpty()) {
+                    texts.put(String.valueOf(text.getKey()).toLowerCase(Locale.ROOT),
+                            (String) text.getValue());
+                }
+            }
+        }
+        return texts;
+    }
+
+    public boolean isCompiledFrom(String source) {
+        return this.source.equals(source == null ? "" : source);
+    }
+
+    public boolean isEmpty() {
+        return questions.isEmpty();
+    }
+
+    // 質問の ID を書いた順に返す
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public boolean contains(String id) {
+        return id != null && questions.containsKey(id);
+    }
+
+    /**
+     * 質問の文言を locale で返します。カタログにない ID の場合は null を返します。
+     */
+    public String getText(String id, Locale locale) {
+        Question question = id != null ? questions.get(id) : null;
+        return question != null ? question.text(locale) : null;
+    }
+
+    // すべての質問の文言を、ID と同じ順番で返す
+    public List<String> getTexts(Locale locale) {
+        List<String> texts = new ArrayList<>(questions.size());
+        for (Question question : questions.values()) {
+            texts.add(question.text(locale));
+        }
+        return texts;
+    }
+
+    /**
+     * どれかのロケールの文言が text と一致する質問の ID を返します。一致するものがなければ null です。
+     */
+    public String findId(String text) {
+        return text != null ? idsByText.get(text) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "questions=" + ids;
+    }
+
+    private static final class Question {
+        private final String id;
+        // 小文字の言語タグごとの文言。"" はロケールを指定しない文言
+        private final Map<String, String> texts;
+        private final String fallback;
+
+        private Question(String id, LinkedHashMap<String, String> texts) {
+            this.id = id;
+            this.texts = texts;
+            this.fallback = texts.values().iterator().next();
+        }
+
+        private String text(Locale locale) {
+            if (locale == null) {
+                return fallback;
+            }
+            String text = texts.get(locale.toLanguageTag().toLowerCase(Locale.ROOT));
+            if (text == null) {
+                text = texts.get(locale.getLanguage());
+            }
+            return text != null ? text : fallback;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.keycloak.example.authenticator.catalog;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.logging.Logger;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.models.RealmModel;
+
+/*
+ * レルムごとの質問カタログ（SecretQuestionCatalog）をノードローカルに保持します。
+ *
+ * レルム属性 secretQuestionCatalog の文字列が変わっていなければ保持しているカタログをそのまま返し、
+ * 変わっていれば解釈し直して差し替えます。レルム属性はレルムのキャッシュにあるので、ログインのたびに
+ * DB に問い合わせることも、JSON を解釈し直すこともありません。管理 API で属性を書き換えると、
+ * レルムのキャッシュの無効化に乗って各ノードのカタログも入れ替わります。
+ *
+ * 不正な質問は飛ばして警告を出します。有効な質問が 1 つもない場合は、属性がない場合と同じく null を
+ * 返します。
+ */
+public class SecretQuestionCatalogRegistry {
+    private static final Logger logger = Logger.getLogger(SecretQuestionCatalogRegistry.class);
+
+    public static final String REALM_CATALOG_ATTRIBUTE = "secretQuestionCatalog";
+
+    private final LocalCache<String, SecretQuestionCatalog> catalogs;
+
+    // maxRealms が 0 の場合は保持せず、呼ばれるたびに解釈する
+    public SecretQuestionCatalogRegistry(int maxRealms) {
+        this.catalogs = new LocalCache<>(maxRealms, 0);
+    }
+
+    /*
+     * レルムの質問カタログを返します。属性がない、または有効な質問が 1 つもない場合は null を返します。
+     */
+    public SecretQuestionCatalog get(RealmModel realm) {
+        String source = realm.getAttribute(REALM_CATALOG_ATTRIBUTE);
+        if (source == null || source.trim().isEmpty()) {
+            return null;
+        }
+        SecretQuestionCatalog catalog =
+                catalogs.get(realm.getId(), cached -> cached.isCompiledFrom(source));
+        if (catalog == null) {
+            List<String> errors = new ArrayList<>();
+            catalog = SecretQuestionCatalog.compile(source, errors);
+            if (!errors.isEmpty()) {
+                logger.warnf("Ignoring invalid secret question catalog entries in realm %s: %s",
+                        realm.getName(), String.join(", ", errors));
+            }
+            catalogs.put(realm.getId(), catalog);
+        }
+        return catalog.isEmpty() ? null : catalog;
+    }
+
+    @Override
+    public String toString() {
+        return catalogs.toString();
+    }
+}
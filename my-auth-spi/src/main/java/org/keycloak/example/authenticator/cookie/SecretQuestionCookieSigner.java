@@ -0,0 +1,250 @@
+package org.keycloak.example.authenticator.cookie;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.jboss.logging.Logger;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.JavaAlgorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/*
+ * SECRET_QUESTION_ANSWERED クッキーの値として使う署名付きトークンを作成/検証します。
+ *
+ * 形式: <alg>.<kid>.<有効期限(epoch 秒)>[.<端末 ID>].<署名>
+ *
+ * kid と署名は base64url（パディングなし）です。端末 ID は信頼済み端末の登録簿
+ * （SecretQuestionDeviceRegistry）が発行したもので、登録簿を使わない場合は省きます。署名は
+ * 署名の直前までの部分にレルム ID とユーザ ID を連結したものに対する HMAC なので、トークン自体にユーザやレルムは含まれませんが、
+ * 別のユーザや別のレルムに持ち込んでも検証に失敗します。
+ *
+ * レルムの HMAC 鍵は Keycloak 自身のトークンなど他の用途の署名にも使われるので、HMAC の入力の先頭には
+ * このクッキー専用の固定の文字列（CONTEXT）を置きます。同じ鍵で署名された別の用途の値を、
+ * このクッキーとして通すことはできません。
+ *
+ * 鍵はレルムの鍵プロバイダ（session.keys()）から取得します。新しいトークンは有効な HMAC 鍵で署名し、
+ * 検証は kid で鍵を引くので、鍵をローテーションしても PASSIVE の鍵が残っている間は以前のクッキーも
+ * 使えます。鍵はレルムのコンポーネントとして保存されているので、クラスタのどのノードでも検証できます。
+ * 検証で DB や分散キャッシュへの問い合わせは発生しません。
+ *
+ * Mac インスタンスはアルゴリズムごとにスレッドで使い回し、前回と同じ鍵であれば init も省きます。
+ */
+public final class SecretQuestionCookieSigner {
+    private static final Logger logger = Logger.getLogger(SecretQuestionCookieSigner.class);
+
+    // Keycloak 22 で作成したレルムの既定の HMAC 鍵は HS512。それより前からあるレルムは HS256 のことがある
+    private static final String[] SIGNING_ALGORITHMS = {Algorithm.HS512, Algorithm.HS256};
+
+    private static final char SEPARATOR = '.';
+
+    // HMAC の入力の先頭に置く、このクッキーの用途を表す文字列。NUL で署名対象と区切る
+    private static final byte[] CONTEXT =
+            "secret-question-cookie\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Map<String, KeyedMac>> MACS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private SecretQuestionCookieSigner() {}
+
+    /*
+     * 署名付きトークンを返します。レルムに有効な HMAC 鍵がない場合は null を返します。
+     */
+    public static String sign(KeycloakSession session, RealmModel realm, UserModel user,
+            long expiresAt) {
+        return sign(session, realm, user, expiresAt, null);
+    }
+
+    /*
+     * 端末 ID（base64url）を含めた署名付きトークンを返します。deviceId が null の場合は含めません。
+     */
+    public static String sign(KeycloakSession session, RealmModel realm, UserModel user,
+            long expiresAt, String deviceId) {
+        KeyWrapper key = activeKey(session, realm);
+        if (key == null) {
+            logger.warnf("No active HMAC key in realm %s; secret question cookie not issued",
+                    realm.getName());
+            return null;
+        }
+        String algorithm = key.getAlgorithmOrDefault();
+        StringBuilder token = new StringBuilder(160).append(algorithm).append(SEPARATOR)
+                .append(encode(key.getKid().getBytes(StandardCharsets.UTF_8))).append(SEPARATOR)
+                .append(expiresAt);
+        if (deviceId != null) {
+            token.append(SEPARATOR).append(deviceId);
+        }
+        byte[] signature = signature(key.getSecretKey(), algorithm, token, realm.getId(),
+                user.getId());
+        return token.append(SEPARATOR).append(encode(signature)).toString();
+    }
+
+    public static boolean verify(KeycloakSession session, RealmModel realm, UserModel user,
+            String token, long now) {
+        if (token == null) {
+            return false;
+        }
+        int algorithmEnd = token.indexOf(SEPARATOR);
+        int kidEnd = algorithmEnd < 0 ? -1 : token.indexOf(SEPARATOR, algorithmEnd + 1);
+        int expiresEnd = kidEnd < 0 ? -1 : token.indexOf(SEPARATOR, kidEnd + 1);
+        if (expiresEnd < 0) {
+            return false;
+        }
+        // 端末 ID があれば、署名はその後ろ
+        int signedEnd = token.indexOf(SEPARATOR, expiresEnd + 1);
+        if (signedEnd < 0) {
+            signedEnd = expiresEnd;
+        } else if (signedEnd == expiresEnd + 1 || token.indexOf(SEPARATOR, signedEnd + 1) >= 0) {
+            return false;
+        }
+        String algorithm = signingAlgorithm(token, algorithmEnd);
+        if (algorithm == null) {
+            return false;
+        }
+        try {
+            long expiresAt = Long.parseLong(token.substring(kidEnd + 1, expiresEnd));
+            if (expiresAt <= now) {
+                return false;
+            }
+            String kid = new String(decode(token.substring(algorithmEnd + 1, kidEnd)),
+                    StandardCharsets.UTF_8);
+            KeyWrapper key = session.keys().getKey(realm, kid, KeyUse.SIG, algorithm);
+            if (key == null || key.getSecretKey() == null
+                    || (key.getStatus() != null && !key.getStatus().isEnabled())) {
+                return false;
+            }
+            byte[] expected = signature(key.getSecretKey(), algorithm,
+                    token.subSequence(0, signedEnd), realm.getId(), user.getId());
+            return MessageDigest.isEqual(expected, decode(token.substring(signedEnd + 1)));
+        } catch (IllegalArgumentException e) {
+            // 数値や base64url として読めない値は、改ざんされたものとして扱う
+            return false;
+        }
+    }
+
+    /*
+     * トークンに含まれる端末 ID を返します。含まれていない場合や形式が違う場合は null です。
+     * 値を信用してよいのは verify() が true を返したトークンだけです。
+     */
+    public static String deviceId(String token) {
+        if (token == null) {
+            return null;
+        }
+        int algorithmEnd = token.indexOf(SEPARATOR);
+        int kidEnd = algorithmEnd < 0 ? -1 : token.indexOf(SEPARATOR, algorithmEnd + 1);
+        int expiresEnd = kidEnd < 0 ? -1 : token.indexOf(SEPARATOR, kidEnd + 1);
+        int deviceEnd = expiresEnd < 0 ? -1 : token.indexOf(SEPARATOR, expiresEnd + 1);
+        if (deviceEnd <= expiresEnd + 1 || token.indexOf(SEPARATOR, deviceEnd + 1) >= 0) {
+            return null;
+        }
+        return token.substring(expiresEnd + 1, deviceEnd);
+    }
+
+    /*
+     * 合成した鍵とトークンで、署名と検証と同じ計算（HMAC、base64url、端末 ID の切り出し）を繰り返します。
+     * JCA プロバイダの初期化と JIT を起動時に済ませるためのもので（SecretQuestionWarmup）、
+     * レルムの鍵は使いません。
+     */
+    public static void warmUp(int iterations) {
+        byte[] secret = new byte[64];
+        new SecureRandom().nextBytes(secret);
+        for (String algorithm : SIGNING_ALGORITHMS) {
+            SecretKey key = new SecretKeySpec(secret, JavaAlgorithm.getJavaAlgorithm(algorithm));
+            String signed = algorithm + SEPARATOR
+                    + encode("warm-up".getBytes(StandardCharsets.UTF_8)) + SEPARATOR
+                    + Long.MAX_VALUE + SEPARATOR + encode(secret);
+            for (int i = 0; i < iterations; i++) {
+                String token = signed + SEPARATOR
+                        + encode(signature(key, algorithm, signed, "realm", "user"));
+                byte[] actual = decode(token.substring(token.lastIndexOf(SEPARATOR) + 1));
+                byte[] expected = signature(key, algorithm, signed, "realm", "user");
+                if (!MessageDigest.isEqual(expected, actual) || deviceId(token) == null) {
+                    throw new IllegalStateException("Secret question cookie warm-up mismatch");
+                }
+            }
+        }
+    }
+
+    private static KeyWrapper activeKey(KeycloakSession session, RealmModel realm) {
+        for (String algorithm : SIGNING_ALGORITHMS) {
+            try {
+                KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.SIG, algorithm);
+                if (key != null && key.getSecretKey() != null) {
+                    return key;
+                }
+            } catch (RuntimeException e) {
+                // 鍵が見つからない場合、DefaultKeyManager は RuntimeException を投げる
+                logger.debugf("No active %s key in realm %s", algorithm, realm.getName());
+            }
+        }
+        return null;
+    }
+
+    // 受け付けるのは署名に使うアルゴリズムだけ。トークンに書かれた任意の値で鍵を引かない
+    private static String signingAlgorithm(String token, int end) {
+        for (String algorithm : SIGNING_ALGORITHMS) {
+            if (end == algorithm.length() && token.startsWith(algorithm)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] signature(SecretKey key, String algorithm, CharSequence signedPart,
+            String realmId, String userId) {
+        Mac mac = MACS.get().computeIfAbsent(algorithm, KeyedMac::new).init(key);
+        mac.update(CONTEXT);
+        mac.update(signedPart.toString().getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) SEPARATOR);
+        mac.update(realmId.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) SEPARATOR);
+        mac.update(userId.getBytes(StandardCharsets.UTF_8));
+        return mac.doFinal();
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static byte[] decode(String value) {
+        return Base64.getUrlDecoder().decode(value);
+    }
+
+    private static final class KeyedMac {
+        private final Mac mac;
+        private SecretKey key;
+
+        private KeyedMac(String algorithm) {
+            try {
+                this.mac = Mac.getInstance(JavaAlgorithm.getJavaAlgorithm(algorithm));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(algorithm + " is not available", e);
+            }
+        }
+
+        // 直前に使った鍵と同じインスタンスなら、内部パッドの再計算を省いて reset だけ行う
+        private Mac init(SecretKey key) {
+            if (key == this.key) {
+                mac.reset();
+                return mac;
+            }
+            try {
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                this.key = null;
+                throw new IllegalStateException("Invalid HMAC key for secret question cookie", e);
+            }
+            this.key = key;
+            return mac;
+        }
+    }
+}
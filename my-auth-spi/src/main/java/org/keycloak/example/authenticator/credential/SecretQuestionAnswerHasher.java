@@ -0,0 +1,141 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerNormalizer.Buffer;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+
+/*
+ * 秘密の質問の回答をソルト付き PBKDF2 でハッシュ化/検証します。
+ *
+ * アルゴリズム名と反復回数は credential_data に記録するので、あとから反復回数を上げても既存の行は
+ * 記録された値で検証でき、ログイン成功時に新しい値でハッシュし直せます
+ * （SecretQuestionCredentialProvider の needsRehash）。
+ *
+ * PBKDF2 の計算は JDK の PBKDF2WithHmacSHA256（SecretKeyFactory）に任せます。秘密の質問の回答は
+ * パスワードより推測しやすいので、既定の反復回数は OWASP が PBKDF2-HMAC-SHA256 に勧める
+ * 600,000 回にしています。
+ *
+ * 回答は SecretQuestionAnswerNormalizer でそろえてからハッシュ化し、credential_data に
+ * "normalization" として記録します。"normalization" を持たない行は、そろえる前の回答をハッシュ化した
+ * 古い行なので、入力もそのまま使って検証します。ハッシュ化前の行（平文の "answer"）との比較では、
+ * 入力をスレッドごとの Workspace の配列にそろえて書き込むので、String を作りません。
+ */
+public final class SecretQuestionAnswerHasher {
+
+    public static final String ALGORITHM = "pbkdf2-sha256";
+
+    public static final int DEFAULT_ITERATIONS = 600000;
+    public static final int MIN_ITERATIONS = 10000;
+    public static final int MAX_ITERATIONS = 1000000;
+
+    private static final String JCA_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    // 導出する鍵は SHA-256 の出力 1 ブロック分（256 bit）
+    private static final int HASH_LENGTH = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Workspace> WORKSPACE =
+            ThreadLocal.withInitial(Workspace::new);
+
+    private SecretQuestionAnswerHasher() {}
+
+    // 回答を SecretQuestionAnswerNormalizer.FORM にそろえてからハッシュ化する
+    public static SecretQuestionSecretData hash(String answer, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return new SecretQuestionSecretData(salt,
+                derive(SecretQuestionAnswerNormalizer.normalize(answer), salt, iterations));
+    }
+
+    /*
+     * 入力された回答が保存されている回答と一致するかを検証します。ハッシュ化前の行（平文の "answer"）も
+     * 受け付け、その場合は保存されている回答と入力の両方をそろえてから比べます。比較はどちらも
+     * バイト列に対して一定時間で行います。
+     */
+    public static boolean verify(SecretQuestionCredentialData credentialData,
+            SecretQuestionSecretData secretData, String answer) {
+        if (answer == null) {
+            return false;
+        }
+        if (!secretData.isHashed()) {
+            String stored = secretData.getAnswer();
+            if (stored == null) {
+                return false;
+            }
+            Workspace workspace = WORKSPACE.get();
+            try {
+                Buffer actual = workspace.answer.normalize(answer);
+                Buffer expected = workspace.stored.normalize(stored);
+                return SecretQuestionAnswerNormalizer.constantTimeEquals(actual.bytes,
+                        actual.length, expected.bytes, expected.length);
+            } finally {
+                workspace.clear();
+            }
+        }
+        if (!ALGORITHM.equals(credentialData.getAlgorithm())) {
+            throw new IllegalStateException("Unsupported secret question hash algorithm: "
+                    + credentialData.getAlgorithm());
+        }
+        byte[] actual = derive(toKey(credentialData.getNormalization(), answer),
+                secretData.getSalt(), credentialData.getHashIterations());
+        byte[] expected = secretData.getValue();
+        try {
+            return SecretQuestionAnswerNormalizer.constantTimeEquals(actual, actual.length,
+                    expected, expected.length);
+        } finally {
+            Arrays.fill(actual, (byte) 0);
+        }
+    }
+
+    private static String toKey(String normalization, String answer) {
+        if (normalization == null) {
+            return answer;
+        }
+        if (!SecretQuestionAnswerNormalizer.FORM.equals(normalization)) {
+            throw new IllegalStateException(
+                    "Unsupported secret question answer normalization: " + normalization);
+        }
+        return SecretQuestionAnswerNormalizer.normalize(answer);
+    }
+
+    public static int clampIterations(int iterations) {
+        return Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
+
+    // RFC 8018 の PBKDF2（PRF は HMAC-SHA256、出力 1 ブロック）。回答はそろえずにそのまま使う
+    static byte[] derive(String answer, byte[] salt, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalStateException(
+                    "Invalid secret question hash iterations: " + iterations);
+        }
+        char[] password = answer.toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(JCA_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to hash secret question answer", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /*
+     * 平文の行との比較 1 回分の作業領域。スレッドごとに 1 つ持ち、使い終わったら回答の写しを消します。
+     */
+    private static final class Workspace {
+        private final Buffer answer = new Buffer();
+        private final Buffer stored = new Buffer();
+
+        private void clear() {
+            answer.clear();
+            stored.clear();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/*
+ * 秘密の質問の回答を、比較する前に同じ形にそろえます。
+ *
+ * - NFKC: 全角英数字と半角、合成済みの文字と結合文字の並びなどを同じ文字にする
+ *
+ * - 大文字と小文字の同一視: コードポイントごとに toUpperCase してから toLowerCase する
+ *
+ * - 空白: 前後の空白を除き、続いている空白を半角スペース 1 つにまとめる
+ *
+ * 登録時はハッシュ化の前に一度だけ適用し、どの形にそろえたかを credential_data の "normalization" に
+ * 記録します（FORM）。ログイン時は入力された回答を同じ手順で Buffer に UTF-8 で書き込み、中間の String を
+ * 作らずにハッシュ計算や比較に渡します。ASCII だけの回答は NFKC で変わらないので Normalizer を通さず、
+ * 割り当てなしで処理できます。それ以外の回答は Normalizer が返す String を一度だけ経由します。
+ */
+public final class SecretQuestionAnswerNormalizer {
+
+    public static final String FORM = "nfkc-casefold-ws";
+
+    private SecretQuestionAnswerNormalizer() {}
+
+    public static String normalize(String answer) {
+        Buffer buffer = new Buffer().normalize(answer);
+        try {
+            return new String(buffer.bytes, 0, buffer.length, StandardCharsets.UTF_8);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /*
+     * 長さが違ってもそこで打ち切らず、常に a の長さ分だけ比較します。かかる時間は入力された側（a）の
+     * 長さだけで決まり、保存されている値の内容や長さには左右されません。
+     */
+    static boolean constantTimeEquals(byte[] a, int aLength, byte[] b, int bLength) {
+        int diff = aLength ^ bLength;
+        int bound = Math.max(1, bLength);
+        for (int i = 0; i < aLength; i++) {
+            diff |= a[i] ^ b[i % bound];
+        }
+        return diff == 0;
+    }
+
+    /*
+     * 回答の UTF-8 表現を書き込む、使い回し用の配列。スレッドごとに持つ前提で、同期はしません。
+     * 配列は足りなくなったときだけ大きくし、使い終わったら clear で消します。
+     */
+    static final class Buffer {
+        private static final int INITIAL_CAPACITY = 64;
+
+        byte[] bytes = new byte[INITIAL_CAPACITY];
+        int length;
+
+        Buffer normalize(CharSequence answer) {
+            CharSequence source = answer;
+            if (!isAscii(answer) && !Normalizer.isNormalized(answer, Normalizer.Form.NFKC)) {
+                source = Normalizer.normalize(answer, Normalizer.Form.NFKC);
+            }
+            reset(source.length());
+            boolean pendingSpace = false;
+            for (int i = 0; i < source.length();) {
+                int codePoint = Character.codePointAt(source, i);
+                i += Character.charCount(codePoint);
+                if (Character.isWhitespace(codePoint) || Character.isSpaceChar(codePoint)) {
+                    pendingSpace = length > 0;
+                    continue;
+                }
+                if (pendingSpace) {
+                    bytes[length++] = ' ';
+                    pendingSpace = false;
+                }
+                put(Character.toLowerCase(Character.toUpperCase(codePoint)));
+            }
+            return this;
+        }
+
+        // そろえずにそのまま書き込む。"normalization" を持たない古い行の検証に使う
+        Buffer raw(CharSequence answer) {
+            reset(answer.length());
+            for (int i = 0; i < answer.length();) {
+                int codePoint = Character.codePointAt(answer, i);
+                i += Character.charCount(codePoint);
+                put(codePoint);
+            }
+            return this;
+        }
+
+        void clear() {
+            Arrays.fill(bytes, 0, length, (byte) 0);
+            length = 0;
+        }
+
+        // 1 文字（char）は UTF-8 で最大 3 バイト（サロゲートペアは 2 文字で 4 バイト）
+        private void reset(int chars) {
+            clear();
+            int required = chars * 3;
+            if (required > bytes.length) {
+                bytes = new byte[Math.max(required, bytes.length * 2)];
+            }
+        }
+
+        // String#getBytes(UTF_8) と同じく、対になっていないサロゲートは '?' にする
+        private void put(int codePoint) {
+            if (codePoint < 0x80) {
+                bytes[length++] = (byte) codePoint;
+            } else if (codePoint < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (codePoint >> 6));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (codePoint >= Character.MIN_SURROGATE
+                    && codePoint <= Character.MAX_SURROGATE) {
+                bytes[length++] = '?';
+            } else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                bytes[length++] = (byte) (0xe0 | (codePoint >> 12));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+        }
+
+        private static boolean isAscii(CharSequence answer) {
+            for (int i = 0; i < answer.length(); i++) {
+                if (answer.charAt(i) >= 0x80) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.keycloak.example.authenticator.credential;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.util.JsonSerialization;
+
+/*
+ * credential_data / secret_data のエンコーダ/デコーダ。読み書きは Keycloak の JsonSerialization で行います。
+ *
+ * ログインで読むときは SecretQuestionCredentialModelCache がデコードした結果をノードごとに持つので、
+ * JSON を読むのは行が変わったあとの最初の 1 回だけです。
+ *
+ * 書き出す形式（バージョン 1）:
+ *
+ * - credential_data: { "v": 1, "questionIds": ["first-pet", "birth-city"], "algorithm":
+ * "pbkdf2-sha256", "hashIterations": 600000, "normalization": "nfkc-casefold-ws" }
+ *
+ * - secret_data: { "v": 1, "answers": [{ "salt": "base64", "value": "base64" }, ...] }
+ *
+ * 質問は質問カタログ（SecretQuestionCatalog）の ID で持ちます。カタログを使わずに文言で登録した
+ * クレデンシャルは、questionIds の代わりに "questions" に文言を並べます。読み込んだ ID は intern() して、
+ * デコードしたクレデンシャルどうしで同じ文字列を共有します。ID はカタログに書いたものだけなので、
+ * 数は限られています。answers は質問と同じ順番に並べます。
+ *
+ * "v" を持たない行は、以前 JsonSerialization で書かれた形式（バージョン 0）として扱います。質問を 1 つだけ
+ * "question" として、平文の回答を "answer" として持つ、1 問だけのクレデンシャルとして読み込みます。
+ * 同じバージョンのままフィールドを足しても読めるよう、知らないフィールドは読み飛ばします。
+ */
+public final class SecretQuestionCredentialCodec {
+
+    public static final int LEGACY_VERSION = 0;
+    public static final int CURRENT_VERSION = 1;
+
+    static final String VERSION = "v";
+
+    private SecretQuestionCredentialCodec() {}
+
+    public static String writeCredentialData(SecretQuestionCredentialData credentialData) {
+        ObjectNode node = JsonSerialization.mapper.createObjectNode();
+        node.put(VERSION, CURRENT_VERSION);
+        node.setAll((ObjectNode) JsonSerialization.mapper.valueToTree(credentialData));
+        return write(node);
+    }
+
+    public static String writeSecretData(SecretQuestionSecretData secretData) {
+        return writeSecretData(Collections.singletonList(secretData));
+    }
+
+    public static String writeSecretData(List<SecretQuestionSecretData> entries) {
+        return write(new SecretPayload(CURRENT_VERSION, entries));
+    }
+
+    public static SecretQuestionCredentialData readCredentialData(String json) throws IOException {
+        JsonNode node = JsonSerialization.mapper.readTree(json);
+        checkVersion(version(node));
+        SecretQuestionCredentialData credentialData =
+                JsonSerialization.mapper.treeToValue(node, SecretQuestionCredentialData.class);
+        if (!credentialData.isCatalogued()) {
+            return credentialData;
+        }
+        List<String> questionIds = new ArrayList<>(credentialData.getQuestionCount());
+        for (String questionId : credentialData.getQuestionIds()) {
+            questionIds.add(questionId != null ? questionId.intern() : null);
+        }
+        return new SecretQuestionCredentialData(Collections.emptyList(), questionIds,
+                credentialData.getAlgorithm(), credentialData.getHashIterations(),
+                credentialData.getNormalization());
+    }
+
+    // credential_data の形式のバージョン（"v"）を読む。"v" のない行は LEGACY_VERSION
+    public static int readVersion(String json) throws IOException {
+        return version(JsonSerialization.mapper.readTree(json));
+    }
+
+    // 最初の質問の回答を読む。質問が 1 つだけのクレデンシャルではその回答
+    public static SecretQuestionSecretData readSecretData(String json) throws IOException {
+        return readSecretData(json, 0);
+    }
+
+    public static SecretQuestionSecretData readSecretData(String json, int index)
+            throws IOException {
+        List<SecretQuestionSecretData> entries = readSecretEntries(json);
+        if (index < 0 || index >= entries.size()) {
+            throw new IOException("No secret question answer at index " + index);
+        }
+        return entries.get(index);
+    }
+
+    // すべての回答を、質問と同じ順番で読む
+    public static List<SecretQuestionSecretData> readSecretEntries(String json)
+            throws IOException {
+        SecretPayload payload = JsonSerialization.readValue(json, SecretPayload.class);
+        checkVersion(payload.version);
+        if (payload.answers == null) {
+            return Collections.singletonList(new SecretQuestionSecretData(payload.answer));
+        }
+        return Collections.unmodifiableList(payload.answers);
+    }
+
+    private static int version(JsonNode node) throws IOException {
+        if (!node.isObject()) {
+            throw new IOException("Secret question payload is not a JSON object");
+        }
+        return node.path(VERSION).asInt(LEGACY_VERSION);
+    }
+
+    private static String write(Object payload) {
+        try {
+            return JsonSerialization.mapper.writeValueAsString(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 未来のバージョンを黙って読むと意味の違うフィールドを取り違えるので、明示的に失敗させる
+    private static void checkVersion(int version) throws IOException {
+        if (version > CURRENT_VERSION) {
+            throw new IOException("Unsupported secret question payload version: " + version);
+        }
+    }
+
+    // secret_data の JSON。バージョン 0 の行は answers の代わりに平文の "answer" を 1 つだけ持つ
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonPropertyOrder({VERSION, "answers"})
+    static final class SecretPayload {
+        @JsonProperty(VERSION)
+        private int version;
+        @JsonProperty("answers")
+        private List<SecretQuestionSecretData> answers;
+        @JsonProperty("answer")
+        private String answer;
+
+        private SecretPayload() {}
+
+        private SecretPayload(int version, List<SecretQuestionSecretData> answers) {
+            this.version = version;
+            this.answers = answers;
+        }
+    }
+}
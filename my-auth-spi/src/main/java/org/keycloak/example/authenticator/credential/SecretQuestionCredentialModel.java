@@ -1,11 +1,13 @@
 package org.keycloak.example.authenticator.credential;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import org.keycloak.common.util.Time;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
 import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
-import org.keycloak.util.JsonSerialization;
 
 /*
  * This class extends CredentialModel to handle secret question-based credentials in Keycloak.
@@ -33,27 +35,46 @@ import org.keycloak.util.JsonSerialization;
  * 
  * Example data format:
  * 
- * - credential_data: { "question": "aQuestion" }
+ * - credential_data: { "v": 1, "questionIds": ["first-pet", "birth-city"], "algorithm":
+ * "pbkdf2-sha256", "hashIterations": 600000 }
  * 
- * - secret_data: { "answer": "anAnswer" }
+ * - secret_data: { "v": 1, "answers": [{ "salt": "base64", "value": "base64" }, ...] }
+ *
+ * One credential row holds all questions of a user, and answers are stored in the same order as
+ * the questions. Questions are referenced by their id in the realm's SecretQuestionCatalog;
+ * credentials enrolled without a catalog hold the question texts in "questions" instead. A model
+ * decoded for verification holds only the answer of the selected question (see
+ * createFromCredentialModel(CredentialModel, int)).
+ *
+ * Encoding and decoding is done by SecretQuestionCredentialCodec, which also reads rows written
+ * before the "v" field was introduced and rows that still hold the plaintext "answer".
  */
 public class SecretQuestionCredentialModel extends CredentialModel {
     public static final String TYPE = "SECRET_QUESTION";
 
     private final SecretQuestionCredentialData credentialData;
+    // 選ばれた質問の回答と、その位置
     private final SecretQuestionSecretData secretData;
+    private final int questionIndex;
+    // すべての回答。1 問分だけをデコードした場合は null
+    private final List<SecretQuestionSecretData> secretEntries;
 
-    // Constructor for creating a SecretQuestionCredentialModel from question and answer
-    private SecretQuestionCredentialModel(String question, String answer) {
-        credentialData = new SecretQuestionCredentialData(question);
-        secretData = new SecretQuestionSecretData(answer);
+    // Constructor for creating a SecretQuestionCredentialModel from questions and answers
+    private SecretQuestionCredentialModel(SecretQuestionCredentialData credentialData,
+            List<SecretQuestionSecretData> secretEntries) {
+        this.credentialData = credentialData;
+        this.secretEntries = Collections.unmodifiableList(new ArrayList<>(secretEntries));
+        this.secretData = secretEntries.get(0);
+        this.questionIndex = 0;
     }
 
-    // Constructor for deserialization of existing data
+    // Constructor for deserialization of a single selected answer
     private SecretQuestionCredentialModel(SecretQuestionCredentialData credentialData,
-            SecretQuestionSecretData secretData) {
+            SecretQuestionSecretData secretData, int questionIndex) {
         this.credentialData = credentialData;
+        this.secretEntries = null;
         this.secretData = secretData;
+        this.questionIndex = questionIndex;
     }
 
     /*
@@ -61,22 +82,130 @@ public class SecretQuestionCredentialModel extends CredentialModel {
      */
     public static SecretQuestionCredentialModel createSecretQuestion(String question,
             String answer) {
+        return createSecretQuestions(Collections.singletonList(question),
+                Collections.singletonList(answer));
+    }
+
+    /*
+     * Creates a SecretQuestionCredentialModel from a question and an answer hashed by
+     * SecretQuestionAnswerHasher with the given number of iterations.
+     */
+    public static SecretQuestionCredentialModel createSecretQuestion(String question,
+            SecretQuestionSecretData hashedAnswer, int hashIterations) {
+        return createSecretQuestions(Collections.singletonList(question),
+                Collections.singletonList(hashedAnswer), hashIterations);
+    }
+
+    /*
+     * Creates a SecretQuestionCredentialModel holding several questions and their plaintext
+     * answers, in the same order. SecretQuestionCredentialProvider hashes the answers before they
+     * are stored.
+     */
+    public static SecretQuestionCredentialModel createSecretQuestions(List<String> questions,
+            List<String> answers) {
+        checkSameSize(questions, answers);
+        List<SecretQuestionSecretData> entries = new ArrayList<>(answers.size());
+        for (String answer : answers) {
+            entries.add(new SecretQuestionSecretData(answer));
+        }
+        SecretQuestionCredentialModel credentialModel = new SecretQuestionCredentialModel(
+                new SecretQuestionCredentialData(questions, null, 0), entries);
+        credentialModel.fillCredentialModelFields();
+        return credentialModel;
+    }
+
+    /*
+     * Creates a SecretQuestionCredentialModel holding questions of a SecretQuestionCatalog, by id,
+     * and their plaintext answers in the same order.
+     */
+    public static SecretQuestionCredentialModel createCataloguedQuestions(
+            List<String> questionIds, List<String> answers) {
+        checkSameSize(questionIds, answers);
+        List<SecretQuestionSecretData> entries = new ArrayList<>(answers.size());
+        for (String answer : answers) {
+            entries.add(new SecretQuestionSecretData(answer));
+        }
+        return create(new SecretQuestionCredentialData(Collections.emptyList(), questionIds, null,
+                0, null), entries);
+    }
+
+    /*
+     * Same as above, for answers hashed by SecretQuestionAnswerHasher#hash and normalized into the
+     * given form before hashing.
+     */
+    public static SecretQuestionCredentialModel createCataloguedQuestions(
+            List<String> questionIds, List<SecretQuestionSecretData> hashedAnswers,
+            int hashIterations, String normalization) {
+        checkSameSize(questionIds, hashedAnswers);
+        return create(new SecretQuestionCredentialData(Collections.emptyList(), questionIds,
+                SecretQuestionAnswerHasher.ALGORITHM, hashIterations, normalization),
+                hashedAnswers);
+    }
+
+    /*
+     * Creates a SecretQuestionCredentialModel with the questions of source, whether they are
+     * catalog ids or texts, and the given hashed answers. Used when an existing credential is
+     * hashed again or rewritten.
+     */
+    public static SecretQuestionCredentialModel createSecretQuestions(
+            SecretQuestionCredentialData source, List<SecretQuestionSecretData> hashedAnswers,
+            int hashIterations, String normalization) {
+        if (source.isCatalogued()) {
+            return createCataloguedQuestions(source.getQuestionIds(), hashedAnswers,
+                    hashIterations, normalization);
+        }
+        return createSecretQuestions(source.getQuestions(), hashedAnswers, hashIterations,
+                normalization);
+    }
+
+    private static SecretQuestionCredentialModel create(
+            SecretQuestionCredentialData credentialData,
+            List<SecretQuestionSecretData> secretEntries) {
         SecretQuestionCredentialModel credentialModel =
-                new SecretQuestionCredentialModel(question, answer);
+                new SecretQuestionCredentialModel(credentialData, secretEntries);
+        credentialModel.fillCredentialModelFields();
+        return credentialModel;
+    }
+
+    /*
+     * Creates a SecretQuestionCredentialModel holding several questions and their answers hashed
+     * by SecretQuestionAnswerHasher#hash with the given number of iterations, in the same order.
+     */
+    public static SecretQuestionCredentialModel createSecretQuestions(List<String> questions,
+            List<SecretQuestionSecretData> hashedAnswers, int hashIterations) {
+        return createSecretQuestions(questions, hashedAnswers, hashIterations,
+                SecretQuestionAnswerNormalizer.FORM);
+    }
+
+    /*
+     * Same as above, for answers that were normalized into the given form before hashing. A null
+     * normalization means the answers were hashed as entered.
+     */
+    public static SecretQuestionCredentialModel createSecretQuestions(List<String> questions,
+            List<SecretQuestionSecretData> hashedAnswers, int hashIterations,
+            String normalization) {
+        checkSameSize(questions, hashedAnswers);
+        SecretQuestionCredentialModel credentialModel = new SecretQuestionCredentialModel(
+                new SecretQuestionCredentialData(questions, SecretQuestionAnswerHasher.ALGORITHM,
+                        hashIterations, normalization),
+                hashedAnswers);
         credentialModel.fillCredentialModelFields();
         return credentialModel;
     }
 
+    private static void checkSameSize(List<String> questions, List<?> answers) {
+        if (questions.isEmpty() || questions.size() != answers.size()) {
+            throw new IllegalArgumentException("Expected one answer for each of "
+                    + questions.size() + " secret questions, got " + answers.size());
+        }
+    }
+
     // Fills the inherited CredentialModel fields with appropriate values
     private void fillCredentialModelFields() {
-        try {
-            setCredentialData(JsonSerialization.writeValueAsString(credentialData));
-            setSecretData(JsonSerialization.writeValueAsString(secretData));
-            setType(TYPE);
-            setCreatedDate(Time.currentTimeMillis());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        setCredentialData(SecretQuestionCredentialCodec.writeCredentialData(credentialData));
+        setSecretData(SecretQuestionCredentialCodec.writeSecretData(secretEntries));
+        setType(TYPE);
+        setCreatedDate(Time.currentTimeMillis());
     }
 
     /*
@@ -85,29 +214,67 @@ public class SecretQuestionCredentialModel extends CredentialModel {
      * 1. Maintain the original credential data from the CredentialModel.
      * 
      * 2. Convert getCredentialData and getSecretData into a class-specific format.
+     *
+     * All answers are decoded. Use createFromCredentialModel(CredentialModel, int) when only one
+     * question is going to be verified.
      */
     public static SecretQuestionCredentialModel createFromCredentialModel(
             CredentialModel credentialModel) {
         try {
-            SecretQuestionCredentialData credentialData = JsonSerialization.readValue(
-                    credentialModel.getCredentialData(), SecretQuestionCredentialData.class);
-            SecretQuestionSecretData secretData = JsonSerialization
-                    .readValue(credentialModel.getSecretData(), SecretQuestionSecretData.class);
-
-            SecretQuestionCredentialModel secretQuestionCredentialModel =
-                    new SecretQuestionCredentialModel(credentialData, secretData);
-            secretQuestionCredentialModel.setUserLabel(credentialModel.getUserLabel());
-            secretQuestionCredentialModel.setCreatedDate(credentialModel.getCreatedDate());
-            secretQuestionCredentialModel.setType(TYPE);
-            secretQuestionCredentialModel.setId(credentialModel.getId());
-            secretQuestionCredentialModel.setSecretData(credentialModel.getSecretData());
-            secretQuestionCredentialModel.setCredentialData(credentialModel.getCredentialData());
-            return secretQuestionCredentialModel;
+            SecretQuestionCredentialData credentialData = SecretQuestionCredentialCodec
+                    .readCredentialData(credentialModel.getCredentialData());
+            List<SecretQuestionSecretData> secretEntries = SecretQuestionCredentialCodec
+                    .readSecretEntries(credentialModel.getSecretData());
+            SecretQuestionCredentialModel model =
+                    new SecretQuestionCredentialModel(credentialData, secretEntries);
+            return copyFields(credentialModel, model);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // 質問の一覧だけをデコードする
+    public static SecretQuestionCredentialData readCredentialData(String credentialData) {
+        try {
+            return SecretQuestionCredentialCodec.readCredentialData(credentialData);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // questionIndex 番目の質問の回答だけを持つモデルを作る
+    public static SecretQuestionCredentialModel createFromCredentialModel(
+            CredentialModel credentialModel, int questionIndex) {
+        try {
+            SecretQuestionCredentialData credentialData =
+                    readCredentialData(credentialModel.getCredentialData());
+            SecretQuestionSecretData secretData = SecretQuestionCredentialCodec
+                    .readSecretData(credentialModel.getSecretData(), questionIndex);
+            return createFromDecoded(credentialModel, credentialData, secretData, questionIndex);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // デコード済みの DTO から組み立てる。SecretQuestionCredentialModelCache のヒット時は JSON を読まずにここを通る
+    static SecretQuestionCredentialModel createFromDecoded(CredentialModel credentialModel,
+            SecretQuestionCredentialData credentialData, SecretQuestionSecretData secretData,
+            int questionIndex) {
+        return copyFields(credentialModel,
+                new SecretQuestionCredentialModel(credentialData, secretData, questionIndex));
+    }
+
+    private static SecretQuestionCredentialModel copyFields(CredentialModel credentialModel,
+            SecretQuestionCredentialModel secretQuestionCredentialModel) {
+        secretQuestionCredentialModel.setUserLabel(credentialModel.getUserLabel());
+        secretQuestionCredentialModel.setCreatedDate(credentialModel.getCreatedDate());
+        secretQuestionCredentialModel.setType(TYPE);
+        secretQuestionCredentialModel.setId(credentialModel.getId());
+        secretQuestionCredentialModel.setSecretData(credentialModel.getSecretData());
+        secretQuestionCredentialModel.setCredentialData(credentialModel.getCredentialData());
+        return secretQuestionCredentialModel;
+    }
+
     /*
      * Getters for accessing the credential data and secret data.
      */
@@ -115,7 +282,27 @@ public class SecretQuestionCredentialModel extends CredentialModel {
         return credentialData;
     }
 
+    // 選ばれた質問の回答。すべての回答を持つモデルでは最初の質問の回答
     public SecretQuestionSecretData getSecretQuestionSecretData() {
         return secretData;
     }
+
+    public int getQuestionIndex() {
+        return questionIndex;
+    }
+
+    // 選ばれた質問の文言。カタログの ID で登録したクレデンシャルでは null（getSelectedQuestionId()）
+    public String getSelectedQuestion() {
+        return credentialData.isCatalogued() ? null
+                : credentialData.getQuestions().get(questionIndex);
+    }
+
+    public String getSelectedQuestionId() {
+        return credentialData.getQuestionId(questionIndex);
+    }
+
+    // すべての回答。createFromCredentialModel(CredentialModel, int) で 1 問分だけを持たせた場合は null
+    public List<SecretQuestionSecretData> getSecretQuestionSecretEntries() {
+        return secretEntries;
+    }
 }
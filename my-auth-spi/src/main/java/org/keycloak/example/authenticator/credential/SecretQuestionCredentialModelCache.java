@@ -0,0 +1,161 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+
+/*
+ * credential_data / secret_data を JSON からデコードした結果をノードローカルに保持するキャッシュ。
+ *
+ * キーはクレデンシャル ID で、エントリにはデコード元の JSON 文字列そのものを指紋として持たせています。
+ * 保存されている JSON が 1 文字でも変わればミスとして扱うため、更新された行の古い内容を返すことはありません。
+ *
+ * キャッシュするのは不変な DTO だけで、SecretQuestionCredentialModel は呼び出しごとに作り直します。
+ * CredentialModel はミュータブルなので、インスタンスをリクエスト間で共有しないためです。
+ *
+ * secret_data は、検証で回答が必要になったときに初めて、すべての回答をまとめて 1 回だけデコードします。
+ * 質問を出すだけなら credential_data しか読みません。
+ */
+public class SecretQuestionCredentialModelCache {
+
+    private final LocalCache<String, Decoded> cache;
+
+    public SecretQuestionCredentialModelCache(int maxEntries, long ttlMillis) {
+        this.cache = new LocalCache<>(maxEntries, ttlMillis);
+    }
+
+    public SecretQuestionCredentialModel get(CredentialModel credentialModel) {
+        return get(credentialModel, 0);
+    }
+
+    // questionIndex 番目の質問の回答だけを持つモデルを返す
+    public SecretQuestionCredentialModel get(CredentialModel credentialModel, int questionIndex) {
+        String id = credentialModel.getId();
+        if (id == null) {
+            return SecretQuestionCredentialModel.createFromCredentialModel(credentialModel,
+                    questionIndex);
+        }
+        String credentialData = credentialModel.getCredentialData();
+        String secretData = credentialModel.getSecretData();
+        Decoded decoded = cache.get(id, d -> d.matches(credentialData, secretData));
+        if (decoded == null) {
+            decoded = new Decoded(credentialData, secretData, credentialModel.getCreatedDate(),
+                    SecretQuestionCredentialModel.readCredentialData(credentialData));
+            cache.put(id, decoded);
+        }
+        return SecretQuestionCredentialModel.createFromDecoded(credentialModel,
+                decoded.credentialData, decoded.secretData(questionIndex), questionIndex);
+    }
+
+    // 質問の一覧だけを返す。回答はデコードしない
+    public SecretQuestionCredentialData getCredentialData(CredentialModel credentialModel) {
+        String id = credentialModel.getId();
+        String credentialData = credentialModel.getCredentialData();
+        String secretData = credentialModel.getSecretData();
+        Decoded decoded = id == null ? null
+                : cache.get(id, d -> d.matches(credentialData, secretData));
+        if (decoded != null) {
+            return decoded.credentialData;
+        }
+        SecretQuestionCredentialData decodedData =
+                SecretQuestionCredentialModel.readCredentialData(credentialData);
+        if (id != null) {
+            cache.put(id, new Decoded(credentialData, secretData,
+                    credentialModel.getCreatedDate(), decodedData));
+        }
+        return decodedData;
+    }
+
+    /*
+     * このノードで最後にデコードした credentialId の行を、ストアから読んだときと同じ形の CredentialModel
+     * として返します。呼び出しごとに新しいインスタンスです。キャッシュになければ null を返します。
+     *
+     * 保存されている JSON と照合しないので、同じ認証セッションの authenticate() で読んだ行を action() で
+     * 使い直す場合のように、直前にこのノードでその行を読んだことが分かっているときにだけ使います。
+     */
+    public CredentialModel getCredentialModel(String credentialId) {
+        Decoded decoded = credentialId == null ? null : cache.get(credentialId);
+        if (decoded == null) {
+            return null;
+        }
+        CredentialModel model = new CredentialModel();
+        model.setId(credentialId);
+        model.setType(SecretQuestionCredentialModel.TYPE);
+        model.setCredentialData(decoded.rawCredentialData);
+        model.setSecretData(decoded.rawSecretData);
+        model.setCreatedDate(decoded.createdDate);
+        return model;
+    }
+
+    public void invalidate(String credentialId) {
+        cache.invalidate(credentialId);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+
+    private static final class Decoded {
+        private final String rawCredentialData;
+        private final String rawSecretData;
+        private final Long createdDate;
+        private final SecretQuestionCredentialData credentialData;
+        // すべての回答。まだデコードしていなければ null
+        private volatile List<SecretQuestionSecretData> secretEntries;
+
+        private Decoded(String rawCredentialData, String rawSecretData, Long createdDate,
+                SecretQuestionCredentialData credentialData) {
+            this.rawCredentialData = rawCredentialData;
+            this.rawSecretData = rawSecretData;
+            this.createdDate = createdDate;
+            this.credentialData = credentialData;
+        }
+
+        private boolean matches(String credentialData, String secretData) {
+            return Objects.equals(rawCredentialData, credentialData)
+                    && Objects.equals(rawSecretData, secretData);
+        }
+
+        // 同時にデコードしても結果は同じなので、どちらの結果を残してもよい
+        private SecretQuestionSecretData secretData(int questionIndex) {
+            if (questionIndex < 0 || questionIndex >= credentialData.getQuestionCount()) {
+                throw new IllegalArgumentException("No secret question at index " + questionIndex);
+            }
+            List<SecretQuestionSecretData> entries = secretEntries;
+            if (entries == null) {
+                try {
+                    entries = SecretQuestionCredentialCodec.readSecretEntries(rawSecretData);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                secretEntries = entries;
+            }
+            if (questionIndex >= entries.size()) {
+                throw new IllegalArgumentException("No secret question answer at index "
+                        + questionIndex);
+            }
+            return entries.get(questionIndex);
+        }
+    }
+}
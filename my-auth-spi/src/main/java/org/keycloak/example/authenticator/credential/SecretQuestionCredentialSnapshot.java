@@ -0,0 +1,230 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.io.IOException;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/*
+ * 認証セッションに保存しておく、検証するクレデンシャルの ID とメタデータ。
+ *
+ * フォームを表示する authenticate() でクレデンシャルを 1 回だけ読み、その ID を認証セッションのノートに
+ * 書いておきます。action() やリトライでは、この ID でノードごとの SecretQuestionCredentialModelCache から
+ * 行を引くので（SecretQuestionCredentialProvider.getCachedCredential()）、同じ認証セッションの中で
+ * クレデンシャルを読み直しません。キャッシュから追い出されていた場合や、別のノードで表示したフォームに
+ * 回答した場合はストアから読みます。
+ *
+ * 認証セッションは authenticationSessions キャッシュ上にあってクラスタ内に複製されるので、
+ * credential_data / secret_data はノートに写しません。回答がハッシュ化済みか平文かにかかわらず、
+ * ソルトやハッシュ値がクラスタに広がることはありません。ブラウザにも渡りません。
+ *
+ * 写しはユーザ ID に紐づけ、別のユーザに切り替わった認証セッションでは使いません。
+ *
+ * クレデンシャルに複数の質問がある場合は、どの質問を出したか（questionIndex）も同じ認証セッションに
+ * 保存します。リトライや再表示でも同じ質問を出し、別の質問に切り替えて当て直すことはできません。
+ * 質問カタログの ID で登録されたクレデンシャルでは、出した質問の ID も保存します。画面はその ID で
+ * カタログから文言を引いて描画するので、再表示のたびに credential_data を引きません。
+ *
+ * 登録日時（created_date）と credential_data の形式のバージョンもメタデータとして保存し、
+ * 回答を検証して clear() したあとも残します。必須アクションの evaluateTriggers() は、ここから
+ * 再登録が必要かを判断するので、クレデンシャルを読み直しません（Metadata）。必須アクションで
+ * 登録し直した場合は、新しい行のメタデータに差し替えます（replace()）。
+ */
+public final class SecretQuestionCredentialSnapshot {
+
+    static final String NOTE_USER_ID = "secret-question.user-id";
+    static final String NOTE_CREDENTIAL_ID = "secret-question.credential-id";
+    // 回答を待っているクレデンシャルの ID。clear() で消し、NOTE_CREDENTIAL_ID は残す
+    static final String NOTE_PENDING_CREDENTIAL_ID = "secret-question.pending-credential-id";
+    static final String NOTE_QUESTION_INDEX = "secret-question.question-index";
+    static final String NOTE_QUESTION_ID = "secret-question.question-id";
+    static final String NOTE_CREATED_DATE = "secret-question.created-date";
+    static final String NOTE_FORMAT_VERSION = "secret-question.format-version";
+
+    private final String credentialId;
+
+    private SecretQuestionCredentialSnapshot(String credentialId) {
+        this.credentialId = credentialId;
+    }
+
+    /*
+     * 認証セッションに保存されている写しを返します。保存されていない、回答を検証して clear() した、
+     * または別のユーザのものの場合は null を返します。
+     */
+    public static SecretQuestionCredentialSnapshot load(AuthenticationSessionModel authSession,
+            UserModel user) {
+        if (authSession == null || user == null
+                || !user.getId().equals(authSession.getAuthNote(NOTE_USER_ID))) {
+            return null;
+        }
+        String credentialId = authSession.getAuthNote(NOTE_PENDING_CREDENTIAL_ID);
+        if (credentialId == null) {
+            return null;
+        }
+        return new SecretQuestionCredentialSnapshot(credentialId);
+    }
+
+    public static void save(AuthenticationSessionModel authSession, UserModel user,
+            CredentialModel credential) {
+        if (authSession == null) {
+            return;
+        }
+        saveMetadata(authSession, user, credential);
+        authSession.setAuthNote(NOTE_PENDING_CREDENTIAL_ID, credential.getId());
+    }
+
+    /*
+     * 必須アクションで登録し直したクレデンシャルのメタデータに差し替え、置き換えた行の写しは消します。
+     * Keycloak は必須アクションが成功したあとも同じ認証セッションで evaluateTriggers() を呼び直すので、
+     * 古い行のメタデータが残っていると、登録し直すたびにまた必須アクションが付いてしまいます。
+     */
+    public static void replace(AuthenticationSessionModel authSession, UserModel user,
+            CredentialModel credential) {
+        if (authSession == null) {
+            return;
+        }
+        clear(authSession);
+        saveMetadata(authSession, user, credential);
+    }
+
+    private static void saveMetadata(AuthenticationSessionModel authSession, UserModel user,
+            CredentialModel credential) {
+        authSession.setAuthNote(NOTE_USER_ID, user.getId());
+        authSession.setAuthNote(NOTE_CREDENTIAL_ID, credential.getId());
+        if (credential.getCreatedDate() != null) {
+            authSession.setAuthNote(NOTE_CREATED_DATE, credential.getCreatedDate().toString());
+        } else {
+            authSession.removeAuthNote(NOTE_CREATED_DATE);
+        }
+        try {
+            authSession.setAuthNote(NOTE_FORMAT_VERSION, Integer.toString(
+                    SecretQuestionCredentialCodec.readVersion(credential.getCredentialData())));
+        } catch (IOException | RuntimeException e) {
+            authSession.removeAuthNote(NOTE_FORMAT_VERSION);
+        }
+    }
+
+    /*
+     * 回答を待っているクレデンシャルと出題した質問を消します。ユーザ ID とメタデータは
+     * evaluateTriggers() のために残します。
+     */
+    public static void clear(AuthenticationSessionModel authSession) {
+        if (authSession == null) {
+            return;
+        }
+        authSession.removeAuthNote(NOTE_PENDING_CREDENTIAL_ID);
+        authSession.removeAuthNote(NOTE_QUESTION_INDEX);
+        authSession.removeAuthNote(NOTE_QUESTION_ID);
+    }
+
+    /*
+     * この認証セッションで credentialId のクレデンシャルについて出した質問の位置を返します。
+     * まだ選んでいない、または別のクレデンシャルについて選んだものの場合は -1 を返します。
+     */
+    public static int loadQuestionIndex(AuthenticationSessionModel authSession,
+            String credentialId) {
+        String note = authSession == null ? null : authSession.getAuthNote(NOTE_QUESTION_INDEX);
+        if (note == null || credentialId == null) {
+            return -1;
+        }
+        int separator = note.indexOf(':');
+        if (separator < 0 || !credentialId.equals(note.substring(separator + 1))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(note.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static void saveQuestionIndex(AuthenticationSessionModel authSession,
+            String credentialId, int questionIndex) {
+        saveQuestionIndex(authSession, credentialId, questionIndex, null);
+    }
+
+    // questionId は選んだ質問のカタログの ID。文言で登録されたクレデンシャルでは null
+    public static void saveQuestionIndex(AuthenticationSessionModel authSession,
+            String credentialId, int questionIndex, String questionId) {
+        if (authSession == null) {
+            return;
+        }
+        authSession.setAuthNote(NOTE_QUESTION_INDEX, questionIndex + ":" + credentialId);
+        if (questionId != null) {
+            authSession.setAuthNote(NOTE_QUESTION_ID, questionId);
+        } else {
+            authSession.removeAuthNote(NOTE_QUESTION_ID);
+        }
+    }
+
+    /*
+     * この認証セッションで出した質問のカタログの ID を返します。まだ選んでいない、文言で登録された
+     * クレデンシャルの質問を出した、または別のユーザのものの場合は null を返します。
+     */
+    public static String loadQuestionId(AuthenticationSessionModel authSession, UserModel user) {
+        if (authSession == null || user == null
+                || !user.getId().equals(authSession.getAuthNote(NOTE_USER_ID))) {
+            return null;
+        }
+        return authSession.getAuthNote(NOTE_QUESTION_ID);
+    }
+
+    /*
+     * この認証セッションで読んだクレデンシャルのメタデータを返します。読んでいない（クッキーなどで
+     * 秘密の質問を省略した）、または別のユーザのものの場合は null を返します。
+     */
+    public static Metadata loadMetadata(AuthenticationSessionModel authSession, UserModel user) {
+        if (authSession == null || user == null
+                || !user.getId().equals(authSession.getAuthNote(NOTE_USER_ID))) {
+            return null;
+        }
+        String credentialId = authSession.getAuthNote(NOTE_CREDENTIAL_ID);
+        if (credentialId == null) {
+            return null;
+        }
+        Long version = parseLong(authSession.getAuthNote(NOTE_FORMAT_VERSION));
+        return new Metadata(credentialId, parseLong(authSession.getAuthNote(NOTE_CREATED_DATE)),
+                version != null ? version.intValue() : -1);
+    }
+
+    private static Long parseLong(String note) {
+        if (note == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(note);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getCredentialId() {
+        return credentialId;
+    }
+
+    public static final class Metadata {
+        private final String credentialId;
+        private final Long createdDate;
+        private final int formatVersion;
+
+        private Metadata(String credentialId, Long createdDate, int formatVersion) {
+            this.credentialId = credentialId;
+            this.createdDate = createdDate;
+            this.formatVersion = formatVersion;
+        }
+
+        public String getCredentialId() {
+            return credentialId;
+        }
+
+        // 登録日時（エポックミリ秒）。古い行では null のことがある
+        public Long getCreatedDate() {
+            return createdDate;
+        }
+
+        // credential_data の形式のバージョン。読めなかった場合は -1
+        public int getFormatVersion() {
+            return formatVersion;
+        }
+    }
+}
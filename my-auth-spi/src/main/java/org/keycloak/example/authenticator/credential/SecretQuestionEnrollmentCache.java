@@ -0,0 +1,73 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterListener;
+import org.keycloak.example.authenticator.cache.LocalCache;
+
+/*
+ * ユーザが秘密の質問を登録済みかどうか（isConfiguredFor の結果）をノードローカルに保持するキャッシュ。
+ *
+ * Keycloak の users キャッシュと同じく、値は各ノードのローカルに持ち、変更はクラスタ全体への
+ * 無効化イベント（SecretQuestionEnrollmentInvalidationEvent）で伝えます。登録/削除のあと最初の
+ * 評価だけがクレデンシャルを読みに行きます。
+ *
+ * 管理コンソールからのクレデンシャル削除のように CredentialProvider を経由しない変更は
+ * イベントが出ません。削除の場合は、古い値を信じて進んだ認証でクレデンシャルが見つからなかった
+ * 時点で無効化します（SecretQuestionAuthenticator.resolveCredential）。それ以外は TTL を
+ * 古い値が残る時間の上限として使います。
+ *
+ * 読み込み中に無効化が起きた場合に古い値を書き戻さないよう、無効化の回数を見てから値を置きます。
+ */
+public class SecretQuestionEnrollmentCache implements ClusterListener {
+
+    public static final String INVALIDATION_TASK_KEY = "secret-question-enrollment-invalidation";
+
+    private final LocalCache<String, Boolean> cache;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public SecretQuestionEnrollmentCache(int maxEntries, long ttlMillis) {
+        this.cache = new LocalCache<>(maxEntries, ttlMillis);
+    }
+
+    public Boolean get(String userId) {
+        return cache.get(userId);
+    }
+
+    // クレデンシャルを読みに行く前に呼び、戻り値を put() に渡す
+    public long beginLoad() {
+        return invalidations.get();
+    }
+
+    public void put(String userId, boolean enrolled, long loadStamp) {
+        if (invalidations.get() != loadStamp) {
+            return;
+        }
+        cache.put(userId, enrolled);
+        // put の直前に無効化が割り込んだ場合は、置いたばかりの値を取り消す
+        if (invalidations.get() != loadStamp) {
+            cache.invalidate(userId);
+        }
+    }
+
+    public void invalidate(String userId) {
+        invalidations.incrementAndGet();
+        cache.invalidate(userId);
+    }
+
+    @Override
+    public void eventReceived(ClusterEvent event) {
+        if (event instanceof SecretQuestionEnrollmentInvalidationEvent) {
+            invalidate(((SecretQuestionEnrollmentInvalidationEvent) event).getUserId());
+        }
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+}
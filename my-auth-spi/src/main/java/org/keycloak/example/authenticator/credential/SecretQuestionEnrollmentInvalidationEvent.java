@@ -0,0 +1,27 @@
+package org.keycloak.example.authenticator.credential;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/*
+ * ユーザの秘密の質問が登録/削除されたことを他のノードに伝えるイベント。
+ * 受け取ったノードは SecretQuestionEnrollmentCache からそのユーザのエントリを消します。
+ */
+public class SecretQuestionEnrollmentInvalidationEvent implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String userId;
+
+    public SecretQuestionEnrollmentInvalidationEvent(String userId) {
+        this.userId = userId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    @Override
+    public String toString() {
+        return "SecretQuestionEnrollmentInvalidationEvent [userId=" + userId + "]";
+    }
+}
@@ -0,0 +1,83 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * 起動時に実際のハードウェアでハッシュ計算を測り、検証の p99 が目標値に収まる反復回数を求めます。
+ *
+ * PBKDF2 の計算時間は反復回数にほぼ比例するので、現在の反復回数で p99 を測り、目標値との比で
+ * 反復回数を伸縮させてからもう一度測って確かめます。ログイン時と同じく検証プールのスレッド数だけ
+ * 並行に計算させるので、CPU の取り合いも含めた値になります。
+ *
+ * 結果は 1000 単位に丸め、SecretQuestionAnswerHasher の下限/上限に収めます。
+ */
+public final class SecretQuestionHashCalibrator {
+
+    private static final int WARMUP_SAMPLES = 5;
+    private static final int SAMPLES_PER_THREAD = 20;
+    private static final String PROBE_ANSWER = "calibration-probe-answer";
+
+    private SecretQuestionHashCalibrator() {}
+
+    public static int calibrate(int startIterations, long targetP99Millis, int threads) {
+        int iterations = SecretQuestionAnswerHasher.clampIterations(startIterations);
+        for (int round = 0; round < 2; round++) {
+            long p99Nanos = measureP99Nanos(iterations, threads);
+            double scale = (double) TimeUnit.MILLISECONDS.toNanos(targetP99Millis) / p99Nanos;
+            iterations = round(iterations * scale);
+        }
+        return iterations;
+    }
+
+    public static long measureP99Nanos(int iterations, int threads) {
+        int workers = Math.max(1, threads);
+        long[] samples = new long[workers * SAMPLES_PER_THREAD];
+        byte[] salt = new byte[16];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] running = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            int offset = w * SAMPLES_PER_THREAD;
+            running[w] = new Thread(() -> {
+                for (int i = 0; i < WARMUP_SAMPLES; i++) {
+                    SecretQuestionAnswerHasher.derive(PROBE_ANSWER, salt, iterations);
+                }
+                awaitQuietly(start);
+                for (int i = 0; i < SAMPLES_PER_THREAD; i++) {
+                    long begin = System.nanoTime();
+                    SecretQuestionAnswerHasher.derive(PROBE_ANSWER, salt, iterations);
+                    samples[offset + i] = System.nanoTime() - begin;
+                }
+            }, "secret-question-calibration-" + w);
+            running[w].setDaemon(true);
+            running[w].start();
+        }
+        start.countDown();
+        for (Thread thread : running) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted during hash calibration", e);
+            }
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(samples.length * 0.99) - 1;
+        return Math.max(1L, samples[Math.max(0, index)]);
+    }
+
+    private static int round(double iterations) {
+        long rounded = Math.round(iterations / 1000.0) * 1000L;
+        return SecretQuestionAnswerHasher
+                .clampIterations((int) Math.min(Integer.MAX_VALUE, rounded));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * 回答のハッシュ計算（PBKDF2）を Keycloak のリクエストワーカーとは別のスレッドで実行するプール。
+ *
+ * ハッシュ計算は意図的に重くしてあるので、クレデンシャルスタッフィングのような大量の試行を
+ * リクエストワーカー上でそのまま計算すると、他のログインやトークン発行まで巻き込んで詰まります。
+ * このプールはスレッド数とキュー長の両方に上限を持ち、あふれた分は待たせずにすぐ
+ * SecretQuestionVerificationRejectedException で断ります。キューに入れても timeoutMillis 以内に
+ * 終わらない場合も同じ例外にします。
+ *
+ * timeoutMillis が抑えるのは呼び出し元の待ち時間だけです。タイムアウト時の cancel(true) で
+ * 取り消せるのはまだキューにある計算だけで、JDK の PBKDF2 は割り込みを見ないため、始まった計算は
+ * 最後まで走ってスレッドを使い続けます。計算の量はスレッド数とキュー長で抑えます。
+ *
+ * threads が 0 以下の場合はプールを作らず、呼び出し元のスレッドでそのまま実行します。
+ */
+public class SecretQuestionVerificationPool {
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public SecretQuestionVerificationPool(int threads, int queueSize, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        if (threads <= 0) {
+            this.executor = null;
+            return;
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), new DaemonThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public <T> T execute(Callable<T> task) {
+        if (executor == null) {
+            return call(task);
+        }
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw new SecretQuestionVerificationRejectedException(
+                    "Secret question verification queue is full", e);
+        }
+        try {
+            return timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS)
+                    : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.increment();
+            throw new SecretQuestionVerificationRejectedException(
+                    "Secret question verification timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SecretQuestionVerificationRejectedException(
+                    "Interrupted while waiting for secret question verification", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public int getQueueSize() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + (executor == null ? 0 : executor.getMaximumPoolSize()) + ", active="
+                + getActiveCount() + ", queued=" + getQueueSize() + ", rejections="
+                + getRejectionCount() + ", timeouts=" + getTimeoutCount();
+    }
+
+    private static <T> T call(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "secret-question-verify-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
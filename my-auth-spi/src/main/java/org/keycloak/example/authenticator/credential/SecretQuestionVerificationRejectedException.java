@@ -0,0 +1,20 @@
+package org.keycloak.example.authenticator.credential;
+
+/*
+ * SecretQuestionVerificationPool が検証を受け付けなかった（キューが満杯、または待ち時間切れ）ことを表します。
+ *
+ * 回答が間違っていたわけではないので、認証プロバイダはこれを失敗回数に数えず「しばらくしてから再試行」
+ * として扱います。
+ */
+public class SecretQuestionVerificationRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SecretQuestionVerificationRejectedException(String message) {
+        super(message);
+    }
+
+    public SecretQuestionVerificationRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,17 +1,120 @@
 package org.keycloak.example.authenticator.credential.dto;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+/*
+ * 1 つのクレデンシャルに登録された質問の一覧。回答は同じ順番で SecretQuestionSecretData の並びとして
+ * secret_data に入ります。質問が 1 つだけの古い行（"question"）も、1 件の一覧として読みます。
+ *
+ * 質問は、質問カタログ（SecretQuestionCatalog）の ID（questionIds）か、文言そのもの（questions）の
+ * どちらかで持ちます。カタログで登録したクレデンシャルでは questions は空で、文言は出題するときに
+ * レルムのカタログから引きます。
+ */
+// "v" などコーデックが追加するフィールドを JsonSerialization 経由で読んでも失敗しないようにする
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_DEFAULT)
 public class SecretQuestionCredentialData {
-    private final String question;
+    private final List<String> questions;
+    private final List<String> questionIds;
+    // 回答のハッシュに使ったアルゴリズムと反復回数。平文で保存されている古い行では null / 0
+    private final String algorithm;
+    private final int hashIterations;
+    // ハッシュ化の前に回答をそろえた形（SecretQuestionAnswerNormalizer.FORM）。そろえずにハッシュ化した
+    // 古い行と平文の行では null
+    private final String normalization;
+
+    public SecretQuestionCredentialData(String question) {
+        this(question, null, 0);
+    }
+
+    public SecretQuestionCredentialData(String question, String algorithm, int hashIterations) {
+        this(Collections.singletonList(question), algorithm, hashIterations);
+    }
+
+    public SecretQuestionCredentialData(List<String> questions, String algorithm,
+            int hashIterations) {
+        this(questions, algorithm, hashIterations, null);
+    }
+
+    public SecretQuestionCredentialData(List<String> questions, String algorithm,
+            int hashIterations, String normalization) {
+        this(questions, Collections.emptyList(), algorithm, hashIterations, normalization);
+    }
+
+    // questions と questionIds は、どちらか一方だけを渡す
+    public SecretQuestionCredentialData(List<String> questions, List<String> questionIds,
+            String algorithm, int hashIterations, String normalization) {
+        this.questions = Collections.unmodifiableList(new ArrayList<>(questions));
+        this.questionIds = Collections.unmodifiableList(new ArrayList<>(questionIds));
+        this.algorithm = algorithm;
+        this.hashIterations = hashIterations;
+        this.normalization = normalization;
+    }
 
     @JsonCreator
-    public SecretQuestionCredentialData(@JsonProperty("question") String question) {
-        this.question = question;
+    private static SecretQuestionCredentialData fromJson(@JsonProperty("question") String question,
+            @JsonProperty("questions") List<String> questions,
+            @JsonProperty("questionIds") List<String> questionIds,
+            @JsonProperty("algorithm") String algorithm,
+            @JsonProperty("hashIterations") int hashIterations,
+            @JsonProperty("normalization") String normalization) {
+        if (questionIds != null) {
+            return new SecretQuestionCredentialData(Collections.emptyList(), questionIds,
+                    algorithm, hashIterations, normalization);
+        }
+        return new SecretQuestionCredentialData(
+                questions != null ? questions : Collections.singletonList(question), algorithm,
+                hashIterations, normalization);
+    }
+
+    // 文言で登録された質問の一覧。カタログの ID で登録したクレデンシャルでは空
+    public List<String> getQuestions() {
+        return questions;
+    }
+
+    // カタログの ID で登録された質問の一覧。文言で登録したクレデンシャルでは空
+    public List<String> getQuestionIds() {
+        return questionIds;
+    }
+
+    @JsonIgnore
+    public boolean isCatalogued() {
+        return !questionIds.isEmpty();
     }
 
+    // 最初の質問の文言。質問が 1 つだけのクレデンシャルではその質問。カタログの ID で登録した場合は null
+    @JsonIgnore
     public String getQuestion() {
-        return question;
+        return questions.isEmpty() ? null : questions.get(0);
+    }
+
+    // index 番目の質問のカタログの ID。文言で登録したクレデンシャルでは null
+    @JsonIgnore
+    public String getQuestionId(int index) {
+        return index >= 0 && index < questionIds.size() ? questionIds.get(index) : null;
+    }
+
+    @JsonIgnore
+    public int getQuestionCount() {
+        return isCatalogued() ? questionIds.size() : questions.size();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getHashIterations() {
+        return hashIterations;
+    }
+
+    public String getNormalization() {
+        return normalization;
     }
 }
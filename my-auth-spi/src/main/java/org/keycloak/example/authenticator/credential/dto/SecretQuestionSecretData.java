@@ -1,17 +1,55 @@
 package org.keycloak.example.authenticator.credential.dto;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+/*
+ * 回答はソルト付きのハッシュ（salt / value）として保存します。
+ *
+ * answer はハッシュ化を導入する前に保存された平文の回答で、その行を読むときだけ値が入ります。
+ * 正しく回答されたタイミングでハッシュに置き換えられます。
+ */
+// "v" などコーデックが追加するフィールドを JsonSerialization 経由で読んでも失敗しないようにする
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class SecretQuestionSecretData {
     private final String answer;
+    private final byte[] salt;
+    private final byte[] value;
+
+    public SecretQuestionSecretData(String answer) {
+        this(answer, null, null);
+    }
+
+    public SecretQuestionSecretData(byte[] salt, byte[] value) {
+        this(null, salt, value);
+    }
 
     @JsonCreator
-    public SecretQuestionSecretData(@JsonProperty("answer") String answer) {
+    public SecretQuestionSecretData(@JsonProperty("answer") String answer,
+            @JsonProperty("salt") byte[] salt, @JsonProperty("value") byte[] value) {
         this.answer = answer;
+        this.salt = salt;
+        this.value = value;
     }
 
     public String getAnswer() {
         return answer;
     }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    @JsonIgnore
+    public boolean isHashed() {
+        return value != null;
+    }
 }
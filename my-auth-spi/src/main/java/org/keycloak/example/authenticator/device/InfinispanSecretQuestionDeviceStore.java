@@ -0,0 +1,45 @@
+package org.keycloak.example.authenticator.device;
+
+import java.util.concurrent.TimeUnit;
+import org.infinispan.Cache;
+
+/*
+ * Infinispan の分散キャッシュ（CACHE_NAME）に信頼済み端末を置きます。キャッシュの定義は
+ * docker/keycloak/cache-ispn-jdbc-ping-mysql.xml にあります。
+ *
+ * 値は Serializable で、Keycloak 22 の既定（JBoss Marshalling）のままクラスタ内を転送できます。
+ * エントリの寿命は端末の有効期限に合わせて書き込みごとに指定するので、期限の切れたユーザのエントリは
+ * Infinispan が消します。
+ */
+public class InfinispanSecretQuestionDeviceStore implements SecretQuestionDeviceStore {
+
+    public static final String CACHE_NAME = "secretQuestionDevices";
+
+    private final Cache<String, SecretQuestionTrustedDevices> cache;
+
+    public InfinispanSecretQuestionDeviceStore(Cache<String, SecretQuestionTrustedDevices> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public SecretQuestionTrustedDevices get(String key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, SecretQuestionTrustedDevices devices,
+            long lifespanMillis) {
+        return cache.putIfAbsent(key, devices, lifespanMillis, TimeUnit.MILLISECONDS) == null;
+    }
+
+    @Override
+    public boolean replace(String key, SecretQuestionTrustedDevices expected,
+            SecretQuestionTrustedDevices devices, long lifespanMillis) {
+        return cache.replace(key, expected, devices, lifespanMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public SecretQuestionTrustedDevices remove(String key) {
+        return cache.remove(key);
+    }
+}
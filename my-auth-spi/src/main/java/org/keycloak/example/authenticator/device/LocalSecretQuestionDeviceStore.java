@@ -0,0 +1,64 @@
+package org.keycloak.example.authenticator.device;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.keycloak.common.util.Time;
+
+/*
+ * ノードローカルのマップに信頼済み端末を置きます。分散キャッシュが定義されていない場合（start-dev や
+ * 単一ノード）に使います。クラスタでは端末を登録したノードでしか信頼されず、失効も伝わりません。
+ *
+ * エントリの寿命は読み出し時に確かめ、期限切れのものはその場で消します。
+ */
+public class LocalSecretQuestionDeviceStore implements SecretQuestionDeviceStore {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public SecretQuestionTrustedDevices get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= Time.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.devices;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, SecretQuestionTrustedDevices devices,
+            long lifespanMillis) {
+        // 期限切れのエントリが残っていれば、ないものとして扱う
+        get(key);
+        return entries.putIfAbsent(key, new Entry(devices, lifespanMillis)) == null;
+    }
+
+    @Override
+    public boolean replace(String key, SecretQuestionTrustedDevices expected,
+            SecretQuestionTrustedDevices devices, long lifespanMillis) {
+        Entry current = entries.get(key);
+        return current != null && current.devices.equals(expected)
+                && entries.replace(key, current, new Entry(devices, lifespanMillis));
+    }
+
+    @Override
+    public SecretQuestionTrustedDevices remove(String key) {
+        Entry removed = entries.remove(key);
+        return removed != null ? removed.devices : null;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        private final SecretQuestionTrustedDevices devices;
+        private final long expiresAt;
+
+        private Entry(SecretQuestionTrustedDevices devices, long lifespanMillis) {
+            this.devices = devices;
+            this.expiresAt = Time.currentTimeMillis() + lifespanMillis;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.keycloak.example.authenticator.device;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/*
+ * ユーザの信頼済み端末が失効したことを他のノードに伝えるイベント。
+ * 受け取ったノードは SecretQuestionDeviceRegistry のニアキャッシュからそのユーザのエントリを消します。
+ */
+public class SecretQuestionDeviceInvalidationEvent implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public SecretQuestionDeviceInvalidationEvent(String key) {
+        this.key = key;
+    }
+
+    // "<レルム ID>/<ユーザ ID>"
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "SecretQuestionDeviceInvalidationEvent [key=" + key + "]";
+    }
+}
@@ -0,0 +1,164 @@
+package org.keycloak.example.authenticator.device;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterListener;
+import org.keycloak.common.util.Time;
+import org.keycloak.example.authenticator.cache.LocalCache;
+import org.keycloak.models.KeycloakSession;
+
+/*
+ * 秘密の質問に正しく回答した端末（「この端末を記憶する」）の登録簿。
+ *
+ * 回答に成功すると端末 ID を発行して SecretQuestionDeviceStore（本番では Infinispan の分散キャッシュ）に
+ * 有効期限付きで登録し、ID はクッキーの署名付きトークンに入れます。以後のログインでは、署名に加えて
+ * 端末 ID が登録簿に残っているかを確かめるので、管理者が revokeAll() で失効させたクッキーは、
+ * 有効期限内でも使えなくなります。
+ *
+ * 各ノードはユーザごとの端末の一覧を小さなニアキャッシュ（LocalCache）に持ち、クッキーでの省略は
+ * 通常ノード内で完結します。ニアキャッシュにない端末だけ、他のノードで登録されたものかもしれないので
+ * ストアを読み直します。失効はクラスタ全体への無効化イベント（SecretQuestionDeviceInvalidationEvent）で
+ * 各ノードのニアキャッシュから消し、イベントが届かなかった場合も nearCacheTtl で古い値が消えます。
+ *
+ * SecretQuestionEnrollmentCache と同じく、ストアの読み込み中に無効化が起きた場合は古い値を
+ * ニアキャッシュに戻しません。
+ */
+public class SecretQuestionDeviceRegistry implements ClusterListener {
+    private static final Logger logger = Logger.getLogger(SecretQuestionDeviceRegistry.class);
+
+    public static final String INVALIDATION_TASK_KEY = "secret-question-device-invalidation";
+
+    // 同じユーザの端末を別のノードで同時に登録した場合の、条件付き書き込みのやり直しの上限
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+    private static final int DEVICE_ID_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final LocalCache<String, SecretQuestionTrustedDevices> nearCache;
+    private final AtomicLong invalidations = new AtomicLong();
+    private final int maxDevicesPerUser;
+    private volatile SecretQuestionDeviceStore store;
+
+    public SecretQuestionDeviceRegistry(SecretQuestionDeviceStore store, int nearCacheMaxEntries,
+            long nearCacheTtlMillis, int maxDevicesPerUser) {
+        this.store = store;
+        this.nearCache = new LocalCache<>(nearCacheMaxEntries, nearCacheTtlMillis);
+        this.maxDevicesPerUser = maxDevicesPerUser;
+    }
+
+    // 分散キャッシュは postInit まで取得できないので、それまではノードローカルのストアを使う
+    public void setStore(SecretQuestionDeviceStore store) {
+        this.store = store;
+        invalidateAll();
+    }
+
+    public SecretQuestionDeviceStore getStore() {
+        return store;
+    }
+
+    static String key(String realmId, String userId) {
+        return realmId + "/" + userId;
+    }
+
+    /**
+     * 新しい端末を登録して端末 ID を返します。expiresAt（エポックミリ秒）を過ぎると信頼されなくなります。
+     * 同じユーザの登録が競合し続けて書き込めなかった場合は null を返します。
+     */
+    public String register(String realmId, String userId, long expiresAt) {
+        String key = key(realmId, userId);
+        String deviceId = newDeviceId();
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            long now = Time.currentTimeMillis();
+            SecretQuestionTrustedDevices current = store.get(key);
+            SecretQuestionTrustedDevices updated = (current != null ? current
+                    : SecretQuestionTrustedDevices.EMPTY).with(deviceId, expiresAt, now,
+                            maxDevicesPerUser);
+            long lifespan = Math.max(1L, updated.getLatestExpiry() - now);
+            boolean written = current == null ? store.putIfAbsent(key, updated, lifespan)
+                    : store.replace(key, current, updated, lifespan);
+            if (written) {
+                // このノードの次のログインはストアから読み直す
+                nearCache.invalidate(key);
+                return deviceId;
+            }
+        }
+        logger.debugf("Could not register a trusted device for %s after %d attempts", key,
+                MAX_WRITE_ATTEMPTS);
+        return null;
+    }
+
+    public boolean isTrusted(String realmId, String userId, String deviceId, long now) {
+        String key = key(realmId, userId);
+        SecretQuestionTrustedDevices devices = nearCache.get(key);
+        if (devices != null && devices.contains(deviceId, now)) {
+            return true;
+        }
+        long loadStamp = invalidations.get();
+        devices = store.get(key);
+        if (devices == null) {
+            devices = SecretQuestionTrustedDevices.EMPTY;
+        }
+        put(key, devices, loadStamp);
+        return devices.contains(deviceId, now);
+    }
+
+    private void put(String key, SecretQuestionTrustedDevices devices, long loadStamp) {
+        if (invalidations.get() != loadStamp) {
+            return;
+        }
+        nearCache.put(key, devices);
+        // put の直前に無効化が割り込んだ場合は、置いたばかりの値を取り消す
+        if (invalidations.get() != loadStamp) {
+            nearCache.invalidate(key);
+        }
+    }
+
+    /**
+     * ユーザの信頼済み端末をすべて失効させ、失効させた端末の数を返します。ストアから消したあと、
+     * このノードのニアキャッシュを消し、他のノードへ無効化イベントを送ります。
+     */
+    // ClusterProvider は Keycloak 22 で非推奨だが、ノード間に無効化を送る代わりの API がまだない
+    @SuppressWarnings("deprecation")
+    public int revokeAll(KeycloakSession session, String realmId, String userId) {
+        String key = key(realmId, userId);
+        SecretQuestionTrustedDevices removed = store.remove(key);
+        invalidate(key);
+        org.keycloak.cluster.ClusterProvider cluster =
+                session.getProvider(org.keycloak.cluster.ClusterProvider.class);
+        if (cluster != null) {
+            cluster.notify(INVALIDATION_TASK_KEY, new SecretQuestionDeviceInvalidationEvent(key),
+                    true, org.keycloak.cluster.ClusterProvider.DCNotify.ALL_DCS);
+        }
+        return removed != null ? removed.size() : 0;
+    }
+
+    public void invalidate(String key) {
+        invalidations.incrementAndGet();
+        nearCache.invalidate(key);
+    }
+
+    private void invalidateAll() {
+        invalidations.incrementAndGet();
+        nearCache.invalidateAll();
+    }
+
+    @Override
+    public void eventReceived(ClusterEvent event) {
+        if (event instanceof SecretQuestionDeviceInvalidationEvent) {
+            invalidate(((SecretQuestionDeviceInvalidationEvent) event).getKey());
+        }
+    }
+
+    private static String newDeviceId() {
+        byte[] bytes = new byte[DEVICE_ID_BYTES];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "store=" + store.getClass().getSimpleName() + ", nearCache=" + nearCache;
+    }
+}
@@ -0,0 +1,23 @@
+package org.keycloak.example.authenticator.device;
+
+/*
+ * 信頼済み端末を置く先。キーは "<レルム ID>/<ユーザ ID>" です。
+ *
+ * 本番ではクラスタで共有する Infinispan の分散キャッシュ（InfinispanSecretQuestionDeviceStore）、
+ * キャッシュが定義されていない開発環境などではノードローカルのマップ（LocalSecretQuestionDeviceStore）
+ * を使います。書き込みは条件付きで、競合した場合は呼び出し元が読み直してやり直します。
+ */
+public interface SecretQuestionDeviceStore {
+
+    SecretQuestionTrustedDevices get(String key);
+
+    // lifespanMillis 後にエントリごと消える。すでにエントリがある場合は false
+    boolean putIfAbsent(String key, SecretQuestionTrustedDevices devices, long lifespanMillis);
+
+    // 現在の値が expected と等しい場合だけ置き換える
+    boolean replace(String key, SecretQuestionTrustedDevices expected,
+            SecretQuestionTrustedDevices devices, long lifespanMillis);
+
+    // 消したエントリを返す。なかった場合は null
+    SecretQuestionTrustedDevices remove(String key);
+}
@@ -0,0 +1,81 @@
+package org.keycloak.example.authenticator.device;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * 1 ユーザ分の信頼済み端末（端末 ID ごとの有効期限）。分散キャッシュの 1 エントリになります。
+ *
+ * 不変で、追加のたびに期限切れの端末を取り除いた新しいインスタンスを作ります。分散キャッシュへの書き込みは
+ * 読んだ値との条件付き置き換え（replace(key, old, new)）なので、equals は内容で比べます。
+ * 端末は登録順に並び、maxDevices を超えたら古いものから消します。
+ */
+public final class SecretQuestionTrustedDevices implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final SecretQuestionTrustedDevices EMPTY =
+            new SecretQuestionTrustedDevices(Collections.emptyMap());
+
+    // 端末 ID -> 有効期限（エポックミリ秒）
+    private final Map<String, Long> devices;
+
+    private SecretQuestionTrustedDevices(Map<String, Long> devices) {
+        this.devices = devices;
+    }
+
+    public boolean contains(String deviceId, long now) {
+        Long expiresAt = devices.get(deviceId);
+        return expiresAt != null && expiresAt > now;
+    }
+
+    public SecretQuestionTrustedDevices with(String deviceId, long expiresAt, long now,
+            int maxDevices) {
+        LinkedHashMap<String, Long> updated = new LinkedHashMap<>();
+        devices.forEach((id, expiry) -> {
+            if (expiry > now) {
+                updated.put(id, expiry);
+            }
+        });
+        updated.remove(deviceId);
+        updated.put(deviceId, expiresAt);
+        Iterator<String> oldest = updated.keySet().iterator();
+        while (updated.size() > Math.max(1, maxDevices)) {
+            oldest.next();
+            oldest.remove();
+        }
+        return new SecretQuestionTrustedDevices(Collections.unmodifiableMap(updated));
+    }
+
+    // 最も遅い有効期限。分散キャッシュのエントリの寿命に使う
+    public long getLatestExpiry() {
+        long latest = 0L;
+        for (long expiresAt : devices.values()) {
+            latest = Math.max(latest, expiresAt);
+        }
+        return latest;
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof SecretQuestionTrustedDevices
+                && devices.equals(((SecretQuestionTrustedDevices) obj).devices);
+    }
+
+    @Override
+    public int hashCode() {
+        return devices.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SecretQuestionTrustedDevices [devices=" + devices.size() + "]";
+    }
+}
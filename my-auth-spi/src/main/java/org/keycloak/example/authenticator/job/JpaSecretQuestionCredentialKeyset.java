@@ -0,0 +1,32 @@
+package org.keycloak.example.authenticator.job;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/*
+ * CREDENTIAL テーブルを直接読む SecretQuestionCredentialKeyset。
+ *
+ * UserProvider にはクレデンシャルの種類で絞り込む API がないので、JPA で ID とユーザ ID だけを
+ * 取り出します。secret_data などの本体は読まず、書き直す行は呼び出し側が credentialManager() 経由で
+ * 読み直します。ユーザフェデレーション側に保存されたクレデンシャルは対象外です。
+ */
+public class JpaSecretQuestionCredentialKeyset implements SecretQuestionCredentialKeyset {
+
+    private static final String QUERY = "select c.id, u.id from CredentialEntity c join c.user u"
+            + " where u.realmId = :realmId and c.type = :type and c.id > :afterId order by c.id";
+
+    @Override
+    public List<Entry> next(KeycloakSession session, RealmModel realm, String afterId,
+            int limit) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createQuery(QUERY, Object[].class).setParameter("realmId", realm.getId())
+                .setParameter("type", SecretQuestionCredentialModel.TYPE)
+                .setParameter("afterId", afterId == null ? "" : afterId).setMaxResults(limit)
+                .getResultStream().map(row -> new Entry((String) row[0], (String) row[1]))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,40 @@
+package org.keycloak.example.authenticator.job;
+
+import java.util.List;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/*
+ * レルム内の SECRET_QUESTION クレデンシャルを、クレデンシャル ID の昇順に少しずつ読み出します。
+ *
+ * OFFSET ではなく「前回の最後の ID より大きいもの」で次のページを取るので、何ページ目であっても
+ * 主キーのインデックスを途中から読むだけで済みます。途中で行が追加/削除されても、取りこぼしや
+ * 重複読みはその行の分だけです。
+ */
+@FunctionalInterface
+public interface SecretQuestionCredentialKeyset {
+
+    /**
+     * @param afterId この ID より後の行を返す。null の場合は先頭から。
+     * @param limit 返す件数の上限。これより少なければ最後のページ。
+     */
+    List<Entry> next(KeycloakSession session, RealmModel realm, String afterId, int limit);
+
+    final class Entry {
+        private final String credentialId;
+        private final String userId;
+
+        public Entry(String credentialId, String userId) {
+            this.credentialId = credentialId;
+            this.userId = userId;
+        }
+
+        public String getCredentialId() {
+            return credentialId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+    }
+}
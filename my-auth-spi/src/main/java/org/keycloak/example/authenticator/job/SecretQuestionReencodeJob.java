@@ -0,0 +1,254 @@
+package org.keycloak.example.authenticator.job;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.admin.SecretQuestionTransactionRunner;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialCodec;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.timer.ScheduledTask;
+
+/*
+ * 保存済みの秘密の質問を、バックグラウンドで少しずつ現在の形式に書き直すジョブ。
+ *
+ * レルムごとにクレデンシャルを ID 順に batchSize 件ずつ読み、1 バッチを 1 トランザクションで
+ * SecretQuestionCredentialProvider#reencode に通します。平文の回答はハッシュ化され、古いバージョンの
+ * JSON は現在のバージョンで書き直されます。
+ *
+ * DB への負荷は 2 つの上限で抑えます。
+ *
+ * - rowsPerSecond: 1 秒あたりに処理する行数の上限
+ *
+ * - dbLoadPercent: バッチの処理時間に対して、次のバッチまでにどれだけ休むか。25 なら処理 1 に対して
+ * 3 休み、DB に仕事をさせている時間を全体の 25% 以下にする
+ *
+ * 進み具合（最後に処理したクレデンシャル ID）はレルム属性 CHECKPOINT_ATTRIBUTE に書き、次回の実行や
+ * 再起動後はそこから再開します。レルム属性の書き込みはレルムキャッシュの無効化を伴うので、毎バッチでは
+ * なく checkpointInterval ごとにバッチと同じトランザクションで書きます。書き直しは何度やっても同じ
+ * 結果になるので、チェックポイントより後の行をもう一度読むことになっても問題ありません。
+ *
+ * クラスタ内で 1 ノードだけが実行されるよう、ClusterAwareScheduledTaskRunner から呼び出す前提です
+ * （work キャッシュ上のロックを実行間隔のあいだ保持します）。1 回の実行は maxRun で打ち切るので、
+ * ロックが切れたあとに別のノードと重なって走ることはありません。
+ */
+public class SecretQuestionReencodeJob implements ScheduledTask {
+    private static final Logger logger = Logger.getLogger(SecretQuestionReencodeJob.class);
+
+    public static final String CHECKPOINT_ATTRIBUTE = "secretQuestionReencodeCheckpoint";
+
+    // 書き出す形式のバージョンが上がったら、完了済みのレルムも先頭からやり直す
+    static final String TARGET = "v" + SecretQuestionCredentialCodec.CURRENT_VERSION;
+    static final String DONE = "*";
+
+    private final SecretQuestionTransactionRunner runner;
+    private final SecretQuestionCredentialKeyset keyset;
+    private final int batchSize;
+    private final int rowsPerSecond;
+    private final int dbLoadPercent;
+    private final long maxRunMillis;
+    private final long checkpointIntervalMillis;
+
+    /**
+     * @param rowsPerSecond 1 秒あたりの処理行数の上限。0 以下の場合は制限しない。
+     * @param dbLoadPercent バッチ処理に使う時間の割合の上限（1〜99）。それ以外の場合は制限しない。
+     * @param maxRunMillis 1 回の実行の上限。実行間隔より短くする。
+     * @param checkpointIntervalMillis チェックポイントを書く間隔。0 の場合は毎バッチ書く。
+     */
+    public SecretQuestionReencodeJob(SecretQuestionTransactionRunner runner,
+            SecretQuestionCredentialKeyset keyset, int batchSize, int rowsPerSecond,
+            int dbLoadPercent, long maxRunMillis, long checkpointIntervalMillis) {
+        this.runner = runner;
+        this.keyset = keyset;
+        this.batchSize = Math.max(1, batchSize);
+        this.rowsPerSecond = rowsPerSecond;
+        this.dbLoadPercent = dbLoadPercent;
+        this.maxRunMillis = maxRunMillis;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        long deadline = now() + maxRunMillis;
+        List<String> realmIds = session.realms().getRealmsStream().map(RealmModel::getId)
+                .collect(Collectors.toList());
+        for (String realmId : realmIds) {
+            try {
+                if (!runRealm(realmId, deadline)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // 失敗したバッチはロールバックされているので、次回チェックポイントからやり直す
+                logger.warnf(e, "Secret question re-encode of realm %s failed", realmId);
+            }
+        }
+    }
+
+    // 期限に達して途中でやめた場合は false
+    private boolean runRealm(String realmId, long deadline) {
+        Progress progress = new Progress();
+        runner.run(session -> progress.load(session.realms().getRealm(realmId)));
+        if (progress.done) {
+            return true;
+        }
+        long lastCheckpoint = now();
+        while (!progress.done) {
+            if (now() >= deadline) {
+                runner.run(session -> progress.save(session.realms().getRealm(realmId)));
+                logger.debugf("Secret question re-encode of realm %s paused: %s", realmId,
+                        progress);
+                return false;
+            }
+            long start = now();
+            boolean checkpoint = start - lastCheckpoint >= checkpointIntervalMillis;
+            int rows = runBatch(realmId, progress, checkpoint);
+            long end = now();
+            if (checkpoint || progress.done) {
+                lastCheckpoint = end;
+            }
+            long pauseMillis = Math.min(pauseMillis(rows, end - start), deadline - end);
+            if (!progress.done && !pause(pauseMillis)) {
+                return false;
+            }
+        }
+        logger.infof("Secret question re-encode of realm %s completed: %s", realmId, progress);
+        return true;
+    }
+
+    private int runBatch(String realmId, Progress progress, boolean checkpoint) {
+        Progress batch = progress.copy();
+        runner.run(session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+                batch.done = true;
+                return;
+            }
+            List<SecretQuestionCredentialKeyset.Entry> entries =
+                    keyset.next(session, realm, batch.cursor, batchSize);
+            SecretQuestionCredentialProvider provider = getProvider(session);
+            for (SecretQuestionCredentialKeyset.Entry entry : entries) {
+                reencode(session, provider, realm, entry, batch);
+                batch.cursor = entry.getCredentialId();
+            }
+            batch.done = entries.size() < batchSize;
+            if (checkpoint || batch.done) {
+                batch.save(realm);
+            }
+        });
+        int rows = (int) (batch.scanned - progress.scanned);
+        progress.update(batch);
+        return rows;
+    }
+
+    private void reencode(KeycloakSession session, SecretQuestionCredentialProvider provider,
+            RealmModel realm, SecretQuestionCredentialKeyset.Entry entry, Progress batch) {
+        batch.scanned++;
+        UserModel user = session.users().getUserById(realm, entry.getUserId());
+        if (user == null) {
+            return;
+        }
+        CredentialModel credential =
+                user.credentialManager().getStoredCredentialById(entry.getCredentialId());
+        try {
+            if (provider.reencode(realm, user, credential)) {
+                batch.rewritten++;
+            }
+        } catch (RuntimeException e) {
+            // 壊れた行で毎回止まらないよう、読めない行は飛ばして先へ進む
+            batch.failed++;
+            logger.warnf(e, "Skipped unreadable secret question credential %s",
+                    entry.getCredentialId());
+        }
+    }
+
+    /*
+     * バッチのあとに休む時間。rowsPerSecond を守るのに必要な時間と、処理時間に対して dbLoadPercent を
+     * 守るのに必要な時間の長いほうを返します。
+     */
+    long pauseMillis(int rows, long elapsedMillis) {
+        long byRate = rowsPerSecond > 0 ? rows * 1000L / rowsPerSecond - elapsedMillis : 0;
+        long byLoad = dbLoadPercent > 0 && dbLoadPercent < 100
+                ? elapsedMillis * (100 - dbLoadPercent) / dbLoadPercent
+                : 0;
+        return Math.max(0, Math.max(byRate, byLoad));
+    }
+
+    // 割り込まれた場合（シャットダウン時など）は false
+    private boolean pause(long millis) {
+        if (millis <= 0) {
+            return true;
+        }
+        try {
+            sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    protected void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    protected long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static SecretQuestionCredentialProvider getProvider(KeycloakSession session) {
+        return (SecretQuestionCredentialProvider) session.getProvider(CredentialProvider.class,
+                SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+    }
+
+    private static final class Progress {
+        private String cursor;
+        private boolean done;
+        private long scanned;
+        private long rewritten;
+        private long failed;
+
+        // 別の形式に向けたチェックポイントは無視して先頭から始める
+        private void load(RealmModel realm) {
+            String checkpoint = realm == null ? null : realm.getAttribute(CHECKPOINT_ATTRIBUTE);
+            done = realm == null;
+            if (checkpoint == null || !checkpoint.startsWith(TARGET + ":")) {
+                return;
+            }
+            String position = checkpoint.substring(TARGET.length() + 1);
+            done = DONE.equals(position);
+            cursor = done || position.isEmpty() ? null : position;
+        }
+
+        private void save(RealmModel realm) {
+            if (realm != null) {
+                realm.setAttribute(CHECKPOINT_ATTRIBUTE,
+                        TARGET + ":" + (done ? DONE : cursor == null ? "" : cursor));
+            }
+        }
+
+        private Progress copy() {
+            Progress copy = new Progress();
+            copy.update(this);
+            return copy;
+        }
+
+        private void update(Progress other) {
+            cursor = other.cursor;
+            done = other.done;
+            scanned = other.scanned;
+            rewritten = other.rewritten;
+            failed = other.failed;
+        }
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + ", rewritten=" + rewritten + ", failed=" + failed;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.keycloak.example.authenticator.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.keycloak.Config;
+import org.keycloak.example.authenticator.throttle.GradientConcurrencyLimit;
+import org.keycloak.models.RealmModel;
+
+/**
+ * 秘密の質問のフローの各段階の所要時間を Micrometer のタイマーとして記録します。
+ *
+ * メトリクス名は "keycloak.secret_question.<段階>" で、タグは realm と outcome の 2 つだけです。
+ * Prometheus では keycloak_secret_question_authenticate_seconds_count{realm="...",outcome="..."}
+ * のように公開され、件数（_count）がそのまま結果ごとのカウンタになります。
+ *
+ * タイマーはレルム・段階・結果の組み合わせごとに 1 回だけ作って保持し、記録のたびに Tags や
+ * Meter.Id を作りません。記録は System.nanoTime() と Timer.record だけで、割り当ては発生しません。
+ * レルム名のタグは maxRealms 種類までで、それを超えたレルムは "other" にまとめます。
+ */
+public final class SecretQuestionMetrics {
+
+    public static final String PREFIX = "keycloak.secret_question.";
+    public static final String OTHER_REALM = "other";
+    public static final String WARMUP_METRIC = PREFIX + "warmup";
+    public static final String CONCURRENCY_LIMIT_METRIC = PREFIX + "concurrency_limit";
+    public static final String CONCURRENCY_IN_FLIGHT_METRIC = PREFIX + "concurrency_in_flight";
+    public static final String CONCURRENCY_REJECTED_METRIC = PREFIX + "concurrency_rejected";
+
+    private static final int DEFAULT_MAX_REALMS = 100;
+    private static final String MICROMETER_CLASS = "io.micrometer.core.instrument.Metrics";
+
+    public enum Phase {
+        AUTHENTICATE("authenticate"),
+        ACTION("action"),
+        VALIDATE_ANSWER("validate_answer"),
+        CREDENTIAL_FETCH("credential_fetch"),
+        DECODE("decode"),
+        ADD_COOKIE("add_cookie");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = PREFIX + metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    public enum Outcome {
+        // authenticate
+        COOKIE_BYPASS("cookie_bypass"),
+        CHALLENGE("challenge"),
+        // action / validate_answer
+        SUCCESS("success"),
+        FAILURE("failure"),
+        THROTTLED("throttled"),
+        BUSY("busy"),
+        // credential_fetch: 認証セッションの写しから返したか、ストアから読んだか
+        SNAPSHOT("snapshot"),
+        STORE("store"),
+        // add_cookie: レルムに HMAC 鍵がなくクッキーを設定しなかった
+        SKIPPED("skipped");
+
+        private final String tag;
+
+        Outcome(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    private static final int PHASES = Phase.values().length;
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    // 記録しないインスタンス。start() も nanoTime を呼ばない
+    public static final SecretQuestionMetrics DISABLED = new SecretQuestionMetrics(null, 0, false);
+
+    private final MeterRegistry registry;
+    private final int maxRealms;
+    private final boolean histogram;
+    private final ConcurrentHashMap<String, RealmTimers> realms = new ConcurrentHashMap<>();
+    private final RealmTimers otherRealm;
+
+    /**
+     * @param registry 記録先。null の場合は何も記録しない。
+     * @param maxRealms realm タグとして個別に区別するレルムの数の上限。
+     * @param histogram パーセンタイルを集計側で計算できるよう、ヒストグラムのバケットも公開するか。
+     */
+    public SecretQuestionMetrics(MeterRegistry registry, int maxRealms, boolean histogram) {
+        this.registry = registry;
+        this.maxRealms = maxRealms;
+        this.histogram = histogram;
+        this.otherRealm = new RealmTimers(OTHER_REALM);
+    }
+
+    /**
+     * SPI の設定（metricsEnabled / metricsMaxRealms / metricsHistogram）から作ります。
+     *
+     * Keycloak を KC_METRICS_ENABLED=true で起動すると、Quarkus が Prometheus のレジストリを
+     * Micrometer のグローバルレジストリに追加します。メトリクスが無効な場合はグローバルレジストリに
+     * 何も追加されていないので、記録しても捨てられるだけです。
+     *
+     * micrometer-core は provided で、プロバイダの JAR には含めません。Keycloak 22 のディストリビューションは
+     * quarkus-micrometer を同梱しており、プロバイダも同じクラスローダから参照できます。それ以外の環境で
+     * Micrometer が見つからない場合は、起動を失敗させずに記録しないインスタンスを返します。
+     */
+    public static SecretQuestionMetrics fromConfig(Config.Scope config) {
+        return fromConfig(config, isMicrometerAvailable(MICROMETER_CLASS));
+    }
+
+    static SecretQuestionMetrics fromConfig(Config.Scope config, boolean micrometerAvailable) {
+        if (!micrometerAvailable || !config.getBoolean("metricsEnabled", true)) {
+            return DISABLED;
+        }
+        return new SecretQuestionMetrics(Metrics.globalRegistry,
+                config.getInt("metricsMaxRealms", DEFAULT_MAX_REALMS),
+                config.getBoolean("metricsHistogram", false));
+    }
+
+    static boolean isMicrometerAvailable(String className) {
+        try {
+            Class.forName(className, false, SecretQuestionMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return registry != null;
+    }
+
+    public long start() {
+        return registry == null ? 0L : System.nanoTime();
+    }
+
+    public void record(RealmModel realm, Phase phase, Outcome outcome, long startNanos) {
+        if (registry == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        timers(realm).get(phase, outcome).record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * 起動時のウォームアップ（SecretQuestionWarmup）の所要時間を
+     * keycloak.secret_question.warmup{provider, outcome} に記録します。プロバイダごとに起動時の 1 回だけ
+     * なので、タイマーは保持しません。
+     */
+    public void recordWarmup(String provider, Outcome outcome, long elapsedNanos) {
+        if (registry == null) {
+            return;
+        }
+        Timer.builder(WARMUP_METRIC).tag("provider", provider).tag("outcome", outcome.getTag())
+                .register(registry).record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * レルムごとの同時検証数の上限（SecretQuestionConcurrencyLimiter）を公開します。現在の上限と
+     * 実行中の数はゲージ、断った回数はカウンタです。上限を作ったときに 1 回だけ呼ばれます。
+     */
+    public void registerConcurrencyLimit(String realmName, GradientConcurrencyLimit limit) {
+        if (registry == null) {
+            return;
+        }
+        Gauge.builder(CONCURRENCY_LIMIT_METRIC, limit, GradientConcurrencyLimit::getLimit)
+                .tag("realm", realmName).register(registry);
+        Gauge.builder(CONCURRENCY_IN_FLIGHT_METRIC, limit, GradientConcurrencyLimit::getInFlight)
+                .tag("realm", realmName).register(registry);
+        FunctionCounter.builder(CONCURRENCY_REJECTED_METRIC, limit,
+                GradientConcurrencyLimit::getRejectionCount).tag("realm", realmName)
+                .register(registry);
+    }
+
+    private RealmTimers timers(RealmModel realm) {
+        String name = realm != null ? realm.getName() : null;
+        if (name == null) {
+            return otherRealm;
+        }
+        RealmTimers timers = realms.get(name);
+        if (timers != null) {
+            return timers;
+        }
+        if (realms.size() >= maxRealms) {
+            return otherRealm;
+        }
+        return realms.computeIfAbsent(name, RealmTimers::new);
+    }
+
+    public int getRealmCount() {
+        return realms.size();
+    }
+
+    private final class RealmTimers {
+        private final String realmName;
+        // 使われた組み合わせだけを遅延して作る。同じ ID のタイマーは registry が同じものを返すので、
+        // 競合して 2 回作っても問題ない
+        private final AtomicReferenceArray<Timer> timers =
+                new AtomicReferenceArray<>(PHASES * OUTCOMES.length);
+
+        private RealmTimers(String realmName) {
+            this.realmName = realmName;
+        }
+
+        private Timer get(Phase phase, Outcome outcome) {
+            int index = phase.ordinal() * OUTCOMES.length + outcome.ordinal();
+            Timer timer = timers.get(index);
+            if (timer == null) {
+                timer = Timer.builder(phase.getMetricName()).tag("realm", realmName)
+                        .tag("outcome", outcome.getTag()).publishPercentileHistogram(histogram)
+                        .register(registry);
+                timers.set(index, timer);
+            }
+            return timer;
+        }
+    }
+}
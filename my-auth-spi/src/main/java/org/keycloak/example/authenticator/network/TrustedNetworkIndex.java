@@ -0,0 +1,360 @@
+package org.keycloak.example.authenticator.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 信頼するネットワーク（CIDR の一覧）を、接続元 IP を引くための二分木（プレフィックストライ）にしたもの。
+ *
+ * IPv4 と IPv6 で木を分け、どちらも配列上に固定した不変の構造です。contains() は木を上から 1 ビットずつ
+ * たどるだけで、ロックも割り当ても行いません（IPv6 の解析に使う作業領域はスレッドごとに 1 つだけ
+ * 作って使い回します）。設定が変わった場合は新しいインスタンスを作って参照ごと差し替えるので、
+ * 読み取り側が作りかけの木を見ることはありません。
+ *
+ * IPv4 射影アドレス（::ffff:192.0.2.1）は IPv4 の木でも引きます。ゾーン ID（fe80::1%eth0）は無視します。
+ */
+public final class TrustedNetworkIndex {
+
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    public static final TrustedNetworkIndex EMPTY = compile("");
+
+    private final String source;
+    private final int networks;
+    private final Trie ipv4;
+    private final Trie ipv6;
+
+    private TrustedNetworkIndex(String source, int networks, Trie ipv4, Trie ipv6) {
+        this.source = source;
+        this.networks = networks;
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * カンマ・空白・"##"（管理コンソールの複数値の区切り）で区切った CIDR の一覧から作ります。
+     * 不正な項目が 1 つでもあれば、すべての問題をまとめた IllegalArgumentException を投げます。
+     */
+    public static TrustedNetworkIndex compile(String source) {
+        List<String> errors = new ArrayList<>();
+        TrustedNetworkIndex index = compile(source, errors);
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid trusted networks: "
+                    + String.join(", ", errors));
+        }
+        return index;
+    }
+
+    /**
+     * CIDR の一覧から作ります。不正な項目は飛ばし、問題を errors に追加します。
+     * プレフィックス長を省略したアドレスは、そのアドレス 1 つだけのネットワークとして扱います。
+     */
+    public static TrustedNetworkIndex compile(String source, List<String> errors) {
+        String normalized = source == null ? "" : source;
+        TrieBuilder ipv4 = new TrieBuilder();
+        TrieBuilder ipv6 = new TrieBuilder();
+        long[] address = new long[2];
+        int networks = 0;
+        for (String cidr : normalized.split("##|[,\\s]+")) {
+            if (cidr.isEmpty()) {
+                continue;
+            }
+            int slash = cidr.indexOf('/');
+            int end = slash < 0 ? cidr.length() : slash;
+            boolean v6 = cidr.lastIndexOf(':', end) >= 0;
+            int width = v6 ? IPV6_BITS : IPV4_BITS;
+            if (v6) {
+                if (!parseIpv6(cidr, 0, end, address)) {
+                    errors.add("not an IP address: " + cidr);
+                    continue;
+                }
+            } else {
+                long value = parseIpv4(cidr, 0, end);
+                if (value < 0) {
+                    errors.add("not an IP address: " + cidr);
+                    continue;
+                }
+                address[0] = value << IPV4_BITS;
+                address[1] = 0L;
+            }
+            int prefix = slash < 0 ? width : parsePrefix(cidr, slash + 1, width);
+            if (prefix < 0) {
+                errors.add("invalid prefix length: " + cidr);
+                continue;
+            }
+            if (hasHostBits(address[0], address[1], prefix)) {
+                errors.add("host bits set beyond the prefix length: " + cidr);
+                continue;
+            }
+            (v6 ? ipv6 : ipv4).insert(address[0], address[1], prefix);
+            networks++;
+        }
+        return new TrustedNetworkIndex(normalized, networks, ipv4.build(), ipv6.build());
+    }
+
+    /**
+     * address が信頼するネットワークのどれかに含まれるかを返します。null や IP アドレスでない文字列は
+     * 含まれないものとして扱います。
+     */
+    public boolean contains(String address) {
+        if (networks == 0 || address == null) {
+            return false;
+        }
+        int end = address.indexOf('%');
+        if (end < 0) {
+            end = address.length();
+        }
+        if (address.lastIndexOf(':', end) < 0) {
+            long value = parseIpv4(address, 0, end);
+            return value >= 0 && ipv4.contains(value << IPV4_BITS, 0L, IPV4_BITS);
+        }
+        long[] scratch = SCRATCH.get();
+        if (!parseIpv6(address, 0, end, scratch)) {
+            return false;
+        }
+        long hi = scratch[0];
+        long lo = scratch[1];
+        if (hi == 0L && (lo >>> 32) == 0xffffL && ipv4.contains(lo << 32, 0L, IPV4_BITS)) {
+            return true;
+        }
+        return ipv6.contains(hi, lo, IPV6_BITS);
+    }
+
+    /**
+     * このインデックスが source から作られたものかどうかを返します。設定が変わったかどうかの判断に使います。
+     */
+    public boolean isCompiledFrom(String source) {
+        return this.source.equals(source == null ? "" : source);
+    }
+
+    // 有効なネットワークの数（不正な項目は含まない）
+    public int size() {
+        return networks;
+    }
+
+    @Override
+    public String toString() {
+        return "networks=" + networks + ", ipv4Nodes=" + ipv4.nodes() + ", ipv6Nodes="
+                + ipv6.nodes();
+    }
+
+    // 10 進のドット区切り 4 つ。不正な場合は -1
+    static long parseIpv4(String s, int from, int to) {
+        long value = 0L;
+        int parts = 0;
+        int i = from;
+        while (true) {
+            int start = i;
+            int part = 0;
+            while (i < to && i - start < 3 && isDigit(s.charAt(i))) {
+                part = part * 10 + (s.charAt(i) - '0');
+                i++;
+            }
+            if (i == start || part > 255) {
+                return -1L;
+            }
+            value = (value << 8) | part;
+            parts++;
+            if (i == to) {
+                return parts == 4 ? value : -1L;
+            }
+            if (s.charAt(i) != '.' || parts == 4) {
+                return -1L;
+            }
+            i++;
+        }
+    }
+
+    /*
+     * RFC 4291 のテキスト表記（"::" による省略と、末尾の IPv4 表記を含む）を解釈し、上位 64 ビットを
+     * out[0]、下位 64 ビットを out[1] に入れる。"::" の前の部分と後の部分を別々に 128 ビットで
+     * 積み上げ、最後に前の部分を左に寄せて合わせる。
+     */
+    static boolean parseIpv6(String s, int from, int to, long[] out) {
+        long beforeHi = 0L;
+        long beforeLo = 0L;
+        long afterHi = 0L;
+        long afterLo = 0L;
+        int before = 0;
+        int after = 0;
+        boolean compressed = false;
+        int i = from;
+        if (to - from >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+        while (i < to) {
+            int start = i;
+            int group = 0;
+            while (i < to && i - start < 4 && hex(s.charAt(i)) >= 0) {
+                group = (group << 4) | hex(s.charAt(i));
+                i++;
+            }
+            int groups = 1;
+            long ipv4 = -1L;
+            if (i < to && s.charAt(i) == '.') {
+                // 末尾の IPv4 表記は 2 グループ分
+                ipv4 = parseIpv4(s, start, to);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                groups = 2;
+                i = to;
+            } else if (i == start) {
+                return false;
+            }
+            for (int g = 0; g < groups; g++) {
+                int value = groups == 1 ? group : (int) (g == 0 ? ipv4 >>> 16 : ipv4 & 0xffff);
+                if (compressed) {
+                    afterHi = (afterHi << 16) | (afterLo >>> 48);
+                    afterLo = (afterLo << 16) | value;
+                    after++;
+                } else {
+                    beforeHi = (beforeHi << 16) | (beforeLo >>> 48);
+                    beforeLo = (beforeLo << 16) | value;
+                    before++;
+                }
+            }
+            if (i == to) {
+                break;
+            }
+            if (s.charAt(i) != ':' || ++i == to) {
+                return false;
+            }
+            if (s.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+        int total = before + after;
+        if (compressed ? total > 7 : total != 8) {
+            return false;
+        }
+        for (int g = before; g < 8; g++) {
+            beforeHi = (beforeHi << 16) | (beforeLo >>> 48);
+            beforeLo <<= 16;
+        }
+        out[0] = beforeHi | afterHi;
+        out[1] = beforeLo | afterLo;
+        return true;
+    }
+
+    private static int parsePrefix(String s, int from, int width) {
+        if (from == s.length() || s.length() - from > 3) {
+            return -1;
+        }
+        int prefix = 0;
+        for (int i = from; i < s.length(); i++) {
+            if (!isDigit(s.charAt(i))) {
+                return -1;
+            }
+            prefix = prefix * 10 + (s.charAt(i) - '0');
+        }
+        return prefix <= width ? prefix : -1;
+    }
+
+    private static boolean hasHostBits(long hi, long lo, int prefix) {
+        if (prefix >= 64) {
+            return prefix < 128 && (lo << (prefix - 64)) != 0L;
+        }
+        return lo != 0L || (prefix == 0 ? hi != 0L : (hi << prefix) != 0L);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    // 先頭（最上位）から数えて index 番目のビット
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1;
+    }
+
+    /*
+     * 節 n の子は children[2n]（ビット 0）と children[2n + 1]（ビット 1）。0 は子がないことを表す
+     * （根の 0 番は誰の子にもならない）。terminal の節に着いたら、そこから下は見ずに一致とする。
+     */
+    private static final class Trie {
+        private final int[] children;
+        private final boolean[] terminal;
+
+        private Trie(int[] children, boolean[] terminal) {
+            this.children = children;
+            this.terminal = terminal;
+        }
+
+        private boolean contains(long hi, long lo, int width) {
+            int node = 0;
+            for (int i = 0; ; i++) {
+                if (terminal[node]) {
+                    return true;
+                }
+                if (i == width) {
+                    return false;
+                }
+                node = children[2 * node + bit(hi, lo, i)];
+                if (node == 0) {
+                    return false;
+                }
+            }
+        }
+
+        private int nodes() {
+            return terminal.length;
+        }
+    }
+
+    private static final class TrieBuilder {
+        private int[] children = new int[2 * 16];
+        private boolean[] terminal = new boolean[16];
+        private int nodes = 1;
+
+        private void insert(long hi, long lo, int prefix) {
+            int node = 0;
+            for (int i = 0; i < prefix; i++) {
+                if (terminal[node]) {
+                    // もっと広いネットワークにすでに含まれている
+                    return;
+                }
+                int slot = 2 * node + bit(hi, lo, i);
+                int child = children[slot];
+                if (child == 0) {
+                    child = newNode();
+                    children[slot] = child;
+                }
+                node = child;
+            }
+            terminal[node] = true;
+        }
+
+        private int newNode() {
+            if (nodes == terminal.length) {
+                terminal = Arrays.copyOf(terminal, nodes * 2);
+                children = Arrays.copyOf(children, nodes * 4);
+            }
+            return nodes++;
+        }
+
+        private Trie build() {
+            return new Trie(Arrays.copyOf(children, 2 * nodes), Arrays.copyOf(terminal, nodes));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.keycloak.example.authenticator.throttle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 観測したレイテンシから同時実行数の上限を調整するリミッタ（Netflix concurrency-limits の Gradient2 と
+ * 同じ考え方）。
+ *
+ * レイテンシの長期の移動平均（longRtt）と短期の移動平均（shortRtt）を持ち、サンプルごとに
+ *
+ * gradient = clamp(tolerance * longRtt / shortRtt, 0.5, 1.0)
+ *
+ * newLimit = limit * gradient + sqrt(limit)
+ *
+ * として上限を newLimit に少しずつ（smoothing の割合で）近づけます。レイテンシが平常時の tolerance 倍
+ * までは gradient が 1 なので上限は sqrt(limit) ずつ伸び、それを超えると比に応じて縮みます。
+ * 上限の半分も使っていない間は、上限を伸ばしても確かめようがないので伸ばしません（縮めるのは、
+ * DB 自体が遅くなった場合にも検証を積み上げないよう、使っている数にかかわらず行います）。
+ * 劣化が続いて longRtt が引き上げられたまま戻らないよう、shortRtt が longRtt の半分を下回ったら
+ * longRtt を縮めて追いつかせます。
+ *
+ * 取得は上限（volatile）と実行中の数（AtomicInteger）の CAS だけで、ロックを取りません。上限の更新は
+ * サンプルを受け取ったスレッドが tryLock で行い、他のスレッドが更新している間に届いたサンプルは
+ * 待たずに捨てます。移動平均なのでサンプルが間引かれても結果はほとんど変わらず、ログインのスレッドが
+ * 上限の更新のために並ぶことはありません。過負荷の兆候（onDropped()）は捨てずにロックを待ちます。
+ */
+public final class GradientConcurrencyLimit {
+
+    private static final int LONG_WINDOW = 100;
+    private static final int SHORT_WINDOW = 10;
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+    // 過負荷の兆候（検証プールの拒否など）を受け取ったときに上限に掛ける値
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejections = new LongAdder();
+    private volatile int limit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // lock を取っている間だけ読み書きする
+    private double estimatedLimit;
+    private double longRtt;
+    private double shortRtt;
+
+    /**
+     * @param initialLimit 最初の上限。
+     * @param minLimit 上限の下限。レイテンシがどれだけ悪化してもこれだけは実行させる。
+     * @param maxLimit 上限の上限。
+     * @param tolerance レイテンシが平常時の何倍までを許容するか（1.0 以上）。
+     */
+    public GradientConcurrencyLimit(int initialLimit, int minLimit, int maxLimit,
+            double tolerance) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = Math.max(1.0, tolerance);
+        this.estimatedLimit = clamp(initialLimit);
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * 実行中の数が上限未満なら 1 つ数えて true を返します。上限に達している場合は待たずに false を
+     * 返し、拒否した回数に数えます。true を返した場合は、終わったら必ず release() を呼んでください。
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejections.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 観測したレイテンシを渡して上限を調整します。他のスレッドが調整している間は、待たずにサンプルを
+     * 捨てます。
+     */
+    public void onSample(long latencyNanos) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            sample(Math.max(1L, latencyNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sample(double rtt) {
+        if (longRtt == 0) {
+            longRtt = rtt;
+            shortRtt = rtt;
+            return;
+        }
+        longRtt += (rtt - longRtt) / LONG_WINDOW;
+        shortRtt += (rtt - shortRtt) / SHORT_WINDOW;
+        if (longRtt / shortRtt > 2.0) {
+            longRtt *= 0.95;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        if (newLimit > estimatedLimit && inFlight.get() < estimatedLimit / 2) {
+            return;
+        }
+        update(newLimit);
+    }
+
+    /**
+     * 下流が処理しきれなかった（検証プールに断られた、タイムアウトした）場合に呼び、上限を縮めます。
+     */
+    public void onDropped() {
+        lock.lock();
+        try {
+            update(estimatedLimit * BACKOFF_RATIO);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(double newLimit) {
+        estimatedLimit = clamp(newLimit);
+        limit = (int) estimatedLimit;
+    }
+
+    private double clamp(double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    // 上限を更新している間に持つロック。テストで更新中の状態を作るのに使う
+    ReentrantLock getLock() {
+        return lock;
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + limit + ", inFlight=" + inFlight.get() + ", rejections="
+                + rejections.sum();
+    }
+}
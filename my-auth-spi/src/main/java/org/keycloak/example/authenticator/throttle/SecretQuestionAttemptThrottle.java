@@ -0,0 +1,149 @@
+package org.keycloak.example.authenticator.throttle;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserLoginFailureModel;
+import org.keycloak.models.UserLoginFailureProvider;
+import org.keycloak.models.UserModel;
+
+/*
+ * 秘密の質問への回答の試行回数を、ユーザごとと接続元 IP ごとに制限します。
+ *
+ * 判定はクレデンシャルを読む前、ハッシュを計算する前に行い、上限を超えた試行はすぐに断ります。
+ * カウンタはノードローカルの TokenBucketLimiter です。
+ *
+ * mirrorLoginFailures を有効にすると、ユーザごとの失敗回数を分散キャッシュ（loginFailures）にも
+ * 反映し、他のノードで数えた失敗も判定に使います。レルムのブルートフォース検知が有効な場合は
+ * 読み書きともしません。そのカウンタは Keycloak 自身がパスワードの失敗も含めて数えていて、
+ * userAttempts と比べる値ではないためです。その場合のクラスタ全体の制限は、レルムの
+ * ブルートフォース検知の設定（失敗回数と待ち時間）に任せます。
+ */
+public class SecretQuestionAttemptThrottle {
+
+    private final TokenBucketLimiter userLimiter;
+    private final TokenBucketLimiter ipLimiter;
+    private final int userAttempts;
+    private final long userPeriodMillis;
+    private final int ipAttempts;
+    private final long ipPeriodMillis;
+    private final int maxEntries;
+    private final boolean mirrorLoginFailures;
+
+    public SecretQuestionAttemptThrottle(int userAttempts, long userPeriodMillis, int ipAttempts,
+            long ipPeriodMillis, int maxEntries, boolean mirrorLoginFailures) {
+        this.userLimiter = new TokenBucketLimiter(userAttempts, userPeriodMillis, maxEntries);
+        this.ipLimiter = new TokenBucketLimiter(ipAttempts, ipPeriodMillis, maxEntries);
+        this.userAttempts = userAttempts;
+        this.userPeriodMillis = userPeriodMillis;
+        this.ipAttempts = ipAttempts;
+        this.ipPeriodMillis = ipPeriodMillis;
+        this.maxEntries = maxEntries;
+        this.mirrorLoginFailures = mirrorLoginFailures;
+    }
+
+    /*
+     * 上限の回数だけを変えた throttle を作ります。期間・保持するキーの数・loginFailures への反映は
+     * このインスタンスと同じです。負の値を渡した項目はこのインスタンスの回数のままにします。
+     * カウンタは共有しません。
+     */
+    public SecretQuestionAttemptThrottle withAttempts(int userAttempts, int ipAttempts) {
+        return new SecretQuestionAttemptThrottle(
+                userAttempts < 0 ? this.userAttempts : userAttempts, userPeriodMillis,
+                ipAttempts < 0 ? this.ipAttempts : ipAttempts, ipPeriodMillis, maxEntries,
+                mirrorLoginFailures);
+    }
+
+    /*
+     * 試行を 1 回分消費します。上限を超えている場合は false を返します。
+     *
+     * どちらかの上限で断った試行は、もう一方の回数にも数えません。ユーザが上限に達した後の試行で
+     * 接続元 IP のトークンまで減らすと、同じ IP の他のユーザが巻き込まれるためです。ユーザのトークンを
+     * 先に消費し、IP の上限で断った場合はユーザのトークンを戻します。
+     *
+     * 接続元のアドレスが分からない場合は IP ごとの制限をしません。すべて同じキーで数えると、
+     * アドレスの分からない試行どうしが 1 つのバケットを奪い合うためです。
+     */
+    public boolean tryAcquire(KeycloakSession session, RealmModel realm, UserModel user,
+            String remoteAddr) {
+        if (isLockedInCluster(session, realm, user)) {
+            return false;
+        }
+        String userKey = userKey(realm, user);
+        if (!userLimiter.tryAcquire(userKey)) {
+            return false;
+        }
+        if (remoteAddr == null || ipLimiter.tryAcquire(ipKey(realm, remoteAddr))) {
+            return true;
+        }
+        userLimiter.release(userKey);
+        return false;
+    }
+
+    /*
+     * 試行を消費せずに、上限に達しているかどうかを返します。フォームを表示するだけの場合に使います。
+     */
+    public boolean isLimited(RealmModel realm, UserModel user, String remoteAddr) {
+        return (remoteAddr != null && ipLimiter.isLimited(ipKey(realm, remoteAddr)))
+                || userLimiter.isLimited(userKey(realm, user));
+    }
+
+    public void recordFailure(KeycloakSession session, RealmModel realm, UserModel user,
+            String remoteAddr) {
+        if (!mirrorLoginFailures || realm.isBruteForceProtected()) {
+            return;
+        }
+        UserLoginFailureProvider loginFailures = session.loginFailures();
+        UserLoginFailureModel failure = loginFailures.getUserLoginFailure(realm, user.getId());
+        if (failure == null) {
+            failure = loginFailures.addUserLoginFailure(realm, user.getId());
+        } else if (Time.currentTimeMillis() - failure.getLastFailure() > userPeriodMillis) {
+            // 前回の失敗から期間が空いていれば数え直す
+            failure.clearFailures();
+        }
+        failure.incrementFailures();
+        failure.setLastFailure(Time.currentTimeMillis());
+        failure.setLastIPFailure(remoteAddr);
+    }
+
+    public void recordSuccess(KeycloakSession session, RealmModel realm, UserModel user) {
+        if (!mirrorLoginFailures || realm.isBruteForceProtected()) {
+            return;
+        }
+        UserLoginFailureProvider loginFailures = session.loginFailures();
+        if (loginFailures.getUserLoginFailure(realm, user.getId()) != null) {
+            loginFailures.removeUserLoginFailure(realm, user.getId());
+        }
+    }
+
+    private boolean isLockedInCluster(KeycloakSession session, RealmModel realm, UserModel user) {
+        if (!mirrorLoginFailures || userAttempts <= 0 || realm.isBruteForceProtected()) {
+            return false;
+        }
+        UserLoginFailureModel failure =
+                session.loginFailures().getUserLoginFailure(realm, user.getId());
+        return failure != null && failure.getNumFailures() >= userAttempts
+                && Time.currentTimeMillis() - failure.getLastFailure() < userPeriodMillis;
+    }
+
+    private static String userKey(RealmModel realm, UserModel user) {
+        return realm.getId() + '/' + user.getId();
+    }
+
+    private static String ipKey(RealmModel realm, String remoteAddr) {
+        return realm.getId() + '/' + remoteAddr;
+    }
+
+    public TokenBucketLimiter getUserLimiter() {
+        return userLimiter;
+    }
+
+    public TokenBucketLimiter getIpLimiter() {
+        return ipLimiter;
+    }
+
+    @Override
+    public String toString() {
+        return "user=[" + userLimiter + "], ip=[" + ipLimiter + "]";
+    }
+}
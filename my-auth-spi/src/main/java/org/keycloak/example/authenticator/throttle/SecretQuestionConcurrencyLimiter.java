@@ -0,0 +1,170 @@
+package org.keycloak.example.authenticator.throttle;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.keycloak.Config;
+import org.keycloak.example.authenticator.credential.SecretQuestionVerificationRejectedException;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.models.RealmModel;
+
+/*
+ * 秘密の質問の回答の検証（クレデンシャルの取得、ハッシュの計算、必要なら再ハッシュの保存）を、レルムごとに
+ * 同時にいくつまで実行させるかを、クレデンシャルの取得にかかった時間から調整します
+ * （GradientConcurrencyLimit）。
+ *
+ * DB が遅くなるとクレデンシャルの取得に時間がかかるようになり、上限が縮みます。上限を超えた検証は
+ * 待たせずに SecretQuestionVerificationRejectedException で断り、認証器は検証プールが混んでいる場合と
+ * 同じ「しばらくしてから再試行」の画面を返します。待たせないので、遅くなった DB のコネクションプールに
+ * 検証が積み上がりません。
+ *
+ * 上限はレルムごとに持つので、1 つのレルムへの負荷の集中が他のレルムのログインを巻き込みません。
+ * 個別に持つのは maxRealms 個までで、それを超えたレルムは 1 つの上限を共有します。上限はメトリクスの
+ * realm ラベルと同じくレルム名で引くので、公開する値は常にそのレルムの上限のものです。
+ *
+ * 現在の上限・実行中の数・断った回数は、SecretQuestionMetrics でレルムごとに公開します。
+ */
+public class SecretQuestionConcurrencyLimiter {
+
+    private static final int DEFAULT_INITIAL_LIMIT = 20;
+    private static final int DEFAULT_MIN_LIMIT = 2;
+    private static final int DEFAULT_MAX_LIMIT = 200;
+    private static final int DEFAULT_TOLERANCE_PERCENT = 150;
+    private static final int DEFAULT_MAX_REALMS = 100;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final int maxRealms;
+    private final SecretQuestionMetrics metrics;
+    private final ConcurrentHashMap<String, GradientConcurrencyLimit> realms =
+            new ConcurrentHashMap<>();
+    private final GradientConcurrencyLimit otherRealm;
+
+    public SecretQuestionConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+            double tolerance, int maxRealms, SecretQuestionMetrics metrics) {
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.maxRealms = maxRealms;
+        this.metrics = metrics;
+        this.otherRealm = newLimit(SecretQuestionMetrics.OTHER_REALM);
+    }
+
+    /*
+     * SPI の設定から作ります。concurrencyLimitEnabled が false（既定）の場合は null を返します。
+     *
+     * - concurrencyLimitInitial / concurrencyLimitMin / concurrencyLimitMax: 最初の上限と、上限の範囲
+     * - concurrencyLimitTolerance: クレデンシャルの取得時間が平常時の何パーセントまでなら上限を
+     * 縮めないか（既定 150）
+     * - concurrencyLimitMaxRealms: 個別に上限を持つレルムの数
+     */
+    public static SecretQuestionConcurrencyLimiter fromConfig(Config.Scope config,
+            SecretQuestionMetrics metrics) {
+        if (!config.getBoolean("concurrencyLimitEnabled", false)) {
+            return null;
+        }
+        return new SecretQuestionConcurrencyLimiter(
+                config.getInt("concurrencyLimitInitial", DEFAULT_INITIAL_LIMIT),
+                config.getInt("concurrencyLimitMin", DEFAULT_MIN_LIMIT),
+                config.getInt("concurrencyLimitMax", DEFAULT_MAX_LIMIT),
+                config.getInt("concurrencyLimitTolerance", DEFAULT_TOLERANCE_PERCENT) / 100.0,
+                config.getInt("concurrencyLimitMaxRealms", DEFAULT_MAX_REALMS), metrics);
+    }
+
+    /*
+     * 検証を 1 つ始めます。レルムの上限に達している場合は待たずに
+     * SecretQuestionVerificationRejectedException を投げます。返した Permit は検証が終わったら
+     * close() してください。
+     */
+    public Permit acquire(RealmModel realm) {
+        GradientConcurrencyLimit limit = limitFor(realm);
+        if (!limit.tryAcquire()) {
+            throw new SecretQuestionVerificationRejectedException(
+                    "Too many concurrent secret question verifications in realm "
+                            + realm.getName());
+        }
+        return new Permit(limit);
+    }
+
+    /*
+     * ストアからクレデンシャルを読むのにかかった時間を渡します。認証セッションの写しから返した場合は
+     * DB を使っていないので渡しません。
+     */
+    public void onFetch(RealmModel realm, long latencyNanos) {
+        limitFor(realm).onSample(latencyNanos);
+    }
+
+    public GradientConcurrencyLimit getLimit(RealmModel realm) {
+        return limitFor(realm);
+    }
+
+    private GradientConcurrencyLimit limitFor(RealmModel realm) {
+        String name = realm != null ? realm.getName() : null;
+        if (name == null) {
+            return otherRealm;
+        }
+        GradientConcurrencyLimit limit = realms.get(name);
+        if (limit != null) {
+            return limit;
+        }
+        if (realms.size() >= maxRealms) {
+            return otherRealm;
+        }
+        GradientConcurrencyLimit created = new GradientConcurrencyLimit(initialLimit, minLimit,
+                maxLimit, tolerance);
+        limit = realms.putIfAbsent(name, created);
+        if (limit != null) {
+            return limit;
+        }
+        metrics.registerConcurrencyLimit(name, created);
+        return created;
+    }
+
+    private GradientConcurrencyLimit newLimit(String realmName) {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(initialLimit, minLimit,
+                maxLimit, tolerance);
+        metrics.registerConcurrencyLimit(realmName, limit);
+        return limit;
+    }
+
+    public int getRealmCount() {
+        return realms.size();
+    }
+
+    @Override
+    public String toString() {
+        long rejections = otherRealm.getRejectionCount();
+        for (GradientConcurrencyLimit limit : realms.values()) {
+            rejections += limit.getRejectionCount();
+        }
+        return "realms=" + realms.size() + ", rejections=" + rejections;
+    }
+
+    public static final class Permit implements AutoCloseable {
+        // 制限しない場合に使う、何もしない Permit
+        public static final Permit NONE = new Permit(null);
+
+        private final GradientConcurrencyLimit limit;
+        private boolean released;
+
+        private Permit(GradientConcurrencyLimit limit) {
+            this.limit = limit;
+        }
+
+        // 検証プールに断られた、またはタイムアウトした場合に呼ぶ。上限を縮める
+        public void dropped() {
+            if (limit != null) {
+                limit.onDropped();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (limit != null && !released) {
+                released = true;
+                limit.release();
+            }
+        }
+    }
+}
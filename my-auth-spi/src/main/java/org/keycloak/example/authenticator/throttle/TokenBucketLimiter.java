@@ -0,0 +1,160 @@
+package org.keycloak.example.authenticator.throttle;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.keycloak.common.util.Time;
+
+/**
+ * キーごとのトークンバケットをロックなしで管理するレートリミッタ。
+ *
+ * バケットの状態は「バケットが満杯に戻る時刻」（GCRA の理論到着時刻）1 つの long で表し、
+ * AtomicLong の CAS だけで更新します。period ミリ秒あたり capacity 回まで、バーストも capacity 回まで
+ * 許可します。キーの表は ConcurrentHashMap なので、更新はキーごとのビン単位に分散されます。
+ *
+ * 満杯に戻った（しばらく使われていない）バケットは、period ごとの掃除か、上限に達したときに
+ * 捨てます。掃除しても maxEntries を超える場合は、いくつかのバケットを見て最も満杯に近いものを
+ * 追い出し、新しいキーを受け付けます。表が一杯になっても、初めて来たユーザや接続元を断ることは
+ * ありません。上限に近いバケットほど追い出されにくいので、制限中のキーは残りやすくなります。
+ */
+public final class TokenBucketLimiter {
+
+    // 表が一杯のときに追い出す候補として見るバケットの数
+    private static final int EVICTION_SAMPLES = 16;
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final long intervalMillis;
+    private final long burstToleranceMillis;
+    private final long sweepIntervalMillis;
+    private final int maxEntries;
+    private final AtomicLong nextSweep;
+
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity period あたりに許可する回数。0 以下の場合は制限しない。
+     * @param periodMillis capacity 回分のトークンが補充されるまでの時間（ミリ秒）。
+     * @param maxEntries 保持するキーの数の上限。
+     */
+    public TokenBucketLimiter(int capacity, long periodMillis, int maxEntries) {
+        this.intervalMillis = capacity > 0 ? Math.max(1L, periodMillis / capacity) : 0L;
+        this.burstToleranceMillis = intervalMillis * Math.max(0, capacity - 1);
+        this.sweepIntervalMillis = Math.max(1000L, periodMillis);
+        this.maxEntries = maxEntries;
+        this.nextSweep = new AtomicLong(Time.currentTimeMillis() + sweepIntervalMillis);
+    }
+
+    /**
+     * トークンを 1 つ消費できれば true を返します。
+     */
+    public boolean tryAcquire(String key) {
+        if (intervalMillis == 0) {
+            return true;
+        }
+        long now = Time.currentTimeMillis();
+        maybeSweep(now);
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxEntries) {
+                sweep(now);
+                if (buckets.size() >= maxEntries) {
+                    evictOne();
+                }
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(0L));
+        }
+        while (true) {
+            long full = bucket.get();
+            long base = Math.max(full, now);
+            if (base - now > burstToleranceMillis) {
+                rejections.increment();
+                return false;
+            }
+            if (bucket.compareAndSet(full, base + intervalMillis)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 直前の tryAcquire で消費したトークンを 1 つ戻します。別の制限で試行を断った場合に使います。
+     */
+    public void release(String key) {
+        if (intervalMillis == 0) {
+            return;
+        }
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.addAndGet(-intervalMillis);
+        }
+    }
+
+    /**
+     * トークンを消費せずに、次の tryAcquire が拒否されるかどうかを返します。
+     */
+    public boolean isLimited(String key) {
+        if (intervalMillis == 0) {
+            return false;
+        }
+        AtomicLong bucket = buckets.get(key);
+        return bucket != null && bucket.get() - Time.currentTimeMillis() > burstToleranceMillis;
+    }
+
+    private void maybeSweep(long now) {
+        long next = nextSweep.get();
+        if (now >= next && nextSweep.compareAndSet(next, now + sweepIntervalMillis)) {
+            sweep(now);
+        }
+    }
+
+    // 満杯に戻ったバケットは新しく作り直したものと区別がつかないので、捨ててもよい。
+    // 掃除と同時に消費したトークンが 1 つ失われることはあるが、CAS のためのロックは取らない
+    private void sweep(long now) {
+        Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().get() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    // 先頭からいくつかのバケットを見て、満杯に戻る時刻が最も早い（上限から遠い）ものを捨てる
+    private void evictOne() {
+        String victim = null;
+        long earliest = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator();
+        for (int i = 0; i < EVICTION_SAMPLES && it.hasNext(); i++) {
+            Map.Entry<String, AtomicLong> entry = it.next();
+            long full = entry.getValue().get();
+            if (full < earliest) {
+                earliest = full;
+                victim = entry.getKey();
+            }
+        }
+        if (victim != null && buckets.remove(victim) != null) {
+            evictions.increment();
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    // 表が一杯で、新しいキーのためにバケットを追い出した回数
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", rejections=" + getRejectionCount() + ", evictions="
+                + getEvictionCount();
+    }
+}
@@ -0,0 +1,161 @@
+package org.keycloak.example.authenticator.warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.ThemeSelectorProvider;
+
+/*
+ * 起動直後のノードで最初のログインが払うコスト（クラスの読み込みと JIT、JCA プロバイダの初期化、
+ * テーマとメッセージの読み込み、Jackson のシリアライザの解決、検証プールのスレッドの起動）を、
+ * 合成したデータで postInit() のうちに済ませておきます。どの段階を行うかは各ファクトリが決めます。
+ *
+ * postInit() は Keycloak の起動処理の中で同期的に呼ばれ、ヘルスチェック（KC_HEALTH_ENABLED=true の
+ * /health/ready）は起動が終わるまで UP を返さないので、ウォームアップが終わるまでノードに
+ * トラフィックは来ません。そのぶん起動は遅くなるので、既定では無効です。
+ *
+ * - warmupEnabled: 有効にするか（既定 false）
+ * - warmupIterations: JIT のために各段階の処理を繰り返す回数（既定 1000）
+ * - warmupMaxRealms: テーマを読み込むレルムの数の上限（既定 100）
+ *
+ * 段階が失敗してもログに残すだけで、起動は止めません。所要時間は INFO のログと、Micrometer の
+ * タイマー keycloak.secret_question.warmup{provider, outcome} で公開します。outcome は、すべての段階が
+ * 成功すれば success、どれかが失敗すれば failure です。
+ */
+public final class SecretQuestionWarmup {
+    private static final Logger logger = Logger.getLogger(SecretQuestionWarmup.class);
+
+    private static final int DEFAULT_ITERATIONS = 1000;
+    private static final int DEFAULT_MAX_REALMS = 100;
+
+    public static final SecretQuestionWarmup DISABLED = new SecretQuestionWarmup(false, 0, 0);
+
+    // ウォームアップの 1 段階。iterations は JIT のために処理を繰り返す回数
+    @FunctionalInterface
+    public interface Step {
+        void run(int iterations) throws Exception;
+    }
+
+    private final boolean enabled;
+    private final int iterations;
+    private final int maxRealms;
+
+    public SecretQuestionWarmup(boolean enabled, int iterations, int maxRealms) {
+        this.enabled = enabled;
+        this.iterations = Math.max(1, iterations);
+        this.maxRealms = Math.max(0, maxRealms);
+    }
+
+    public static SecretQuestionWarmup fromConfig(Config.Scope config) {
+        if (!config.getBoolean("warmupEnabled", false)) {
+            return DISABLED;
+        }
+        return new SecretQuestionWarmup(true,
+                config.getInt("warmupIterations", DEFAULT_ITERATIONS),
+                config.getInt("warmupMaxRealms", DEFAULT_MAX_REALMS));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getMaxRealms() {
+        return maxRealms;
+    }
+
+    /*
+     * steps を順に実行し、失敗した段階の名前を返します。無効な場合は何もしません。
+     */
+    public List<String> run(String provider, SecretQuestionMetrics metrics,
+            Map<String, Step> steps) {
+        List<String> failed = new ArrayList<>();
+        if (!enabled) {
+            return failed;
+        }
+        long start = System.nanoTime();
+        for (Map.Entry<String, Step> step : steps.entrySet()) {
+            try {
+                step.getValue().run(iterations);
+            } catch (Exception e) {
+                logger.warnf(e, "Secret question warm-up step %s of %s failed", step.getKey(),
+                        provider);
+                failed.add(step.getKey());
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        metrics.recordWarmup(provider, failed.isEmpty() ? SecretQuestionMetrics.Outcome.SUCCESS
+                : SecretQuestionMetrics.Outcome.FAILURE, elapsed);
+        logger.infof("Secret question warm-up of %s took %d ms (steps %s, failed %s)", provider,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), steps.keySet(), failed);
+        return failed;
+    }
+
+    /*
+     * レルム（maxRealms 件まで）のログインテーマを解決し、templates とレルムの既定のロケールの
+     * メッセージを読み込みます。テーマキャッシュが有効ならテーマは DefaultThemeManager が保持し、
+     * 無効でも、テーマのクラスの読み込みや JAR の中のリソースの探索は最初の 1 回で済みます。
+     * テンプレートを含まないテーマ（秘密の質問を使わないレルム）は飛ばします。
+     *
+     * FreeMarker でのパースまでは行いません。合成したデータでは描画の途中で失敗し、FreeMarker が
+     * テンプレートのエラーとしてログに出すためです。
+     *
+     * @return テンプレートを読み込んだテーマの数
+     */
+    public int loadTemplates(KeycloakSession session, String... templates) {
+        ThemeSelectorProvider selector = session.getProvider(ThemeSelectorProvider.class);
+        RealmModel previous = session.getContext().getRealm();
+        int loaded = 0;
+        try {
+            for (RealmModel realm : (Iterable<RealmModel>) session.realms().getRealmsStream()
+                    .limit(maxRealms)::iterator) {
+                // テーマの選択はコンテキストのレルムのログインテーマを見る
+                session.getContext().setRealm(realm);
+                Theme theme = session.theme().getTheme(selector.getThemeName(Theme.Type.LOGIN),
+                        Theme.Type.LOGIN);
+                if (loadTemplates(theme, templates)) {
+                    Locale locale = realm.getDefaultLocale() != null
+                            ? Locale.forLanguageTag(realm.getDefaultLocale()) : Locale.ENGLISH;
+                    theme.getEnhancedMessages(realm, locale);
+                    loaded++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            session.getContext().setRealm(previous);
+        }
+        return loaded;
+    }
+
+    private static boolean loadTemplates(Theme theme, String... templates) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (String template : templates) {
+            URL url = theme.getTemplate(template);
+            if (url == null) {
+                return false;
+            }
+            try (InputStream in = url.openStream()) {
+                while (in.read(buffer) >= 0) {
+                    // 読み込むだけ
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -6,15 +6,17 @@
         Setup Secret Question
     <#elseif section = "form">
         <form id="kc-totp-login-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post">
+            <#list secretQuestions as question>
             <div class="${properties.kcFormGroupClass!}">
                 <div class="${properties.kcLabelWrapperClass!}">
-                    <label for="totp" class="${properties.kcLabelClass!}">What is your mom's first name?</label>
+                    <label for="secret_answer_${question?index}" class="${properties.kcLabelClass!}">${question}</label>
                 </div>
 
                 <div class="${properties.kcInputWrapperClass!}">
-                    <input id="totp" name="secret_answer" type="text" class="${properties.kcInputClass!}" />
+                    <input id="secret_answer_${question?index}" name="secret_answer" type="text" class="${properties.kcInputClass!}" />
                 </div>
             </div>
+            </#list>
 
             <div class="${properties.kcFormGroupClass!}">
                 <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
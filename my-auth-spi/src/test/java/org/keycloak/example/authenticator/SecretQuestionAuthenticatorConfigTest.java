@@ -0,0 +1,101 @@
+package org.keycloak.example.authenticator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorConfig.QuestionSelection;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorConfig.SameSite;
+
+public class SecretQuestionAuthenticatorConfigTest extends TestCase {
+
+    private static Map<String, String> config(String... keyValues) {
+        Map<String, String> config = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            config.put(keyValues[i], keyValues[i + 1]);
+        }
+        return config;
+    }
+
+    public void testParsesAllOptions() {
+        SecretQuestionAuthenticatorConfig parsed = SecretQuestionAuthenticatorConfig.parse(config(
+                "cookie.max.age", "3600", "cookie.name", "SQ", "cookie.same.site", "lax",
+                "cookie.secure", "true", "lockout.user.attempts", "3",
+                "lockout.ip.attempts", "0", "question.selection", "first"));
+
+        assertEquals(3600, parsed.getCookieMaxAge());
+        assertEquals("SQ", parsed.getCookieName());
+        assertEquals(SameSite.LAX, parsed.getSameSite());
+        assertTrue(parsed.isCookieSecure());
+        assertEquals(3, parsed.getUserAttempts());
+        assertEquals(0, parsed.getIpAttempts());
+        assertTrue(parsed.overridesAttempts());
+        assertEquals(QuestionSelection.FIRST, parsed.getQuestionSelection());
+    }
+
+    // 管理コンソールで空のまま保存された項目は既定値にする
+    public void testEmptyValuesUseDefaults() {
+        SecretQuestionAuthenticatorConfig parsed = SecretQuestionAuthenticatorConfig.parse(
+                config("cookie.max.age", "", "cookie.name", " ", "lockout.user.attempts", ""));
+
+        assertEquals(SecretQuestionAuthenticatorConfig.DEFAULT_COOKIE_MAX_AGE,
+                parsed.getCookieMaxAge());
+        assertEquals(SecretQuestionAuthenticator.ANSWERED_COOKIE, parsed.getCookieName());
+        assertEquals(SameSite.LAX, parsed.getSameSite());
+        assertFalse(parsed.isCookieSecure());
+        assertFalse(parsed.overridesAttempts());
+        assertEquals(QuestionSelection.RANDOM, parsed.getQuestionSelection());
+    }
+
+    public void testRejectsInvalidValues() {
+        Map<String, String> invalid = config("cookie.max.age", "-1", "cookie.name", "a;b",
+                "cookie.same.site", "sometimes", "cookie.secure", "yes",
+                "lockout.ip.attempts", "many", "question.selection", "last");
+        try {
+            SecretQuestionAuthenticatorConfig.parse(invalid);
+            fail();
+        } catch (IllegalArgumentException e) {
+            for (String key : invalid.keySet()) {
+                assertTrue(e.getMessage(), e.getMessage().contains(key));
+            }
+        }
+
+        List<String> errors = new ArrayList<>();
+        SecretQuestionAuthenticatorConfig lenient =
+                SecretQuestionAuthenticatorConfig.parse(invalid, errors);
+        assertEquals(invalid.size(), errors.size());
+        assertEquals(SecretQuestionAuthenticatorConfig.DEFAULT_COOKIE_MAX_AGE,
+                lenient.getCookieMaxAge());
+        assertEquals(SecretQuestionAuthenticator.ANSWERED_COOKIE, lenient.getCookieName());
+        assertEquals(SecretQuestionAuthenticatorConfig.INHERIT, lenient.getIpAttempts());
+    }
+
+    // Secure のない SameSite=None はブラウザが受け付けない
+    public void testSameSiteNoneRequiresSecure() {
+        try {
+            SecretQuestionAuthenticatorConfig.parse(config("cookie.same.site", "None"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("cookie.same.site"));
+        }
+
+        List<String> errors = new ArrayList<>();
+        assertEquals(SameSite.LAX, SecretQuestionAuthenticatorConfig.parse(
+                config("cookie.same.site", "None"), errors).getSameSite());
+        assertEquals(1, errors.size());
+        assertEquals(SameSite.NONE, SecretQuestionAuthenticatorConfig.parse(
+                config("cookie.same.site", "None", "cookie.secure", "true")).getSameSite());
+    }
+
+    public void testIsParsedFromComparesContents() {
+        Map<String, String> source = config("cookie.max.age", "60");
+        SecretQuestionAuthenticatorConfig parsed = SecretQuestionAuthenticatorConfig.parse(source);
+
+        assertTrue(parsed.isParsedFrom(config("cookie.max.age", "60")));
+        source.put("cookie.max.age", "120");
+        assertFalse(parsed.isParsedFrom(source));
+        assertTrue(SecretQuestionAuthenticatorConfig.DEFAULTS.isParsedFrom(null));
+        assertFalse(SecretQuestionAuthenticatorConfig.DEFAULTS.isParsedFrom(source));
+    }
+}
@@ -0,0 +1,669 @@
+package org.keycloak.example.authenticator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import junit.framework.TestCase;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.FlowStatus;
+import org.keycloak.common.util.Time;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditEvent;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialCodec;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialSnapshot;
+import org.keycloak.example.authenticator.device.LocalSecretQuestionDeviceStore;
+import org.keycloak.example.authenticator.device.SecretQuestionDeviceRegistry;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.support.InMemoryCredentialManager;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubAuthenticationSession;
+import org.keycloak.example.authenticator.support.StubKeyManager;
+import org.keycloak.example.authenticator.support.StubLoginFlow;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.example.authenticator.throttle.SecretQuestionAttemptThrottle;
+import org.keycloak.example.authenticator.throttle.SecretQuestionConcurrencyLimiter;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionAuthenticatorTest extends TestCase {
+
+    private final SecretQuestionAuthenticator authenticator =
+            new SecretQuestionAuthenticator(null, SecretQuestionMetrics.DISABLED,
+                    SecretQuestionAuditLog.DISABLED, null, null);
+    private SecretQuestionCredentialProviderFactory factory;
+    private RealmModel realm;
+    private StubUserModel user;
+    private StubKeyManager keys;
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        realm = StubRealm.create("realm-id", "test");
+        keys = new StubKeyManager();
+        user = new StubUserModel("user-id", "alice");
+        user.credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q",
+                        SecretQuestionAnswerHasher.hash("Hanako",
+                                SecretQuestionAnswerHasher.MIN_ITERATIONS),
+                        SecretQuestionAnswerHasher.MIN_ITERATIONS));
+    }
+
+    // 再ハッシュも書き直しもされていない、回答が平文の行を持つユーザに置き換える
+    private void usePlaintextCredential() {
+        user = new StubUserModel("user-id", "alice");
+        user.credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+    }
+
+    private StubLoginFlow newFlow() {
+        StubLoginFlow flow = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        // 鍵はレルムのものなので、フローをまたいで同じ KeyManager を使う
+        flow.getSession().setKeyManager(keys);
+        return flow;
+    }
+
+    private String answerAndGetCookie() {
+        return answerAndGetCookie(authenticator);
+    }
+
+    private String answerAndGetCookie(SecretQuestionAuthenticator authenticator) {
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(flow.getContext());
+        String header = flow.getResponse().getHeaders().getFirst("Set-Cookie");
+        String value = header.substring("SECRET_QUESTION_ANSWERED=".length());
+        return value.substring(0, value.indexOf(';'));
+    }
+
+    private StubLoginFlow flowWithCookie(String value) {
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().getStubHeaders().setCookie("SECRET_QUESTION_ANSWERED", value);
+        return flow;
+    }
+
+    public void testAuthenticateChallengesWithoutCookie() {
+        StubLoginFlow flow = newFlow();
+
+        authenticator.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+        assertEquals("secret-question.ftl", flow.getContext().getForms().getLastForm());
+    }
+
+    public void testCredentialDeletedOutsideProviderClearsEnrollment() {
+        assertTrue(authenticator.configuredFor(newFlow().getSession(), realm, user));
+        // 管理コンソールからの削除はプロバイダを経由しないので、無効化イベントが出ない
+        CredentialModel stored = user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE).findFirst()
+                .get();
+        user.credentialManager().removeStoredCredentialById(stored.getId());
+        assertTrue(authenticator.configuredFor(newFlow().getSession(), realm, user));
+
+        authenticator.authenticate(newFlow().getContext());
+
+        assertFalse(authenticator.configuredFor(newFlow().getSession(), realm, user));
+    }
+
+    public void testSameQuestionIsAskedForTheWholeAuthenticationSession() {
+        user = new StubUserModel("user-id-3", "carol");
+        user.credentialManager().createStoredCredential(SecretQuestionCredentialModel
+                .createSecretQuestions(Arrays.asList("q0", "q1", "q2"),
+                        Arrays.asList("a0", "a1", "a2")));
+        StubLoginFlow flow = newFlow();
+
+        authenticator.authenticate(flow.getContext());
+
+        String question = (String) flow.getContext().getForms().getAttributes()
+                .get(SecretQuestionAuthenticator.QUESTION_ATTRIBUTE);
+        int index = Integer.parseInt(question.substring(1));
+        // 別の質問の回答は、同じクレデンシャルに登録されていても通らない
+        StubLoginFlow wrong = newFlow().setAuthenticationSession(flow.getAuthenticationSession());
+        wrong.getRequest().setFormParameter("secret_answer", "a" + ((index + 1) % 3));
+        authenticator.action(wrong.getContext());
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, wrong.getContext().getStatus());
+        assertEquals(question, wrong.getContext().getForms().getAttributes()
+                .get(SecretQuestionAuthenticator.QUESTION_ATTRIBUTE));
+
+        StubLoginFlow retry = newFlow().setAuthenticationSession(flow.getAuthenticationSession());
+        retry.getRequest().setFormParameter("secret_answer", "a" + index);
+        authenticator.action(retry.getContext());
+        assertEquals(FlowStatus.SUCCESS, retry.getContext().getStatus());
+    }
+
+    public void testAuthenticateSkipsWithSignedCookie() {
+        StubLoginFlow flow = flowWithCookie(answerAndGetCookie());
+
+        authenticator.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+    }
+
+    public void testAuthenticateIgnoresUnsignedCookie() {
+        StubLoginFlow flow = flowWithCookie("true");
+
+        authenticator.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testAuthenticateIgnoresTamperedCookie() {
+        String cookie = answerAndGetCookie();
+        String[] parts = cookie.split("\\.");
+        // 有効期限を延ばすと署名が合わなくなる
+        String tampered = parts[0] + "." + parts[1] + "." + (Long.parseLong(parts[2]) + 1) + "."
+                + parts[3];
+        StubLoginFlow flow = flowWithCookie(tampered);
+
+        authenticator.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testAuthenticateIgnoresCookieSignedWithoutContext() throws Exception {
+        String cookie = answerAndGetCookie();
+        String signedPart = cookie.substring(0, cookie.lastIndexOf('.'));
+        // 同じレルムの鍵でも、クッキーの用途を表す文字列を入れずに計算した HMAC は通さない
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(keys.getKey(realm, "hmac-1", KeyUse.SIG, Algorithm.HS512).getSecretKey());
+        byte[] signature = mac.doFinal((signedPart + "." + realm.getId() + "." + user.getId())
+                .getBytes(StandardCharsets.UTF_8));
+        StubLoginFlow flow = flowWithCookie(signedPart + "."
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(signature));
+
+        authenticator.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testAuthenticateIgnoresCookieOfAnotherUser() {
+        String cookie = answerAndGetCookie();
+        user = new StubUserModel("other-user-id", "mallory");
+        StubLoginFlow flow = flowWithCookie(cookie);
+
+        authenticator.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testAuthenticateIgnoresExpiredCookie() {
+        String cookie = answerAndGetCookie();
+        Time.setOffset(60 * 60 * 24 * 31);
+        try {
+            StubLoginFlow flow = flowWithCookie(cookie);
+
+            authenticator.authenticate(flow.getContext());
+
+            assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+        } finally {
+            Time.setOffset(0);
+        }
+    }
+
+    public void testCookieSurvivesKeyRotation() {
+        String cookie = answerAndGetCookie();
+        keys.addHmacKey("hmac-2", Algorithm.HS512);
+
+        StubLoginFlow flow = flowWithCookie(cookie);
+        authenticator.authenticate(flow.getContext());
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+
+        keys.removeKey("hmac-1");
+        flow = flowWithCookie(cookie);
+        authenticator.authenticate(flow.getContext());
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testRevokedDeviceCookieIsChallenged() {
+        SecretQuestionDeviceRegistry devices = new SecretQuestionDeviceRegistry(
+                new LocalSecretQuestionDeviceStore(), 100, 60_000L, 10);
+        SecretQuestionAuthenticator withDevices = new SecretQuestionAuthenticator(null,
+                SecretQuestionMetrics.DISABLED, SecretQuestionAuditLog.DISABLED, devices, null);
+        String cookie = answerAndGetCookie(withDevices);
+        assertEquals(5, cookie.split("\\.").length);
+
+        StubLoginFlow flow = flowWithCookie(cookie);
+        withDevices.authenticate(flow.getContext());
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+
+        devices.revokeAll(flow.getSession(), realm.getId(), user.getId());
+        flow = flowWithCookie(cookie);
+        withDevices.authenticate(flow.getContext());
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testCookieWithoutDeviceIsChallengedWhenDevicesAreTracked() {
+        SecretQuestionAuthenticator withDevices = new SecretQuestionAuthenticator(null,
+                SecretQuestionMetrics.DISABLED, SecretQuestionAuditLog.DISABLED,
+                new SecretQuestionDeviceRegistry(new LocalSecretQuestionDeviceStore(), 100,
+                        60_000L, 10), null);
+        // 登録簿を使う前に発行したクッキーは、署名が正しくても失効させられないので受け付けない
+        StubLoginFlow flow = flowWithCookie(answerAndGetCookie());
+
+        withDevices.authenticate(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testCorrectAnswerSucceedsAndSetsCookie() {
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().setFormParameter("secret_answer", "Hanako");
+
+        authenticator.action(flow.getContext());
+
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+        String cookie = flow.getResponse().getHeaders().getFirst("Set-Cookie");
+        assertTrue(cookie, cookie.startsWith("SECRET_QUESTION_ANSWERED="));
+        assertTrue(cookie, cookie.contains("Path=/auth/realms/test"));
+    }
+
+    public void testWrongAnswerFails() {
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().setFormParameter("secret_answer", "Taro");
+
+        authenticator.action(flow.getContext());
+
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, flow.getContext().getStatus());
+        assertEquals(AuthenticationFlowError.INVALID_CREDENTIALS, flow.getContext().getError());
+        assertEquals("badSecret", flow.getContext().getForms().getLastError());
+    }
+
+    public void testAttemptChainReadsCredentialOnce() {
+        StubLoginFlow first = newFlow();
+        authenticator.authenticate(first.getContext());
+        StubAuthenticationSession authSession = first.getAuthenticationSession();
+
+        StubLoginFlow wrong = newFlow().setAuthenticationSession(authSession);
+        wrong.getRequest().setFormParameter("secret_answer", "Taro");
+        authenticator.action(wrong.getContext());
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, wrong.getContext().getStatus());
+
+        StubLoginFlow right = newFlow().setAuthenticationSession(authSession);
+        right.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(right.getContext());
+        assertEquals(FlowStatus.SUCCESS, right.getContext().getStatus());
+
+        assertEquals(1, ((InMemoryCredentialManager) user.credentialManager()).getReadCount());
+        // 成功したら写しは認証セッションから消し、必須アクションの判定に使うメタデータだけを残す
+        assertNull(SecretQuestionCredentialSnapshot.load(authSession, user));
+        for (String note : authSession.getAuthNotes().keySet()) {
+            assertFalse(note, note.endsWith("-data") || note.endsWith("question-index"));
+        }
+        assertNotNull(SecretQuestionCredentialSnapshot.loadMetadata(authSession, user));
+    }
+
+    public void testSnapshotOfAnotherUserIsNotUsed() {
+        StubLoginFlow first = newFlow();
+        authenticator.authenticate(first.getContext());
+
+        user = new StubUserModel("other-user-id", "bob");
+        StubLoginFlow other = newFlow().setAuthenticationSession(first.getAuthenticationSession());
+        other.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(other.getContext());
+
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, other.getContext().getStatus());
+    }
+
+    public void testSecretDataIsNotCopiedToAuthenticationSession() {
+        StubLoginFlow first = newFlow();
+        authenticator.authenticate(first.getContext());
+        StubAuthenticationSession authSession = first.getAuthenticationSession();
+        CredentialModel stored = user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE).findFirst()
+                .get();
+
+        // 認証セッションはクラスタ内に複製されるので、ソルトとハッシュ値は写さない
+        for (String note : authSession.getAuthNotes().values()) {
+            assertFalse(note, note.equals(stored.getSecretData())
+                    || note.equals(stored.getCredentialData()));
+        }
+    }
+
+    public void testPlaintextAnswerIsNotCopiedToAuthenticationSession() {
+        usePlaintextCredential();
+        StubLoginFlow first = newFlow();
+        authenticator.authenticate(first.getContext());
+        StubAuthenticationSession authSession = first.getAuthenticationSession();
+
+        for (String note : authSession.getAuthNotes().values()) {
+            assertFalse(note, note.contains("Hanako"));
+        }
+        assertEquals("q", first.getContext().getForms().getAttributes()
+                .get(SecretQuestionAuthenticator.QUESTION_ATTRIBUTE));
+
+        StubLoginFlow right = newFlow().setAuthenticationSession(authSession);
+        right.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(right.getContext());
+        assertEquals(FlowStatus.SUCCESS, right.getContext().getStatus());
+        // 検証ではこのノードのキャッシュから引くので、ストアは読み直さない
+        assertEquals(1, ((InMemoryCredentialManager) user.credentialManager()).getReadCount());
+    }
+
+    public void testCredentialMissingFromNodeCacheIsReadFromStore() {
+        StubLoginFlow first = newFlow();
+        authenticator.authenticate(first.getContext());
+        StubAuthenticationSession authSession = first.getAuthenticationSession();
+        // 追い出された場合や、別のノードで表示したフォームに回答した場合
+        factory.getModelCache().invalidate(
+                SecretQuestionCredentialSnapshot.load(authSession, user).getCredentialId());
+
+        StubLoginFlow right = newFlow().setAuthenticationSession(authSession);
+        right.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(right.getContext());
+
+        assertEquals(FlowStatus.SUCCESS, right.getContext().getStatus());
+        assertEquals(2, ((InMemoryCredentialManager) user.credentialManager()).getReadCount());
+    }
+
+    public void testCorrectAnswerUpgradesPlaintextCredential() throws IOException {
+        usePlaintextCredential();
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().setFormParameter("secret_answer", "Hanako");
+
+        authenticator.action(flow.getContext());
+
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+        CredentialModel stored = user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE).findFirst()
+                .get();
+        assertTrue(SecretQuestionCredentialCodec.readSecretData(stored.getSecretData()).isHashed());
+        assertEquals(SecretQuestionAnswerHasher.MIN_ITERATIONS, SecretQuestionCredentialCodec
+                .readCredentialData(stored.getCredentialData()).getHashIterations());
+
+        StubLoginFlow next = newFlow();
+        next.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(next.getContext());
+        assertEquals(FlowStatus.SUCCESS, next.getContext().getStatus());
+    }
+
+    public void testBusyVerificationPoolAsksToRetry() {
+        factory.close();
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("verificationThreads", 1)
+                .put("verificationTimeout", 1));
+        user = new StubUserModel("user-id-2", "bob");
+        user.credentialManager().createStoredCredential(SecretQuestionCredentialModel
+                .createSecretQuestion("q", SecretQuestionAnswerHasher.hash("Hanako",
+                        SecretQuestionAnswerHasher.MAX_ITERATIONS),
+                        SecretQuestionAnswerHasher.MAX_ITERATIONS));
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().setFormParameter("secret_answer", "Hanako");
+
+        authenticator.action(flow.getContext());
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+        assertEquals("secretQuestionBusy", flow.getContext().getForms().getLastError());
+    }
+
+    public void testConcurrencyLimitAsksToRetryWithoutVerifying() {
+        SecretQuestionConcurrencyLimiter limiter = new SecretQuestionConcurrencyLimiter(1, 1, 1,
+                1.5, 10, SecretQuestionMetrics.DISABLED);
+        SecretQuestionAuthenticator limited = new SecretQuestionAuthenticator(null,
+                SecretQuestionMetrics.DISABLED, SecretQuestionAuditLog.DISABLED, null,
+                limiter);
+        InMemoryCredentialManager credentials =
+                (InMemoryCredentialManager) user.credentialManager();
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().setFormParameter("secret_answer", "Hanako");
+
+        // 同じレルムの別の検証が実行中
+        try (SecretQuestionConcurrencyLimiter.Permit inFlight = limiter.acquire(realm)) {
+            limited.action(flow.getContext());
+        }
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+        assertEquals("secretQuestionBusy", flow.getContext().getForms().getLastError());
+        assertEquals(0, credentials.getReadCount());
+        assertEquals(1, limiter.getLimit(realm).getRejectionCount());
+        // 終わった検証の分は空くので、次の回答は検証される
+        StubLoginFlow retry = newFlow();
+        retry.getRequest().setFormParameter("secret_answer", "Hanako");
+        limited.action(retry.getContext());
+        assertEquals(FlowStatus.SUCCESS, retry.getContext().getStatus());
+        assertEquals(0, limiter.getLimit(realm).getInFlight());
+    }
+
+    public void testConcurrencyLimitCoversChallengeFetch() {
+        SecretQuestionConcurrencyLimiter limiter = new SecretQuestionConcurrencyLimiter(1, 1, 1,
+                1.5, 10, SecretQuestionMetrics.DISABLED);
+        List<SecretQuestionAuditEvent> events = Collections.synchronizedList(new ArrayList<>());
+        SecretQuestionAuditLog audit = new SecretQuestionAuditLog(100, 10, events::addAll);
+        SecretQuestionAuthenticator limited =
+                new SecretQuestionAuthenticator(null, SecretQuestionMetrics.DISABLED, audit, null,
+                        limiter);
+        user = new StubUserModel("user-id-5", "erin");
+        user.credentialManager().createStoredCredential(SecretQuestionCredentialModel
+                .createSecretQuestions(Arrays.asList("q0", "q1", "q2"),
+                        Arrays.asList("a0", "a1", "a2")));
+        InMemoryCredentialManager credentials =
+                (InMemoryCredentialManager) user.credentialManager();
+        StubLoginFlow form = newFlow();
+
+        try (SecretQuestionConcurrencyLimiter.Permit inFlight = limiter.acquire(realm)) {
+            limited.authenticate(form.getContext());
+        }
+        assertEquals(FlowStatus.CHALLENGE, form.getContext().getStatus());
+        assertEquals("secretQuestionBusy", form.getContext().getForms().getLastError());
+        assertEquals(0, credentials.getReadCount());
+
+        // 質問を出していないので、送られてきた回答は検証せずに質問を出す（失敗に数えない）
+        StubLoginFlow blind = newFlow().setAuthenticationSession(form.getAuthenticationSession());
+        blind.getRequest().setFormParameter("secret_answer", "a0");
+        limited.action(blind.getContext());
+        assertEquals(FlowStatus.CHALLENGE, blind.getContext().getStatus());
+        String question = (String) blind.getContext().getForms().getAttributes()
+                .get(SecretQuestionAuthenticator.QUESTION_ATTRIBUTE);
+        assertNotNull(question);
+
+        StubLoginFlow answer = newFlow().setAuthenticationSession(form.getAuthenticationSession());
+        answer.getRequest().setFormParameter("secret_answer", "a" + question.substring(1));
+        limited.action(answer.getContext());
+        assertEquals(FlowStatus.SUCCESS, answer.getContext().getStatus());
+        audit.close();
+
+        assertEquals(3, events.size());
+        assertEquals(SecretQuestionAuditEvent.Type.BUSY, events.get(0).getType());
+        assertEquals(SecretQuestionAuditEvent.Type.CHALLENGE, events.get(1).getType());
+        assertEquals(SecretQuestionAuditEvent.Type.SUCCESS, events.get(2).getType());
+    }
+
+    public void testThrottledAttemptIsRejectedBeforeCredentialRead() {
+        SecretQuestionAuthenticator throttled = new SecretQuestionAuthenticator(
+                new SecretQuestionAttemptThrottle(2, 60000L, 100, 60000L, 1000, false),
+                SecretQuestionMetrics.DISABLED, SecretQuestionAuditLog.DISABLED, null, null);
+        for (int i = 0; i < 2; i++) {
+            StubLoginFlow flow = newFlow();
+            flow.getRequest().setFormParameter("secret_answer", "Taro");
+            throttled.action(flow.getContext());
+            assertEquals(FlowStatus.FAILURE_CHALLENGE, flow.getContext().getStatus());
+        }
+        InMemoryCredentialManager credentials =
+                (InMemoryCredentialManager) user.credentialManager();
+        long reads = credentials.getReadCount();
+
+        StubLoginFlow limited = newFlow();
+        limited.getRequest().setFormParameter("secret_answer", "Hanako");
+        throttled.action(limited.getContext());
+        // 上限を超えた試行は失敗回数に数えず、正しい回答でも検証しない
+        assertEquals(FlowStatus.CHALLENGE, limited.getContext().getStatus());
+        assertEquals("secretQuestionTooManyAttempts",
+                limited.getContext().getForms().getLastError());
+
+        StubLoginFlow form = newFlow();
+        throttled.authenticate(form.getContext());
+        assertEquals(FlowStatus.CHALLENGE, form.getContext().getStatus());
+        assertEquals("secretQuestionTooManyAttempts", form.getContext().getForms().getLastError());
+
+        assertEquals(reads, credentials.getReadCount());
+    }
+
+    public void testRecordsPhaseMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SecretQuestionAuthenticator measured = new SecretQuestionAuthenticator(null,
+                new SecretQuestionMetrics(registry, 10, false), SecretQuestionAuditLog.DISABLED,
+                null, null);
+        StubLoginFlow form = newFlow();
+        measured.authenticate(form.getContext());
+        StubLoginFlow answer = newFlow().setAuthenticationSession(form.getAuthenticationSession());
+        answer.getRequest().setFormParameter("secret_answer", "Hanako");
+        measured.action(answer.getContext());
+
+        assertEquals(1, count(registry, "authenticate", "challenge"));
+        assertEquals(1, count(registry, "credential_fetch", "store"));
+        assertEquals(1, count(registry, "credential_fetch", "snapshot"));
+        assertEquals(1, count(registry, "validate_answer", "success"));
+        assertEquals(1, count(registry, "add_cookie", "success"));
+        assertEquals(1, count(registry, "action", "success"));
+    }
+
+    public void testRecordsAuditEvents() {
+        List<SecretQuestionAuditEvent> events = Collections.synchronizedList(new ArrayList<>());
+        SecretQuestionAuditLog audit = new SecretQuestionAuditLog(100, 10, events::addAll);
+        SecretQuestionAuthenticator audited =
+                new SecretQuestionAuthenticator(null, SecretQuestionMetrics.DISABLED, audit, null,
+                        null);
+        StubLoginFlow form = newFlow();
+        audited.authenticate(form.getContext());
+        StubLoginFlow wrong = newFlow().setAuthenticationSession(form.getAuthenticationSession());
+        wrong.getRequest().setFormParameter("secret_answer", "Taro");
+        audited.action(wrong.getContext());
+        StubLoginFlow right = newFlow().setAuthenticationSession(form.getAuthenticationSession());
+        right.getRequest().setFormParameter("secret_answer", "Hanako");
+        audited.action(right.getContext());
+        String header = right.getResponse().getHeaders().getFirst("Set-Cookie");
+        String value = header.substring("SECRET_QUESTION_ANSWERED=".length());
+        audited.authenticate(flowWithCookie(value.substring(0, value.indexOf(';'))).getContext());
+        audit.close();
+
+        assertEquals(4, events.size());
+        assertEquals(SecretQuestionAuditEvent.Type.CHALLENGE, events.get(0).getType());
+        assertEquals(SecretQuestionAuditEvent.Type.FAILURE, events.get(1).getType());
+        assertEquals(SecretQuestionAuditEvent.Type.SUCCESS, events.get(2).getType());
+        assertEquals(SecretQuestionAuditEvent.Type.COOKIE_BYPASS, events.get(3).getType());
+        assertEquals("user-id", events.get(3).getUserId());
+        assertEquals("192.0.2.1", events.get(3).getIpAddress());
+    }
+
+    private static AuthenticatorConfigModel configModel(String... keyValues) {
+        AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+        model.setId("config-id");
+        model.setAlias("secret-question-config");
+        Map<String, String> config = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            config.put(keyValues[i], keyValues[i + 1]);
+        }
+        model.setConfig(config);
+        return model;
+    }
+
+    private String answerWithConfig(AuthenticatorConfigModel model) {
+        StubLoginFlow flow = newFlow();
+        flow.getContext().setAuthenticatorConfig(model);
+        flow.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(flow.getContext());
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+        return flow.getResponse().getHeaders().getFirst("Set-Cookie");
+    }
+
+    public void testSetCookieUsesConfiguredAttributes() {
+        AuthenticatorConfigModel model = configModel("cookie.max.age", "60", "cookie.name", "SQ",
+                "cookie.same.site", "Strict", "cookie.secure", "true");
+
+        String header = answerWithConfig(model);
+
+        assertTrue(header, header.startsWith("SQ="));
+        assertTrue(header, header.contains("Max-Age=60;"));
+        assertTrue(header, header.contains("; Secure"));
+        assertTrue(header, header.endsWith("; SameSite=Strict"));
+        String value = header.substring("SQ=".length(), header.indexOf(';'));
+        StubLoginFlow flow = newFlow();
+        flow.getContext().setAuthenticatorConfig(model);
+        flow.getRequest().getStubHeaders().setCookie("SQ", value);
+        authenticator.authenticate(flow.getContext());
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+    }
+
+    // 空のまま保存された cookie.max.age で例外にならず、既定の 30 日になる
+    public void testEmptyCookieMaxAgeUsesDefault() {
+        String header = answerWithConfig(configModel("cookie.max.age", ""));
+
+        assertTrue(header, header.contains("Max-Age=2592000;"));
+        assertTrue(header, header.contains("SameSite=Lax"));
+    }
+
+    public void testChangedConfigIsParsedAgain() {
+        AuthenticatorConfigModel model = configModel("cookie.name", "FIRST");
+        assertTrue(answerWithConfig(model).startsWith("FIRST="));
+        assertTrue(answerWithConfig(model).startsWith("FIRST="));
+
+        // 管理コンソールで保存し直すと、同じ ID で内容の違うマップになる
+        model.setConfig(new HashMap<>(Collections.singletonMap("cookie.name", "SECOND")));
+        assertTrue(answerWithConfig(model).startsWith("SECOND="));
+    }
+
+    public void testFirstQuestionSelection() {
+        user = new StubUserModel("user-id-4", "dave");
+        user.credentialManager().createStoredCredential(SecretQuestionCredentialModel
+                .createSecretQuestions(Arrays.asList("q0", "q1", "q2"),
+                        Arrays.asList("a0", "a1", "a2")));
+        AuthenticatorConfigModel model = configModel("question.selection", "first");
+        for (int i = 0; i < 10; i++) {
+            StubLoginFlow flow = newFlow();
+            flow.getContext().setAuthenticatorConfig(model);
+            authenticator.authenticate(flow.getContext());
+            assertEquals("q0", flow.getContext().getForms().getAttributes()
+                    .get(SecretQuestionAuthenticator.QUESTION_ATTRIBUTE));
+        }
+    }
+
+    public void testConfiguredAttemptLimitOverridesServerSetting() {
+        SecretQuestionAuthenticator throttled = new SecretQuestionAuthenticator(
+                new SecretQuestionAttemptThrottle(5, 60000L, 100, 60000L, 1000, false),
+                SecretQuestionMetrics.DISABLED, SecretQuestionAuditLog.DISABLED, null, null);
+        AuthenticatorConfigModel model = configModel("lockout.user.attempts", "1");
+        StubLoginFlow wrong = newFlow();
+        wrong.getContext().setAuthenticatorConfig(model);
+        wrong.getRequest().setFormParameter("secret_answer", "Taro");
+        throttled.action(wrong.getContext());
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, wrong.getContext().getStatus());
+
+        StubLoginFlow limited = newFlow();
+        limited.getContext().setAuthenticatorConfig(model);
+        limited.getRequest().setFormParameter("secret_answer", "Hanako");
+        throttled.action(limited.getContext());
+        assertEquals(FlowStatus.CHALLENGE, limited.getContext().getStatus());
+        assertEquals("secretQuestionTooManyAttempts",
+                limited.getContext().getForms().getLastError());
+
+        // 設定のない実行ステップは SPI の設定（5 回）のまま
+        StubLoginFlow unconfigured = newFlow();
+        unconfigured.getRequest().setFormParameter("secret_answer", "Hanako");
+        throttled.action(unconfigured.getContext());
+        assertEquals(FlowStatus.SUCCESS, unconfigured.getContext().getStatus());
+    }
+
+    private static long count(SimpleMeterRegistry registry, String phase, String outcome) {
+        return registry.get("keycloak.secret_question." + phase).tag("realm", "test")
+                .tag("outcome", outcome).timer().count();
+    }
+
+    @Override
+    protected void tearDown() {
+        factory.close();
+    }
+}
@@ -0,0 +1,174 @@
+package org.keycloak.example.authenticator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.TestCase;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalogRegistry;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionEnrollmentInvalidationEvent;
+import org.keycloak.example.authenticator.support.InMemoryCredentialManager;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubLoginFlow;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionCredentialProviderTest extends TestCase {
+
+    private SecretQuestionCredentialProviderFactory factory;
+    private RealmModel realm;
+    private StubUserModel user;
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        realm = StubRealm.create("realm-id", "test");
+        user = new StubUserModel("user-id", "alice");
+    }
+
+    @Override
+    protected void tearDown() {
+        factory.close();
+    }
+
+    private SecretQuestionCredentialProvider newProvider() {
+        StubLoginFlow flow = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        return (SecretQuestionCredentialProvider) factory.create(flow.getSession());
+    }
+
+    private boolean isConfigured() {
+        return newProvider().isConfiguredFor(realm, user, SecretQuestionCredentialModel.TYPE);
+    }
+
+    private InMemoryCredentialManager store() {
+        return (InMemoryCredentialManager) user.credentialManager();
+    }
+
+    public void testConfiguredForIsReadOncePerChange() {
+        assertFalse(isConfigured());
+        assertFalse(isConfigured());
+        assertEquals(1, store().getReadCount());
+
+        CredentialModel created = newProvider().createCredential(realm, user,
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+        assertTrue(isConfigured());
+        assertTrue(isConfigured());
+        assertEquals(2, store().getReadCount());
+
+        newProvider().deleteCredential(realm, user, created.getId());
+        assertFalse(isConfigured());
+        assertEquals(3, store().getReadCount());
+    }
+
+    public void testInvalidationEventFromAnotherNode() {
+        assertFalse(isConfigured());
+        // 別のノードで登録された（このノードのプロバイダを経由しない）
+        store().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+        assertFalse(isConfigured());
+
+        factory.getEnrollmentCache()
+                .eventReceived(new SecretQuestionEnrollmentInvalidationEvent(user.getId()));
+
+        assertTrue(isConfigured());
+    }
+
+    public void testCreateCredentialStoresHashedAnswer() {
+        CredentialModel created = newProvider().createCredential(realm, user,
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+
+        assertFalse(created.getSecretData().contains("Hanako"));
+        assertTrue(created.getSecretData().contains("\"salt\""));
+    }
+
+    private CredentialModel storeHashed(int iterations) {
+        return store().createStoredCredential(SecretQuestionCredentialModel.createSecretQuestion(
+                "q", SecretQuestionAnswerHasher.hash("Hanako", iterations), iterations));
+    }
+
+    private int storedIterations(CredentialModel credential) {
+        return newProvider().getCredentialData(store().getStoredCredentialById(credential.getId()))
+                .getHashIterations();
+    }
+
+    public void testRehashesOnlyWhenRealmIterationsIncrease() {
+        int iterations = SecretQuestionAnswerHasher.MIN_ITERATIONS;
+        CredentialModel stored = storeHashed(iterations * 2);
+
+        // レルムの設定より多い反復回数の行は、ログインのたびに書き換えない
+        assertTrue(newProvider().isValid(realm, user, stored, "Hanako"));
+        assertEquals(iterations * 2, storedIterations(stored));
+
+        realm.setAttribute(SecretQuestionCredentialProvider.REALM_HASH_ITERATIONS_ATTRIBUTE,
+                String.valueOf(iterations * 3));
+        assertTrue(newProvider().isValid(realm, user, stored, "Hanako"));
+        assertEquals(iterations * 3, storedIterations(stored));
+        assertTrue(newProvider().isValid(realm, user,
+                store().getStoredCredentialById(stored.getId()), "Hanako"));
+    }
+
+    public void testRehashesPlaintextButNotMultiQuestionRows() {
+        CredentialModel plaintext = store().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+        assertTrue(newProvider().isValid(realm, user, plaintext, "Hanako"));
+        assertFalse(store().getStoredCredentialById(plaintext.getId()).getSecretData()
+                .contains("Hanako"));
+
+        // 1 問の回答だけでは残りの質問をハッシュし直せない
+        CredentialModel multi = store().createStoredCredential(SecretQuestionCredentialModel
+                .createSecretQuestions(Arrays.asList("q0", "q1"), Arrays.asList("a0", "a1")));
+        assertTrue(newProvider().isValid(realm, user, multi, 0, "a0"));
+        assertEquals(multi.getSecretData(),
+                store().getStoredCredentialById(multi.getId()).getSecretData());
+    }
+
+    public void testReencodeReplacesQuestionTextsWithCatalogIds() {
+        CredentialModel defaults = store().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestions(
+                        SecretQuestionRequiredAction.DEFAULT_QUESTIONS,
+                        Arrays.asList("a0", "a1", "a2")));
+
+        assertTrue(newProvider().reencode(realm, user, defaults));
+
+        String credentialData = store().getStoredCredentialById(defaults.getId())
+                .getCredentialData();
+        assertTrue(credentialData,
+                credentialData.contains("\"questionIds\":[\"mothers-first-name\","));
+        assertFalse(credentialData, credentialData.contains("\"questions\""));
+
+        // レルムのカタログにない文言はそのまま残す
+        realm.setAttribute(SecretQuestionCatalogRegistry.REALM_CATALOG_ATTRIBUTE,
+                "{\"q-id\": \"q\"}");
+        CredentialModel known = store().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+        CredentialModel unknown = store().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("other", "Taro"));
+        newProvider().reencode(realm, user, known);
+        newProvider().reencode(realm, user, unknown);
+
+        assertTrue(store().getStoredCredentialById(known.getId()).getCredentialData()
+                .contains("\"questionIds\":[\"q-id\"]"));
+        assertTrue(store().getStoredCredentialById(unknown.getId()).getCredentialData()
+                .contains("\"questions\":[\"other\"]"));
+    }
+
+    public void testWarmUpStepsSucceed() {
+        SecretQuestionCredentialProviderFactory warmed =
+                new SecretQuestionCredentialProviderFactory();
+        warmed.init(new MapConfigScope()
+                .put("hashIterations", SecretQuestionAnswerHasher.MIN_ITERATIONS)
+                .put("verificationThreads", 2).put("metricsEnabled", false)
+                .put("warmupEnabled", true).put("warmupIterations", 10));
+        try {
+            assertEquals(Collections.emptyList(), warmed.warmUp());
+            // スレッドの数だけ順に渡すので、キューがあふれることはない
+            assertEquals(0, warmed.getVerificationPool().getRejectionCount());
+        } finally {
+            warmed.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.keycloak.example.authenticator;
+
+import junit.framework.TestCase;
+import org.jboss.logging.Logger;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.support.LoginLoadHarness;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubUserModel;
+
+/*
+ * 共有インスタンスに登録とログインのフローを同時に流します。既定の件数は mvn test で数秒に収まる
+ * 程度です。大きな負荷で測る場合は件数をシステムプロパティで指定します（例:
+ * mvn test -Dtest=SecretQuestionLoadTest -Dload.users=1000 -Dload.logins=20000）。
+ */
+public class SecretQuestionLoadTest extends TestCase {
+
+    private static final Logger logger = Logger.getLogger(SecretQuestionLoadTest.class);
+
+    private static final int USERS = Integer.getInteger("load.users", 16);
+    private static final int LOGINS = Integer.getInteger("load.logins", 64);
+    private static final int PLATFORM_THREADS = Integer.getInteger("load.platformThreads", 16);
+
+    private LoginLoadHarness harness;
+
+    @Override
+    protected void setUp() {
+        // 件数を増やしても試行回数の制限にかからないようにする
+        harness = new LoginLoadHarness(new MapConfigScope()
+                .put("hashIterations", SecretQuestionAnswerHasher.MIN_ITERATIONS)
+                .put("throttleUserAttempts", 1000000).put("throttleIpAttempts", 1000000))
+                        .setUsers(USERS).setLogins(LOGINS).setPlatformThreads(PLATFORM_THREADS);
+    }
+
+    @Override
+    protected void tearDown() {
+        harness.close();
+    }
+
+    private static void assertNoFailures(LoginLoadHarness.Phase phase) {
+        Throwable failure = phase.getFirstFailure();
+        if (failure != null) {
+            throw new AssertionError(phase.getFailures() + " failed flows in " + phase, failure);
+        }
+    }
+
+    public void testConcurrentEnrollAndLoginFlows() throws InterruptedException {
+        LoginLoadHarness.Report report = harness.setWrongAnswerEvery(10).run();
+        logger.infof("Secret question load: %s", report);
+
+        assertNoFailures(report.getEnroll());
+        assertNoFailures(report.getLogin());
+        assertEquals(LOGINS, report.getLogin().getFlows());
+        for (StubUserModel user : report.getUsers()) {
+            assertEquals(1, user.getCredentialStore()
+                    .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE).count());
+        }
+    }
+
+    // クレデンシャルストアの読み出しが遅くても、フローが失敗したり検証プールで詰まったりしない
+    public void testSlowCredentialStore() throws InterruptedException {
+        LoginLoadHarness.Report report = harness.setReadLatencyMillis(20).run();
+        logger.infof("Secret question load with slow credential store: %s", report);
+
+        assertNoFailures(report.getEnroll());
+        assertNoFailures(report.getLogin());
+    }
+}
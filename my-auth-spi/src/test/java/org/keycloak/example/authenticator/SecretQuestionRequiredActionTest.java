@@ -0,0 +1,176 @@
+package org.keycloak.example.authenticator;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import junit.framework.TestCase;
+import org.keycloak.common.util.Time;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalogRegistry;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.support.InMemoryCredentialManager;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubKeycloakContext;
+import org.keycloak.example.authenticator.support.StubLoginFlow;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionRequiredActionTest extends TestCase {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private final SecretQuestionAuthenticator authenticator =
+            new SecretQuestionAuthenticator(null, SecretQuestionMetrics.DISABLED,
+                    SecretQuestionAuditLog.DISABLED, null, null);
+    private final SecretQuestionRequiredAction requiredAction = new SecretQuestionRequiredAction(
+            SecretQuestionRequiredAction.DEFAULT_QUESTIONS,
+            SecretQuestionAuditLog.DISABLED, new SecretQuestionReenrollmentPolicy(90, 0));
+    private SecretQuestionCredentialProviderFactory factory;
+    private RealmModel realm;
+    private StubUserModel user;
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        realm = StubRealm.create("realm-id", "test");
+        user = new StubUserModel("user-id", "alice");
+    }
+
+    @Override
+    protected void tearDown() {
+        factory.close();
+    }
+
+    private void enroll(long createdDate, String credentialData) {
+        SecretQuestionCredentialModel credential =
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako");
+        credential.setCreatedDate(createdDate);
+        if (credentialData != null) {
+            credential.setCredentialData(credentialData);
+        }
+        user.credentialManager().createStoredCredential(credential);
+    }
+
+    // 出題して正しく回答したあと、同じ認証セッションで必須アクションの条件を判定する
+    private StubLoginFlow answerAndEvaluate() {
+        StubLoginFlow flow = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        authenticator.authenticate(flow.getContext());
+        StubLoginFlow answer = new StubLoginFlow(realm, user, factory, "192.0.2.1")
+                .setAuthenticationSession(flow.getAuthenticationSession());
+        answer.getRequest().setFormParameter("secret_answer", "Hanako");
+        authenticator.action(answer.getContext());
+        long reads = ((InMemoryCredentialManager) user.credentialManager()).getReadCount();
+
+        requiredAction.evaluateTriggers(answer.getRequiredActionContext());
+
+        // 条件の判定ではクレデンシャルを読み直さない
+        assertEquals(reads, ((InMemoryCredentialManager) user.credentialManager()).getReadCount());
+        return answer;
+    }
+
+    private boolean reenrollmentRequired() {
+        return user.getRequiredActionsStream().collect(Collectors.toList())
+                .contains(SecretQuestionRequiredAction.PROVIDER_ID);
+    }
+
+    public void testRecentAnswerIsKept() {
+        enroll(Time.currentTimeMillis() - DAY, null);
+
+        answerAndEvaluate();
+
+        assertFalse(reenrollmentRequired());
+    }
+
+    public void testOldAnswerRequiresReenrollment() {
+        enroll(Time.currentTimeMillis() - 100 * DAY, null);
+
+        answerAndEvaluate();
+
+        assertTrue(reenrollmentRequired());
+    }
+
+    public void testRealmAttributeOverridesMaxAge() {
+        realm.setAttribute(SecretQuestionReenrollmentPolicy.REALM_MAX_ANSWER_AGE_DAYS_ATTRIBUTE,
+                "0");
+        enroll(Time.currentTimeMillis() - 100 * DAY, null);
+
+        answerAndEvaluate();
+
+        assertFalse(reenrollmentRequired());
+    }
+
+    public void testOldFormatRequiresReenrollment() {
+        realm.setAttribute(SecretQuestionReenrollmentPolicy.REALM_MIN_FORMAT_VERSION_ATTRIBUTE,
+                "1");
+        // "v" のない、JsonSerialization で書かれた行（バージョン 0）
+        enroll(Time.currentTimeMillis(), "{\"question\":\"q\"}");
+
+        answerAndEvaluate();
+
+        assertTrue(reenrollmentRequired());
+    }
+
+    public void testLoginWithoutChallengeIsNotEvaluated() {
+        enroll(Time.currentTimeMillis() - 100 * DAY, null);
+        StubLoginFlow flow = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+
+        requiredAction.evaluateTriggers(flow.getRequiredActionContext());
+
+        assertFalse(reenrollmentRequired());
+        assertEquals(0, ((InMemoryCredentialManager) user.credentialManager()).getReadCount());
+    }
+
+    public void testEnrollsCatalogQuestionsById() {
+        realm.setAttribute(SecretQuestionCatalogRegistry.REALM_CATALOG_ATTRIBUTE,
+                "{\"pet\": {\"en\": \"Pet?\", \"ja\": \"ペットは？\"}, "
+                        + "\"city\": {\"en\": \"City?\", \"ja\": \"街は？\"}}");
+        StubLoginFlow enroll = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        ((StubKeycloakContext) enroll.getSession().getContext()).setLocale(Locale.JAPANESE);
+
+        requiredAction.requiredActionChallenge(enroll.getRequiredActionContext());
+        assertEquals(Arrays.asList("ペットは？", "街は？"), enroll.getRequiredActionContext()
+                .getForms().getAttributes().get(SecretQuestionRequiredAction.QUESTIONS_ATTRIBUTE));
+        enroll.getRequest().setFormParameters("secret_answer", Arrays.asList("Pochi", "Tokyo"));
+        requiredAction.processAction(enroll.getRequiredActionContext());
+
+        // 文言ではなく ID を保存する
+        String credentialData = user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                .findFirst().get().getCredentialData();
+        assertTrue(credentialData, credentialData.contains("\"questionIds\":[\"pet\",\"city\"]"));
+        assertFalse(credentialData, credentialData.contains("Pet?"));
+
+        // 出題はログインするユーザのロケールの文言で出す
+        StubLoginFlow login = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        ((StubKeycloakContext) login.getSession().getContext()).setLocale(Locale.JAPANESE);
+        authenticator.authenticate(login.getContext());
+        Object question = login.getContext().getForms().getAttributes()
+                .get(SecretQuestionAuthenticator.QUESTION_ATTRIBUTE);
+        assertTrue(String.valueOf(question), Arrays.asList("ペットは？", "街は？").contains(question));
+    }
+
+    public void testReenrollmentReplacesCredential() {
+        enroll(Time.currentTimeMillis() - 100 * DAY, null);
+        StubLoginFlow flow = answerAndEvaluate();
+        assertTrue(reenrollmentRequired());
+        flow.getRequest().setFormParameters("secret_answer",
+                Arrays.asList("a1", "a2", "a3"));
+
+        requiredAction.processAction(flow.getRequiredActionContext());
+
+        long createdDate = user.credentialManager()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                .findFirst().get().getCreatedDate();
+        assertTrue(Time.currentTimeMillis() - createdDate < DAY);
+
+        // 必須アクションが成功すると Keycloak が外し、同じ認証セッションで条件を判定し直す
+        user.removeRequiredAction(SecretQuestionRequiredAction.PROVIDER_ID);
+        requiredAction.evaluateTriggers(flow.getRequiredActionContext());
+        assertFalse(reenrollmentRequired());
+    }
+}
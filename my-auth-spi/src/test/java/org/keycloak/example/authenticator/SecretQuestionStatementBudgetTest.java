@@ -0,0 +1,174 @@
+package org.keycloak.example.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.keycloak.authentication.FlowStatus;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditLog;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalog;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.support.H2CredentialDatabase;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubAuthenticationSession;
+import org.keycloak.example.authenticator.support.StubKeyManager;
+import org.keycloak.example.authenticator.support.StubLoginFlow;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+
+/*
+ * クレデンシャルを keycloak-model-jpa の JpaUserCredentialStore（組み込みの H2）に置き、
+ * 登録・出題・誤答・正答・クッキーでの省略の各リクエストが発行する SQL の数を上限と比べます。
+ * ホットパスに DB の往復が増えたら、本番で気づく前にここでビルドが失敗します。
+ * 上限を上げる場合は、増えた SQL が本当に必要かを確かめてからにしてください。
+ */
+public class SecretQuestionStatementBudgetTest extends TestCase {
+
+    // Hibernate の起動が重いので DB はクラスで 1 つにし、テストごとに別のユーザを作る
+    private static final H2CredentialDatabase database = new H2CredentialDatabase();
+
+    private final SecretQuestionAuthenticator authenticator =
+            new SecretQuestionAuthenticator(null, SecretQuestionMetrics.DISABLED,
+                    SecretQuestionAuditLog.DISABLED, null, null);
+    private SecretQuestionCredentialProviderFactory factory;
+    private SecretQuestionRequiredActionFactory requiredActionFactory;
+    private List<String> questions;
+    private RealmModel realm;
+    private StubKeyManager keys;
+    private StubUserModel user;
+
+    @Override
+    protected void setUp() {
+        MapConfigScope config = new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS);
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(config);
+        requiredActionFactory = new SecretQuestionRequiredActionFactory();
+        requiredActionFactory.init(config);
+        // 設定で指定しない場合は組み込みのカタログの質問を登録させる
+        questions = SecretQuestionCatalog.DEFAULT.getIds();
+        realm = StubRealm.create("realm-id", "test");
+        keys = new StubKeyManager();
+        user = database.createUser(realm, getName());
+    }
+
+    @Override
+    protected void tearDown() {
+        requiredActionFactory.close();
+        factory.close();
+    }
+
+    private StubLoginFlow newFlow() {
+        StubLoginFlow flow = new StubLoginFlow(realm, user, factory, "192.0.2.1");
+        flow.getSession().setKeyManager(keys);
+        return flow;
+    }
+
+    private void enroll() {
+        database.inTransaction(() -> user.credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q",
+                        SecretQuestionAnswerHasher.hash("Hanako",
+                                SecretQuestionAnswerHasher.MIN_ITERATIONS),
+                        SecretQuestionAnswerHasher.MIN_ITERATIONS)));
+    }
+
+    private static void assertBudget(String step, int budget, List<String> statements) {
+        if (statements.size() > budget) {
+            fail(step + " issued " + statements.size() + " SQL statements (budget " + budget
+                    + "): " + statements);
+        }
+    }
+
+    private StubLoginFlow authenticate(int budget) {
+        StubLoginFlow flow = newFlow();
+        assertBudget("authenticate", budget,
+                database.inTransaction(() -> authenticator.authenticate(flow.getContext())));
+        return flow;
+    }
+
+    private StubLoginFlow answer(StubAuthenticationSession authSession, String answer,
+            int budget) {
+        StubLoginFlow flow = newFlow().setAuthenticationSession(authSession);
+        flow.getRequest().setFormParameter("secret_answer", answer);
+        assertBudget("action", budget,
+                database.inTransaction(() -> authenticator.action(flow.getContext())));
+        return flow;
+    }
+
+    public void testEnrollment() {
+        RequiredActionProvider requiredAction = requiredActionFactory.create(null);
+        StubLoginFlow challenge = newFlow();
+        assertBudget("requiredActionChallenge", 0, database.inTransaction(() -> requiredAction
+                .requiredActionChallenge(challenge.getRequiredActionContext())));
+        assertEquals(RequiredActionContext.Status.CHALLENGE,
+                challenge.getRequiredActionContext().getStatus());
+
+        StubLoginFlow submit =
+                newFlow().setAuthenticationSession(challenge.getAuthenticationSession());
+        List<String> answers = new ArrayList<>();
+        for (int i = 0; i < questions.size(); i++) {
+            answers.add("answer-" + i);
+        }
+        submit.getRequest().setFormParameters("secret_answer", answers);
+        // 既存のクレデンシャルの読み出し、優先度の決定、INSERT
+        assertBudget("processAction", 3, database.inTransaction(
+                () -> requiredAction.processAction(submit.getRequiredActionContext())));
+        assertEquals(RequiredActionContext.Status.SUCCESS,
+                submit.getRequiredActionContext().getStatus());
+    }
+
+    public void testChallengeReadsCredentialOnce() {
+        enroll();
+
+        StubLoginFlow flow = authenticate(1);
+
+        assertEquals(FlowStatus.CHALLENGE, flow.getContext().getStatus());
+    }
+
+    // 出題時に認証セッションへ写した内容で検証するので、誤答でも正答でも DB を読まない
+    public void testAnswersAfterChallengeIssueNoStatements() {
+        enroll();
+        StubAuthenticationSession authSession = authenticate(1).getAuthenticationSession();
+
+        StubLoginFlow wrong = answer(authSession, "Taro", 0);
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, wrong.getContext().getStatus());
+
+        StubLoginFlow right = answer(authSession, "Hanako", 0);
+        assertEquals(FlowStatus.SUCCESS, right.getContext().getStatus());
+    }
+
+    public void testSuccessfulAnswerReadsCredentialOnce() {
+        enroll();
+
+        StubLoginFlow flow = answer(newFlow().getAuthenticationSession(), "Hanako", 1);
+
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+    }
+
+    public void testFailedAnswerReadsCredentialOnce() {
+        enroll();
+
+        StubLoginFlow flow = answer(newFlow().getAuthenticationSession(), "Taro", 1);
+
+        assertEquals(FlowStatus.FAILURE_CHALLENGE, flow.getContext().getStatus());
+    }
+
+    public void testCookieBypassIssuesNoStatements() {
+        enroll();
+        StubLoginFlow answered = answer(newFlow().getAuthenticationSession(), "Hanako", 1);
+        String header = answered.getResponse().getHeaders().getFirst("Set-Cookie");
+        String value = header.substring("SECRET_QUESTION_ANSWERED=".length());
+
+        StubLoginFlow flow = newFlow();
+        flow.getRequest().getStubHeaders().setCookie("SECRET_QUESTION_ANSWERED",
+                value.substring(0, value.indexOf(';')));
+        assertBudget("authenticate with cookie", 0,
+                database.inTransaction(() -> authenticator.authenticate(flow.getContext())));
+
+        assertEquals(FlowStatus.SUCCESS, flow.getContext().getStatus());
+    }
+}
@@ -0,0 +1,82 @@
+package org.keycloak.example.authenticator;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubLoginFlow;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionTrustedNetworkConditionTest extends TestCase {
+
+    private final SecretQuestionTrustedNetworkCondition condition =
+            new SecretQuestionTrustedNetworkCondition();
+    private SecretQuestionCredentialProviderFactory factory;
+    private RealmModel realm;
+    private StubUserModel user;
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        realm = StubRealm.create("realm-id", "test");
+        user = new StubUserModel("user-id", "alice");
+    }
+
+    private static AuthenticatorConfigModel configModel(String networks, boolean not) {
+        AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+        model.setId("condition-config-id");
+        model.setAlias("trusted-network");
+        Map<String, String> config = new HashMap<>();
+        config.put(SecretQuestionTrustedNetworkCondition.TRUSTED_NETWORKS, networks);
+        config.put(SecretQuestionTrustedNetworkCondition.NOT, Boolean.toString(not));
+        model.setConfig(config);
+        return model;
+    }
+
+    private boolean matches(AuthenticatorConfigModel model, String remoteAddr) {
+        StubLoginFlow flow = new StubLoginFlow(realm, user, factory, remoteAddr);
+        flow.getContext().setAuthenticatorConfig(model);
+        return condition.matchCondition(flow.getContext());
+    }
+
+    public void testMatchesClientInTrustedNetwork() {
+        AuthenticatorConfigModel model = configModel("192.0.2.0/24##2001:db8::/32", false);
+
+        assertTrue(matches(model, "192.0.2.10"));
+        assertTrue(matches(model, "2001:db8::10"));
+        assertFalse(matches(model, "198.51.100.1"));
+    }
+
+    // 秘密の質問のサブフローには not を有効にした条件を置き、信頼しない接続元でだけ出題させる
+    public void testNotMatchesClientOutsideTrustedNetworks() {
+        AuthenticatorConfigModel model = configModel("192.0.2.0/24", true);
+
+        assertFalse(matches(model, "192.0.2.10"));
+        assertTrue(matches(model, "198.51.100.1"));
+        assertTrue(matches(model, null));
+    }
+
+    public void testChangedNetworksAreCompiledAgain() {
+        AuthenticatorConfigModel model = configModel("192.0.2.0/24", false);
+        assertTrue(matches(model, "192.0.2.10"));
+        assertSame(condition.resolveIndex(model), condition.resolveIndex(model));
+
+        model.getConfig().put(SecretQuestionTrustedNetworkCondition.TRUSTED_NETWORKS,
+                "198.51.100.0/24");
+        assertFalse(matches(model, "192.0.2.10"));
+        assertTrue(matches(model, "198.51.100.1"));
+    }
+
+    public void testInvalidNetworksAreIgnored() {
+        AuthenticatorConfigModel model = configModel("192.0.2.0/24, not-a-network", false);
+
+        assertTrue(matches(model, "192.0.2.10"));
+        assertEquals(1, condition.resolveIndex(model).size());
+    }
+}
@@ -0,0 +1,86 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionCredentialRow;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionImportStatus;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubTenant;
+import org.keycloak.util.JsonSerialization;
+
+public class SecretQuestionCredentialExporterTest extends TestCase {
+
+    private SecretQuestionCredentialProviderFactory factory;
+    private StubTenant tenant;
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        tenant = new StubTenant(factory, "id-", "alice", "bob", "carol", "dave");
+    }
+
+    @Override
+    protected void tearDown() {
+        factory.close();
+    }
+
+    private String export(StubTenant source, int pageSize) throws IOException {
+        StringWriter out = new StringWriter();
+        new SecretQuestionCredentialExporter(source.runner(), "realm-id", pageSize).exportTo(out);
+        return out.toString();
+    }
+
+    public void testExportsHashedRowsPageByPage() throws IOException {
+        // ハッシュ化前に保存された平文の行
+        tenant.getUser("alice").credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+        tenant.getUser("carol").credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q2",
+                        SecretQuestionAnswerHasher.hash("Jiro",
+                                SecretQuestionAnswerHasher.MIN_ITERATIONS),
+                        SecretQuestionAnswerHasher.MIN_ITERATIONS));
+
+        String[] lines = export(tenant, 3).split("\n");
+
+        // 4 ユーザを 3 件ずつ読むので 2 ページ
+        assertEquals(2, tenant.getUsers().getSearchCount());
+        assertEquals(2, lines.length);
+        for (String line : lines) {
+            assertFalse(line.contains("answer"));
+            assertTrue(JsonSerialization.readValue(line, SecretQuestionCredentialRow.class)
+                    .isHashed());
+        }
+        SecretQuestionCredentialRow first =
+                JsonSerialization.readValue(lines[0], SecretQuestionCredentialRow.class);
+        assertEquals("alice", first.getUsername());
+        assertEquals(SecretQuestionAnswerHasher.ALGORITHM, first.getAlgorithm());
+    }
+
+    public void testExportCanBeImportedIntoAnotherRealm() throws IOException {
+        tenant.getUser("alice").credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Hanako"));
+        tenant.getUser("bob").credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", "Taro"));
+        String exported = export(tenant, 10);
+
+        // 移行先ではユーザ ID が違うので、ユーザ名で突き合わせる
+        StubTenant target = new StubTenant(factory, "other-", "alice", "bob");
+        SecretQuestionImportStatus summary =
+                new SecretQuestionCredentialImporter(target.runner(), "realm-id", 10, false,
+                        SecretQuestionAdminEvents.DISABLED)
+                        .importFrom(new BufferedReader(new StringReader(exported)),
+                                new StringWriter());
+
+        assertEquals(Long.valueOf(2), summary.getCreated());
+        assertTrue(target.verify("alice", "Hanako"));
+        assertTrue(target.verify("bob", "Taro"));
+    }
+}
@@ -0,0 +1,204 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import junit.framework.TestCase;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionImportStatus;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubTenant;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+
+public class SecretQuestionCredentialImporterTest extends TestCase {
+
+    private SecretQuestionCredentialProviderFactory factory;
+    private StubTenant tenant;
+    // コミットしたバッチの管理イベント（"CREATE alice" の形）
+    private final List<String> events = new ArrayList<>();
+    private final List<String> batchEvents = new ArrayList<>();
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        tenant = new StubTenant(factory, "id-", "alice", "bob", "carol", "mallory");
+    }
+
+    @Override
+    protected void tearDown() {
+        factory.close();
+    }
+
+    private List<Map<?, ?>> importLines(int batchSize, boolean overwrite, String... lines)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        new SecretQuestionCredentialImporter(recordingRunner(), "realm-id", batchSize,
+                overwrite, new RecordingEvents())
+                .importFrom(new BufferedReader(new StringReader(String.join("\n", lines))), out);
+        List<Map<?, ?>> statuses = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            statuses.add(JsonSerialization.readValue(line, Map.class));
+        }
+        return statuses;
+    }
+
+    private static List<Map<?, ?>> ofType(List<Map<?, ?>> statuses, String type) {
+        return statuses.stream().filter(s -> type.equals(s.get("type")))
+                .collect(Collectors.toList());
+    }
+
+    private static int intValue(Map<?, ?> status, String field) {
+        return ((Number) status.get(field)).intValue();
+    }
+
+    public void testImportsInBatchesAndReportsProgress() throws IOException {
+        List<Map<?, ?>> statuses = importLines(2, false,
+                "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"Hanako\"}",
+                "{\"userId\":\"id-bob\",\"question\":\"q\",\"answer\":\"Taro\"}",
+                "",
+                "{\"username\":\"carol\",\"question\":\"q\",\"answer\":\"Jiro\"}");
+
+        assertEquals(2, tenant.getTransactionCount());
+        assertEquals(2, ofType(statuses, SecretQuestionImportStatus.PROGRESS).size());
+        Map<?, ?> summary = statuses.get(statuses.size() - 1);
+        assertEquals(SecretQuestionImportStatus.SUMMARY, summary.get("type"));
+        assertEquals(3, intValue(summary, "created"));
+        assertEquals(0, intValue(summary, "failed"));
+        assertTrue(tenant.verify("alice", "Hanako"));
+        assertTrue(tenant.verify("bob", "Taro"));
+    }
+
+    public void testReportsInvalidRowsWithLineNumbers() throws IOException {
+        List<Map<?, ?>> statuses = importLines(10, false,
+                "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"Hanako\"}",
+                "not json",
+                "{\"username\":\"nobody\",\"question\":\"q\",\"answer\":\"x\"}",
+                "{\"username\":\"bob\",\"question\":\"q\"}",
+                "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"again\"}");
+
+        List<Map<?, ?>> errors = ofType(statuses, SecretQuestionImportStatus.ERROR);
+        assertEquals(4, errors.size());
+        assertEquals(2, intValue(errors.get(0), "line"));
+        assertEquals(3, intValue(errors.get(1), "line"));
+        assertEquals("User not found", errors.get(1).get("message"));
+        assertEquals(4, intValue(errors.get(2), "line"));
+        assertEquals(5, intValue(errors.get(3), "line"));
+        // 同じファイルの 2 回目の alice は登録済みとして扱い、最初の回答を残す
+        assertTrue(tenant.verify("alice", "Hanako"));
+    }
+
+    public void testOverwriteReplacesExistingQuestion() throws IOException {
+        importLines(10, false, "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"old\"}");
+        importLines(10, true, "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"new\"}");
+
+        assertEquals(1, StubTenant.credentialIds(tenant.getUser("alice")).size());
+        assertTrue(tenant.verify("alice", "new"));
+        assertEquals(Arrays.asList("CREATE alice", "UPDATE alice"), events);
+    }
+
+    public void testPlaintextAnswersAreNotHashedOnVerificationPool() throws IOException {
+        // ログインの検証プールが受け付けない状態でも取り込める
+        factory.getVerificationPool().shutdown();
+
+        importLines(10, false, "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"Hanako\"}");
+
+        String secretData = tenant.getUser("alice").getCredentialStore()
+                .getStoredCredentialsStream().findFirst().get().getSecretData();
+        assertTrue(secretData, secretData.contains("\"salt\""));
+        assertFalse(secretData, secretData.contains("Hanako"));
+    }
+
+    public void testImportsCatalogQuestionIds() throws IOException {
+        List<Map<?, ?>> statuses = importLines(10, false,
+                "{\"username\":\"alice\",\"questionId\":\"first-pet\",\"answer\":\"Pochi\"}",
+                "{\"username\":\"bob\",\"questionId\":\"no-such-question\",\"answer\":\"x\"}");
+
+        List<Map<?, ?>> errors = ofType(statuses, SecretQuestionImportStatus.ERROR);
+        assertEquals(1, errors.size());
+        assertEquals("Unknown questionId: no-such-question", errors.get(0).get("message"));
+        String credentialData = tenant.getUser("alice").getCredentialStore()
+                .getStoredCredentialsStream().findFirst().get().getCredentialData();
+        assertTrue(credentialData, credentialData.contains("\"questionIds\":[\"first-pet\"]"));
+        assertTrue(tenant.verify("alice", "Pochi"));
+    }
+
+    public void testRejectsHashIterationsOutsideLimits() throws IOException {
+        String salt = Base64.getEncoder().encodeToString(new byte[16]);
+        String value = Base64.getEncoder().encodeToString(new byte[32]);
+        String row = "{\"username\":\"%s\",\"question\":\"q\",\"algorithm\":\""
+                + SecretQuestionAnswerHasher.ALGORITHM + "\",\"hashIterations\":%d,"
+                + "\"salt\":\"" + salt + "\",\"value\":\"" + value + "\"}";
+
+        List<Map<?, ?>> statuses = importLines(10, false,
+                String.format(row, "alice", SecretQuestionAnswerHasher.MIN_ITERATIONS - 1),
+                String.format(row, "bob", SecretQuestionAnswerHasher.MAX_ITERATIONS + 1),
+                String.format(row, "carol", SecretQuestionAnswerHasher.MIN_ITERATIONS),
+                String.format(row, "mallory", SecretQuestionAnswerHasher.MAX_ITERATIONS));
+
+        List<Map<?, ?>> errors = ofType(statuses, SecretQuestionImportStatus.ERROR);
+        assertEquals(2, errors.size());
+        assertEquals("alice", errors.get(0).get("user"));
+        assertEquals("bob", errors.get(1).get("user"));
+        assertEquals("hashIterations must be between 10000 and 1000000",
+                errors.get(0).get("message"));
+        assertEquals(0, StubTenant.credentialIds(tenant.getUser("alice")).size());
+        assertEquals(0, StubTenant.credentialIds(tenant.getUser("bob")).size());
+        assertEquals(1, StubTenant.credentialIds(tenant.getUser("carol")).size());
+        assertEquals(1, StubTenant.credentialIds(tenant.getUser("mallory")).size());
+    }
+
+    public void testFailedBatchIsReplayedRowByRow() throws IOException {
+        tenant.getUser("mallory").getCredentialStore()
+                .setCreateFailure(new IllegalStateException("constraint violation"));
+
+        List<Map<?, ?>> statuses = importLines(3, false,
+                "{\"username\":\"alice\",\"question\":\"q\",\"answer\":\"Hanako\"}",
+                "{\"username\":\"mallory\",\"question\":\"q\",\"answer\":\"x\"}",
+                "{\"username\":\"bob\",\"question\":\"q\",\"answer\":\"Taro\"}");
+
+        // バッチ 1 回 + 1 行ずつのやり直し 3 回
+        assertEquals(4, tenant.getTransactionCount());
+        List<Map<?, ?>> errors = ofType(statuses, SecretQuestionImportStatus.ERROR);
+        assertEquals(1, errors.size());
+        assertEquals("mallory", errors.get(0).get("user"));
+        assertEquals("constraint violation", errors.get(0).get("message"));
+        assertTrue(tenant.verify("alice", "Hanako"));
+        assertTrue(tenant.verify("bob", "Taro"));
+        // ロールバックしたバッチのイベントは数えず、やり直しで登録できた行の分だけ残る
+        assertEquals(Arrays.asList("CREATE alice", "CREATE bob"), events);
+    }
+
+    // タスクが例外を投げずに終わった（コミットした）バッチのイベントだけを events に移す
+    private SecretQuestionTransactionRunner recordingRunner() {
+        SecretQuestionTransactionRunner runner = tenant.runner();
+        return task -> {
+            batchEvents.clear();
+            runner.run(task);
+            events.addAll(batchEvents);
+        };
+    }
+
+    private final class RecordingEvents implements SecretQuestionAdminEvents {
+        @Override
+        public void credentialImported(KeycloakSession session, UserModel user,
+                CredentialModel credential, boolean overwritten) {
+            batchEvents.add((overwritten ? "UPDATE " : "CREATE ") + user.getUsername());
+        }
+
+        @Override
+        public void devicesRevoked(KeycloakSession session, UserModel user, int revoked) {}
+    }
+}
@@ -0,0 +1,116 @@
+package org.keycloak.example.authenticator.admin;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import org.keycloak.common.util.Time;
+import org.keycloak.example.authenticator.admin.dto.SecretQuestionEnrollmentStats;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.support.H2CredentialDatabase;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionEnrollmentStatisticsTest extends TestCase {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    // Hibernate の起動が重いので DB はクラスで 1 つにし、テストごとに別のレルムを使う
+    private static final H2CredentialDatabase database = new H2CredentialDatabase();
+
+    private RealmModel realm;
+    private long now;
+
+    @Override
+    protected void setUp() {
+        realm = StubRealm.create(getName(), getName());
+        now = Time.currentTimeMillis();
+    }
+
+    private void enroll(String username, List<String> questions, Long createdDate) {
+        StubUserModel user = database.createUser(realm, username);
+        SecretQuestionCredentialModel credential = SecretQuestionCredentialModel
+                .createSecretQuestions(questions, Collections.nCopies(questions.size(), "a"));
+        credential.setCreatedDate(createdDate);
+        database.inTransaction(() -> user.credentialManager().createStoredCredential(credential));
+    }
+
+    private SecretQuestionEnrollmentStats compute(long users) {
+        SecretQuestionEnrollmentStats[] stats = new SecretQuestionEnrollmentStats[1];
+        List<String> statements = database.inTransaction(() -> stats[0] =
+                SecretQuestionEnrollmentStatistics.compute(database.getEntityManager(),
+                        realm.getId(), users, now));
+        // ユーザ数にかかわらず、集計・質問ごとの集計・長い行の読み込みの 3 回だけ
+        assertEquals(statements.toString(), 3, statements.size());
+        return stats[0];
+    }
+
+    public void testCountsAndAgeHistogram() {
+        enroll("today", Arrays.asList("q1", "q2"), now - DAY / 2);
+        enroll("last-week", Arrays.asList("q1", "q2"), now - 3 * DAY);
+        enroll("last-month", Arrays.asList("q1", "q2"), now - 10 * DAY);
+        enroll("long-ago", Arrays.asList("q1"), now - 400 * DAY);
+        enroll("unknown", Arrays.asList("q3"), null);
+        database.createUser(realm, "not-enrolled");
+
+        SecretQuestionEnrollmentStats stats = compute(6);
+
+        assertEquals(6, stats.getUsers());
+        assertEquals(5, stats.getEnrolledUsers());
+        assertEquals(5, stats.getCredentials());
+        assertEquals(Long.valueOf(now - 400 * DAY), stats.getOldestCreatedDate());
+        assertEquals(Long.valueOf(now - DAY / 2), stats.getNewestCreatedDate());
+        assertEquals(1, stats.getUnknownAge());
+        List<SecretQuestionEnrollmentStats.AgeBucket> histogram = stats.getAgeHistogram();
+        assertEquals(6, histogram.size());
+        long[] expected = {1, 1, 1, 0, 0, 1};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("bucket " + i, expected[i], histogram.get(i).getCount());
+        }
+        assertEquals(Integer.valueOf(1), histogram.get(0).getMaxAgeDays());
+        assertNull(histogram.get(5).getMaxAgeDays());
+    }
+
+    public void testQuestionDistribution() {
+        enroll("alice", Arrays.asList("q1", "q2"), now);
+        enroll("bob", Arrays.asList("q1", "q2"), now);
+        enroll("carol", Arrays.asList("q1"), now);
+
+        List<SecretQuestionEnrollmentStats.QuestionCount> questions = compute(3).getQuestions();
+
+        assertEquals(2, questions.size());
+        assertEquals("q1", questions.get(0).getQuestion());
+        assertEquals(3, questions.get(0).getCount());
+        assertEquals("q2", questions.get(1).getQuestion());
+        assertEquals(2, questions.get(1).getCount());
+    }
+
+    public void testLongCredentialDataIsCountedWithoutGrouping() {
+        char[] text = new char[SecretQuestionEnrollmentStatistics.GROUPED_MAX_LENGTH];
+        Arrays.fill(text, 'x');
+        String longQuestion = new String(text);
+        enroll("alice", Arrays.asList(longQuestion, "q1"), now);
+        enroll("bob", Arrays.asList(longQuestion, "q1"), now);
+        enroll("carol", Arrays.asList("q1"), now);
+
+        List<SecretQuestionEnrollmentStats.QuestionCount> questions = compute(3).getQuestions();
+
+        assertEquals(2, questions.size());
+        assertEquals("q1", questions.get(0).getQuestion());
+        assertEquals(3, questions.get(0).getCount());
+        assertEquals(longQuestion, questions.get(1).getQuestion());
+        assertEquals(2, questions.get(1).getCount());
+    }
+
+    public void testEmptyRealm() {
+        SecretQuestionEnrollmentStats stats = compute(0);
+
+        assertEquals(0, stats.getCredentials());
+        assertNull(stats.getOldestCreatedDate());
+        assertTrue(stats.getQuestions().isEmpty());
+        for (SecretQuestionEnrollmentStats.AgeBucket bucket : stats.getAgeHistogram()) {
+            assertEquals(0, bucket.getCount());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.keycloak.example.authenticator.audit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.audit.SecretQuestionAuditEvent.Type;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionAuditLogTest extends TestCase {
+
+    private final RealmModel realm = StubRealm.create("realm-id", "test");
+    private final StubUserModel user = new StubUserModel("user-id", "alice");
+
+    public void testWritesEventsInBatches() {
+        List<List<SecretQuestionAuditEvent>> batches =
+                Collections.synchronizedList(new ArrayList<>());
+        SecretQuestionAuditLog log =
+                new SecretQuestionAuditLog(100, 2, batch -> batches.add(new ArrayList<>(batch)));
+        for (int i = 0; i < 5; i++) {
+            log.record(Type.CHALLENGE, realm, user, "192.0.2.1");
+        }
+        log.close();
+
+        assertEquals(5, log.getWrittenCount());
+        assertEquals(0, log.getDroppedCount());
+        int events = 0;
+        for (List<SecretQuestionAuditEvent> batch : batches) {
+            assertTrue(batch.size() <= 2);
+            events += batch.size();
+        }
+        assertEquals(5, events);
+        SecretQuestionAuditEvent first = batches.get(0).get(0);
+        assertEquals(Type.CHALLENGE, first.getType());
+        assertEquals("realm-id", first.getRealmId());
+        assertEquals("user-id", first.getUserId());
+        assertEquals("192.0.2.1", first.getIpAddress());
+    }
+
+    // 書き出しが詰まってキューが一杯になっても record() は待たず、あふれた分を数える
+    public void testDropsEventsWhenQueueIsFull() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SecretQuestionAuditLog log = new SecretQuestionAuditLog(2, 1, batch -> {
+            writing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            log.record(Type.SUCCESS, realm, user, null);
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 5; i++) {
+                log.record(Type.FAILURE, realm, user, null);
+            }
+
+            assertEquals(2, log.getQueueSize());
+            assertEquals(3, log.getDroppedCount());
+        } finally {
+            release.countDown();
+            log.close();
+        }
+        assertEquals(3, log.getWrittenCount());
+    }
+
+    public void testFailedBatchDoesNotStopWriter() {
+        List<SecretQuestionAuditEvent> written = Collections.synchronizedList(new ArrayList<>());
+        SecretQuestionAuditLog log = new SecretQuestionAuditLog(10, 1, batch -> {
+            if (batch.get(0).getType() == Type.FAILURE) {
+                throw new IllegalStateException("sink unavailable");
+            }
+            written.addAll(batch);
+        });
+        log.record(Type.FAILURE, realm, user, null);
+        log.record(Type.SUCCESS, realm, user, null);
+        log.close();
+
+        assertEquals(1, log.getFailedCount());
+        assertEquals(1, written.size());
+        assertEquals(Type.SUCCESS, written.get(0).getType());
+        // close() の後のイベントは受け付けない
+        log.record(Type.SUCCESS, realm, user, null);
+        assertEquals(1, log.getDroppedCount());
+    }
+
+    public void testDisabledLogRecordsNothing() {
+        SecretQuestionAuditLog.DISABLED.record(Type.CHALLENGE, realm, user, null);
+
+        assertFalse(SecretQuestionAuditLog.DISABLED.isEnabled());
+        assertEquals(0, SecretQuestionAuditLog.DISABLED.getDroppedCount());
+    }
+}
@@ -0,0 +1,74 @@
+package org.keycloak.example.authenticator.catalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionCatalogTest extends TestCase {
+
+    private static final String CATALOG = "{\"first-pet\": {\"en\": \"First pet?\", "
+            + "\"ja\": \"最初のペットは？\", \"ja-JP\": \"最初に飼ったペットは？\"}, "
+            + "\"birth-city\": \"Birth city?\"}";
+
+    public void testResolvesTextsByLocale() {
+        SecretQuestionCatalog catalog = SecretQuestionCatalog.compile(CATALOG, new ArrayList<>());
+
+        assertEquals(Arrays.asList("first-pet", "birth-city"), catalog.getIds());
+        assertEquals("First pet?", catalog.getText("first-pet", Locale.ENGLISH));
+        assertEquals("最初のペットは？", catalog.getText("first-pet", Locale.JAPANESE));
+        assertEquals("最初に飼ったペットは？", catalog.getText("first-pet", Locale.JAPAN));
+        // ロケールの文言がなければ最初に書いた文言を使う
+        assertEquals("First pet?", catalog.getText("first-pet", Locale.FRENCH));
+        assertEquals("Birth city?", catalog.getText("birth-city", Locale.JAPANESE));
+        assertEquals(Arrays.asList("最初のペットは？", "Birth city?"),
+                catalog.getTexts(Locale.JAPANESE));
+        assertNull(catalog.getText("unknown", Locale.ENGLISH));
+    }
+
+    public void testFindsIdByAnyText() {
+        SecretQuestionCatalog catalog = SecretQuestionCatalog.compile(CATALOG, new ArrayList<>());
+
+        assertEquals("first-pet", catalog.findId("最初に飼ったペットは？"));
+        assertEquals("birth-city", catalog.findId("Birth city?"));
+        assertNull(catalog.findId("What is your mom's first name?"));
+        // 組み込みのカタログは、以前の既定の質問の文言を ID に置き換えられる
+        assertEquals("mothers-first-name",
+                SecretQuestionCatalog.DEFAULT.findId("What is your mom's first name?"));
+    }
+
+    public void testSkipsInvalidEntries() {
+        List<String> errors = new ArrayList<>();
+        SecretQuestionCatalog catalog = SecretQuestionCatalog.compile(
+                "{\"ok\": \"Question?\", \" padded\": \"x\", \"empty\": \"\", \"number\": 1}",
+                errors);
+
+        assertEquals(Arrays.asList("ok"), catalog.getIds());
+        assertEquals(3, errors.size());
+
+        errors.clear();
+        assertTrue(SecretQuestionCatalog.compile("[\"not an object\"]", errors).isEmpty());
+        assertEquals(1, errors.size());
+    }
+
+    public void testRegistryRecompilesOnlyWhenAttributeChanges() {
+        RealmModel realm = StubRealm.create("realm-id", "test");
+        SecretQuestionCatalogRegistry registry = new SecretQuestionCatalogRegistry(10);
+        assertNull(registry.get(realm));
+
+        realm.setAttribute(SecretQuestionCatalogRegistry.REALM_CATALOG_ATTRIBUTE, CATALOG);
+        SecretQuestionCatalog catalog = registry.get(realm);
+        assertSame(catalog, registry.get(realm));
+
+        realm.setAttribute(SecretQuestionCatalogRegistry.REALM_CATALOG_ATTRIBUTE,
+                "{\"birth-city\": \"Birth city?\"}");
+        assertEquals(Arrays.asList("birth-city"), registry.get(realm).getIds());
+
+        // 有効な質問が 1 つもなければカタログがない場合と同じ
+        realm.setAttribute(SecretQuestionCatalogRegistry.REALM_CATALOG_ATTRIBUTE, "{}");
+        assertNull(registry.get(realm));
+    }
+}
@@ -0,0 +1,83 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+
+public class SecretQuestionAnswerHasherTest extends TestCase {
+
+    private static final int ITERATIONS = SecretQuestionAnswerHasher.MIN_ITERATIONS;
+
+    private final SecretQuestionCredentialData hashedCredentialData =
+            new SecretQuestionCredentialData(Collections.singletonList("q"),
+                    SecretQuestionAnswerHasher.ALGORITHM, ITERATIONS,
+                    SecretQuestionAnswerNormalizer.FORM);
+
+    public void testVerifiesHashedAnswer() {
+        SecretQuestionSecretData secretData = SecretQuestionAnswerHasher.hash("Hanako", ITERATIONS);
+
+        assertTrue(secretData.isHashed());
+        assertTrue(SecretQuestionAnswerHasher.verify(hashedCredentialData, secretData, "Hanako"));
+        assertFalse(SecretQuestionAnswerHasher.verify(hashedCredentialData, secretData, "Taro"));
+        assertFalse(SecretQuestionAnswerHasher.verify(hashedCredentialData, secretData, null));
+    }
+
+    public void testVerifiesNormalizedForms() {
+        SecretQuestionSecretData secretData =
+                SecretQuestionAnswerHasher.hash("Hanako Yamada", ITERATIONS);
+
+        for (String answer : new String[] {"hanako yamada", "  HANAKO \t Yamada ",
+                "\uff28\uff41\uff4e\uff41\uff4b\uff4f\u3000Yamada"}) {
+            assertTrue(answer,
+                    SecretQuestionAnswerHasher.verify(hashedCredentialData, secretData, answer));
+        }
+        assertFalse(SecretQuestionAnswerHasher.verify(hashedCredentialData, secretData,
+                "HanakoYamada"));
+    }
+
+    // "normalization" を持たない行は、そろえる前の回答をハッシュ化したものとして検証する
+    public void testVerifiesRowsHashedBeforeNormalization() {
+        SecretQuestionCredentialData legacy = new SecretQuestionCredentialData("q",
+                SecretQuestionAnswerHasher.ALGORITHM, ITERATIONS);
+        byte[] salt = new byte[16];
+        SecretQuestionSecretData secretData = new SecretQuestionSecretData(salt,
+                SecretQuestionAnswerHasher.derive("Hanako", salt, ITERATIONS));
+
+        assertTrue(SecretQuestionAnswerHasher.verify(legacy, secretData, "Hanako"));
+        assertFalse(SecretQuestionAnswerHasher.verify(legacy, secretData, "hanako"));
+    }
+
+    public void testMatchesJcaPbkdf2() throws GeneralSecurityException {
+        SecretKeyFactory jca = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] salt = {9, 8, 7, 6, 5, 4, 3, 2, 1, 0, 1, 2, 3, 4, 5, 6};
+        String longAnswer = new String(new char[100]).replace('\0', 'x');
+        for (String answer : new String[] {"Hanako", "\u82b1\u5b50", longAnswer}) {
+            byte[] expected = jca.generateSecret(
+                    new PBEKeySpec(answer.toCharArray(), salt, 1000, 256)).getEncoded();
+
+            assertTrue(answer,
+                    Arrays.equals(expected, SecretQuestionAnswerHasher.derive(answer, salt, 1000)));
+        }
+    }
+
+    public void testUsesRandomSalt() {
+        SecretQuestionSecretData first = SecretQuestionAnswerHasher.hash("Hanako", ITERATIONS);
+        SecretQuestionSecretData second = SecretQuestionAnswerHasher.hash("Hanako", ITERATIONS);
+
+        assertFalse(Arrays.equals(first.getValue(), second.getValue()));
+    }
+
+    public void testVerifiesPlaintextAnswer() {
+        SecretQuestionCredentialData credentialData = new SecretQuestionCredentialData("q");
+        SecretQuestionSecretData secretData = new SecretQuestionSecretData("Hanako");
+
+        assertTrue(SecretQuestionAnswerHasher.verify(credentialData, secretData, "Hanako"));
+        assertTrue(SecretQuestionAnswerHasher.verify(credentialData, secretData, " HANAKO"));
+        assertFalse(SecretQuestionAnswerHasher.verify(credentialData, secretData, "Taro"));
+    }
+}
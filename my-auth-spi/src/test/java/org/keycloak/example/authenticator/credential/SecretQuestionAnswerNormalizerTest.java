@@ -0,0 +1,44 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+
+public class SecretQuestionAnswerNormalizerTest extends TestCase {
+
+    public void testFoldsCaseWidthAndWhitespace() {
+        assertEquals("hanako", SecretQuestionAnswerNormalizer.normalize("Hanako"));
+        assertEquals("hanako yamada",
+                SecretQuestionAnswerNormalizer.normalize(" \tHanako \u00a0\n YAMADA  "));
+        // 全角英字と全角スペース
+        assertEquals("hanako yamada", SecretQuestionAnswerNormalizer
+                .normalize("\uff28\uff41\uff4e\uff41\uff4b\uff4f\u3000\uff39\uff41\uff4d"
+                        + "\uff41\uff44\uff41"));
+        // 結合文字の並びと合成済みの文字、半角カナと全角カナ
+        assertEquals(SecretQuestionAnswerNormalizer.normalize("caf\u00e9"),
+                SecretQuestionAnswerNormalizer.normalize("CAFE\u0301"));
+        assertEquals("\u30cf\u30ca\u30b3",
+                SecretQuestionAnswerNormalizer.normalize("\uff8a\uff85\uff7a"));
+        assertEquals("", SecretQuestionAnswerNormalizer.normalize("   "));
+    }
+
+    public void testRawMatchesStringGetBytes() {
+        String answer = "\u82b1\u5b50 \ud83c\udf38 \ud800x";
+        SecretQuestionAnswerNormalizer.Buffer buffer =
+                new SecretQuestionAnswerNormalizer.Buffer().raw(answer);
+        byte[] expected = answer.getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(SecretQuestionAnswerNormalizer.constantTimeEquals(buffer.bytes,
+                buffer.length, expected, expected.length));
+    }
+
+    public void testConstantTimeEqualsComparesLengths() {
+        byte[] stored = "hanako".getBytes(StandardCharsets.UTF_8);
+        byte[] longer = "hanakoo".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(SecretQuestionAnswerNormalizer.constantTimeEquals(stored, 6, stored, 6));
+        assertFalse(SecretQuestionAnswerNormalizer.constantTimeEquals(longer, 7, stored, 6));
+        assertFalse(SecretQuestionAnswerNormalizer.constantTimeEquals(stored, 5, stored, 6));
+        assertFalse(SecretQuestionAnswerNormalizer.constantTimeEquals(stored, 0, stored, 6));
+        assertTrue(SecretQuestionAnswerNormalizer.constantTimeEquals(stored, 0, longer, 0));
+    }
+}
@@ -0,0 +1,113 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.credential.dto.SecretQuestionSecretData;
+import org.keycloak.util.JsonSerialization;
+
+public class SecretQuestionCredentialCodecTest extends TestCase {
+
+    public void testReadsRowsWrittenByJsonSerialization() throws IOException {
+        // "v" を持たない、以前 JsonSerialization で書かれた行（バージョン 0）
+        String credentialData = "{\"question\":\"What is \\\"it\\\"?\"}";
+        String secretData = "{\"answer\":\"café\\n\"}";
+
+        assertEquals(SecretQuestionCredentialCodec.LEGACY_VERSION,
+                SecretQuestionCredentialCodec.readVersion(credentialData));
+        assertEquals("What is \"it\"?",
+                SecretQuestionCredentialCodec.readCredentialData(credentialData).getQuestion());
+        SecretQuestionSecretData readSecretData =
+                SecretQuestionCredentialCodec.readSecretData(secretData);
+        assertFalse(readSecretData.isHashed());
+        assertEquals("café\n", readSecretData.getAnswer());
+    }
+
+    public void testRoundTripWritesVersion() throws IOException {
+        String credentialData = SecretQuestionCredentialCodec
+                .writeCredentialData(new SecretQuestionCredentialData("q"));
+
+        assertEquals("{\"v\":1,\"questions\":[\"q\"]}", credentialData);
+        assertEquals(SecretQuestionCredentialCodec.CURRENT_VERSION,
+                SecretQuestionCredentialCodec.readVersion(credentialData));
+        assertEquals("q",
+                SecretQuestionCredentialCodec.readCredentialData(credentialData).getQuestion());
+        assertEquals("q", JsonSerialization
+                .readValue(credentialData, SecretQuestionCredentialData.class).getQuestion());
+    }
+
+    public void testRoundTripHashedAnswer() throws IOException {
+        byte[] salt = {1, 2, 3};
+        byte[] value = {(byte) 0xff, 0, 42};
+        String credentialData = SecretQuestionCredentialCodec.writeCredentialData(
+                new SecretQuestionCredentialData("q", SecretQuestionAnswerHasher.ALGORITHM, 30000));
+        String secretData = SecretQuestionCredentialCodec
+                .writeSecretData(new SecretQuestionSecretData(salt, value));
+
+        assertEquals("{\"v\":1,\"answers\":[{\"salt\":\"AQID\",\"value\":\"/wAq\"}]}",
+                secretData);
+        SecretQuestionCredentialData readCredentialData =
+                SecretQuestionCredentialCodec.readCredentialData(credentialData);
+        assertEquals(SecretQuestionAnswerHasher.ALGORITHM, readCredentialData.getAlgorithm());
+        assertEquals(30000, readCredentialData.getHashIterations());
+        SecretQuestionSecretData readSecretData =
+                SecretQuestionCredentialCodec.readSecretData(secretData);
+        assertTrue(readSecretData.isHashed());
+        assertNull(readSecretData.getAnswer());
+        assertTrue(Arrays.equals(salt, readSecretData.getSalt()));
+        assertTrue(Arrays.equals(value, readSecretData.getValue()));
+    }
+
+    public void testRoundTripCataloguedQuestions() throws IOException {
+        String credentialData = SecretQuestionCredentialCodec.writeCredentialData(
+                new SecretQuestionCredentialData(Arrays.<String>asList(),
+                        Arrays.asList("first-pet", "birth-city"),
+                        SecretQuestionAnswerHasher.ALGORITHM, 30000,
+                        SecretQuestionAnswerNormalizer.FORM));
+
+        SecretQuestionCredentialData read =
+                SecretQuestionCredentialCodec.readCredentialData(credentialData);
+        assertTrue(read.isCatalogued());
+        assertEquals(Arrays.asList("first-pet", "birth-city"), read.getQuestionIds());
+        assertSame("first-pet".intern(), read.getQuestionId(0));
+        assertEquals(SecretQuestionAnswerNormalizer.FORM, read.getNormalization());
+    }
+
+    public void testReadsSelectedAnswer() throws IOException {
+        String secretData = SecretQuestionCredentialCodec.writeSecretData(Arrays.asList(
+                new SecretQuestionSecretData(new byte[] {9}, new byte[] {9}),
+                new SecretQuestionSecretData(new byte[] {1, 2, 3}, new byte[] {4}),
+                new SecretQuestionSecretData("a")));
+
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3},
+                SecretQuestionCredentialCodec.readSecretData(secretData, 1).getSalt()));
+        assertFalse(SecretQuestionCredentialCodec.readSecretData(secretData, 2).isHashed());
+        assertEquals(3, SecretQuestionCredentialCodec.readSecretEntries(secretData).size());
+        try {
+            SecretQuestionCredentialCodec.readSecretData(secretData, 3);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSkipsUnknownFields() throws IOException {
+        String json = "{ \"extra\" : {\"a\":[1,2,\"}\"]}, \"v\" : 1 ,"
+                + " \"answers\" : [{\"answer\" : \"a\\u00e9\", \"extra\" : 1}] }";
+
+        assertEquals("a\u00e9", SecretQuestionCredentialCodec.readSecretData(json).getAnswer());
+    }
+
+    public void testRejectsNewerVersion() {
+        try {
+            SecretQuestionCredentialCodec.readSecretData("{\"v\":99,\"answers\":[]}");
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        try {
+            SecretQuestionCredentialCodec.readCredentialData("{\"v\":99,\"questions\":[\"q\"]}");
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+}
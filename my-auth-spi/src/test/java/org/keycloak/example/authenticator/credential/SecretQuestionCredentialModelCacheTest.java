@@ -0,0 +1,69 @@
+package org.keycloak.example.authenticator.credential;
+
+import junit.framework.TestCase;
+import org.keycloak.credential.CredentialModel;
+
+public class SecretQuestionCredentialModelCacheTest extends TestCase {
+
+    private static CredentialModel stored(String id, String question, String answer) {
+        SecretQuestionCredentialModel created =
+                SecretQuestionCredentialModel.createSecretQuestion(question, answer);
+        CredentialModel model = new CredentialModel();
+        model.setId(id);
+        model.setType(created.getType());
+        model.setCreatedDate(created.getCreatedDate());
+        model.setCredentialData(created.getCredentialData());
+        model.setSecretData(created.getSecretData());
+        return model;
+    }
+
+    public void testSecondLookupIsServedFromCache() {
+        SecretQuestionCredentialModelCache cache = new SecretQuestionCredentialModelCache(10, 0);
+        CredentialModel model = stored("c1", "q", "a");
+
+        assertEquals("a", cache.get(model).getSecretQuestionSecretData().getAnswer());
+        assertEquals("a", cache.get(model).getSecretQuestionSecretData().getAnswer());
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testDecodesAnswersOncePerEntry() {
+        SecretQuestionCredentialModelCache cache = new SecretQuestionCredentialModelCache(10, 0);
+        CredentialModel model = new CredentialModel();
+        model.setId("c1");
+        model.setType(SecretQuestionCredentialModel.TYPE);
+        model.setCredentialData("{\"v\":1,\"questions\":[\"q0\",\"q1\"]}");
+        model.setSecretData("{\"v\":1,\"answers\":[{\"answer\":\"a0\"},{\"answer\":\"a1\"}]}");
+
+        SecretQuestionCredentialModel selected = cache.get(model, 1);
+
+        assertEquals("q1", selected.getSelectedQuestion());
+        assertEquals("a1", selected.getSecretQuestionSecretData().getAnswer());
+        assertNull(selected.getSecretQuestionSecretEntries());
+        // 別の質問を選んでも、同じエントリのデコード済みの回答を使う
+        assertSame(cache.get(model, 0).getSecretQuestionSecretData(),
+                cache.get(model, 0).getSecretQuestionSecretData());
+        assertEquals("a0", cache.get(model, 0).getSecretQuestionSecretData().getAnswer());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testChangedRowIsNeverServedStale() {
+        SecretQuestionCredentialModelCache cache = new SecretQuestionCredentialModelCache(10, 0);
+        cache.get(stored("c1", "q", "old"));
+
+        SecretQuestionCredentialModel updated = cache.get(stored("c1", "q", "new"));
+
+        assertEquals("new", updated.getSecretQuestionSecretData().getAnswer());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    public void testSizeIsBounded() {
+        SecretQuestionCredentialModelCache cache = new SecretQuestionCredentialModelCache(10, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.get(stored("c" + i, "q", "a"));
+        }
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.getEvictionCount() >= 90);
+    }
+}
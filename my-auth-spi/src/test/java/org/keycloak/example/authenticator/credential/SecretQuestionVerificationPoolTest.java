@@ -0,0 +1,61 @@
+package org.keycloak.example.authenticator.credential;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class SecretQuestionVerificationPoolTest extends TestCase {
+
+    public void testRunsInlineWithoutThreads() {
+        SecretQuestionVerificationPool pool = new SecretQuestionVerificationPool(0, 0, 0);
+
+        assertEquals(Thread.currentThread().getName(),
+                pool.execute(() -> Thread.currentThread().getName()));
+    }
+
+    public void testRejectsWhenQueueIsFull() throws InterruptedException {
+        SecretQuestionVerificationPool pool = new SecretQuestionVerificationPool(1, 1, 0);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread busy = new Thread(() -> pool.execute(() -> {
+            running.countDown();
+            return release.await(10, TimeUnit.SECONDS);
+        }));
+        Thread queued = new Thread(() -> pool.execute(() -> true));
+        try {
+            busy.start();
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            queued.start();
+            while (pool.getQueueSize() == 0) {
+                Thread.sleep(1);
+            }
+
+            try {
+                pool.execute(() -> true);
+                fail("expected SecretQuestionVerificationRejectedException");
+            } catch (SecretQuestionVerificationRejectedException expected) {
+            }
+            assertEquals(1, pool.getRejectionCount());
+        } finally {
+            release.countDown();
+            busy.join();
+            queued.join();
+            pool.shutdown();
+        }
+    }
+
+    public void testTimesOut() {
+        SecretQuestionVerificationPool pool = new SecretQuestionVerificationPool(1, 1, 10);
+        try {
+            pool.execute(() -> {
+                Thread.sleep(5000);
+                return true;
+            });
+            fail("expected SecretQuestionVerificationRejectedException");
+        } catch (SecretQuestionVerificationRejectedException expected) {
+            assertEquals(1, pool.getTimeoutCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.keycloak.example.authenticator.device;
+
+import junit.framework.TestCase;
+import org.keycloak.common.util.Time;
+import org.keycloak.example.authenticator.support.StubKeycloakContext;
+import org.keycloak.example.authenticator.support.StubKeycloakSession;
+
+public class SecretQuestionDeviceRegistryTest extends TestCase {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private CountingStore store;
+    private SecretQuestionDeviceRegistry registry;
+    private StubKeycloakSession session;
+
+    @Override
+    protected void setUp() {
+        store = new CountingStore();
+        registry = new SecretQuestionDeviceRegistry(store, 100, 60_000L, 3);
+        session = new StubKeycloakSession(new StubKeycloakContext(null, null, null, null));
+    }
+
+    public void testRegisteredDeviceIsTrusted() {
+        long now = Time.currentTimeMillis();
+        String deviceId = registry.register("realm-id", "user-id", now + DAY);
+
+        assertNotNull(deviceId);
+        assertTrue(registry.isTrusted("realm-id", "user-id", deviceId, now));
+        assertFalse(registry.isTrusted("realm-id", "other-user-id", deviceId, now));
+        assertFalse(registry.isTrusted("realm-id", "user-id", "unknown", now));
+        assertFalse(registry.isTrusted("realm-id", "user-id", deviceId, now + DAY));
+    }
+
+    public void testNearCacheServesRepeatedChecks() {
+        long now = Time.currentTimeMillis();
+        String deviceId = registry.register("realm-id", "user-id", now + DAY);
+        registry.isTrusted("realm-id", "user-id", deviceId, now);
+        int reads = store.reads;
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(registry.isTrusted("realm-id", "user-id", deviceId, now));
+        }
+
+        assertEquals(reads, store.reads);
+    }
+
+    public void testDeviceRegisteredOnAnotherNodeIsFoundInStore() {
+        long now = Time.currentTimeMillis();
+        String first = registry.register("realm-id", "user-id", now + DAY);
+        assertTrue(registry.isTrusted("realm-id", "user-id", first, now));
+        // 別のノードが同じストアに書き込んだ端末は、このノードのニアキャッシュにはない
+        SecretQuestionDeviceRegistry otherNode =
+                new SecretQuestionDeviceRegistry(store, 100, 60_000L, 3);
+        String second = otherNode.register("realm-id", "user-id", now + DAY);
+
+        assertTrue(registry.isTrusted("realm-id", "user-id", second, now));
+        assertTrue(registry.isTrusted("realm-id", "user-id", first, now));
+    }
+
+    public void testRevokeAllRevokesEveryDevice() {
+        long now = Time.currentTimeMillis();
+        String first = registry.register("realm-id", "user-id", now + DAY);
+        String second = registry.register("realm-id", "user-id", now + DAY);
+        String other = registry.register("realm-id", "other-user-id", now + DAY);
+        assertTrue(registry.isTrusted("realm-id", "user-id", first, now));
+
+        assertEquals(2, registry.revokeAll(session, "realm-id", "user-id"));
+
+        assertFalse(registry.isTrusted("realm-id", "user-id", first, now));
+        assertFalse(registry.isTrusted("realm-id", "user-id", second, now));
+        assertTrue(registry.isTrusted("realm-id", "other-user-id", other, now));
+        assertEquals(0, registry.revokeAll(session, "realm-id", "user-id"));
+    }
+
+    public void testInvalidationEventClearsNearCacheOfOtherNode() {
+        long now = Time.currentTimeMillis();
+        SecretQuestionDeviceRegistry otherNode =
+                new SecretQuestionDeviceRegistry(store, 100, 60_000L, 3);
+        String deviceId = registry.register("realm-id", "user-id", now + DAY);
+        assertTrue(otherNode.isTrusted("realm-id", "user-id", deviceId, now));
+
+        registry.revokeAll(session, "realm-id", "user-id");
+        // 無効化イベントが届くまでは、ニアキャッシュの値で信頼したまま
+        assertTrue(otherNode.isTrusted("realm-id", "user-id", deviceId, now));
+        otherNode.eventReceived(new SecretQuestionDeviceInvalidationEvent("realm-id/user-id"));
+
+        assertFalse(otherNode.isTrusted("realm-id", "user-id", deviceId, now));
+    }
+
+    public void testOldestDevicesAreDroppedAboveLimit() {
+        long now = Time.currentTimeMillis();
+        String oldest = registry.register("realm-id", "user-id", now + DAY);
+        String second = registry.register("realm-id", "user-id", now + 2 * DAY);
+        String third = registry.register("realm-id", "user-id", now + 3 * DAY);
+        String fourth = registry.register("realm-id", "user-id", now + 4 * DAY);
+
+        assertFalse(registry.isTrusted("realm-id", "user-id", oldest, now));
+        assertTrue(registry.isTrusted("realm-id", "user-id", second, now));
+        assertTrue(registry.isTrusted("realm-id", "user-id", third, now));
+        assertTrue(registry.isTrusted("realm-id", "user-id", fourth, now));
+    }
+
+    public void testExpiredDevicesArePrunedOnRegister() {
+        long now = Time.currentTimeMillis();
+        registry.register("realm-id", "user-id", now + 1000L);
+        Time.setOffset(2);
+        try {
+            registry.register("realm-id", "user-id", now + DAY);
+
+            assertEquals(1, store.get("realm-id/user-id").size());
+        } finally {
+            Time.setOffset(0);
+        }
+    }
+
+    private static final class CountingStore extends LocalSecretQuestionDeviceStore {
+        private int reads;
+
+        @Override
+        public SecretQuestionTrustedDevices get(String key) {
+            reads++;
+            return super.get(key);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.keycloak.example.authenticator.job;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.credential.SecretQuestionAnswerHasher;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubTenant;
+import org.keycloak.example.authenticator.support.StubUserModel;
+
+public class SecretQuestionReencodeJobTest extends TestCase {
+
+    private static final String[] USERNAMES = {"alice", "bob", "carol", "dave", "eve"};
+
+    private SecretQuestionCredentialProviderFactory factory;
+    private StubTenant tenant;
+    private final List<String> cursors = new ArrayList<>();
+
+    @Override
+    protected void setUp() {
+        factory = new SecretQuestionCredentialProviderFactory();
+        factory.init(new MapConfigScope().put("hashIterations",
+                SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        tenant = new StubTenant(factory, "id-", USERNAMES);
+    }
+
+    @Override
+    protected void tearDown() {
+        factory.close();
+    }
+
+    // テナントのクレデンシャルを ID 順に返す。呼ばれたときのカーソルを記録する
+    private List<SecretQuestionCredentialKeyset.Entry> next(String afterId, int limit) {
+        cursors.add(afterId);
+        List<SecretQuestionCredentialKeyset.Entry> all = new ArrayList<>();
+        for (String username : USERNAMES) {
+            StubUserModel user = tenant.getUser(username);
+            user.getCredentialStore().getStoredCredentialsStream()
+                    .forEach(c -> all.add(new SecretQuestionCredentialKeyset.Entry(c.getId(),
+                            user.getId())));
+        }
+        return all.stream().sorted(Comparator.comparing(
+                SecretQuestionCredentialKeyset.Entry::getCredentialId))
+                .filter(e -> afterId == null || e.getCredentialId().compareTo(afterId) > 0)
+                .limit(limit).collect(Collectors.toList());
+    }
+
+    private FakeClockJob job(int batchSize, int rowsPerSecond, long maxRunMillis) {
+        return new FakeClockJob(batchSize, rowsPerSecond, maxRunMillis);
+    }
+
+    private CredentialModel stored(String username) {
+        return tenant.getUser(username).getCredentialStore().getStoredCredentialsStream()
+                .findFirst().get();
+    }
+
+    private void storePlaintext(String username, String answer) {
+        tenant.getUser(username).credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q", answer));
+    }
+
+    public void testRewritesPlaintextAndLegacyRows() {
+        storePlaintext("alice", "Hanako");
+        // JsonSerialization で書かれていたころの形式（バージョン 0）
+        CredentialModel legacy = new CredentialModel();
+        legacy.setType(SecretQuestionCredentialModel.TYPE);
+        legacy.setCredentialData("{\"question\":\"q\"}");
+        legacy.setSecretData("{\"answer\":\"Taro\"}");
+        tenant.getUser("bob").credentialManager().createStoredCredential(legacy);
+        tenant.getUser("carol").credentialManager().createStoredCredential(
+                SecretQuestionCredentialModel.createSecretQuestion("q",
+                        SecretQuestionAnswerHasher.hash("Jiro",
+                                SecretQuestionAnswerHasher.MIN_ITERATIONS),
+                        SecretQuestionAnswerHasher.MIN_ITERATIONS));
+        String carolBefore = stored("carol").getSecretData();
+
+        job(2, 0, 60000).run(tenant.newSession());
+
+        assertFalse(stored("alice").getSecretData().contains("\"answer\""));
+        assertFalse(stored("bob").getSecretData().contains("\"answer\""));
+        assertTrue(tenant.verify("alice", "Hanako"));
+        assertTrue(tenant.verify("bob", "Taro"));
+        // すでに現在の形式の行は書き換えない
+        assertEquals(carolBefore, stored("carol").getSecretData());
+        assertEquals(SecretQuestionReencodeJob.TARGET + ":" + SecretQuestionReencodeJob.DONE,
+                tenant.getRealm().getAttribute(SecretQuestionReencodeJob.CHECKPOINT_ATTRIBUTE));
+
+        // 完了済みのレルムは次の実行で読まない
+        cursors.clear();
+        job(2, 0, 60000).run(tenant.newSession());
+        assertTrue(cursors.isEmpty());
+    }
+
+    public void testResumesFromCheckpointAfterDeadline() {
+        for (String username : USERNAMES) {
+            storePlaintext(username, username + "-answer");
+        }
+        // 1 行/秒なので、1.5 秒の上限では 2 バッチで打ち切られる
+        FakeClockJob first = job(1, 1, 1500);
+        first.run(tenant.newSession());
+        assertEquals(1500, first.clock);
+
+        String checkpoint =
+                tenant.getRealm().getAttribute(SecretQuestionReencodeJob.CHECKPOINT_ATTRIBUTE);
+        assertTrue(checkpoint.startsWith(SecretQuestionReencodeJob.TARGET + ":"));
+        assertEquals(2, countHashed());
+
+        // 再起動後の実行はチェックポイントの続きから読む
+        cursors.clear();
+        job(1, 0, 60000).run(tenant.newSession());
+        assertEquals(checkpoint.substring(SecretQuestionReencodeJob.TARGET.length() + 1),
+                cursors.get(0));
+        assertEquals(5, countHashed());
+        assertTrue(tenant.verify("eve", "eve-answer"));
+    }
+
+    public void testPauseHonoursRateAndLoadBudget() {
+        SecretQuestionReencodeJob job = new SecretQuestionReencodeJob(tenant.runner(),
+                (s, r, a, l) -> new ArrayList<>(), 100, 100, 25, 60000, 0);
+        // 100 行を 200 ms で処理: 100 行/秒を守るには残り 800 ms 休む（負荷 25% なら 600 ms）
+        assertEquals(800, job.pauseMillis(100, 200));
+        // 10 行を 400 ms で処理: 行数には余裕があるが、負荷 25% を守るには 1200 ms 休む
+        assertEquals(1200, job.pauseMillis(10, 400));
+    }
+
+    private long countHashed() {
+        return Stream.of(USERNAMES).filter(u -> !stored(u).getSecretData().contains("\"answer\""))
+                .count();
+    }
+
+    private final class FakeClockJob extends SecretQuestionReencodeJob {
+        private long clock;
+
+        private FakeClockJob(int batchSize, int rowsPerSecond, long maxRunMillis) {
+            super(tenant.runner(), (s, realm, afterId, limit) -> next(afterId, limit), batchSize,
+                    rowsPerSecond, 0, maxRunMillis, 0);
+        }
+
+        @Override
+        protected long now() {
+            return clock;
+        }
+
+        @Override
+        protected void sleep(long millis) {
+            clock += millis;
+        }
+    }
+}
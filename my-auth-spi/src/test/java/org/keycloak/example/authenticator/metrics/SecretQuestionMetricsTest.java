@@ -0,0 +1,109 @@
+package org.keycloak.example.authenticator.metrics;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.credential.SecretQuestionVerificationRejectedException;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Outcome;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics.Phase;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.throttle.SecretQuestionConcurrencyLimiter;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionMetricsTest extends TestCase {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    public void testRecordsTimerPerRealmAndOutcome() {
+        SecretQuestionMetrics metrics = new SecretQuestionMetrics(registry, 10, false);
+        RealmModel realm = StubRealm.create("realm-id", "test");
+
+        metrics.record(realm, Phase.ACTION, Outcome.SUCCESS, metrics.start());
+        metrics.record(realm, Phase.ACTION, Outcome.SUCCESS, metrics.start());
+        metrics.record(realm, Phase.ACTION, Outcome.FAILURE, metrics.start());
+
+        assertEquals(2, timer("keycloak.secret_question.action", "test", "success").count());
+        assertEquals(1, timer("keycloak.secret_question.action", "test", "failure").count());
+        assertEquals(2, registry.getMeters().size());
+    }
+
+    public void testRealmsBeyondLimitAreGroupedAsOther() {
+        SecretQuestionMetrics metrics = new SecretQuestionMetrics(registry, 1, false);
+
+        metrics.record(StubRealm.create("a", "first"), Phase.AUTHENTICATE, Outcome.CHALLENGE,
+                metrics.start());
+        metrics.record(StubRealm.create("b", "second"), Phase.AUTHENTICATE, Outcome.CHALLENGE,
+                metrics.start());
+
+        assertEquals(1, metrics.getRealmCount());
+        assertEquals(1,
+                timer("keycloak.secret_question.authenticate", "first", "challenge").count());
+        assertEquals(1,
+                timer("keycloak.secret_question.authenticate", "other", "challenge").count());
+    }
+
+    public void testDisabledRecordsNothing() {
+        SecretQuestionMetrics metrics = SecretQuestionMetrics.DISABLED;
+
+        assertEquals(0L, metrics.start());
+        metrics.record(StubRealm.create("realm-id", "test"), Phase.DECODE, Outcome.SUCCESS, 0L);
+
+        assertFalse(metrics.isEnabled());
+        assertEquals(0, metrics.getRealmCount());
+    }
+
+    public void testFallsBackToDisabledWithoutMicrometer() {
+        assertTrue(SecretQuestionMetrics.isMicrometerAvailable(
+                "io.micrometer.core.instrument.Metrics"));
+        assertFalse(SecretQuestionMetrics.isMicrometerAvailable("io.micrometer.missing.Metrics"));
+
+        assertSame(SecretQuestionMetrics.DISABLED,
+                SecretQuestionMetrics.fromConfig(new MapConfigScope(), false));
+        assertTrue(SecretQuestionMetrics.fromConfig(new MapConfigScope(), true).isEnabled());
+    }
+
+    public void testPublishesConcurrencyLimitPerRealm() {
+        SecretQuestionMetrics metrics = new SecretQuestionMetrics(registry, 10, false);
+        SecretQuestionConcurrencyLimiter limiter =
+                new SecretQuestionConcurrencyLimiter(1, 1, 10, 1.5, 10, metrics);
+        RealmModel realm = StubRealm.create("realm-id", "test");
+
+        limiter.acquire(realm);
+        try {
+            limiter.acquire(realm);
+            fail("limit of 1 exceeded");
+        } catch (SecretQuestionVerificationRejectedException expected) {
+        }
+
+        assertEquals(1.0, registry.get(SecretQuestionMetrics.CONCURRENCY_LIMIT_METRIC)
+                .tag("realm", "test").gauge().value());
+        assertEquals(1.0, registry.get(SecretQuestionMetrics.CONCURRENCY_IN_FLIGHT_METRIC)
+                .tag("realm", "test").gauge().value());
+        assertEquals(1.0, registry.get(SecretQuestionMetrics.CONCURRENCY_REJECTED_METRIC)
+                .tag("realm", "test").functionCounter().count());
+    }
+
+    public void testConcurrencyLimitFollowsRealmName() {
+        SecretQuestionMetrics metrics = new SecretQuestionMetrics(registry, 10, false);
+        SecretQuestionConcurrencyLimiter limiter =
+                new SecretQuestionConcurrencyLimiter(1, 1, 10, 1.5, 10, metrics);
+
+        // 上限とゲージは同じキー（レルム名）で引くので、ゲージは常に使っている上限の値を示す
+        limiter.acquire(StubRealm.create("old-id", "test"));
+        try {
+            limiter.acquire(StubRealm.create("new-id", "test"));
+            fail("realms with the same name share one limit");
+        } catch (SecretQuestionVerificationRejectedException expected) {
+        }
+
+        assertEquals(1.0, registry.get(SecretQuestionMetrics.CONCURRENCY_IN_FLIGHT_METRIC)
+                .tag("realm", "test").gauge().value());
+        assertEquals(1.0, registry.get(SecretQuestionMetrics.CONCURRENCY_REJECTED_METRIC)
+                .tag("realm", "test").functionCounter().count());
+    }
+
+    private Timer timer(String name, String realm, String outcome) {
+        return registry.get(name).tag("realm", realm).tag("outcome", outcome).timer();
+    }
+}
@@ -0,0 +1,108 @@
+package org.keycloak.example.authenticator.network;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class TrustedNetworkIndexTest extends TestCase {
+
+    public void testMatchesIpv4Networks() {
+        TrustedNetworkIndex index =
+                TrustedNetworkIndex.compile("10.0.0.0/8, 192.0.2.0/24 198.51.100.7");
+
+        assertEquals(3, index.size());
+        assertTrue(index.contains("10.255.1.2"));
+        assertTrue(index.contains("192.0.2.200"));
+        assertTrue(index.contains("198.51.100.7"));
+        assertFalse(index.contains("198.51.100.8"));
+        assertFalse(index.contains("192.0.3.1"));
+        assertFalse(index.contains("11.0.0.1"));
+    }
+
+    public void testMatchesIpv6NetworksAndMappedIpv4() {
+        TrustedNetworkIndex index =
+                TrustedNetworkIndex.compile("2001:db8::/32##fe80::1##203.0.113.0/25");
+
+        assertTrue(index.contains("2001:db8:1234::5"));
+        assertTrue(index.contains("2001:DB8:0:0:0:0:0:1"));
+        assertFalse(index.contains("2001:db9::1"));
+        assertTrue(index.contains("fe80::1%eth0"));
+        assertFalse(index.contains("fe80::2"));
+        assertTrue(index.contains("::ffff:203.0.113.5"));
+        assertFalse(index.contains("::ffff:203.0.113.200"));
+        // IPv4 のネットワークは IPv6 のアドレスとしては一致しない
+        assertFalse(index.contains("::cb00:7105"));
+    }
+
+    public void testWholeAddressSpace() {
+        TrustedNetworkIndex index = TrustedNetworkIndex.compile("0.0.0.0/0");
+
+        assertTrue(index.contains("203.0.113.1"));
+        assertFalse(index.contains("2001:db8::1"));
+    }
+
+    public void testRejectsInvalidEntries() {
+        List<String> errors = new ArrayList<>();
+        TrustedNetworkIndex index = TrustedNetworkIndex.compile(
+                "10.0.0.0/8, 10.1.0.0/8, 256.0.0.1, 192.0.2.0/33, 2001:db8:::/32, example.com",
+                errors);
+
+        assertEquals(1, index.size());
+        assertEquals(5, errors.size());
+        try {
+            TrustedNetworkIndex.compile("10.0.0.0/8, 1.2.3");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1.2.3"));
+        }
+    }
+
+    public void testInvalidAddressesDoNotMatch() {
+        TrustedNetworkIndex index = TrustedNetworkIndex.compile("0.0.0.0/0, ::/0");
+
+        assertFalse(index.contains(null));
+        assertFalse(index.contains(""));
+        assertFalse(index.contains("1.2.3"));
+        assertFalse(index.contains("1.2.3.4.5"));
+        assertFalse(index.contains("1.2.3.1000"));
+        assertFalse(index.contains("1:2:3:4:5:6:7:8:9"));
+        assertFalse(index.contains("1::2::3"));
+        assertFalse(index.contains("12345::"));
+        assertFalse(index.contains("1:"));
+        assertFalse(TrustedNetworkIndex.EMPTY.contains("192.0.2.1"));
+    }
+
+    // 解釈した結果を JDK の InetAddress（リテラルなので名前解決はしない）と比べる
+    public void testParsesIpv6LikeInetAddress() throws Exception {
+        String[] addresses = {"::", "::1", "1::", "2001:db8::ff00:42:8329",
+            "2001:0db8:0000:0000:0000:ff00:0042:8329", "1:2:3:4:5:6:7:8", "1::8",
+            "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "::ffff:192.0.2.128", "64:ff9b::192.0.2.33",
+            "fe80::abcd:ef01:2345:6789"};
+        long[] parsed = new long[2];
+        for (String address : addresses) {
+            assertTrue(address,
+                    TrustedNetworkIndex.parseIpv6(address, 0, address.length(), parsed));
+            byte[] expected = InetAddress.getByName(address).getAddress();
+            if (expected.length == 4) {
+                // InetAddress は IPv4 射影アドレスを IPv4 にする
+                assertEquals(address, 0L, parsed[0]);
+                assertEquals(address, 0xffff00000000L | (ByteBuffer.wrap(expected).getInt()
+                        & 0xffffffffL), parsed[1]);
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(expected);
+            assertEquals(address, buffer.getLong(), parsed[0]);
+            assertEquals(address, buffer.getLong(), parsed[1]);
+        }
+    }
+
+    public void testIsCompiledFrom() {
+        TrustedNetworkIndex index = TrustedNetworkIndex.compile("10.0.0.0/8");
+
+        assertTrue(index.isCompiledFrom("10.0.0.0/8"));
+        assertFalse(index.isCompiledFrom("10.0.0.0/16"));
+        assertTrue(TrustedNetworkIndex.EMPTY.isCompiledFrom(null));
+    }
+}
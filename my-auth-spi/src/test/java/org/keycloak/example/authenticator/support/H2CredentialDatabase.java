@@ -0,0 +1,126 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityTransaction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.FederatedIdentityEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserRequiredActionEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * keycloak-model-jpa のユーザとクレデンシャルのエンティティを、組み込みの H2（メモリ上）に載せた DB。
+ *
+ * テーブルは Liquibase ではなく Hibernate がエンティティから作ります（USER_ATTRIBUTE の VALUE 列のために、
+ * Keycloak と同じく NON_KEYWORDS=VALUE を付けています）。エンティティの名前付きクエリには
+ * 載せていないエンティティ（グループやロールなど）を参照するものがあるので、起動時の検査は外しています。
+ *
+ * Keycloak のリクエストと同じく、1 回の inTransaction() が 1 つの EntityManager とトランザクションに
+ * なります。その間に Hibernate が発行した SQL を StatementInspector で拾い、戻り値として返します。
+ * 同時に複数のトランザクションは扱えません（テストのスレッドから順に呼ぶ前提です）。
+ */
+public class H2CredentialDatabase {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final Class<?>[] ENTITIES = {
+        UserEntity.class, CredentialEntity.class, UserAttributeEntity.class,
+        UserRequiredActionEntity.class, FederatedIdentityEntity.class
+    };
+    private static final String[] CLOB_COLUMNS = {"SECRET_DATA", "CREDENTIAL_DATA"};
+
+    private final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+    private final SessionFactory sessionFactory;
+    private volatile EntityManager current;
+
+    public H2CredentialDatabase() {
+        Configuration configuration = new Configuration();
+        for (Class<?> entity : ENTITIES) {
+            configuration.addAnnotatedClass(entity);
+        }
+        configuration.setProperty(AvailableSettings.URL,
+                "jdbc:h2:mem:credentials-" + DATABASES.incrementAndGet()
+                        + ";DB_CLOSE_DELAY=-1;NON_KEYWORDS=VALUE");
+        configuration.setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop");
+        configuration.setProperty(AvailableSettings.QUERY_STARTUP_CHECKING, "false");
+        configuration.setStatementInspector(sql -> {
+            statements.add(sql);
+            return sql;
+        });
+        sessionFactory = configuration.buildSessionFactory();
+        // Keycloak のスキーマ（jpa-changelog-8.0.0）と同じく、JSON を入れる列は CLOB にする
+        inTransaction(() -> {
+            for (String column : CLOB_COLUMNS) {
+                getEntityManager().createNativeQuery(
+                        "alter table CREDENTIAL alter column " + column + " clob").executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * USER_ENTITY に行を作り、クレデンシャルをこの DB に置くユーザを返します。ID は Keycloak と同じく
+     * UUID です。
+     */
+    public StubUserModel createUser(RealmModel realm, String username) {
+        String id = KeycloakModelUtils.generateId();
+        inTransaction(() -> {
+            UserEntity entity = new UserEntity();
+            entity.setId(id);
+            entity.setUsername(username);
+            entity.setRealmId(realm.getId());
+            entity.setEnabled(true);
+            entity.setCreatedTimestamp(System.currentTimeMillis());
+            getEntityManager().persist(entity);
+        });
+        JpaCredentialManager credentials = new JpaCredentialManager(this, realm);
+        StubUserModel user = new StubUserModel(id, username, credentials);
+        credentials.setUser(user);
+        return user;
+    }
+
+    /**
+     * 1 つのトランザクションで step を実行してコミットし、その間に発行された SQL を発行順に返します。
+     * step が例外を投げた場合はロールバックします。
+     */
+    public List<String> inTransaction(Runnable step) {
+        if (current != null) {
+            throw new IllegalStateException("Transaction already in progress");
+        }
+        EntityManager entityManager = sessionFactory.createEntityManager();
+        EntityTransaction transaction = entityManager.getTransaction();
+        statements.clear();
+        current = entityManager;
+        try {
+            transaction.begin();
+            step.run();
+            transaction.commit();
+            return new ArrayList<>(statements);
+        } finally {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            current = null;
+            entityManager.close();
+        }
+    }
+
+    public EntityManager getEntityManager() {
+        EntityManager entityManager = current;
+        if (entityManager == null) {
+            throw new IllegalStateException("Credential store used outside inTransaction()");
+        }
+        return entityManager;
+    }
+
+    public void close() {
+        sessionFactory.close();
+    }
+}
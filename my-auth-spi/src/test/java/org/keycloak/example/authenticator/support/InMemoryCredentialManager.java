@@ -0,0 +1,162 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.SubjectCredentialManager;
+
+/**
+ * メモリ上のマップをクレデンシャルストアとして使う SubjectCredentialManager。
+ *
+ * 読み出しのたびに CredentialModel のコピーを返し、DB から行を読んだときと同じように呼び出し側ごとに
+ * 別インスタンスになるようにしています。setReadLatencyMillis() で読み出しに遅延を入れられます。
+ */
+public class InMemoryCredentialManager implements SubjectCredentialManager {
+
+    private final Map<String, CredentialModel> credentials = new ConcurrentHashMap<>();
+    private final AtomicLong reads = new AtomicLong();
+    private volatile long readLatencyNanos;
+    private volatile RuntimeException createFailure;
+
+    public void setReadLatencyMillis(long millis) {
+        this.readLatencyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // 設定すると createStoredCredential がこの例外を投げる。DB の制約違反などを再現するのに使う
+    public void setCreateFailure(RuntimeException createFailure) {
+        this.createFailure = createFailure;
+    }
+
+    // ストアへの読み出し回数。テストで「何回クレデンシャルを読んだか」を確認するのに使う
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    private void read() {
+        reads.incrementAndGet();
+        long latency = readLatencyNanos;
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+    }
+
+    static CredentialModel copy(CredentialModel source) {
+        CredentialModel copy = new CredentialModel();
+        copy.setId(source.getId());
+        copy.setType(source.getType());
+        copy.setUserLabel(source.getUserLabel());
+        copy.setCreatedDate(source.getCreatedDate());
+        copy.setSecretData(source.getSecretData());
+        copy.setCredentialData(source.getCredentialData());
+        return copy;
+    }
+
+    @Override
+    public boolean isValid(List<CredentialInput> list) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean updateCredential(CredentialInput credentialInput) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateStoredCredential(CredentialModel credentialModel) {
+        credentials.put(credentialModel.getId(), copy(credentialModel));
+    }
+
+    @Override
+    public CredentialModel createStoredCredential(CredentialModel credentialModel) {
+        if (createFailure != null) {
+            throw createFailure;
+        }
+        CredentialModel stored = copy(credentialModel);
+        if (stored.getId() == null) {
+            stored.setId(UUID.randomUUID().toString());
+        }
+        credentials.put(stored.getId(), stored);
+        return copy(stored);
+    }
+
+    @Override
+    public boolean removeStoredCredentialById(String value) {
+        return credentials.remove(value) != null;
+    }
+
+    @Override
+    public CredentialModel getStoredCredentialById(String value) {
+        read();
+        CredentialModel stored = credentials.get(value);
+        return stored == null ? null : copy(stored);
+    }
+
+    @Override
+    public Stream<CredentialModel> getStoredCredentialsStream() {
+        read();
+        return credentials.values().stream().map(InMemoryCredentialManager::copy);
+    }
+
+    @Override
+    public Stream<CredentialModel> getStoredCredentialsByTypeStream(String value) {
+        read();
+        return credentials.values().stream().filter(c -> value.equals(c.getType()))
+                .map(InMemoryCredentialManager::copy);
+    }
+
+    @Override
+    public CredentialModel getStoredCredentialByNameAndType(String value,
+                String value2) {
+        read();
+        return credentials.values().stream()
+                .filter(c -> value2.equals(c.getType()) && value.equals(c.getUserLabel()))
+                .findFirst().map(InMemoryCredentialManager::copy).orElse(null);
+    }
+
+    @Override
+    public boolean moveStoredCredentialTo(String value, String value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateCredentialLabel(String value, String value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void disableCredentialType(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<String> getDisableableCredentialTypesStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isConfiguredFor(String value) {
+        return getStoredCredentialsByTypeStream(value).findAny().isPresent();
+    }
+
+    @Override
+    public boolean isConfiguredLocally(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<String> getConfiguredUserStorageCredentialTypesStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CredentialModel createCredentialThroughProvider(CredentialModel credentialModel) {
+        throw new UnsupportedOperationException();
+    }
+}
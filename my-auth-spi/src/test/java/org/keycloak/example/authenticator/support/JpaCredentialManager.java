@@ -0,0 +1,123 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.List;
+import java.util.stream.Stream;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.JpaUserCredentialStore;
+
+/**
+ * Keycloak の JpaUserCredentialStore をそのまま使う SubjectCredentialManager。
+ *
+ * 呼び出しのたびに、H2CredentialDatabase で実行中のトランザクションの EntityManager で
+ * JpaUserCredentialStore を作ります。inTransaction() の外で呼ぶと IllegalStateException になります。
+ */
+public class JpaCredentialManager implements SubjectCredentialManager {
+
+    private final H2CredentialDatabase database;
+    private final RealmModel realm;
+    private UserModel user;
+
+    JpaCredentialManager(H2CredentialDatabase database, RealmModel realm) {
+        this.database = database;
+        this.realm = realm;
+    }
+
+    // ユーザを作ったあとで H2CredentialDatabase#createUser が設定する
+    void setUser(UserModel user) {
+        this.user = user;
+    }
+
+    private JpaUserCredentialStore store() {
+        // JpaUserCredentialStore はセッションを使わない
+        return new JpaUserCredentialStore(null, database.getEntityManager());
+    }
+
+    @Override
+    public boolean isValid(List<CredentialInput> list) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean updateCredential(CredentialInput credentialInput) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateStoredCredential(CredentialModel credentialModel) {
+        store().updateCredential(realm, user, credentialModel);
+    }
+
+    @Override
+    public CredentialModel createStoredCredential(CredentialModel credentialModel) {
+        return store().createCredential(realm, user, credentialModel);
+    }
+
+    @Override
+    public boolean removeStoredCredentialById(String value) {
+        return store().removeStoredCredential(realm, user, value);
+    }
+
+    @Override
+    public CredentialModel getStoredCredentialById(String value) {
+        return store().getStoredCredentialById(realm, user, value);
+    }
+
+    @Override
+    public Stream<CredentialModel> getStoredCredentialsStream() {
+        return store().getStoredCredentialsStream(realm, user);
+    }
+
+    @Override
+    public Stream<CredentialModel> getStoredCredentialsByTypeStream(String value) {
+        return store().getStoredCredentialsByTypeStream(realm, user, value);
+    }
+
+    @Override
+    public CredentialModel getStoredCredentialByNameAndType(String value, String value2) {
+        return store().getStoredCredentialByNameAndType(realm, user, value, value2);
+    }
+
+    @Override
+    public boolean moveStoredCredentialTo(String value, String value2) {
+        return store().moveCredentialTo(realm, user, value, value2);
+    }
+
+    @Override
+    public void updateCredentialLabel(String value, String value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void disableCredentialType(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<String> getDisableableCredentialTypesStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isConfiguredFor(String value) {
+        return getStoredCredentialsByTypeStream(value).findAny().isPresent();
+    }
+
+    @Override
+    public boolean isConfiguredLocally(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<String> getConfiguredUserStorageCredentialTypesStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CredentialModel createCredentialThroughProvider(CredentialModel credentialModel) {
+        throw new UnsupportedOperationException();
+    }
+}
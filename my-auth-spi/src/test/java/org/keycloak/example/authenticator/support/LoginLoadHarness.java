@@ -0,0 +1,439 @@
+package org.keycloak.example.authenticator.support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.FlowStatus;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorFactory;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.SecretQuestionRequiredActionFactory;
+import org.keycloak.example.authenticator.catalog.SecretQuestionCatalog;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialSnapshot;
+import org.keycloak.example.authenticator.credential.SecretQuestionVerificationRejectedException;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.ThemeSelectorProvider;
+
+/**
+ * 登録とログインのフローを大量に同時に流す負荷ハーネス。
+ *
+ * Keycloak と同じく、認証器・必須アクション・クレデンシャルプロバイダはファクトリが 1 つだけ作り、
+ * すべてのフローで共有します（SINGLETON、モデルキャッシュ、検証プール、試行回数の制限など）。
+ * フローごとのセッションやリクエストは StubLoginFlow で毎回作り、クレデンシャルストアはメモリ上です。
+ *
+ * 1. 登録: ユーザごとに requiredActionChallenge から processAction まで進め、すべての質問に回答する
+ *
+ * 2. ログイン: authenticate から action まで進め、出題された質問に回答する。wrongAnswerEvery を
+ * 指定すると、その間隔で一度間違えてから同じ認証セッションで答え直す
+ *
+ * どちらも全フローを一度に投入し、フェーズごとにスループット、1 フローあたりの時間の p50 / p99 / p999、
+ * フローを実行したスレッドでの割り当て量を Phase にまとめます。検証プールが満杯で断られた場合は
+ * 少し待って同じ認証セッションで送り直し、その回数を busyRetries に数えます（時間にも含まれます）。
+ *
+ * フローは JDK 21 以降では仮想スレッドで実行します（Executors#newVirtualThreadPerTaskExecutor を
+ * リフレクションで呼び出します）。それより前の JDK では platformThreads 本の固定スレッドプールです。
+ * 仮想スレッドではスレッドごとの割り当て量が取れないので、allocatedBytesPerFlow は -1 になります。
+ * ハッシュ計算は検証プールのスレッドで行われるので、割り当て量には含まれません。
+ *
+ * setReadLatencyMillis() を指定すると、すべてのユーザのクレデンシャルストアの読み出しに遅延を入れます。
+ * DB が遅い状況で、待っているフローが検証プールや共有キャッシュをどう使うかを見るためのものです。
+ */
+public class LoginLoadHarness {
+
+    private static final String ANSWER_PARAM = "secret_answer";
+    // 5 ms から倍々に待ち、320 ms で頭打ち。合計でおよそ 1 分送り直してもだめなら失敗にする
+    private static final int MAX_BUSY_RETRIES = 200;
+    private static final long BUSY_BACKOFF_MILLIS = 5;
+    private static final int MAX_BACKOFF_SHIFT = 6;
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    private static final ThemeSelectorProvider THEME_SELECTOR = new ThemeSelectorProvider() {
+        @Override
+        public String getThemeName(Theme.Type type) {
+            return "keycloak";
+        }
+
+        @Override
+        public void close() {}
+    };
+
+    private final SecretQuestionCredentialProviderFactory credentialProviderFactory =
+            new SecretQuestionCredentialProviderFactory();
+    private final SecretQuestionAuthenticatorFactory authenticatorFactory =
+            new SecretQuestionAuthenticatorFactory();
+    private final SecretQuestionRequiredActionFactory requiredActionFactory =
+            new SecretQuestionRequiredActionFactory();
+    private final RealmModel realm = StubRealm.create("realm-id", "load");
+    private final KeyManager keys = new StubKeyManager();
+    private final int questionCount;
+
+    private int users = 100;
+    private int logins = 1000;
+    private int wrongAnswerEvery;
+    private int platformThreads = 200;
+    private long readLatencyMillis;
+
+    /**
+     * @param config 3 つのファクトリの init() にそのまま渡す設定。
+     */
+    public LoginLoadHarness(MapConfigScope config) {
+        credentialProviderFactory.init(config);
+        authenticatorFactory.init(config);
+        requiredActionFactory.init(config);
+        // questions の数え方は SecretQuestionRequiredActionFactory と同じ（空の項目は数えない）
+        String[] questions = config.getArray("questions");
+        long configured = questions == null ? 0
+                : Arrays.stream(questions).filter(q -> !q.trim().isEmpty()).count();
+        questionCount = configured > 0 ? (int) configured
+                : SecretQuestionCatalog.DEFAULT.getIds().size();
+    }
+
+    public LoginLoadHarness setUsers(int users) {
+        this.users = users;
+        return this;
+    }
+
+    public LoginLoadHarness setLogins(int logins) {
+        this.logins = logins;
+        return this;
+    }
+
+    // 0 の場合は間違えない
+    public LoginLoadHarness setWrongAnswerEvery(int wrongAnswerEvery) {
+        this.wrongAnswerEvery = wrongAnswerEvery;
+        return this;
+    }
+
+    // 仮想スレッドが使えない JDK でのスレッド数
+    public LoginLoadHarness setPlatformThreads(int platformThreads) {
+        this.platformThreads = platformThreads;
+        return this;
+    }
+
+    public LoginLoadHarness setReadLatencyMillis(long readLatencyMillis) {
+        this.readLatencyMillis = readLatencyMillis;
+        return this;
+    }
+
+    public static boolean isVirtualThreadsAvailable() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    public Report run() throws InterruptedException {
+        List<StubUserModel> userModels = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            StubUserModel user = new StubUserModel("load-user-" + i, "load" + i);
+            user.getCredentialStore().setReadLatencyMillis(readLatencyMillis);
+            userModels.add(user);
+        }
+        Phase enroll = runPhase("enroll", users, flow -> enroll(userModels.get(flow), flow));
+
+        // 出題された質問を認証セッションのノートから引くために、登録されたクレデンシャルの ID を控える
+        String[] credentialIds = new String[users];
+        for (int i = 0; i < users; i++) {
+            credentialIds[i] = userModels.get(i).getCredentialStore()
+                    .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                    .map(CredentialModel::getId).findFirst().orElse(null);
+        }
+        Phase login = runPhase("login", logins, flow -> login(userModels.get(flow % users),
+                credentialIds[flow % users], flow));
+        return new Report(enroll, login, userModels);
+    }
+
+    public void close() {
+        authenticatorFactory.close();
+        requiredActionFactory.close();
+        credentialProviderFactory.close();
+    }
+
+    private int enroll(StubUserModel user, int flow) {
+        RequiredActionProvider requiredAction = requiredActionFactory.create(null);
+        StubLoginFlow challenge = newFlow(user, flow);
+        requiredAction.requiredActionChallenge(challenge.getRequiredActionContext());
+        expect(RequiredActionContext.Status.CHALLENGE,
+                challenge.getRequiredActionContext().getStatus());
+
+        List<String> answers = new ArrayList<>(questionCount);
+        for (int i = 0; i < questionCount; i++) {
+            answers.add(answer(user, i));
+        }
+        for (int retries = 0;; retries++) {
+            StubLoginFlow submit =
+                    newFlow(user, flow).setAuthenticationSession(challenge.getAuthenticationSession());
+            submit.getRequest().setFormParameters(ANSWER_PARAM, answers);
+            try {
+                requiredAction.processAction(submit.getRequiredActionContext());
+            } catch (SecretQuestionVerificationRejectedException e) {
+                backoff(retries);
+                continue;
+            }
+            expect(RequiredActionContext.Status.SUCCESS,
+                    submit.getRequiredActionContext().getStatus());
+            return retries;
+        }
+    }
+
+    private int login(StubUserModel user, String credentialId, int flow) {
+        Authenticator authenticator = authenticatorFactory.create(null);
+        StubLoginFlow challenge = newFlow(user, flow);
+        authenticator.authenticate(challenge.getContext());
+        expect(FlowStatus.CHALLENGE, challenge.getContext().getStatus());
+        int index = SecretQuestionCredentialSnapshot
+                .loadQuestionIndex(challenge.getAuthenticationSession(), credentialId);
+        if (index < 0) {
+            throw new IllegalStateException("No question was selected for " + user.getUsername());
+        }
+
+        int retries = 0;
+        if (wrongAnswerEvery > 0 && flow % wrongAnswerEvery == 0) {
+            retries += submit(authenticator, challenge, user, flow, "wrong-answer",
+                    FlowStatus.FAILURE_CHALLENGE);
+        }
+        return retries + submit(authenticator, challenge, user, flow, answer(user, index),
+                FlowStatus.SUCCESS);
+    }
+
+    // 検証プールに断られた場合は「しばらくしてから」の画面（CHALLENGE）が返るので送り直す
+    private int submit(Authenticator authenticator, StubLoginFlow challenge, StubUserModel user,
+            int flow, String answer, FlowStatus expected) {
+        for (int retries = 0;; retries++) {
+            StubLoginFlow submit =
+                    newFlow(user, flow).setAuthenticationSession(challenge.getAuthenticationSession());
+            submit.getRequest().setFormParameter(ANSWER_PARAM, answer);
+            authenticator.action(submit.getContext());
+            FlowStatus status = submit.getContext().getStatus();
+            if (status == FlowStatus.CHALLENGE && expected != FlowStatus.CHALLENGE) {
+                backoff(retries);
+                continue;
+            }
+            expect(expected, status);
+            return retries;
+        }
+    }
+
+    private StubLoginFlow newFlow(StubUserModel user, int flow) {
+        StubLoginFlow loginFlow = new StubLoginFlow(realm, user, credentialProviderFactory,
+                "10.0." + ((flow >> 8) & 0xff) + "." + (flow & 0xff));
+        loginFlow.getSession().setKeyManager(keys);
+        loginFlow.getSession().registerProvider(ThemeSelectorProvider.class, null, THEME_SELECTOR);
+        loginFlow.setAuthenticationSession(new StubAuthenticationSession(realm, "tab-" + flow));
+        return loginFlow;
+    }
+
+    private static String answer(StubUserModel user, int questionIndex) {
+        return user.getUsername() + "-answer-" + questionIndex;
+    }
+
+    private static void expect(Object expected, Object actual) {
+        if (expected != actual) {
+            throw new IllegalStateException("Expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void backoff(int retries) {
+        if (retries >= MAX_BUSY_RETRIES) {
+            throw new IllegalStateException("Verification pool stayed busy");
+        }
+        try {
+            Thread.sleep(BUSY_BACKOFF_MILLIS << Math.min(retries, MAX_BACKOFF_SHIFT));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Phase runPhase(String name, int flows, Flow task) throws InterruptedException {
+        long[] latencies = new long[flows];
+        LongAdder busyRetries = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        AtomicBoolean allocationMeasured = new AtomicBoolean(true);
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(flows);
+
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < flows; i++) {
+                int flow = i;
+                executor.execute(() -> {
+                    long allocatedBefore = currentThreadAllocatedBytes();
+                    long flowStart = System.nanoTime();
+                    try {
+                        busyRetries.add(task.run(flow));
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                        firstFailure.compareAndSet(null, e);
+                    } finally {
+                        latencies[flow] = System.nanoTime() - flowStart;
+                        long allocatedAfter = currentThreadAllocatedBytes();
+                        if (allocatedBefore < 0 || allocatedAfter < 0) {
+                            allocationMeasured.set(false);
+                        } else {
+                            allocatedBytes.add(allocatedAfter - allocatedBefore);
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdown();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long allocatedPerFlow =
+                allocationMeasured.get() && flows > 0 ? allocatedBytes.sum() / flows : -1;
+        return new Phase(name, latencies, elapsedNanos, busyRetries.sum(), failures.get(),
+                firstFailure.get(), allocatedPerFlow);
+    }
+
+    private ExecutorService newExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, platformThreads));
+    }
+
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // 取れない場合（仮想スレッドや、計測が無効な JVM）は -1
+    @SuppressWarnings("deprecation")
+    private static long currentThreadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private interface Flow {
+        // 検証プールに断られて送り直した回数を返す
+        int run(int flow);
+    }
+
+    /**
+     * 1 フェーズ分の結果。時間はミリ秒、スループットは 1 秒あたりのフロー数です。
+     */
+    public static class Phase {
+        private final String name;
+        private final long[] sortedLatencies;
+        private final long elapsedNanos;
+        private final long busyRetries;
+        private final int failures;
+        private final Throwable firstFailure;
+        private final long allocatedBytesPerFlow;
+
+        Phase(String name, long[] latencies, long elapsedNanos, long busyRetries, int failures,
+                Throwable firstFailure, long allocatedBytesPerFlow) {
+            this.name = name;
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(sortedLatencies);
+            this.elapsedNanos = elapsedNanos;
+            this.busyRetries = busyRetries;
+            this.failures = failures;
+            this.firstFailure = firstFailure;
+            this.allocatedBytesPerFlow = allocatedBytesPerFlow;
+        }
+
+        public int getFlows() {
+            return sortedLatencies.length;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public Throwable getFirstFailure() {
+            return firstFailure;
+        }
+
+        public long getBusyRetries() {
+            return busyRetries;
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getFlows() * 1e9 / elapsedNanos;
+        }
+
+        // quantile は 0〜1（0.99 なら p99）
+        public double getLatencyMillis(double quantile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * sortedLatencies.length) - 1;
+            index = Math.max(0, Math.min(sortedLatencies.length - 1, index));
+            return sortedLatencies[index] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getAllocatedBytesPerFlow() {
+            return allocatedBytesPerFlow;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: flows=%d, failures=%d, busyRetries=%d, throughput=%.1f/s, "
+                            + "p50=%.2fms, p99=%.2fms, p999=%.2fms, allocated=%s",
+                    name, getFlows(), failures, busyRetries, getThroughput(),
+                    getLatencyMillis(0.5), getLatencyMillis(0.99), getLatencyMillis(0.999),
+                    allocatedBytesPerFlow < 0 ? "n/a" : allocatedBytesPerFlow + "B/flow");
+        }
+    }
+
+    public static class Report {
+        private final Phase enroll;
+        private final Phase login;
+        private final List<StubUserModel> users;
+
+        Report(Phase enroll, Phase login, List<StubUserModel> users) {
+            this.enroll = enroll;
+            this.login = login;
+            this.users = users;
+        }
+
+        public Phase getEnroll() {
+            return enroll;
+        }
+
+        public Phase getLogin() {
+            return login;
+        }
+
+        public List<StubUserModel> getUsers() {
+            return users;
+        }
+
+        @Override
+        public String toString() {
+            return (isVirtualThreadsAvailable() ? "virtual threads" : "platform threads") + "\n"
+                    + enroll + "\n" + login;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.keycloak.Config;
+
+/**
+ * ファクトリの init() に渡す Config.Scope。--spi-... で指定する値をマップで与えます。
+ */
+public class MapConfigScope implements Config.Scope {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    public MapConfigScope put(String key, Object value) {
+        values.put(key, String.valueOf(value));
+        return this;
+    }
+
+    @Override
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public String[] getArray(String key) {
+        String value = values.get(key);
+        return value == null ? null : value.split(",");
+    }
+
+    @Override
+    public Integer getInt(String key) {
+        return getInt(key, null);
+    }
+
+    @Override
+    public Integer getInt(String key, Integer defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Integer.valueOf(value);
+    }
+
+    @Override
+    public Long getLong(String key) {
+        return getLong(key, null);
+    }
+
+    @Override
+    public Long getLong(String key, Long defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Long.valueOf(value);
+    }
+
+    @Override
+    public Boolean getBoolean(String key) {
+        return getBoolean(key, null);
+    }
+
+    @Override
+    public Boolean getBoolean(String key, Boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.valueOf(value);
+    }
+
+    @Override
+    public Config.Scope scope(String... scope) {
+        return new MapConfigScope();
+    }
+
+    @Override
+    public Set<String> getPropertyNames() {
+        return values.keySet();
+    }
+}
@@ -0,0 +1,323 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.AuthenticationSelectionOption;
+import org.keycloak.authentication.FlowStatus;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.FormMessage;
+import org.keycloak.services.managers.BruteForceProtector;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * 認証フローの結果（success / challenge / failureChallenge）を記録するだけの AuthenticationFlowContext。
+ *
+ * ベンチマークや負荷テストで同じインスタンスを使い回せるよう、reset() で結果をクリアできます。
+ */
+public class StubAuthenticationFlowContext implements AuthenticationFlowContext {
+
+    private final StubKeycloakSession session;
+    private final StubUriInfo uriInfo;
+    private final StubLoginFormsProvider forms = new StubLoginFormsProvider();
+    private final AuthenticationExecutionModel execution = new AuthenticationExecutionModel();
+    private UserModel user;
+    private AuthenticationSessionModel authenticationSession;
+    private AuthenticatorConfigModel authenticatorConfig;
+
+    private FlowStatus status;
+    private AuthenticationFlowError error;
+    private Response challenge;
+
+    public StubAuthenticationFlowContext(StubKeycloakSession session, StubUriInfo uriInfo,
+            UserModel user) {
+        this.session = session;
+        this.uriInfo = uriInfo;
+        this.user = user;
+    }
+
+    public StubAuthenticationFlowContext setAuthenticatorConfig(AuthenticatorConfigModel config) {
+        this.authenticatorConfig = config;
+        return this;
+    }
+
+    public StubAuthenticationFlowContext setAuthenticationSession(
+            AuthenticationSessionModel authenticationSession) {
+        this.authenticationSession = authenticationSession;
+        return this;
+    }
+
+    public StubLoginFormsProvider getForms() {
+        return forms;
+    }
+
+    public Response getChallenge() {
+        return challenge;
+    }
+
+    public void reset() {
+        status = null;
+        error = null;
+        challenge = null;
+        forms.reset();
+    }
+
+    @Override
+    public UserModel getUser() {
+        return user;
+    }
+
+    @Override
+    public void setUser(UserModel userModel) {
+        this.user = userModel;
+    }
+
+    @Override
+    public List<AuthenticationSelectionOption> getAuthenticationSelections() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void setAuthenticationSelections(List<AuthenticationSelectionOption> list) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clearUser() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void attachUserSession(UserSessionModel userSessionModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AuthenticationSessionModel getAuthenticationSession() {
+        return authenticationSession;
+    }
+
+    @Override
+    public String getFlowPath() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider form() {
+        return forms;
+    }
+
+    @Override
+    public URI getActionUrl(String value) {
+        return uriInfo.getBaseUri().resolve("realms/" + getRealm().getName()
+                + "/login-actions/authenticate?session_code=" + value
+                + "&client_id=test-app&tab_id=" + authenticationSession.getTabId());
+    }
+
+    @Override
+    public URI getActionTokenUrl(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI getRefreshExecutionUrl() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI getRefreshUrl(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cancelLogin() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void resetFlow() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void resetFlow(Runnable runnable) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fork() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void forkWithSuccessMessage(FormMessage formMessage) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void forkWithErrorMessage(FormMessage formMessage) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public EventBuilder getEvent() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public EventBuilder newEvent() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AuthenticationExecutionModel getExecution() {
+        return execution;
+    }
+
+    @Override
+    public RealmModel getRealm() {
+        return session.getContext().getRealm();
+    }
+
+    @Override
+    public ClientConnection getConnection() {
+        return session.getContext().getConnection();
+    }
+
+    @Override
+    public UriInfo getUriInfo() {
+        return uriInfo;
+    }
+
+    @Override
+    public KeycloakSession getSession() {
+        return session;
+    }
+
+    @Override
+    public HttpRequest getHttpRequest() {
+        return session.getContext().getHttpRequest();
+    }
+
+    @Override
+    public BruteForceProtector getProtector() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AuthenticatorConfigModel getAuthenticatorConfig() {
+        return authenticatorConfig;
+    }
+
+    @Override
+    public FormMessage getForwardedErrorMessage() {
+        return null;
+    }
+
+    @Override
+    public FormMessage getForwardedSuccessMessage() {
+        return null;
+    }
+
+    @Override
+    public FormMessage getForwardedInfoMessage() {
+        return null;
+    }
+
+    @Override
+    public void setForwardedInfoMessage(String value, Object... value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String generateAccessCode() {
+        return "access-code-1";
+    }
+
+    @Override
+    public AuthenticationExecutionModel.Requirement getCategoryRequirementFromCurrentFlow(
+            String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void success() {
+        status = FlowStatus.SUCCESS;
+    }
+
+    @Override
+    public void failure(AuthenticationFlowError authenticationFlowError) {
+        status = FlowStatus.FAILED;
+        error = authenticationFlowError;
+    }
+
+    @Override
+    public void failure(AuthenticationFlowError authenticationFlowError,
+                Response response) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void failure(AuthenticationFlowError authenticationFlowError,
+                Response response, String value, String value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void challenge(Response response) {
+        status = FlowStatus.CHALLENGE;
+        challenge = response;
+    }
+
+    @Override
+    public void forceChallenge(Response response) {
+        status = FlowStatus.FORCE_CHALLENGE;
+        challenge = response;
+    }
+
+    @Override
+    public void failureChallenge(AuthenticationFlowError authenticationFlowError,
+                Response response) {
+        status = FlowStatus.FAILURE_CHALLENGE;
+        error = authenticationFlowError;
+        challenge = response;
+    }
+
+    @Override
+    public void attempted() {
+        status = FlowStatus.ATTEMPTED;
+    }
+
+    @Override
+    public FlowStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    public AuthenticationFlowError getError() {
+        return error;
+    }
+
+    @Override
+    public String getEventDetails() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getUserErrorMessage() {
+        throw new UnsupportedOperationException();
+    }
+}
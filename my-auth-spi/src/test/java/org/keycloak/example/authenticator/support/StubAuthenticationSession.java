@@ -0,0 +1,206 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+/**
+ * ノートと実行状態だけを持つ AuthenticationSessionModel。
+ *
+ * 同じインスタンスを複数の StubLoginFlow に渡すと、同じ認証セッションへの再送信（リトライ）を再現できます。
+ */
+public class StubAuthenticationSession implements AuthenticationSessionModel {
+
+    private final Map<String, String> authNotes = new HashMap<>();
+    private final Map<String, String> clientNotes = new HashMap<>();
+    private final Map<String, String> userSessionNotes = new HashMap<>();
+    private final Map<String, ExecutionStatus> executionStatus = new HashMap<>();
+    private final RealmModel realm;
+    private final String tabId;
+    private UserModel authenticatedUser;
+
+    public StubAuthenticationSession(RealmModel realm, String tabId) {
+        this.realm = realm;
+        this.tabId = tabId;
+    }
+
+    // テストで「認証セッションに何が保存されたか」を確認するのに使う
+    public Map<String, String> getAuthNotes() {
+        return authNotes;
+    }
+
+    @Override
+    public String getTabId() {
+        return tabId;
+    }
+
+    @Override
+    public RootAuthenticationSessionModel getParentSession() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, ExecutionStatus> getExecutionStatus() {
+        return executionStatus;
+    }
+
+    @Override
+    public void setExecutionStatus(String value, ExecutionStatus executionStatus) {
+        this.executionStatus.put(value, executionStatus);
+    }
+
+    @Override
+    public void clearExecutionStatus() {
+        executionStatus.clear();
+    }
+
+    @Override
+    public UserModel getAuthenticatedUser() {
+        return authenticatedUser;
+    }
+
+    @Override
+    public void setAuthenticatedUser(UserModel userModel) {
+        this.authenticatedUser = userModel;
+    }
+
+    @Override
+    public Set<String> getRequiredActions() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addRequiredAction(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeRequiredAction(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addRequiredAction(UserModel.RequiredAction requiredAction) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeRequiredAction(UserModel.RequiredAction requiredAction) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setUserSessionNote(String value, String value2) {
+        userSessionNotes.put(value, value2);
+    }
+
+    @Override
+    public Map<String, String> getUserSessionNotes() {
+        return userSessionNotes;
+    }
+
+    @Override
+    public void clearUserSessionNotes() {
+        userSessionNotes.clear();
+    }
+
+    @Override
+    public String getAuthNote(String value) {
+        return authNotes.get(value);
+    }
+
+    @Override
+    public void setAuthNote(String value, String value2) {
+        authNotes.put(value, value2);
+    }
+
+    @Override
+    public void removeAuthNote(String value) {
+        authNotes.remove(value);
+    }
+
+    @Override
+    public void clearAuthNotes() {
+        authNotes.clear();
+    }
+
+    @Override
+    public String getClientNote(String value) {
+        return clientNotes.get(value);
+    }
+
+    @Override
+    public void setClientNote(String value, String value2) {
+        clientNotes.put(value, value2);
+    }
+
+    @Override
+    public void removeClientNote(String value) {
+        clientNotes.remove(value);
+    }
+
+    @Override
+    public Map<String, String> getClientNotes() {
+        return clientNotes;
+    }
+
+    @Override
+    public void clearClientNotes() {
+        clientNotes.clear();
+    }
+
+    @Override
+    public Set<String> getClientScopes() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setClientScopes(Set<String> set) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getRedirectUri() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setRedirectUri(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    @Override
+    public ClientModel getClient() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getAction() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setAction(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getProtocol() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProtocol(String value) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,37 @@
+package org.keycloak.example.authenticator.support;
+
+import org.keycloak.common.ClientConnection;
+
+public class StubClientConnection implements ClientConnection {
+
+    private final String remoteAddr;
+
+    public StubClientConnection(String remoteAddr) {
+        this.remoteAddr = remoteAddr;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteAddr;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return 443;
+    }
+
+    @Override
+    public String getLocalAddr() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public int getLocalPort() {
+        return 8080;
+    }
+}
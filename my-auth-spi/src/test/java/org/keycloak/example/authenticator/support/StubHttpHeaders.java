@@ -0,0 +1,83 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class StubHttpHeaders implements HttpHeaders {
+
+    private final Map<String, Cookie> cookies = new HashMap<>();
+    private final MultivaluedMap<String, String> requestHeaders = new MultivaluedHashMap<>();
+
+    public StubHttpHeaders setCookie(String name, String value) {
+        cookies.put(name, new Cookie.Builder(name).value(value).build());
+        return this;
+    }
+
+    public StubHttpHeaders removeCookie(String name) {
+        cookies.remove(name);
+        return this;
+    }
+
+    public StubHttpHeaders setHeader(String name, String value) {
+        requestHeaders.putSingle(name, value);
+        return this;
+    }
+
+    @Override
+    public List<String> getRequestHeader(String value) {
+        return requestHeaders.get(value);
+    }
+
+    @Override
+    public String getHeaderString(String value) {
+        return requestHeaders.getFirst(value);
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public List<MediaType> getAcceptableMediaTypes() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Locale> getAcceptableLanguages() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MediaType getMediaType() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Locale getLanguage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, Cookie> getCookies() {
+        return cookies;
+    }
+
+    @Override
+    public Date getDate() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getLength() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,62 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.UriInfo;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import org.keycloak.http.FormPartValue;
+import org.keycloak.http.HttpRequest;
+
+public class StubHttpRequest implements HttpRequest {
+
+    private final MultivaluedMap<String, String> formParameters = new MultivaluedHashMap<>();
+    private final StubHttpHeaders headers = new StubHttpHeaders();
+
+    public StubHttpRequest setFormParameter(String name, String value) {
+        formParameters.putSingle(name, value);
+        return this;
+    }
+
+    // 同じ名前の入力欄が複数あるフォーム（必須アクションの回答など）
+    public StubHttpRequest setFormParameters(String name, List<String> values) {
+        formParameters.put(name, new ArrayList<>(values));
+        return this;
+    }
+
+    public StubHttpHeaders getStubHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String getHttpMethod() {
+        return "POST";
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getDecodedFormParameters() {
+        return formParameters;
+    }
+
+    @Override
+    public MultivaluedMap<String, FormPartValue> getMultiPartFormParameters() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpHeaders getHttpHeaders() {
+        return headers;
+    }
+
+    @Override
+    public X509Certificate[] getClientCertificateChain() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UriInfo getUri() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,46 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.http.HttpCookie;
+import org.keycloak.http.HttpResponse;
+
+/**
+ * addHeader() / setHeader() で書かれたヘッダを記録するだけの HttpResponse。
+ */
+public class StubHttpResponse implements HttpResponse {
+
+    private final MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+
+    public MultivaluedMap<String, String> getHeaders() {
+        return headers;
+    }
+
+    public void clear() {
+        headers.clear();
+    }
+
+    @Override
+    public void setStatus(int value) {
+    }
+
+    @Override
+    public void addHeader(String value, String value2) {
+        headers.add(value, value2);
+    }
+
+    @Override
+    public void setHeader(String value, String value2) {
+        headers.putSingle(value, value2);
+    }
+
+    @Override
+    public void setCookieIfAbsent(HttpCookie httpCookie) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setWriteCookiesOnTransactionComplete() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,138 @@
+package org.keycloak.example.authenticator.support;
+
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.JavaAlgorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.keys.RsaKeyMetadata;
+import org.keycloak.keys.SecretKeyMetadata;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.RealmModel;
+
+/**
+ * HMAC 鍵だけを持つ KeyManager。レルムは区別せず、登録した鍵をすべてのレルムで返します。
+ *
+ * DefaultKeyManager と同じく、getActiveKey() は鍵が見つからないと RuntimeException を投げ、
+ * getKey() は null を返します。
+ */
+public class StubKeyManager implements KeyManager {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final List<KeyWrapper> keys = new CopyOnWriteArrayList<>();
+
+    public StubKeyManager() {
+        addHmacKey("hmac-1", Algorithm.HS512);
+    }
+
+    // 先頭に追加するので、新しく追加した鍵が有効な鍵になる（ローテーション）
+    public KeyWrapper addHmacKey(String kid, String algorithm) {
+        byte[] secret = new byte[64];
+        RANDOM.nextBytes(secret);
+        SecretKey secretKey = new SecretKeySpec(secret, JavaAlgorithm.getJavaAlgorithm(algorithm));
+        KeyWrapper key = new KeyWrapper();
+        key.setKid(kid);
+        key.setAlgorithm(algorithm);
+        key.setType(KeyType.OCT);
+        key.setUse(KeyUse.SIG);
+        key.setStatus(KeyStatus.ACTIVE);
+        key.setSecretKey(secretKey);
+        for (KeyWrapper existing : keys) {
+            if (existing.getStatus() == KeyStatus.ACTIVE) {
+                existing.setStatus(KeyStatus.PASSIVE);
+            }
+        }
+        keys.add(0, key);
+        return key;
+    }
+
+    public void removeKey(String kid) {
+        keys.removeIf(key -> key.getKid().equals(kid));
+    }
+
+    @Override
+    public KeyWrapper getActiveKey(RealmModel realm, KeyUse use, String algorithm) {
+        return keys.stream()
+                .filter(key -> key.getStatus().isActive() && key.getUse() == use
+                        && key.getAlgorithm().equals(algorithm))
+                .findFirst().orElseThrow(() -> new RuntimeException(
+                        "Failed to find key: realm=" + realm.getName() + " algorithm=" + algorithm));
+    }
+
+    @Override
+    public KeyWrapper getKey(RealmModel realm, String kid, KeyUse use, String algorithm) {
+        return keys.stream().filter(key -> key.getKid().equals(kid) && key.getUse() == use
+                && key.getAlgorithm().equals(algorithm)).findFirst().orElse(null);
+    }
+
+    @Override
+    public Stream<KeyWrapper> getKeysStream(RealmModel realm) {
+        return keys.stream();
+    }
+
+    @Override
+    public Stream<KeyWrapper> getKeysStream(RealmModel realm, KeyUse use, String algorithm) {
+        return keys.stream()
+                .filter(key -> key.getUse() == use && key.getAlgorithm().equals(algorithm));
+    }
+
+    @Override
+    public ActiveRsaKey getActiveRsaKey(RealmModel realm) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PublicKey getRsaPublicKey(RealmModel realm, String kid) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Certificate getRsaCertificate(RealmModel realm, String kid) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<RsaKeyMetadata> getRsaKeys(RealmModel realm) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ActiveHmacKey getActiveHmacKey(RealmModel realm) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SecretKey getHmacSecretKey(RealmModel realm, String kid) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<SecretKeyMetadata> getHmacKeys(RealmModel realm) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ActiveAesKey getActiveAesKey(RealmModel realm) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SecretKey getAesSecretKey(RealmModel realm, String kid) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<SecretKeyMetadata> getAesKeys(RealmModel realm) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,118 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import java.net.URI;
+import java.util.Locale;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.http.HttpResponse;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.urls.UrlType;
+
+public class StubKeycloakContext implements KeycloakContext {
+
+    private final StubHttpRequest httpRequest;
+    private final StubHttpResponse httpResponse;
+    private final ClientConnection connection;
+    private RealmModel realm;
+    private AuthenticationSessionModel authenticationSession;
+    private ClientModel client;
+    private Locale locale = Locale.ENGLISH;
+
+    public StubKeycloakContext(RealmModel realm, StubHttpRequest httpRequest,
+            StubHttpResponse httpResponse, ClientConnection connection) {
+        this.realm = realm;
+        this.httpRequest = httpRequest;
+        this.httpResponse = httpResponse;
+        this.connection = connection;
+    }
+
+    @Override
+    public URI getAuthServerUrl() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getContextPath() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public KeycloakUriInfo getUri() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public KeycloakUriInfo getUri(UrlType urlType) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpHeaders getRequestHeaders() {
+        return httpRequest.getHttpHeaders();
+    }
+
+    @Override
+    public <T> T getContextObject(Class<T> clazz) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    @Override
+    public void setRealm(RealmModel realmModel) {
+        this.realm = realmModel;
+    }
+
+    @Override
+    public ClientModel getClient() {
+        return client;
+    }
+
+    @Override
+    public void setClient(ClientModel clientModel) {
+        this.client = clientModel;
+    }
+
+    @Override
+    public ClientConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public Locale resolveLocale(UserModel userModel) {
+        return locale;
+    }
+
+    public void setLocale(Locale locale) {
+        this.locale = locale;
+    }
+
+    @Override
+    public AuthenticationSessionModel getAuthenticationSession() {
+        return authenticationSession;
+    }
+
+    @Override
+    public void setAuthenticationSession(AuthenticationSessionModel authenticationSessionModel) {
+        this.authenticationSession = authenticationSessionModel;
+    }
+
+    @Override
+    public HttpRequest getHttpRequest() {
+        return httpRequest;
+    }
+
+    @Override
+    public HttpResponse getHttpResponse() {
+        return httpResponse;
+    }
+}
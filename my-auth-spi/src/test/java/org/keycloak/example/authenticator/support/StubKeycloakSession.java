@@ -0,0 +1,255 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ClientProvider;
+import org.keycloak.models.ClientScopeProvider;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.RoleProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.TokenManager;
+import org.keycloak.models.UserLoginFailureProvider;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.provider.InvalidationHandler;
+import org.keycloak.provider.Provider;
+import org.keycloak.services.clientpolicy.ClientPolicyManager;
+import org.keycloak.sessions.AuthenticationSessionProvider;
+import org.keycloak.vault.VaultTranscriber;
+
+/**
+ * プロバイダと属性、KeycloakContext だけを持つ KeycloakSession。
+ *
+ * プロバイダは registerProvider() で登録したインスタンスをそのまま返します。
+ */
+public class StubKeycloakSession implements KeycloakSession {
+
+    private final Map<String, Provider> providers = new HashMap<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final StubKeycloakContext context;
+    private KeycloakSessionFactory sessionFactory;
+    private KeyManager keyManager = new StubKeyManager();
+    private RealmProvider realmProvider;
+    private UserProvider userProvider;
+
+    public StubKeycloakSession(StubKeycloakContext context) {
+        this.context = context;
+    }
+
+    public <T extends Provider> StubKeycloakSession registerProvider(Class<T> clazz, String id,
+            T provider) {
+        providers.put(key(clazz, id), provider);
+        return this;
+    }
+
+    public StubKeycloakSession setKeyManager(KeyManager keyManager) {
+        this.keyManager = keyManager;
+        return this;
+    }
+
+    public StubKeycloakSession setRealmProvider(RealmProvider realmProvider) {
+        this.realmProvider = realmProvider;
+        return this;
+    }
+
+    public StubKeycloakSession setUserProvider(UserProvider userProvider) {
+        this.userProvider = userProvider;
+        return this;
+    }
+
+    public StubKeycloakSession setKeycloakSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        return this;
+    }
+
+    private static String key(Class<?> clazz, String id) {
+        return id == null ? clazz.getName() : clazz.getName() + "::" + id;
+    }
+
+    @Override
+    public KeycloakContext getContext() {
+        return context;
+    }
+
+    @Override
+    public KeycloakTransactionManager getTransactionManager() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Provider> T getProvider(Class<T> clazz) {
+        return clazz.cast(providers.get(key(clazz, null)));
+    }
+
+    @Override
+    public <T extends Provider> T getProvider(Class<T> clazz, String value) {
+        return clazz.cast(providers.get(key(clazz, value)));
+    }
+
+    @Override
+    public <T extends Provider> T getComponentProvider(Class<T> clazz, String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Provider> T getComponentProvider(Class<T> clazz, String value,
+                Function<KeycloakSessionFactory, ComponentModel> function) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Provider> T getProvider(Class<T> clazz,
+                ComponentModel componentModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Provider> Set<String> listProviderIds(Class<T> clazz) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Provider> Set<T> getAllProviders(Class<T> clazz) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getAttribute(String value) {
+        return attributes.get(value);
+    }
+
+    @Override
+    public <T> T getAttribute(String value, Class<T> clazz) {
+        return clazz.cast(attributes.get(value));
+    }
+
+    @Override
+    public Object removeAttribute(String value) {
+        return attributes.remove(value);
+    }
+
+    @Override
+    public void setAttribute(String value, Object value2) {
+        attributes.put(value, value2);
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public void invalidate(
+            InvalidationHandler.InvalidableObjectType invalidableObjectType, Object... value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void enlistForClose(Provider provider) {
+    }
+
+    @Override
+    public KeycloakSessionFactory getKeycloakSessionFactory() {
+        return sessionFactory;
+    }
+
+    @Override
+    public RealmProvider realms() {
+        if (realmProvider == null) {
+            throw new UnsupportedOperationException();
+        }
+        return realmProvider;
+    }
+
+    @Override
+    public ClientProvider clients() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ClientScopeProvider clientScopes() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public GroupProvider groups() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RoleProvider roles() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UserSessionProvider sessions() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UserLoginFailureProvider loginFailures() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AuthenticationSessionProvider authenticationSessions() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SingleUseObjectProvider singleUseObjects() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public UserProvider users() {
+        if (userProvider == null) {
+            throw new UnsupportedOperationException();
+        }
+        return userProvider;
+    }
+
+    @Override
+    public KeyManager keys() {
+        return keyManager;
+    }
+
+    @Override
+    public ThemeManager theme() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TokenManager tokens() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public VaultTranscriber vault() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ClientPolicyManager clientPolicy() {
+        throw new UnsupportedOperationException();
+    }
+}
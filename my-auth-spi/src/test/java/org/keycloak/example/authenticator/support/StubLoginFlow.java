@@ -0,0 +1,83 @@
+package org.keycloak.example.authenticator.support;
+
+import java.net.URI;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.models.RealmModel;
+
+/**
+ * 1 回分のログインリクエストに相当するスタブ一式（セッション・リクエスト・レスポンス・フローコンテキスト）を組み立てます。
+ *
+ * SecretQuestionCredentialProvider はファクトリの create() で作ったものをセッションに登録するので、
+ * ファクトリが持つキャッシュなどはノード内と同じように複数のフロー間で共有されます。
+ *
+ * 認証フロー（getContext()）と必須アクション（getRequiredActionContext()）のどちらのコンテキストも
+ * 同じセッションとリクエストを共有します。認証セッションはフローごとに新しく作ります。同じ認証セッションへの再送信を再現する場合は
+ * setAuthenticationSession() で前のフローのものを渡します。
+ */
+public class StubLoginFlow {
+
+    public static final URI BASE_URI = URI.create("http://localhost:8080/auth/");
+
+    private final StubHttpRequest request = new StubHttpRequest();
+    private final StubHttpResponse response = new StubHttpResponse();
+    private final StubKeycloakSession session;
+    private final StubAuthenticationFlowContext context;
+    private final StubRequiredActionContext requiredActionContext;
+    private final StubUserModel user;
+    private StubAuthenticationSession authenticationSession;
+
+    public StubLoginFlow(RealmModel realm, StubUserModel user,
+            SecretQuestionCredentialProviderFactory credentialProviderFactory, String remoteAddr) {
+        this.user = user;
+        StubKeycloakContext keycloakContext = new StubKeycloakContext(realm, request, response,
+                new StubClientConnection(remoteAddr));
+        session = new StubKeycloakSession(keycloakContext);
+        session.registerProvider(CredentialProvider.class,
+                SecretQuestionCredentialProviderFactory.PROVIDER_ID,
+                credentialProviderFactory.create(session));
+        StubUriInfo uriInfo = new StubUriInfo(BASE_URI);
+        context = new StubAuthenticationFlowContext(session, uriInfo, user);
+        requiredActionContext = new StubRequiredActionContext(session, uriInfo, user);
+        setAuthenticationSession(new StubAuthenticationSession(realm, "tab-id"));
+    }
+
+    public StubLoginFlow setAuthenticationSession(StubAuthenticationSession authenticationSession) {
+        this.authenticationSession = authenticationSession;
+        context.setAuthenticationSession(authenticationSession);
+        session.getContext().setAuthenticationSession(authenticationSession);
+        return this;
+    }
+
+    public StubAuthenticationSession getAuthenticationSession() {
+        return authenticationSession;
+    }
+
+    public StubHttpRequest getRequest() {
+        return request;
+    }
+
+    public StubHttpResponse getResponse() {
+        return response;
+    }
+
+    public StubKeycloakSession getSession() {
+        return session;
+    }
+
+    public StubAuthenticationFlowContext getContext() {
+        return context;
+    }
+
+    public StubRequiredActionContext getRequiredActionContext() {
+        return requiredActionContext;
+    }
+
+    public StubUserModel getUser() {
+        return user;
+    }
+
+    public RealmModel getRealm() {
+        return session.getContext().getRealm();
+    }
+}
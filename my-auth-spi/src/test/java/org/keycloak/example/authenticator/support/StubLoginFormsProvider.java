@@ -0,0 +1,289 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.forms.login.MessageType;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.FormMessage;
+import org.keycloak.provider.Provider;
+import org.keycloak.rar.AuthorizationDetails;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * テンプレートを描画せず、createForm() に渡されたテンプレート名とエラーだけを記録する LoginFormsProvider。
+ */
+public class StubLoginFormsProvider implements LoginFormsProvider {
+
+    private final Map<String, Object> attributes = new HashMap<>();
+    private String lastForm;
+    private String lastError;
+
+    public String getLastForm() {
+        return lastForm;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    public void reset() {
+        attributes.clear();
+        lastForm = null;
+        lastError = null;
+    }
+
+    @Override
+    public void addScript(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createResponse(UserModel.RequiredAction requiredAction) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createForm(String value) {
+        lastForm = value;
+        return Response.ok().build();
+    }
+
+    @Override
+    public String getMessage(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginUsernamePassword() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginUsername() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginPassword() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createOtpReset() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createPasswordReset() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginTotp() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginRecoveryAuthnCode() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginWebAuthn() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createRegistration() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createInfoPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createUpdateProfilePage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createIdpLinkConfirmLinkPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createIdpLinkEmailPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLoginExpiredPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createErrorPage(Response.Status status) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createWebAuthnErrorPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createOAuthGrant() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createSelectAuthenticator() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createOAuth2DeviceVerifyUserCodePage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createCode() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createX509ConfirmPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createSamlPostForm() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createFrontChannelLogoutPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response createLogoutConfirmPage() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setAuthenticationSession(
+            AuthenticationSessionModel authenticationSessionModel) {
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setClientSessionCode(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setAccessRequest(List<AuthorizationDetails> list) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setError(String value, Object... value2) {
+        lastError = value;
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setErrors(List<FormMessage> list) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider addError(FormMessage formMessage) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider addSuccess(FormMessage formMessage) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setSuccess(String value, Object... value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setInfo(String value, Object... value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setMessage(MessageType messageType, String value,
+                Object... value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setDetachedAuthSession() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setUser(UserModel userModel) {
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setResponseHeader(String value, String value2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LoginFormsProvider setFormData(MultivaluedMap<String,
+                String> multivaluedMap) {
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setAttribute(String value, Object value2) {
+        attributes.put(value, value2);
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setStatus(Response.Status status) {
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setActionUri(URI uri) {
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setExecution(String value) {
+        return this;
+    }
+
+    @Override
+    public LoginFormsProvider setAuthContext(AuthenticationFlowContext authenticationFlowContext) {
+        return this;
+    }
+
+    @Override
+    public void close() {
+    }
+}
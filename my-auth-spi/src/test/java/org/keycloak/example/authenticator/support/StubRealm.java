@@ -0,0 +1,94 @@
+package org.keycloak.example.authenticator.support;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+/**
+ * ID・名前・属性だけを扱う RealmModel を作ります。
+ *
+ * RealmModel はメソッド数が非常に多いので、ほかのスタブと違い動的プロキシで実装しています。
+ * 対応していないメソッドを呼ぶと UnsupportedOperationException になります。
+ */
+public final class StubRealm {
+
+    private StubRealm() {}
+
+    public static RealmModel create(String id, String name) {
+        Map<String, String> attributes = new ConcurrentHashMap<>();
+        return (RealmModel) Proxy.newProxyInstance(StubRealm.class.getClassLoader(),
+                new Class<?>[] {RealmModel.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getName":
+                        case "getDisplayName":
+                            return name;
+                        case "getAttribute":
+                            if (args.length == 1 && args[0] instanceof String) {
+                                return attributes.get((String) args[0]);
+                            }
+                            break;
+                        case "setAttribute":
+                            if (args.length == 2 && args[1] instanceof String) {
+                                attributes.put((String) args[0], (String) args[1]);
+                                return null;
+                            }
+                            break;
+                        case "removeAttribute":
+                            attributes.remove((String) args[0]);
+                            return null;
+                        case "getAttributes":
+                            return attributes;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "StubRealm[" + name + "]";
+                        default:
+                            break;
+                    }
+                    if (method.isDefault()) {
+                        return invokeDefault(proxy, method, args);
+                    }
+                    throw new UnsupportedOperationException(method.toString());
+                });
+    }
+
+    // 渡したレルムだけを ID で返す（一覧する）RealmProvider
+    public static RealmProvider provider(RealmModel... realms) {
+        return (RealmProvider) Proxy.newProxyInstance(StubRealm.class.getClassLoader(),
+                new Class<?>[] {RealmProvider.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRealm":
+                            for (RealmModel realm : realms) {
+                                if (realm.getId().equals(args[0])) {
+                                    return realm;
+                                }
+                            }
+                            return null;
+                        case "getRealmsStream":
+                            return Stream.of(realms);
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.toString());
+                    }
+                });
+    }
+
+    // getAttribute(String, Integer) などのデフォルトメソッドは getAttribute(String) に委譲させる
+    private static Object invokeDefault(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        Class<?> declaringClass = method.getDeclaringClass();
+        return MethodHandles.privateLookupIn(declaringClass, MethodHandles.lookup())
+                .unreflectSpecial(method, declaringClass).bindTo(proxy)
+                .invokeWithArguments(args == null ? new Object[0] : args);
+    }
+}
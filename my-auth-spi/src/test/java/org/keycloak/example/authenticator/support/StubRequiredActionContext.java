@@ -0,0 +1,135 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.UriInfo;
+import java.net.URI;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * 必須アクションの結果（success / challenge / failure / ignore）を記録するだけの RequiredActionContext。
+ *
+ * セッションやリクエストは StubLoginFlow のものを使います。認証セッションは呼び出しのたびに
+ * セッションのコンテキストから引くので、StubLoginFlow#setAuthenticationSession の変更に追従します。
+ */
+public class StubRequiredActionContext implements RequiredActionContext {
+
+    private final StubKeycloakSession session;
+    private final StubUriInfo uriInfo;
+    private final StubLoginFormsProvider forms = new StubLoginFormsProvider();
+    private final UserModel user;
+
+    private Status status;
+    private Response challenge;
+
+    public StubRequiredActionContext(StubKeycloakSession session, StubUriInfo uriInfo,
+            UserModel user) {
+        this.session = session;
+        this.uriInfo = uriInfo;
+        this.user = user;
+    }
+
+    public StubLoginFormsProvider getForms() {
+        return forms;
+    }
+
+    @Override
+    public URI getActionUrl(String code) {
+        return uriInfo.getBaseUri().resolve("realms/" + getRealm().getName()
+                + "/login-actions/required-action?session_code=" + code
+                + "&client_id=test-app&tab_id=" + getAuthenticationSession().getTabId());
+    }
+
+    @Override
+    public URI getActionUrl() {
+        return getActionUrl(generateCode());
+    }
+
+    @Override
+    public LoginFormsProvider form() {
+        return forms;
+    }
+
+    @Override
+    public Response getChallenge() {
+        return challenge;
+    }
+
+    @Override
+    public EventBuilder getEvent() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UserModel getUser() {
+        return user;
+    }
+
+    @Override
+    public RealmModel getRealm() {
+        return session.getContext().getRealm();
+    }
+
+    @Override
+    public AuthenticationSessionModel getAuthenticationSession() {
+        return session.getContext().getAuthenticationSession();
+    }
+
+    @Override
+    public ClientConnection getConnection() {
+        return session.getContext().getConnection();
+    }
+
+    @Override
+    public UriInfo getUriInfo() {
+        return uriInfo;
+    }
+
+    @Override
+    public KeycloakSession getSession() {
+        return session;
+    }
+
+    @Override
+    public HttpRequest getHttpRequest() {
+        return session.getContext().getHttpRequest();
+    }
+
+    @Override
+    public String generateCode() {
+        return "required-action-code-1";
+    }
+
+    @Override
+    public Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public void challenge(Response response) {
+        status = Status.CHALLENGE;
+        challenge = response;
+    }
+
+    @Override
+    public void failure() {
+        status = Status.FAILURE;
+    }
+
+    @Override
+    public void success() {
+        status = Status.SUCCESS;
+    }
+
+    @Override
+    public void ignore() {
+        status = Status.IGNORE;
+    }
+}
@@ -0,0 +1,108 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.example.authenticator.admin.SecretQuestionTransactionRunner;
+import org.keycloak.example.authenticator.credential.SecretQuestionCredentialModel;
+import org.keycloak.models.RealmModel;
+
+/**
+ * 1 つのレルムとそのユーザ一式。一括インポート/エクスポートのように、リクエストのセッションとは別に
+ * バッチごとのセッションを作って処理するコードを試すのに使います。
+ *
+ * runner() はバッチごとに新しい StubKeycloakSession を作ってタスクを実行します。タスクが例外を
+ * 投げた場合は、そのバッチで作られたクレデンシャルを消してロールバックを再現します。
+ */
+public class StubTenant {
+
+    private final RealmModel realm;
+    private final SecretQuestionCredentialProviderFactory factory;
+    private final StubUserProvider users = new StubUserProvider();
+    private final Map<String, StubUserModel> usersByName = new LinkedHashMap<>();
+    private int transactionCount;
+
+    /**
+     * @param userIdPrefix ユーザ ID の接頭辞。別のレルムを再現する場合に変える。
+     */
+    public StubTenant(SecretQuestionCredentialProviderFactory factory, String userIdPrefix,
+            String... usernames) {
+        this.factory = factory;
+        this.realm = StubRealm.create("realm-id", "test");
+        for (String username : usernames) {
+            StubUserModel user = new StubUserModel(userIdPrefix + username, username);
+            users.add(user);
+            usersByName.put(username, user);
+        }
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    public StubUserProvider getUsers() {
+        return users;
+    }
+
+    public StubUserModel getUser(String username) {
+        return usersByName.get(username);
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    public StubKeycloakSession newSession() {
+        StubKeycloakSession session =
+                new StubKeycloakSession(new StubKeycloakContext(realm, null, null, null));
+        session.setRealmProvider(StubRealm.provider(realm)).setUserProvider(users.create());
+        session.registerProvider(CredentialProvider.class,
+                SecretQuestionCredentialProviderFactory.PROVIDER_ID, factory.create(session));
+        return session;
+    }
+
+    public SecretQuestionTransactionRunner runner() {
+        return task -> {
+            transactionCount++;
+            StubKeycloakSession session = newSession();
+            Map<StubUserModel, Set<String>> before = new HashMap<>();
+            for (StubUserModel user : usersByName.values()) {
+                before.put(user, credentialIds(user));
+            }
+            try {
+                task.run(session);
+            } catch (RuntimeException e) {
+                for (StubUserModel user : usersByName.values()) {
+                    for (String id : credentialIds(user)) {
+                        if (!before.get(user).contains(id)) {
+                            user.credentialManager().removeStoredCredentialById(id);
+                        }
+                    }
+                }
+                throw e;
+            }
+        };
+    }
+
+    public static Set<String> credentialIds(StubUserModel user) {
+        return user.getCredentialStore().getStoredCredentialsStream().map(CredentialModel::getId)
+                .collect(Collectors.toSet());
+    }
+
+    // 保存されている秘密の質問に対して回答を検証する
+    public boolean verify(String username, String answer) {
+        StubUserModel user = getUser(username);
+        SecretQuestionCredentialProvider provider =
+                (SecretQuestionCredentialProvider) factory.create(newSession());
+        CredentialModel credential = user.getCredentialStore()
+                .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE).findFirst()
+                .orElse(null);
+        return provider.isValid(realm, user, credential, answer);
+    }
+}
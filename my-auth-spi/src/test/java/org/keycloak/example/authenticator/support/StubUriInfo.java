@@ -0,0 +1,112 @@
+package org.keycloak.example.authenticator.support;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.PathSegment;
+import jakarta.ws.rs.core.UriBuilder;
+import jakarta.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.util.List;
+
+public class StubUriInfo implements UriInfo {
+
+    private final URI baseUri;
+
+    public StubUriInfo(URI baseUri) {
+        this.baseUri = baseUri;
+    }
+
+    @Override
+    public String getPath() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPath(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<PathSegment> getPathSegments() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<PathSegment> getPathSegments(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI getRequestUri() {
+        return null;
+    }
+
+    @Override
+    public UriBuilder getRequestUriBuilder() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI getAbsolutePath() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UriBuilder getAbsolutePathBuilder() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI getBaseUri() {
+        return baseUri;
+    }
+
+    @Override
+    public UriBuilder getBaseUriBuilder() {
+        return UriBuilder.fromUri(baseUri);
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getPathParameters() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getPathParameters(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getQueryParameters() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getQueryParameters(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<String> getMatchedURIs() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<String> getMatchedURIs(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Object> getMatchedResources() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI resolve(URI uri) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI relativize(URI uri) {
+        throw new UnsupportedOperationException();
+    }
+}
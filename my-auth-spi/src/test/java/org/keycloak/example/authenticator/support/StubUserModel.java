@@ -0,0 +1,240 @@
+package org.keycloak.example.authenticator.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+
+/**
+ * ID・ユーザ名・属性・必須アクションとクレデンシャルだけを持つ UserModel。
+ *
+ * クレデンシャルは既定ではメモリ上（InMemoryCredentialManager）に持ちます。DB に置く場合は
+ * H2CredentialDatabase#createUser で作ります。
+ */
+public class StubUserModel implements UserModel {
+
+    private final String id;
+    private final String username;
+    private final Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+    private final Set<String> requiredActions = ConcurrentHashMap.newKeySet();
+    private final SubjectCredentialManager credentialManager;
+
+    public StubUserModel(String id, String username) {
+        this(id, username, new InMemoryCredentialManager());
+    }
+
+    public StubUserModel(String id, String username, SubjectCredentialManager credentialManager) {
+        this.id = id;
+        this.username = username;
+        this.credentialManager = credentialManager;
+    }
+
+    // クレデンシャルをメモリ上に持つ場合だけ使える
+    public InMemoryCredentialManager getCredentialStore() {
+        return (InMemoryCredentialManager) credentialManager;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Long getCreatedTimestamp() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCreatedTimestamp(Long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void setEnabled(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setSingleAttribute(String value, String value2) {
+        attributes.put(value, Collections.singletonList(value2));
+    }
+
+    @Override
+    public void setAttribute(String value, List<String> list) {
+        attributes.put(value, list);
+    }
+
+    @Override
+    public void removeAttribute(String value) {
+        attributes.remove(value);
+    }
+
+    @Override
+    public String getFirstAttribute(String value) {
+        List<String> values = attributes.get(value);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Stream<String> getAttributeStream(String value) {
+        List<String> values = attributes.get(value);
+        return values == null ? Stream.empty() : values.stream();
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Stream<String> getRequiredActionsStream() {
+        return requiredActions.stream();
+    }
+
+    @Override
+    public void addRequiredAction(String value) {
+        requiredActions.add(value);
+    }
+
+    @Override
+    public void removeRequiredAction(String value) {
+        requiredActions.remove(value);
+    }
+
+    @Override
+    public String getFirstName() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFirstName(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getLastName() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setLastName(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getEmail() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setEmail(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isEmailVerified() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setEmailVerified(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<GroupModel> getGroupsStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void joinGroup(GroupModel groupModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void leaveGroup(GroupModel groupModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isMemberOf(GroupModel groupModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getFederationLink() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFederationLink(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getServiceAccountClientLink() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setServiceAccountClientLink(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SubjectCredentialManager credentialManager() {
+        return credentialManager;
+    }
+
+    @Override
+    public Stream<RoleModel> getRealmRoleMappingsStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<RoleModel> getClientRoleMappingsStream(ClientModel clientModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasRole(RoleModel roleModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void grantRole(RoleModel roleModel) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Stream<RoleModel> getRoleMappingsStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteRoleMapping(RoleModel roleModel) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,59 @@
+package org.keycloak.example.authenticator.support;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+/**
+ * 登録したユーザを ID・ユーザ名で返し、ユーザ名順にページングして検索できる UserProvider。
+ *
+ * StubRealm と同じく動的プロキシで実装しています。searchForUserStream は検索条件を見ずに
+ * 全ユーザを対象にします。
+ */
+public final class StubUserProvider {
+
+    private final Map<String, StubUserModel> usersByName = new TreeMap<>();
+    private final AtomicInteger searchCount = new AtomicInteger();
+
+    public StubUserProvider add(StubUserModel user) {
+        usersByName.put(user.getUsername(), user);
+        return this;
+    }
+
+    // searchForUserStream の呼び出し回数（ページ数）
+    public int getSearchCount() {
+        return searchCount.get();
+    }
+
+    public UserProvider create() {
+        return (UserProvider) Proxy.newProxyInstance(StubUserProvider.class.getClassLoader(),
+                new Class<?>[] {UserProvider.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUserById":
+                            for (StubUserModel user : usersByName.values()) {
+                                if (user.getId().equals(args[1])) {
+                                    return user;
+                                }
+                            }
+                            return null;
+                        case "getUserByUsername":
+                            return usersByName.get((String) args[1]);
+                        case "searchForUserStream":
+                            if (args.length == 4 && args[1] instanceof Map) {
+                                searchCount.incrementAndGet();
+                                return usersByName.values().stream().map(u -> (UserModel) u)
+                                        .skip((Integer) args[2]).limit((Integer) args[3]);
+                            }
+                            break;
+                        case "close":
+                            return null;
+                        default:
+                            break;
+                    }
+                    throw new UnsupportedOperationException(method.toString());
+                });
+    }
+}
@@ -0,0 +1,97 @@
+package org.keycloak.example.authenticator.throttle;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class GradientConcurrencyLimitTest extends TestCase {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static void acquire(GradientConcurrencyLimit limit, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(limit.tryAcquire());
+        }
+    }
+
+    private static void sample(GradientConcurrencyLimit limit, long latencyNanos, int count) {
+        for (int i = 0; i < count; i++) {
+            limit.onSample(latencyNanos);
+        }
+    }
+
+    public void testRejectsBeyondLimitWithoutWaiting() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(2, 1, 10, 1.5);
+
+        acquire(limit, 2);
+        assertFalse(limit.tryAcquire());
+        limit.release();
+        assertTrue(limit.tryAcquire());
+
+        assertEquals(2, limit.getInFlight());
+        assertEquals(1, limit.getRejectionCount());
+    }
+
+    public void testShrinksWhenLatencyRisesAndRecovers() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(20, 2, 200, 1.5);
+        acquire(limit, 20);
+        sample(limit, FAST, 100);
+        int steady = limit.getLimit();
+        // 実行中の数の倍までしか伸ばさない
+        assertTrue(String.valueOf(steady), steady > 20 && steady <= 41);
+
+        sample(limit, SLOW, 20);
+        int degraded = limit.getLimit();
+        assertTrue(degraded + " < " + steady, degraded < steady);
+
+        sample(limit, FAST, 100);
+        assertTrue(limit.getLimit() + " > " + degraded, limit.getLimit() > degraded);
+    }
+
+    public void testGrowsOnlyWhileInUse() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(20, 2, 200, 1.5);
+        acquire(limit, 1);
+
+        sample(limit, FAST, 100);
+        assertEquals(20, limit.getLimit());
+
+        // DB 自体が遅くなった場合は、使っている数が少なくても縮める
+        sample(limit, SLOW, 20);
+        assertTrue(String.valueOf(limit.getLimit()), limit.getLimit() < 20);
+    }
+
+    public void testDroppedBacksOffToMinimum() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 2, 200, 1.5);
+
+        limit.onDropped();
+        assertEquals(9, limit.getLimit());
+        for (int i = 0; i < 50; i++) {
+            limit.onDropped();
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    public void testSampleIsDroppedWhileAnotherThreadUpdates() throws Exception {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(20, 2, 200, 1.5);
+        acquire(limit, 20);
+        sample(limit, FAST, 100);
+        int steady = limit.getLimit();
+
+        // onDropped() が更新している間に届いたサンプルは待たずに捨てる
+        CountDownLatch sampled = new CountDownLatch(1);
+        Thread updater = new Thread(() -> {
+            sample(limit, SLOW, 20);
+            sampled.countDown();
+        });
+        limit.getLock().lock();
+        try {
+            updater.start();
+            assertTrue(sampled.await(10, TimeUnit.SECONDS));
+            assertEquals(steady, limit.getLimit());
+        } finally {
+            limit.getLock().unlock();
+        }
+        updater.join();
+    }
+}
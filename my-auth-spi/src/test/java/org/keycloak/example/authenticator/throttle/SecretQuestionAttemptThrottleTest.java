@@ -0,0 +1,48 @@
+package org.keycloak.example.authenticator.throttle;
+
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.support.StubRealm;
+import org.keycloak.example.authenticator.support.StubUserModel;
+import org.keycloak.models.RealmModel;
+
+public class SecretQuestionAttemptThrottleTest extends TestCase {
+
+    private final RealmModel realm = StubRealm.create("realm-id", "test");
+    private final StubUserModel alice = new StubUserModel("user-a", "alice");
+    private final StubUserModel bob = new StubUserModel("user-b", "bob");
+
+    public void testLimitedUserDoesNotConsumeIpTokens() {
+        // ユーザごとに 2 回、IP ごとに 3 回
+        SecretQuestionAttemptThrottle throttle =
+                new SecretQuestionAttemptThrottle(2, 60000L, 3, 60000L, 100, false);
+        assertTrue(throttle.tryAcquire(null, realm, alice, "192.0.2.1"));
+        assertTrue(throttle.tryAcquire(null, realm, alice, "192.0.2.1"));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(throttle.tryAcquire(null, realm, alice, "192.0.2.1"));
+        }
+
+        // alice が断られた試行は IP の回数に数えない
+        assertTrue(throttle.tryAcquire(null, realm, bob, "192.0.2.1"));
+        assertFalse(throttle.tryAcquire(null, realm, bob, "192.0.2.1"));
+    }
+
+    public void testLimitedIpDoesNotConsumeUserTokens() {
+        SecretQuestionAttemptThrottle throttle =
+                new SecretQuestionAttemptThrottle(2, 60000L, 1, 60000L, 100, false);
+        assertTrue(throttle.tryAcquire(null, realm, bob, "192.0.2.1"));
+        assertFalse(throttle.tryAcquire(null, realm, alice, "192.0.2.1"));
+
+        assertTrue(throttle.tryAcquire(null, realm, alice, "192.0.2.2"));
+        assertTrue(throttle.tryAcquire(null, realm, alice, "192.0.2.3"));
+    }
+
+    public void testMissingRemoteAddressSkipsIpLimit() {
+        SecretQuestionAttemptThrottle throttle =
+                new SecretQuestionAttemptThrottle(2, 60000L, 1, 60000L, 100, false);
+        // アドレスの分からない試行どうしで 1 つのバケットを共有しない
+        assertTrue(throttle.tryAcquire(null, realm, alice, null));
+        assertTrue(throttle.tryAcquire(null, realm, bob, null));
+        assertFalse(throttle.isLimited(realm, bob, null));
+        assertEquals(0, throttle.getIpLimiter().size());
+    }
+}
@@ -0,0 +1,82 @@
+package org.keycloak.example.authenticator.throttle;
+
+import junit.framework.TestCase;
+import org.keycloak.common.util.Time;
+
+public class TokenBucketLimiterTest extends TestCase {
+
+    public void testAllowsBurstUpToCapacity() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(3, 60000L, 100);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.isLimited("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        // キーごとに独立している
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(1, limiter.getRejectionCount());
+    }
+
+    public void testRefillsOverTime() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(3, 60000L, 100);
+        for (int i = 0; i < 3; i++) {
+            limiter.tryAcquire("a");
+        }
+        assertFalse(limiter.tryAcquire("a"));
+
+        // 20 秒で 1 回分補充される
+        Time.setOffset(20);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+
+        Time.setOffset(120);
+        assertFalse(limiter.isLimited("a"));
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    public void testIdleBucketsAreEvictedAndEntriesAreBounded() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(2, 60000L, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+
+        // 上限に達していて掃除しても空かない場合は、上限から遠いバケットを追い出して受け付ける
+        assertTrue(limiter.tryAcquire("c"));
+        assertEquals(2, limiter.size());
+        assertEquals(1, limiter.getEvictionCount());
+        assertEquals(0, limiter.getRejectionCount());
+        assertTrue(limiter.isLimited("a"));
+        assertFalse(limiter.tryAcquire("a"));
+
+        // 満杯に戻ったバケットは掃除される
+        Time.setOffset(61);
+        assertTrue(limiter.tryAcquire("d"));
+        assertEquals(1, limiter.size());
+        assertEquals(1, limiter.getEvictionCount());
+    }
+
+    public void testReleaseReturnsToken() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1, 60000L, 100);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.isLimited("a"));
+
+        limiter.release("a");
+
+        assertFalse(limiter.isLimited("a"));
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    public void testNonPositiveCapacityDisablesLimit() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(0, 60000L, 100);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("a"));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Override
+    protected void tearDown() {
+        Time.setOffset(0);
+    }
+}
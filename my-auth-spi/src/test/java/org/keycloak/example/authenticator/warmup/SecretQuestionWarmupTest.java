@@ -0,0 +1,59 @@
+package org.keycloak.example.authenticator.warmup;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.keycloak.example.authenticator.cookie.SecretQuestionCookieSigner;
+import org.keycloak.example.authenticator.metrics.SecretQuestionMetrics;
+import org.keycloak.example.authenticator.support.MapConfigScope;
+
+public class SecretQuestionWarmupTest extends TestCase {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final SecretQuestionMetrics metrics = new SecretQuestionMetrics(registry, 10, false);
+
+    public void testFailedStepDoesNotStopOthers() {
+        SecretQuestionWarmup warmup = new SecretQuestionWarmup(true, 3, 0);
+        int[] runs = new int[1];
+        Map<String, SecretQuestionWarmup.Step> steps = new LinkedHashMap<>();
+        steps.put("broken", iterations -> {
+            throw new IllegalStateException("boom");
+        });
+        steps.put("counted", iterations -> runs[0] += iterations);
+
+        assertEquals(Collections.singletonList("broken"), warmup.run("provider", metrics, steps));
+
+        assertEquals(3, runs[0]);
+        assertEquals(1, timer("failure").count());
+    }
+
+    public void testPublishesDuration() {
+        SecretQuestionWarmup warmup = new SecretQuestionWarmup(true, 10, 0);
+        Map<String, SecretQuestionWarmup.Step> steps = new LinkedHashMap<>();
+        steps.put("cookie", SecretQuestionCookieSigner::warmUp);
+
+        assertTrue(warmup.run("provider", metrics, steps).isEmpty());
+
+        assertEquals(1, timer("success").count());
+        assertTrue(timer("success").totalTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    public void testDisabledByDefault() {
+        SecretQuestionWarmup warmup = SecretQuestionWarmup.fromConfig(new MapConfigScope());
+        Map<String, SecretQuestionWarmup.Step> steps = new LinkedHashMap<>();
+        steps.put("broken", iterations -> fail("must not run"));
+
+        assertFalse(warmup.isEnabled());
+        assertTrue(warmup.run("provider", metrics, steps).isEmpty());
+        assertTrue(registry.getMeters().isEmpty());
+    }
+
+    private Timer timer(String outcome) {
+        return registry.get(SecretQuestionMetrics.WARMUP_METRIC).tag("provider", "provider")
+                .tag("outcome", outcome).timer();
+    }
+}